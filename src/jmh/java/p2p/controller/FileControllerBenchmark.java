@@ -0,0 +1,135 @@
+package p2p.controller;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import p2p.service.ShareCluster;
+
+/**
+ * 같은 프로세스에 띄운 FileController에 대한 /upload, /download 왕복.
+ * SampleTime 모드로 p50/p90/p99 지연을 보고, 할당률은 -prof gc 로 확인한다.
+ *
+ * 매 업로드가 새 공유를 만들므로 upload는 매번 같은 내용(dedup 경로), uniqueUpload는 매번 다른 내용.
+ * 업로드는 trial마다 만드는 임시 디렉터리에 쌓고 끝나면 지운다 (실제 p2p-uploads를 채우지 않도록).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(value = 1, jvmArgsAppend = {"-Dp2p.share.ttl=600", "-Dp2p.share.sweepInterval=5"})
+@Threads(4)
+public class FileControllerBenchmark {
+    private static final String BOUNDARY = "----p2pBenchBoundary";
+    private static final Pattern CODE = Pattern.compile("\"code\":\"([^\"]+)\"");
+
+    @Param({"65536", "4194304"})
+    public int fileSize;
+
+    private Path dir;
+    private FileController controller;
+    private HttpClient client;
+    private URI uploadUri;
+    private String downloadBase;
+    private byte[] content;
+    private String code;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException{
+        dir = Files.createTempDirectory("p2p-bench");
+        controller = new FileController(0, 0, dir.toString(), ShareCluster.standalone());
+        controller.start();
+        String base = "http://localhost:" + controller.getPort();
+        uploadUri = URI.create(base + "/upload");
+        downloadBase = base + "/download/";
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        content = new byte[fileSize];
+        new Random(11).nextBytes(content);
+        code = upload(content);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException{
+        controller.stop();
+        try(Stream<Path> paths = Files.walk(dir)){
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private String upload(byte[] data) throws IOException, InterruptedException{
+        HttpRequest request = HttpRequest.newBuilder(uploadUri)
+                .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+                .POST(HttpRequest.BodyPublishers.ofByteArrays(multipart(data)))
+                .build();
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        Matcher matcher = CODE.matcher(response.body());
+        if(response.statusCode() != 200 || !matcher.find()){
+            throw new IllegalStateException("Upload failed: " + response.statusCode() + " " + response.body());
+        }
+        return matcher.group(1);
+    }
+
+    private static List<byte[]> multipart(byte[] data){
+        List<byte[]> parts = new ArrayList<>();
+        parts.add(("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"bench.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        parts.add(data);
+        parts.add(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        return parts;
+    }
+
+    @Benchmark
+    public String upload() throws IOException, InterruptedException{
+        return upload(content);
+    }
+
+    @Benchmark
+    public String uniqueUpload() throws IOException, InterruptedException{
+        byte[] data = content.clone();
+        long nonce = System.nanoTime() ^ Thread.currentThread().threadId();
+        for(int i = 0; i < 8; i++){
+            data[i] = (byte) (nonce >>> (i * 8));
+        }
+        return upload(data);
+    }
+
+    @Benchmark
+    public long download() throws IOException, InterruptedException{
+        HttpRequest request = HttpRequest.newBuilder(URI.create(downloadBase + code)).GET().build();
+        HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        if(response.statusCode() != 200){
+            throw new IllegalStateException("Download failed: " + response.statusCode());
+        }
+        return response.body().length;
+    }
+}
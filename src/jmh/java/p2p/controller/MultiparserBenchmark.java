@@ -0,0 +1,117 @@
+package p2p.controller;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * multipart 파싱 hot path.
+ *
+ * placement
+ * - random   : 본문은 난수, boundary는 끝에 한 번
+ * - nearMiss : 본문이 boundary 앞부분("\r\n--...")으로 가득 차 Horspool이 거의 건너뛰지 못하는 경우
+ * - straddle : 닫는 boundary가 읽기 버퍼 경계에 걸치도록 본문 길이를 맞춘 경우
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MultiparserBenchmark {
+    private static final String BOUNDARY = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+
+    @Param({"1024", "1048576", "16777216"})
+    public int payloadSize;
+
+    @Param({"random", "nearMiss", "straddle"})
+    public String placement;
+
+    private byte[] request;
+    private byte[] body;
+    private Multiparser searcher;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException{
+        byte[] head = ("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"bench.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        byte[] tail = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        int size = payloadSize;
+        if(placement.equals("straddle")){
+            // parser는 앞에 CRLF 2바이트를 붙여 두고 시작하므로 그만큼 보정
+            int bufferSize = Multiparser.DEFAULT_BUFFER_SIZE;
+            int consumed = 2 + head.length + size;
+            size += Math.floorMod(bufferSize - consumed - tail.length / 2, bufferSize);
+        }
+        body = new byte[size];
+        if(placement.equals("nearMiss")){
+            byte[] prefix = ("\r\n--" + BOUNDARY.substring(0, BOUNDARY.length() - 1)).getBytes(StandardCharsets.ISO_8859_1);
+            for(int i = 0; i < size; i++){
+                body[i] = prefix[i % prefix.length];
+            }
+        }
+        else{
+            new Random(42).nextBytes(body);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(head.length + size + tail.length);
+        out.write(head);
+        out.write(body);
+        out.write(tail);
+        request = out.toByteArray();
+        // findSequence 측정용: 본문 끝에 구분자 하나
+        body = Arrays.copyOf(body, size + tail.length);
+        System.arraycopy(tail, 0, body, size, tail.length);
+        searcher = new Multiparser(new ByteArrayInputStream(new byte[0]), BOUNDARY);
+    }
+
+    @Benchmark
+    public long parse() throws IOException{
+        Multiparser parser = new Multiparser(new ByteArrayInputStream(request), BOUNDARY);
+        Multiparser.ParseResult result = parser.parse(part -> new DiscardChannel());
+        return result.size;
+    }
+
+    @Benchmark
+    public void findSequence(Blackhole blackhole){
+        blackhole.consume(searcher.findSequence(body, 0, body.length));
+    }
+
+    static class DiscardChannel implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer src){
+            int n = src.remaining();
+            src.position(src.limit());
+            return n;
+        }
+
+        @Override
+        public boolean isOpen(){
+            return true;
+        }
+
+        @Override
+        public void close(){
+        }
+    }
+}
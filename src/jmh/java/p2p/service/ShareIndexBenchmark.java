@@ -0,0 +1,92 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import p2p.utils.ShareCodeAllocator;
+
+/**
+ * 재시작 복원 시간: 색인을 열어 공유 N개를 등록부와 blob 참조까지 되살리는 데 걸리는 시간.
+ * snapshot=true 는 compaction 직후 (snapshot만, 위치 표만 만들고 조회할 때 디코딩),
+ * false는 전부 log에 남아 있는 경우 (전부 바로 디코딩).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class ShareIndexBenchmark {
+
+    @Param({"1000000"})
+    public int shares;
+
+    @Param({"true", "false"})
+    public boolean snapshot;
+
+    private Path dir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException{
+        dir = Files.createTempDirectory("share-index-bench");
+        BlobStore blobStore = new BlobStore(dir.toString());
+        ShareIndex index = ShareIndex.open(dir.resolve("index"), blobStore);
+        ShareCodeAllocator allocator = new ShareCodeAllocator(index.getKey(), 0);
+        Map<String, SharedFile> live = new HashMap<>(shares * 2);
+        Random random = new Random(42);
+        byte[] hash = new byte[32];
+        long expiresAt = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1);
+        for(int i = 0; i < shares; i++){
+            random.nextBytes(hash);
+            String blobId = HexFormat.of().formatHex(hash);
+            SharedFile sharedFile = new SharedFile(blobId, blobStore.blobPathString(blobId), "file-" + i + ".bin",
+                    "application/octet-stream", random.nextInt(1 << 30), expiresAt, 0);
+            String code = allocator.next();
+            live.put(code, sharedFile);
+            if(!snapshot){
+                index.added(code, sharedFile, allocator.getCounter());
+            }
+        }
+        if(snapshot){
+            index.compact(live.entrySet(), allocator.getCounter());
+        }
+        index.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException{
+        try(Stream<Path> files = Files.walk(dir)){
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public int restore() throws IOException{
+        BlobStore blobStore = new BlobStore(dir.toString());
+        ShareIndex index = ShareIndex.open(dir.resolve("index"), blobStore);
+        FileSharer fileSharer = new FileSharer(0, 1, 0, blobStore, new ContentCache(0, 0, 1), ShareCluster.standalone(), index);
+        index.close();
+        return fileSharer.getShareCount();
+    }
+}
@@ -0,0 +1,75 @@
+package p2p.service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 공유 코드 발급/조회 경합.
+ *
+ * register는 여러 스레드가 동시에 발급하는 경우, lookup은 다운로드처럼 조회만 몰리는 경우,
+ * mixed는 업로드 1 : 다운로드 7 비율로 섞은 경우.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ShareRegistryBenchmark {
+    private static final int PRELOADED = 100_000;
+
+    private ShareRegistry registry;
+    private String[] codes;
+    private SharedFile sharedFile;
+
+    @Setup(Level.Iteration)
+    public void setUp(){
+        registry = new ShareRegistry();
+        sharedFile = new SharedFile("/dev/null", "bench.bin", "application/octet-stream", 0);
+        codes = new String[PRELOADED];
+        for(int i = 0; i < PRELOADED; i++){
+            codes[i] = registry.register(sharedFile);
+        }
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String register(){
+        return registry.register(sharedFile);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public SharedFile lookup(){
+        return registry.get(codes[ThreadLocalRandom.current().nextInt(PRELOADED)]);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public String mixedRegister(){
+        return registry.register(sharedFile);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(7)
+    public SharedFile mixedLookup(){
+        return registry.get(codes[ThreadLocalRandom.current().nextInt(PRELOADED)]);
+    }
+}
@@ -0,0 +1,96 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * share 포트(9090 프로토콜) 전송 처리량. loopback 소켓으로 핸드셰이크부터 마지막 바이트까지 받는다.
+ * cached=true 는 ContentCache의 off-heap 버퍼에서, false는 FileChannel.transferTo로 보낸다.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+@Threads(4)
+public class ShareServerBenchmark {
+
+    @Param({"65536", "16777216"})
+    public int fileSize;
+
+    @Param({"false", "true"})
+    public boolean cached;
+
+    private Path dir;
+    private FileSharer fileSharer;
+    private String code;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException{
+        dir = Files.createTempDirectory("p2p-bench");
+        byte[] content = new byte[fileSize];
+        new Random(7).nextBytes(content);
+        Path file = dir.resolve("data.bin");
+        Files.write(file, content);
+        ContentCache cache = cached ? new ContentCache(256L * 1024 * 1024, 64L * 1024 * 1024, 1) : new ContentCache(0, 0, 1);
+        fileSharer = new FileSharer(0, 2, 0, null, cache);
+        fileSharer.startFileServer();
+        code = fileSharer.offerFile(new SharedFile(file.toString(), "data.bin", "application/octet-stream", fileSize));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException{
+        fileSharer.stopFileServer();
+        try(Stream<Path> paths = Files.walk(dir)){
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long bytes;
+    }
+
+    @Benchmark
+    public long fetch(Bytes counter) throws IOException{
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        try(Socket socket = new Socket("localhost", fileSharer.getSharePort())){
+            socket.getOutputStream().write((code + "\n").getBytes(StandardCharsets.US_ASCII));
+            try(InputStream in = socket.getInputStream()){
+                int read;
+                while((read = in.read(buffer)) != -1){
+                    total += read;
+                }
+            }
+        }
+        counter.bytes += total;
+        return total;
+    }
+}
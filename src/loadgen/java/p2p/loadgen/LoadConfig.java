@@ -0,0 +1,126 @@
+package p2p.loadgen;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 부하 생성 설정. 인자는 key=value 형식, 없는 키는 기본값.
+ *
+ *   target=http://host:8080   대상 서버 (비우면 이 프로세스 안에 노드를 하나 띄움)
+ *   rate=20                   초당 도착 수 (open loop: 응답이 늦어도 도착 간격은 그대로)
+ *   arrival=poisson           poisson (지수 분포 간격) | constant
+ *   duration=60 warmup=5      측정 시간, 측정 전 예열 시간 (초)
+ *   mix=upload=1,download=3   작업 비율
+ *   sizes=16k=70,1m=25,16m=5  업로드 크기 분포 (k, m, g 단위)
+ *   preload=16                시작 전에 올려 둘 공유 수 (다운로드 대상)
+ *   ttl=600                   업로드한 공유의 수명 (초, 0이면 만료 없음). soak에서는 디스크가 차지 않게 짧게
+ *   maxInFlight=512           동시에 진행 중인 요청 상한, 넘는 도착은 dropped로 센다
+ *   timeout=120               요청 하나의 제한 시간 (초)
+ *   sampleInterval=10         soak 표본 간격 (초)
+ *   quiesce=5                 부하를 멈춘 뒤 누수 검사 전까지 기다리는 시간 (초)
+ *   out=target/loadgen-result.json
+ *   seed=1
+ */
+public class LoadConfig {
+    public final String target;
+    public final double rate;
+    public final boolean poisson;
+    public final long durationSeconds;
+    public final long warmupSeconds;
+    public final Map<String, Double> mix;
+    public final Map<Long, Double> sizes;
+    public final int preload;
+    public final long ttlSeconds;
+    public final int maxInFlight;
+    public final long timeoutSeconds;
+    public final long sampleIntervalSeconds;
+    public final long quiesceSeconds;
+    public final String out;
+    public final long seed;
+
+    private LoadConfig(Map<String, String> args){
+        this.target = args.getOrDefault("target", "");
+        this.rate = Double.parseDouble(args.getOrDefault("rate", "20"));
+        String arrival = args.getOrDefault("arrival", "poisson");
+        if(!arrival.equals("poisson") && !arrival.equals("constant")){
+            throw new IllegalArgumentException("arrival must be poisson or constant: " + arrival);
+        }
+        this.poisson = arrival.equals("poisson");
+        this.durationSeconds = Long.parseLong(args.getOrDefault("duration", "60"));
+        this.warmupSeconds = Long.parseLong(args.getOrDefault("warmup", "5"));
+        this.mix = weights(args.getOrDefault("mix", "upload=1,download=3"));
+        for(String op : mix.keySet()){
+            if(!op.equals(LoadGenerator.UPLOAD) && !op.equals(LoadGenerator.DOWNLOAD)){
+                throw new IllegalArgumentException("Unknown operation in mix: " + op);
+            }
+        }
+        this.sizes = new LinkedHashMap<>();
+        weights(args.getOrDefault("sizes", "16k=70,1m=25,16m=5")).forEach((size, weight) -> sizes.put(parseSize(size), weight));
+        this.preload = Integer.parseInt(args.getOrDefault("preload", "16"));
+        this.ttlSeconds = Long.parseLong(args.getOrDefault("ttl", "600"));
+        this.maxInFlight = Integer.parseInt(args.getOrDefault("maxInFlight", "512"));
+        this.timeoutSeconds = Long.parseLong(args.getOrDefault("timeout", "120"));
+        this.sampleIntervalSeconds = Long.parseLong(args.getOrDefault("sampleInterval", "10"));
+        this.quiesceSeconds = Long.parseLong(args.getOrDefault("quiesce", "5"));
+        this.out = args.getOrDefault("out", "target/loadgen-result.json");
+        this.seed = Long.parseLong(args.getOrDefault("seed", "1"));
+        if(rate <= 0 || durationSeconds <= 0 || sampleIntervalSeconds <= 0 || maxInFlight <= 0 || timeoutSeconds <= 0){
+            throw new IllegalArgumentException("rate, duration, sampleInterval, maxInFlight and timeout must be positive");
+        }
+    }
+
+    public static LoadConfig parse(String... args){
+        Map<String, String> values = new LinkedHashMap<>();
+        for(String arg : args){
+            int eq = arg.indexOf('=');
+            if(eq <= 0){
+                throw new IllegalArgumentException("Expected key=value: " + arg);
+            }
+            values.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        return new LoadConfig(values);
+    }
+
+    // "a=1,b=3" -> {a=1.0, b=3.0}
+    private static Map<String, Double> weights(String spec){
+        Map<String, Double> weights = new LinkedHashMap<>();
+        for(String pair : spec.split(",")){
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair.trim() : pair.substring(0, eq).trim();
+            double weight = eq < 0 ? 1 : Double.parseDouble(pair.substring(eq + 1).trim());
+            if(key.isEmpty() || weight < 0){
+                throw new IllegalArgumentException("Invalid weight: " + pair);
+            }
+            if(weight > 0){
+                weights.put(key, weight);
+            }
+        }
+        if(weights.isEmpty()){
+            throw new IllegalArgumentException("No positive weights in: " + spec);
+        }
+        return weights;
+    }
+
+    static long parseSize(String size){
+        String s = size.trim().toLowerCase();
+        long unit = 1;
+        if(s.endsWith("k")){
+            unit = 1024;
+        }
+        else if(s.endsWith("m")){
+            unit = 1024 * 1024;
+        }
+        else if(s.endsWith("g")){
+            unit = 1024L * 1024 * 1024;
+        }
+        long value = Long.parseLong(unit == 1 ? s : s.substring(0, s.length() - 1)) * unit;
+        if(value <= 0){
+            throw new IllegalArgumentException("Size must be positive: " + size);
+        }
+        return value;
+    }
+
+    public boolean inProcess(){
+        return target.isEmpty();
+    }
+}
@@ -0,0 +1,367 @@
+package p2p.loadgen;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import p2p.controller.FileController;
+import p2p.service.ShareCluster;
+
+/**
+ * HTTP 업로드/다운로드 부하 생성기 (soak 테스트 겸용). 배포 jar에는 들어가지 않는다 (src/loadgen, loadgen profile).
+ *
+ *   mvn -Ploadgen test-compile exec:exec -Dloadgen.args="rate=50 duration=600"
+ *   mvn -Ploadgen test -Dtest=LoadGeneratorTest     (몇 초짜리 soak, 기본 테스트에는 없음)
+ *
+ * 순서: (노드 띄우기) -> preload 업로드 -> warmup 부하 -> 진행 중 요청이 빠지면 baseline 자원 표본
+ *      -> 측정 부하 (sampleInterval마다 표본) -> 요청이 모두 끝나고 클라이언트를 닫은 뒤 quiesce -> 최종 표본, 누수 판정
+ *
+ * 도착은 open loop: 정해진 시각마다 요청을 비동기(sendAsync)로 내보내고 응답을 기다리지 않는다.
+ * 요청마다 스레드를 잡지 않으므로, 같은 프로세스의 노드와 가상 스레드 carrier를 두고 다투지 않는다
+ * (JDK 21 HttpServer는 응답을 쓰다 막히면 carrier를 붙잡는다, 그 위에서 클라이언트가 읽기를 기다리면 서로 멈춤).
+ * 진행 중 요청이 maxInFlight를 넘으면 보내지 않고 dropped로 센다 (생성기 쪽 포화를 숨기지 않음).
+ * 결과는 JSON (config.out), 누수나 멈춘 요청이 있으면 종료 코드 1.
+ */
+public class LoadGenerator {
+    public static final String UPLOAD = "upload";
+    public static final String DOWNLOAD = "download";
+
+    private static final String BOUNDARY = "----p2p-loadgen";
+    // 업로드 내용은 이 버퍼를 반복하고, 앞 16바이트만 업로드마다 달리 해 중복 제거(dedup)를 피한다
+    private static final int PATTERN_BYTES = 4 * 1024 * 1024;
+    private static final int SHARE_POOL = 4096;
+    private static final Pattern CODE = Pattern.compile("\"code\":\"([^\"]+)\"");
+    private static final Pattern EXPIRES_AT = Pattern.compile("\"expiresAt\":(\\d+)");
+
+    private final LoadConfig config;
+    private final LoadReport report;
+    private final byte[] pattern;
+    private final long nonce = System.nanoTime();
+    private final AtomicLong uploads = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicReferenceArray<Uploaded> shares = new AtomicReferenceArray<>(SHARE_POOL);
+    private final AtomicLong shareCount = new AtomicLong();
+    private HttpClient client;
+    private String target;
+
+    public LoadGenerator(LoadConfig config){
+        this.config = config;
+        this.report = new LoadReport(config);
+        long largest = Collections.max(config.sizes.keySet());
+        this.pattern = new byte[(int) Math.min(largest, PATTERN_BYTES)];
+        new SplittableRandom(config.seed).nextBytes(pattern);
+    }
+
+    public static void main(String[] args) throws Exception{
+        LoadConfig config = LoadConfig.parse(args);
+        LoadGenerator generator = new LoadGenerator(config);
+        LoadReport report = generator.run();
+        report.write(Paths.get(config.out));
+        System.out.println(report.summary());
+        System.out.println("Result written to " + config.out);
+        System.exit(report.passed() ? 0 : 1);
+    }
+
+    // 업로드해서 받은 공유: 다운로드 대상
+    private static final class Uploaded {
+        final String code;
+        final long size;
+        final long expiresAt;
+
+        Uploaded(String code, long size, long expiresAt){
+            this.code = code;
+            this.size = size;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    public LoadReport run() throws IOException, InterruptedException{
+        Path uploadDir = null;
+        FileController node = null;
+        if(config.inProcess()){
+            uploadDir = Files.createTempDirectory("p2p-loadgen");
+            node = new FileController(0, 0, uploadDir.toString(), ShareCluster.standalone());
+            node.start();
+            target = "http://localhost:" + node.getPort();
+        }
+        else{
+            target = config.target.endsWith("/") ? config.target.substring(0, config.target.length() - 1) : config.target;
+        }
+        HttpClient probeClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+        ResourceProbe probe = new ResourceProbe(probeClient, target, uploadDir);
+        client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "loadgen-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try{
+            preload();
+            SplittableRandom random = new SplittableRandom(config.seed);
+            drive(random, config.warmupSeconds, false);
+            drain(TimeUnit.SECONDS.toNanos(config.timeoutSeconds));
+            System.gc();
+            report.setBaseline(probe.sample());
+
+            long started = System.nanoTime();
+            long interval = TimeUnit.SECONDS.toNanos(config.sampleIntervalSeconds);
+            AtomicLong lastSample = new AtomicLong(started);
+            sampler.scheduleAtFixedRate(() -> {
+                long now = System.nanoTime();
+                report.sample(now - started, now - lastSample.getAndSet(now), inFlight.get(), probe.sample());
+            }, interval, interval, TimeUnit.NANOSECONDS);
+            drive(random, config.durationSeconds, true);
+            long measured = System.nanoTime() - started;
+            sampler.shutdown();
+            sampler.awaitTermination(1, TimeUnit.MINUTES);
+
+            // 이 시간 안에 끝나지 않는 요청은 서버 어딘가에 걸려 있는 것
+            long stuck = drain(TimeUnit.SECONDS.toNanos(config.timeoutSeconds + config.quiesceSeconds));
+            client.shutdownNow();
+            client.awaitTermination(Duration.ofSeconds(config.quiesceSeconds + 10));
+            Thread.sleep(TimeUnit.SECONDS.toMillis(config.quiesceSeconds));
+            System.gc();
+            report.finish(measured, stuck, probe.sample());
+            return report;
+        }
+        finally{
+            sampler.shutdownNow();
+            client.shutdownNow();
+            probeClient.shutdownNow();
+            if(node != null){
+                node.stop();
+                deleteRecursively(uploadDir);
+            }
+        }
+    }
+
+    // 처음 다운로드할 공유들, 측정에 넣지 않음
+    private void preload() throws IOException{
+        SplittableRandom random = new SplittableRandom(config.seed ^ 0x5DEECE66DL);
+        for(int i = 0; i < config.preload; i++){
+            execute(UPLOAD, pick(config.sizes, random), System.nanoTime(), null).join();
+        }
+        if(config.mix.containsKey(DOWNLOAD) && shareCount.get() == 0){
+            throw new IOException("Preload uploads to " + target + " all failed, nothing to download");
+        }
+    }
+
+    /*
+    open loop: seconds 동안 도착 시각마다 요청 하나를 내보낸다. 도착 시각은 응답과 상관없이
+    poisson이면 지수 분포 간격, constant면 1/rate 간격으로 정해진다.
+    */
+    private void drive(SplittableRandom random, long seconds, boolean record){
+        long next = System.nanoTime();
+        long end = next + TimeUnit.SECONDS.toNanos(seconds);
+        while(next < end){
+            long wait = next - System.nanoTime();
+            if(wait > 0){
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            String op = pick(config.mix, random);
+            long size = pick(config.sizes, random);
+            long intended = next;
+            next += (long) ((config.poisson ? -Math.log(1 - random.nextDouble()) : 1) / config.rate * 1e9);
+            if(inFlight.incrementAndGet() > config.maxInFlight){
+                inFlight.decrementAndGet();
+                if(record){
+                    report.op(op).dropped.increment();
+                }
+                continue;
+            }
+            execute(op, size, intended, record ? report.op(op) : null).whenComplete((ignored, error) -> inFlight.decrementAndGet());
+        }
+    }
+
+    // 진행 중 요청이 모두 끝나기를 기다리고, 시간 안에 끝나지 않은 수를 돌려준다
+    private long drain(long timeoutNanos) throws InterruptedException{
+        long deadline = System.nanoTime() + timeoutNanos;
+        while(inFlight.get() > 0 && System.nanoTime() < deadline){
+            Thread.sleep(10);
+        }
+        return inFlight.get();
+    }
+
+    // 결과는 stats에 기록하고, 반환한 future는 실패하지 않는다
+    private CompletableFuture<Void> execute(String op, long size, long intended, LoadReport.OpStats stats){
+        CompletableFuture<Void> request = op.equals(UPLOAD) ? upload(size, intended, stats) : download(intended, stats);
+        return request.orTimeout(config.timeoutSeconds, TimeUnit.SECONDS).exceptionally(error -> {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            fail(stats, cause instanceof TimeoutException || cause instanceof HttpTimeoutException ? "timeout"
+                    : cause instanceof IOException ? "io" : "exception", intended);
+            return null;
+        });
+    }
+
+    private CompletableFuture<Void> upload(long size, long intended, LoadReport.OpStats stats){
+        long n = uploads.incrementAndGet();
+        HttpRequest request = HttpRequest.newBuilder(URI.create(target + "/upload?ttl=" + config.ttlSeconds))
+                .timeout(Duration.ofSeconds(config.timeoutSeconds))
+                .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+                .POST(uploadBody("load-" + n + ".bin", n, size))
+                .build();
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofString()).thenAccept(response -> {
+            Matcher code = CODE.matcher(response.body());
+            if(response.statusCode() != 200 || !code.find()){
+                fail(stats, "http_" + response.statusCode(), intended);
+                return;
+            }
+            Matcher expiresAt = EXPIRES_AT.matcher(response.body());
+            Uploaded uploaded = new Uploaded(code.group(1), size, expiresAt.find() ? Long.parseLong(expiresAt.group(1)) : 0);
+            shares.set((int) (shareCount.getAndIncrement() % SHARE_POOL), uploaded);
+            if(stats != null){
+                stats.success(System.nanoTime() - intended, size);
+            }
+        });
+    }
+
+    private CompletableFuture<Void> download(long intended, LoadReport.OpStats stats){
+        Uploaded share = pickShare();
+        if(share == null){
+            fail(stats, "no_share", intended);
+            return CompletableFuture.completedFuture(null);
+        }
+        HttpRequest request = HttpRequest.newBuilder(URI.create(target + "/download/" + share.code))
+                .timeout(Duration.ofSeconds(config.timeoutSeconds))
+                .build();
+        return client.sendAsync(request, info -> HttpResponse.BodySubscribers.fromSubscriber(new CountingSubscriber(), counter -> counter.count))
+                .thenAccept(response -> {
+                    if(response.statusCode() != 200){
+                        fail(stats, "http_" + response.statusCode(), intended);
+                    }
+                    else if(response.body() != share.size){
+                        fail(stats, "short_body", intended);
+                    }
+                    else if(stats != null){
+                        stats.success(System.nanoTime() - intended, response.body());
+                    }
+                });
+    }
+
+    // 다운로드 바디는 버리고 길이만 센다 (복사, 할당 없음)
+    private static final class CountingSubscriber implements Flow.Subscriber<List<ByteBuffer>> {
+        private volatile long count;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription){
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> buffers){
+            long received = count;
+            for(ByteBuffer buffer : buffers){
+                received += buffer.remaining();
+            }
+            count = received;
+        }
+
+        @Override
+        public void onError(Throwable error){
+        }
+
+        @Override
+        public void onComplete(){
+        }
+    }
+
+    private void fail(LoadReport.OpStats stats, String kind, long intended){
+        if(stats != null){
+            stats.failure(kind, System.nanoTime() - intended);
+        }
+    }
+
+    // 만료가 가깝지 않은 최근 공유 하나, 몇 번 골라도 없으면 null
+    private Uploaded pickShare(){
+        long count = Math.min(shareCount.get(), SHARE_POOL);
+        long now = System.currentTimeMillis();
+        for(int attempt = 0; attempt < 8 && count > 0; attempt++){
+            Uploaded share = shares.get(ThreadLocalRandom.current().nextInt((int) count));
+            if(share != null && (share.expiresAt == 0 || share.expiresAt - now > 5_000)){
+                return share;
+            }
+        }
+        return null;
+    }
+
+    /*
+    multipart 바디: 헤더 + 업로드 번호(16바이트) + 반복 패턴 + 닫는 boundary
+    패턴 버퍼는 복사하지 않고 조각으로 이어 붙이므로 큰 업로드도 메모리를 더 쓰지 않는다.
+    */
+    private HttpRequest.BodyPublisher uploadBody(String filename, long n, long size){
+        List<HttpRequest.BodyPublisher> parts = new ArrayList<>();
+        parts.add(HttpRequest.BodyPublishers.ofString("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\""
+                + filename + "\"\r\nContent-Type: application/octet-stream\r\n\r\n", StandardCharsets.UTF_8));
+        byte[] unique = ByteBuffer.allocate(16).putLong(nonce).putLong(n).array();
+        int head = (int) Math.min(unique.length, size);
+        parts.add(HttpRequest.BodyPublishers.ofByteArray(unique, 0, head));
+        long remaining = size - head;
+        int offset = head % pattern.length;
+        while(remaining > 0){
+            int length = (int) Math.min(remaining, pattern.length - offset);
+            parts.add(HttpRequest.BodyPublishers.ofByteArray(pattern, offset, length));
+            remaining -= length;
+            offset = 0;
+        }
+        parts.add(HttpRequest.BodyPublishers.ofString("\r\n--" + BOUNDARY + "--\r\n", StandardCharsets.UTF_8));
+        return HttpRequest.BodyPublishers.concat(parts.toArray(new HttpRequest.BodyPublisher[0]));
+    }
+
+    // 가중치 비율대로 하나 고르기
+    private static <T> T pick(Map<T, Double> weights, SplittableRandom random){
+        double total = 0;
+        for(double weight : weights.values()){
+            total += weight;
+        }
+        double r = random.nextDouble() * total;
+        T last = null;
+        for(Map.Entry<T, Double> entry : weights.entrySet()){
+            last = entry.getKey();
+            r -= entry.getValue();
+            if(r < 0){
+                return last;
+            }
+        }
+        return last;
+    }
+
+    private static void deleteRecursively(Path dir){
+        try(Stream<Path> files = Files.walk(dir)){
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+        catch(IOException e){
+            System.err.println("Error deleting " + dir + ": " + e.getMessage());
+        }
+    }
+}
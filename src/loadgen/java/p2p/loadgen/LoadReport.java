@@ -0,0 +1,283 @@
+package p2p.loadgen;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import p2p.utils.LogHistogram;
+
+/**
+ * 부하 실행 결과: 작업별 처리량, 지연 분위수, 오류 종류, soak 표본, 누수 판정.
+ * JSON 키 순서가 고정이라 릴리스끼리 결과 파일을 그대로 diff 할 수 있다.
+ *
+ * 지연은 요청이 "도착하기로 한" 시각부터 잰다 (서버가 밀려 늦게 보낸 시간까지 포함, coordinated omission 없음).
+ * 분위수는 LogHistogram 구간의 상한이라 25% 이내의 근사값이다. mean, max는 정확한 값.
+ */
+class LoadReport {
+    // 누수 판정 허용치: 부하 전후 idle 상태 비교
+    static final long THREAD_TOLERANCE = 4;
+    static final long SOCKET_TOLERANCE = 4;
+    static final long FILE_TOLERANCE = 8;
+    // 측정 후반부 힙(GC 직후) 증가 기울기, 그리고 부하 전후 증가량이 둘 다 넘어야 누수로 본다
+    static final long HEAP_SLOPE_LIMIT = 64L * 1024 * 1024;
+    static final long HEAP_GROWTH_LIMIT = 64L * 1024 * 1024;
+
+    private final LoadConfig config;
+    private final Map<String, OpStats> operations = new TreeMap<>();
+    private final List<String> samples = new ArrayList<>();
+    private final List<long[]> heapSeries = new ArrayList<>();
+    private final String startedAt = Instant.now().toString();
+    private long measuredNanos;
+    private ResourceProbe.Sample baseline;
+    private ResourceProbe.Sample last;
+    private String leaks = "null";
+    private boolean passed = true;
+    private long stuck;
+
+    LoadReport(LoadConfig config){
+        this.config = config;
+        for(String op : config.mix.keySet()){
+            operations.put(op, new OpStats());
+        }
+    }
+
+    OpStats op(String name){
+        return operations.get(name);
+    }
+
+    /**
+     * 작업 한 종류의 누적 통계. 응답을 처리하는 HttpClient 스레드들이 동시에 기록한다.
+     */
+    static final class OpStats {
+        final LongAdder requests = new LongAdder();
+        final LongAdder ok = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder dropped = new LongAdder();
+        final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+        final LogHistogram latency = new LogHistogram(10, 40);
+        final LongAccumulator maxLatency = new LongAccumulator(Math::max, 0);
+        // 표본 간격마다 새로 시작하는 구간 통계
+        final AtomicReference<LogHistogram> interval = new AtomicReference<>(new LogHistogram(10, 40));
+        final LongAdder intervalErrors = new LongAdder();
+
+        void success(long latencyNanos, long transferred){
+            requests.increment();
+            ok.increment();
+            bytes.add(transferred);
+            record(latencyNanos);
+        }
+
+        void failure(String kind, long latencyNanos){
+            requests.increment();
+            errors.computeIfAbsent(kind, k -> new LongAdder()).increment();
+            intervalErrors.increment();
+            record(latencyNanos);
+        }
+
+        private void record(long latencyNanos){
+            latency.record(latencyNanos);
+            maxLatency.accumulate(latencyNanos);
+            interval.get().record(latencyNanos);
+        }
+    }
+
+    void setBaseline(ResourceProbe.Sample baseline){
+        this.baseline = baseline;
+    }
+
+    /**
+     * soak 표본 한 줄: 지난 간격의 작업별 처리량/p99/오류와 자원 상태.
+     */
+    synchronized void sample(long elapsedNanos, long intervalNanos, int inFlight, ResourceProbe.Sample resources){
+        StringBuilder json = new StringBuilder("{\"t\":").append(seconds(elapsedNanos)).append(",\"inFlight\":").append(inFlight);
+        for(Map.Entry<String, OpStats> entry : operations.entrySet()){
+            LogHistogram interval = entry.getValue().interval.getAndSet(new LogHistogram(10, 40));
+            long errors = entry.getValue().intervalErrors.sumThenReset();
+            json.append(",\"").append(entry.getKey()).append("\":{\"perSecond\":").append(rate(interval.getCount(), intervalNanos))
+                    .append(",\"p99Ms\":").append(millis(interval.percentile(0.99))).append(",\"errors\":").append(errors).append('}');
+        }
+        json.append(',').append(resources(resources).substring(1));
+        samples.add(json.toString());
+        heapSeries.add(new long[]{elapsedNanos, resources.heapAfterGc});
+    }
+
+    /**
+     * 부하가 끝나고 idle 상태로 돌아온 뒤의 자원을 baseline과 비교한다.
+     */
+    synchronized void finish(long measuredNanos, long stuck, ResourceProbe.Sample after){
+        this.measuredNanos = measuredNanos;
+        this.stuck = stuck;
+        this.last = after;
+        boolean threads = after.threads - baseline.threads > THREAD_TOLERANCE;
+        boolean sockets = baseline.sockets >= 0 && after.sockets - baseline.sockets > SOCKET_TOLERANCE;
+        boolean files = baseline.fds >= 0 && (after.fds - after.sockets) - (baseline.fds - baseline.sockets) > FILE_TOLERANCE;
+        boolean tempFiles = baseline.tempFiles >= 0 && after.tempFiles > baseline.tempFiles;
+        boolean transfers = after.serverActive > 0 || after.serverQueued > 0 || after.serverReservedBytes > 0;
+        double slope = heapSlopePerHour();
+        boolean heap = slope > HEAP_SLOPE_LIMIT && after.heapAfterGc - baseline.heapAfterGc > HEAP_GROWTH_LIMIT;
+        leaks = "{\"threads\":" + threads + ",\"sockets\":" + sockets + ",\"files\":" + files + ",\"tempFiles\":" + tempFiles
+                + ",\"serverTransfers\":" + transfers + ",\"stuckRequests\":" + (stuck > 0) + ",\"heap\":" + heap
+                + ",\"heapSlopeBytesPerHour\":" + Math.round(slope) + "}";
+        passed = !(threads || sockets || files || tempFiles || transfers || heap || stuck > 0);
+    }
+
+    /*
+    측정 후반부 표본의 (시간, GC 뒤 힙) 최소제곱 기울기. 공유가 ttl로 만료되며 힙이 평평해지는
+    soak에서는 0 근처여야 한다. 표본이 4개 미만이면 0.
+    */
+    double heapSlopePerHour(){
+        List<long[]> tail = heapSeries.subList(heapSeries.size() / 2, heapSeries.size());
+        if(tail.size() < 4){
+            return 0;
+        }
+        double meanT = 0;
+        double meanH = 0;
+        for(long[] point : tail){
+            meanT += point[0] / 1e9;
+            meanH += point[1];
+        }
+        meanT /= tail.size();
+        meanH /= tail.size();
+        double covariance = 0;
+        double variance = 0;
+        for(long[] point : tail){
+            double dt = point[0] / 1e9 - meanT;
+            covariance += dt * (point[1] - meanH);
+            variance += dt * dt;
+        }
+        return variance == 0 ? 0 : covariance / variance * 3600;
+    }
+
+    boolean passed(){
+        return passed;
+    }
+
+    long errorCount(){
+        long errors = 0;
+        for(OpStats stats : operations.values()){
+            errors += stats.requests.sum() - stats.ok.sum();
+        }
+        return errors;
+    }
+
+    String toJson(){
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"startedAt\":\"").append(startedAt).append("\",\n");
+        json.append("  \"environment\":{\"java\":\"").append(System.getProperty("java.version"))
+                .append("\",\"processors\":").append(Runtime.getRuntime().availableProcessors())
+                .append(",\"maxHeapBytes\":").append(Runtime.getRuntime().maxMemory()).append("},\n");
+        json.append("  \"config\":{\"target\":\"").append(config.inProcess() ? "in-process" : config.target)
+                .append("\",\"rate\":").append(config.rate).append(",\"arrival\":\"").append(config.poisson ? "poisson" : "constant")
+                .append("\",\"durationSeconds\":").append(config.durationSeconds).append(",\"warmupSeconds\":").append(config.warmupSeconds)
+                .append(",\"mix\":").append(weights(config.mix)).append(",\"sizes\":").append(weights(config.sizes))
+                .append(",\"ttlSeconds\":").append(config.ttlSeconds).append(",\"maxInFlight\":").append(config.maxInFlight)
+                .append(",\"seed\":").append(config.seed).append("},\n");
+        json.append("  \"measuredSeconds\":").append(seconds(measuredNanos)).append(",\n");
+        json.append("  \"operations\":{");
+        boolean first = true;
+        for(Map.Entry<String, OpStats> entry : operations.entrySet()){
+            OpStats stats = entry.getValue();
+            long requests = stats.requests.sum();
+            json.append(first ? "\n" : ",\n").append("    \"").append(entry.getKey()).append("\":{")
+                    .append("\"requests\":").append(requests).append(",\"ok\":").append(stats.ok.sum())
+                    .append(",\"dropped\":").append(stats.dropped.sum())
+                    .append(",\"errorRate\":").append(format(requests == 0 ? 0 : (double) (requests - stats.ok.sum()) / requests))
+                    .append(",\"errors\":").append(counts(stats.errors))
+                    .append(",\"perSecond\":").append(rate(stats.ok.sum(), measuredNanos))
+                    .append(",\"bytesPerSecond\":").append(rate(stats.bytes.sum(), measuredNanos))
+                    .append(",\"latencyMs\":{\"mean\":").append(millis(requests == 0 ? 0 : stats.latency.getSum() / requests))
+                    .append(",\"p50\":").append(millis(percentile(stats, 0.5)))
+                    .append(",\"p90\":").append(millis(percentile(stats, 0.9)))
+                    .append(",\"p99\":").append(millis(percentile(stats, 0.99)))
+                    .append(",\"p999\":").append(millis(percentile(stats, 0.999)))
+                    .append(",\"max\":").append(millis(stats.maxLatency.get())).append("}}");
+            first = false;
+        }
+        json.append("\n  },\n");
+        json.append("  \"resources\":{\"baseline\":").append(baseline == null ? "null" : resources(baseline))
+                .append(",\"final\":").append(last == null ? "null" : resources(last)).append("},\n");
+        json.append("  \"stuckRequests\":").append(stuck).append(",\n");
+        json.append("  \"leaks\":").append(leaks).append(",\n");
+        json.append("  \"passed\":").append(passed).append(",\n");
+        json.append("  \"samples\":[");
+        for(int i = 0; i < samples.size(); i++){
+            json.append(i == 0 ? "\n    " : ",\n    ").append(samples.get(i));
+        }
+        return json.append(samples.isEmpty() ? "]\n}\n" : "\n  ]\n}\n").toString();
+    }
+
+    void write(Path out) throws IOException{
+        if(out.getParent() != null){
+            Files.createDirectories(out.getParent());
+        }
+        Files.writeString(out, toJson(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 사람이 읽는 한 줄 요약 (작업마다).
+     */
+    String summary(){
+        StringBuilder text = new StringBuilder();
+        for(Map.Entry<String, OpStats> entry : operations.entrySet()){
+            OpStats stats = entry.getValue();
+            text.append(String.format(Locale.ROOT, "%-8s %8d req %8.1f/s  p50 %s ms  p99 %s ms  p999 %s ms  errors %d  dropped %d%n",
+                    entry.getKey(), stats.requests.sum(), stats.ok.sum() / Math.max(measuredNanos / 1e9, 1e-9),
+                    millis(percentile(stats, 0.5)), millis(percentile(stats, 0.99)), millis(percentile(stats, 0.999)),
+                    stats.requests.sum() - stats.ok.sum(), stats.dropped.sum()));
+        }
+        return text.append("leaks ").append(leaks).append(passed ? "  PASSED" : "  FAILED").toString();
+    }
+
+    // 구간 상한이 실제 최댓값보다 클 수 있어 max로 자른다
+    private static long percentile(OpStats stats, double q){
+        return Math.min(stats.latency.percentile(q), stats.maxLatency.get());
+    }
+
+    private static String resources(ResourceProbe.Sample sample){
+        return "{\"threads\":" + sample.threads + ",\"fds\":" + sample.fds + ",\"sockets\":" + sample.sockets
+                + ",\"tempFiles\":" + sample.tempFiles + ",\"heapAfterGcBytes\":" + sample.heapAfterGc
+                + ",\"serverActive\":" + sample.serverActive + ",\"serverQueued\":" + sample.serverQueued
+                + ",\"serverReservedBytes\":" + sample.serverReservedBytes + "}";
+    }
+
+    private static String counts(Map<String, LongAdder> counts){
+        StringBuilder json = new StringBuilder("{");
+        new TreeMap<>(counts).forEach((key, count) -> json.append(json.length() == 1 ? "" : ",")
+                .append('"').append(key).append("\":").append(count.sum()));
+        return json.append('}').toString();
+    }
+
+    private static String weights(Map<?, Double> weights){
+        StringBuilder json = new StringBuilder("{");
+        weights.forEach((key, weight) -> json.append(json.length() == 1 ? "" : ",")
+                .append('"').append(key).append("\":").append(format(weight)));
+        return json.append('}').toString();
+    }
+
+    private static String rate(long count, long nanos){
+        return format(nanos <= 0 ? 0 : count / (nanos / 1e9));
+    }
+
+    private static String seconds(long nanos){
+        return format(nanos / 1e9);
+    }
+
+    private static String millis(long nanos){
+        return format(nanos / 1e6);
+    }
+
+    private static String format(double value){
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+}
@@ -0,0 +1,169 @@
+package p2p.loadgen;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+
+import com.sun.management.UnixOperatingSystemMXBean;
+
+/**
+ * soak 중 누수를 찾기 위한 자원 표본.
+ *
+ * - 이 JVM: 플랫폼 스레드 수, 열린 fd / 그중 소켓 수 (/proc/self/fd), 마지막 GC 뒤 힙 사용량
+ * - 노드 임시 파일: blobs/tmp (업로드 중인 blob, 다운로드하며 만드는 압축본), 나눠 올리기 *.part
+ *   (노드가 같은 프로세스에 있을 때만)
+ * - 서버 /metrics: 진행 중 전송, 대기열, 디스크 예약. 부하가 끝나면 모두 0으로 돌아와야 한다
+ */
+class ResourceProbe {
+
+    private final HttpClient client;
+    private final String target;
+    private final Path uploadDir;
+
+    ResourceProbe(HttpClient client, String target, Path uploadDir){
+        this.client = client;
+        this.target = target;
+        this.uploadDir = uploadDir;
+    }
+
+    static final class Sample {
+        final long threads;
+        final long fds;
+        final long sockets;
+        final long tempFiles;
+        final long heapAfterGc;
+        final long serverActive;
+        final long serverQueued;
+        final long serverReservedBytes;
+
+        Sample(long threads, long fds, long sockets, long tempFiles, long heapAfterGc,
+               long serverActive, long serverQueued, long serverReservedBytes){
+            this.threads = threads;
+            this.fds = fds;
+            this.sockets = sockets;
+            this.tempFiles = tempFiles;
+            this.heapAfterGc = heapAfterGc;
+            this.serverActive = serverActive;
+            this.serverQueued = serverQueued;
+            this.serverReservedBytes = serverReservedBytes;
+        }
+    }
+
+    Sample sample(){
+        long[] fds = openFileDescriptors();
+        String metrics = scrapeMetrics();
+        return new Sample(ManagementFactory.getThreadMXBean().getThreadCount(), fds[0], fds[1], tempFiles(), heapAfterGc(),
+                sum(metrics, "p2p_http_transfers_active"), sum(metrics, "p2p_http_transfers_queued"),
+                sum(metrics, "p2p_disk_reserved_bytes"));
+    }
+
+    // [fd 수, 소켓 수], 알 수 없으면 -1
+    private static long[] openFileDescriptors(){
+        Path fdDir = Paths.get("/proc/self/fd");
+        if(Files.isDirectory(fdDir)){
+            long fds = 0;
+            long sockets = 0;
+            try(DirectoryStream<Path> entries = Files.newDirectoryStream(fdDir)){
+                for(Path entry : entries){
+                    fds++;
+                    try{
+                        if(Files.readSymbolicLink(entry).toString().startsWith("socket:")){
+                            sockets++;
+                        }
+                    }
+                    catch(IOException e){
+                        // 목록을 읽는 사이에 닫힌 fd
+                    }
+                }
+                return new long[]{fds, sockets};
+            }
+            catch(IOException e){
+                // 아래 MXBean으로
+            }
+        }
+        if(ManagementFactory.getOperatingSystemMXBean() instanceof UnixOperatingSystemMXBean){
+            return new long[]{((UnixOperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getOpenFileDescriptorCount(), -1};
+        }
+        return new long[]{-1, -1};
+    }
+
+    private long tempFiles(){
+        if(uploadDir == null){
+            return -1;
+        }
+        long count = 0;
+        try(DirectoryStream<Path> tmp = Files.newDirectoryStream(uploadDir.resolve("blobs").resolve("tmp"))){
+            for(Path ignored : tmp){
+                count++;
+            }
+        }
+        catch(IOException e){
+            // 아직 없음
+        }
+        try(DirectoryStream<Path> parts = Files.newDirectoryStream(uploadDir, "*.part")){
+            for(Path ignored : parts){
+                count++;
+            }
+        }
+        catch(IOException e){
+            // 아직 없음
+        }
+        return count;
+    }
+
+    /*
+    마지막 GC 직후의 힙 사용량. 지금 사용량과 달리 쓰레기를 세지 않으므로 표본끼리 비교할 수 있다.
+    */
+    static long heapAfterGc(){
+        long used = 0;
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+            MemoryUsage usage = pool.getType() == MemoryType.HEAP ? pool.getCollectionUsage() : null;
+            if(usage != null){
+                used += usage.getUsed();
+            }
+        }
+        return used;
+    }
+
+    private String scrapeMetrics(){
+        try{
+            HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create(target + "/metrics"))
+                    .timeout(Duration.ofSeconds(10)).build(), HttpResponse.BodyHandlers.ofString());
+            return response.statusCode() == 200 ? response.body() : null;
+        }
+        catch(IOException e){
+            return null;
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    // Prometheus 텍스트에서 이름이 같은 sample들의 합, 없으면 -1
+    static long sum(String metrics, String name){
+        if(metrics == null){
+            return -1;
+        }
+        long total = 0;
+        boolean found = false;
+        for(String line : metrics.split("\n")){
+            if(line.startsWith(name) && line.length() > name.length() && (line.charAt(name.length()) == ' ' || line.charAt(name.length()) == '{')){
+                total += (long) Double.parseDouble(line.substring(line.lastIndexOf(' ') + 1));
+                found = true;
+            }
+        }
+        return found ? total : -1;
+    }
+}
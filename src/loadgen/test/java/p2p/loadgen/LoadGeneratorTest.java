@@ -0,0 +1,47 @@
+package p2p.loadgen;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * 같은 프로세스 노드에 몇 초짜리 soak: 오류 없이 끝나고 누수 판정을 통과해야 한다.
+ */
+public class LoadGeneratorTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void shortInProcessRunHasNoErrorsOrLeaks() throws Exception{
+        Path out = tempDir.resolve("result.json");
+        LoadConfig config = LoadConfig.parse("rate=40", "duration=3", "warmup=1", "preload=4", "sizes=4k=3,256k=1",
+                "sampleInterval=1", "quiesce=1", "timeout=30", "out=" + out);
+        LoadReport report = new LoadGenerator(config).run();
+        report.write(out);
+
+        assertEquals(0, report.errorCount(), report.summary());
+        assertTrue(report.op(LoadGenerator.UPLOAD).ok.sum() > 0);
+        assertTrue(report.op(LoadGenerator.DOWNLOAD).ok.sum() > 0);
+        assertTrue(report.passed(), report.summary());
+        String json = Files.readString(out);
+        assertTrue(json.contains("\"passed\":true"));
+        assertTrue(json.contains("\"p999\":"));
+        assertTrue(json.contains("\"samples\":[\n    {\"t\":"));
+    }
+
+    @Test
+    public void parsesSizesAndRejectsUnknownOperations(){
+        assertEquals(16 * 1024, LoadConfig.parseSize("16k"));
+        assertEquals(3L * 1024 * 1024 * 1024, LoadConfig.parseSize("3G"));
+        assertEquals(2, LoadConfig.parse("mix=upload=1,download=0,upload=2").mix.get(LoadGenerator.UPLOAD));
+        assertThrows(IllegalArgumentException.class, () -> LoadConfig.parse("mix=delete=1"));
+        assertThrows(IllegalArgumentException.class, () -> LoadConfig.parse("rate"));
+    }
+}
@@ -0,0 +1,98 @@
+package p2p.controller;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import p2p.service.DiskSpaceBudget;
+
+/**
+ * 업로드 바디를 받기 전에 자원을 확인하는 handler 래퍼.
+ *
+ * - 힙: 마지막 GC 뒤에도 힙이 maxHeapUsage 이상 차 있으면 받지 않음
+ * - 디스크: Content-Length만큼 DiskSpaceBudget에 예약, 자리가 없으면 받지 않음
+ *   예약은 exchange 속성(RESERVATION)으로 넘기고, handler는 바디를 예약으로 감싸 읽는다
+ * 받지 않는 요청은 503 + Retry-After. 대기열(ConcurrencyLimitHandler)보다 바깥에 두어
+ * 디스크가 찬 노드는 기다리게 하지 않고 바로 돌려보낸다.
+ */
+public class AdmissionHandler implements HttpHandler {
+    public static final String RESERVATION = "p2p.admission.reservation";
+
+    private final HttpHandler delegate;
+    private final DiskSpaceBudget disk;
+    private final double maxHeapUsage;
+    private final int retryAfterSeconds;
+    private final LongAdder rejectedHeap = new LongAdder();
+
+    public AdmissionHandler(HttpHandler delegate, DiskSpaceBudget disk, double maxHeapUsage, int retryAfterSeconds){
+        this.delegate = delegate;
+        this.disk = disk;
+        this.maxHeapUsage = maxHeapUsage;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException{
+        String method = exchange.getRequestMethod();
+        if(!method.equalsIgnoreCase("POST") && !method.equalsIgnoreCase("PUT")){
+            delegate.handle(exchange);
+            return;
+        }
+        if(maxHeapUsage < 1 && heapUsageAfterGc() > maxHeapUsage){
+            rejectedHeap.increment();
+            ConcurrencyLimitHandler.reject(exchange, 503, retryAfterSeconds, "Service Unavailable: server is low on memory, retry later");
+            return;
+        }
+        // chunked 요청은 길이를 모르므로 0부터 시작해 읽으면서 잡는다
+        long length = contentLength(exchange);
+        DiskSpaceBudget.Reservation reservation = disk.reserve(Math.max(length, 0));
+        if(reservation == null){
+            ConcurrencyLimitHandler.reject(exchange, 503, retryAfterSeconds, "Service Unavailable: not enough disk space, retry later");
+            return;
+        }
+        exchange.setAttribute(RESERVATION, reservation);
+        try{
+            delegate.handle(exchange);
+        }
+        finally{
+            reservation.close();
+        }
+    }
+
+    private static long contentLength(HttpExchange exchange){
+        String header = exchange.getRequestHeaders().getFirst("Content-Length");
+        if(header == null){
+            return -1;
+        }
+        try{
+            return Long.parseLong(header.trim());
+        }
+        catch(NumberFormatException e){
+            return -1;
+        }
+    }
+
+    /*
+    마지막 GC 직후의 힙 사용률 (0~1). 지금 사용량은 쓰레기까지 세므로 압박 판단에 쓰지 않는다.
+    아직 GC가 한 번도 안 돌았으면 0.
+    */
+    static double heapUsageAfterGc(){
+        long used = 0;
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+            MemoryUsage usage = pool.getType() == MemoryType.HEAP ? pool.getCollectionUsage() : null;
+            if(usage != null){
+                used += usage.getUsed();
+            }
+        }
+        return (double) used / Runtime.getRuntime().maxMemory();
+    }
+
+    public long getRejectedHeap(){
+        return rejectedHeap.sum();
+    }
+}
@@ -0,0 +1,125 @@
+package p2p.controller;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * 동시에 처리하는 전송 수를 제한하는 handler 래퍼.
+ *
+ * HTTP 스레드 풀은 permit과 대기 자리를 모두 채우고도 남게 잡혀 있으므로 기다리는 요청이 풀을 말리지 않고,
+ * 제한은 applies가 고른 요청(전송 종류별: 바디 업로드, chunk, commit, 다운로드)에만 걸리고,
+ * 같은 경로라도 OPTIONS, 상태 조회, DELETE 같은 짧은 요청은 permit 없이 바로 지나간다.
+ *
+ * 기다리는 요청은 maxQueued개, 최대 queueTimeoutMillis까지만 둔다. 대기열이 차 있거나 시간 안에
+ * permit을 못 받으면 429 + Retry-After로 돌려보낸다 (버스트가 대기열에 끝없이 쌓이지 않도록).
+ */
+public class ConcurrencyLimitHandler implements HttpHandler {
+
+    private final HttpHandler delegate;
+    private final Predicate<HttpExchange> applies;
+    private final Semaphore permits;
+    private final int limit;
+    private final int maxQueued;
+    private final long queueTimeoutMillis;
+    private final int retryAfterSeconds;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final LongAdder shed = new LongAdder();
+
+    public ConcurrencyLimitHandler(HttpHandler delegate, int limit, int maxQueued, long queueTimeoutMillis, int retryAfterSeconds){
+        this(delegate, exchange -> true, limit, maxQueued, queueTimeoutMillis, retryAfterSeconds);
+    }
+
+    public ConcurrencyLimitHandler(HttpHandler delegate, Predicate<HttpExchange> applies, int limit, int maxQueued,
+                                   long queueTimeoutMillis, int retryAfterSeconds){
+        this.delegate = delegate;
+        this.applies = applies;
+        this.limit = limit;
+        this.maxQueued = maxQueued;
+        this.queueTimeoutMillis = queueTimeoutMillis;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.permits = new Semaphore(limit, true);
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException{
+        if(exchange.getRequestMethod().equalsIgnoreCase("OPTIONS") || !applies.test(exchange)){
+            delegate.handle(exchange);
+            return;
+        }
+        try{
+            if(!acquire()){
+                shed.increment();
+                reject(exchange, 429, retryAfterSeconds, "Too Many Requests: transfer limit reached, retry later");
+                return;
+            }
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            exchange.close();
+            return;
+        }
+        try{
+            delegate.handle(exchange);
+        }
+        finally{
+            permits.release();
+        }
+    }
+
+    // 바로 받을 수 있으면 받고, 아니면 대기열에 자리가 있을 때만 기다림 (fair semaphore 순서 유지)
+    private boolean acquire() throws InterruptedException{
+        if(permits.tryAcquire(0, TimeUnit.MILLISECONDS)){
+            return true;
+        }
+        if(queued.incrementAndGet() > maxQueued){
+            queued.decrementAndGet();
+            return false;
+        }
+        try{
+            return permits.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        finally{
+            queued.decrementAndGet();
+        }
+    }
+
+    /**
+     * 받지 않은 요청을 돌려보낸다. 바디는 읽지 않으므로 서버가 연결을 닫는다.
+     */
+    static void reject(HttpExchange exchange, int status, int retryAfterSeconds, String message) throws IOException{
+        byte[] body = message.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+        exchange.getResponseHeaders().set("Access-Control-Expose-Headers", "Retry-After");
+        exchange.getResponseHeaders().set("Retry-After", Integer.toString(retryAfterSeconds));
+        exchange.getResponseHeaders().set("Content-Type", "text/plain");
+        exchange.sendResponseHeaders(status, body.length);
+        try(OutputStream os = exchange.getResponseBody()){
+            os.write(body);
+        }
+    }
+
+    public int getLimit(){
+        return limit;
+    }
+
+    public int getActive(){
+        return limit - permits.availablePermits();
+    }
+
+    public int getQueued(){
+        return queued.get();
+    }
+
+    public long getShed(){
+        return shed.sum();
+    }
+}
@@ -1,6 +1,21 @@
 package p2p.controller;
 
+import p2p.service.BandwidthScheduler;
+import p2p.service.BlobStore;
+import p2p.service.ChunkedUploadManager;
+import p2p.service.ContentCache;
+import p2p.service.DiskSpaceBudget;
 import p2p.service.FileSharer;
+import p2p.service.ShareCluster;
+import p2p.service.ShareIndex;
+import p2p.service.SharedFile;
+import p2p.service.TransferMetrics;
+import p2p.utils.Archive;
+import p2p.utils.ByteRange;
+import p2p.utils.Compression;
+import p2p.utils.MerkleTree;
+import p2p.utils.PrometheusWriter;
+import p2p.utils.ShareCodeAllocator;
 
 import java.io.*;
 import com.sun.net.httpserver.HttpServer;
@@ -9,55 +24,285 @@ import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.Headers;
 
 import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.UUID;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.TeeOutputStream;
+import java.util.UUID;
 
 public class FileController {
 
     private final FileSharer fileSharer;
+    private final ShareCluster cluster;
+    private final BlobStore blobStore;
+    private final TransferMetrics metrics;
+    private static final String INTEGRITY_EXPOSE_HEADERS = "Content-Disposition,Content-Range,Accept-Ranges,ETag,Repr-Digest,X-Merkle-Root,X-Merkle-Chunk-Size";
+    // 다른 노드로 중계할 때 넘기는 요청 헤더와 돌려받아 그대로 싣는 응답 헤더
+    private static final String CLUSTER_FORWARDED_HEADER = "X-Cluster-Forwarded";
+    // 중계한 노드가 알려 주는 원래 클라이언트 주소, 클러스터 비밀이 맞을 때만 믿음
+    private static final String CLUSTER_CLIENT_HEADER = "X-Cluster-Client";
+    private static final String BUNDLE_SESSION_HEADER = "X-Bundle-Session";
+    private static final List<String> RELAYED_REQUEST_HEADERS = List.of("Range", "If-Range", "Accept-Encoding", BUNDLE_SESSION_HEADER);
+    private static final List<String> RELAYED_RESPONSE_HEADERS = List.of("Content-Type", "Content-Disposition", "Content-Encoding",
+            "Content-Range", "Accept-Ranges", "ETag", "Last-Modified", "Cache-Control", "Repr-Digest", "X-Merkle-Root", "X-Merkle-Chunk-Size",
+            BUNDLE_SESSION_HEADER, "Access-Control-Expose-Headers");
+    private final ChunkedUploadManager chunkedUploads;
     private final HttpServer server;
     private final String uploadDir;
     private final ExecutorService executorService;
+    private final int maxUploads;
+    private final int maxDownloads;
+    private final int maxQueuedUploads;
+    private final int maxCommits;
+    private final int maxQueuedCommits;
+    private final int maxQueuedDownloads;
+    private final DiskSpaceBudget diskBudget;
+    private final double maxHeapUsage;
+    private final int storageRetryAfter;
+    // 핸들러는 생성자가 끝난 뒤 start()에서 만들고 등록 (생성 중인 this를 핸들러에 넘기지 않음)
+    private ConcurrencyLimitHandler uploadLimiter;
+    private ConcurrencyLimitHandler chunkedUploadLimiter;
+    private ConcurrencyLimitHandler commitLimiter;
+    private ConcurrencyLimitHandler downloadLimiter;
+    private AdmissionHandler uploadAdmission;
+    private AdmissionHandler chunkedUploadAdmission;
+    private boolean started;
+    private final boolean compressionEnabled;
+    private final int compressionCacheAfter;
+    private final long defaultTtlSeconds;
+    private final int defaultMaxDownloads;
+    private final int maxFilesPerUpload;
 
     public FileController(int port) throws IOException{
-        this.fileSharer = new FileSharer();
+        this(port, Integer.getInteger("p2p.share.port", FileSharer.DEFAULT_SHARE_PORT));
+    }
+
+    public FileController(int port, int sharePort) throws IOException{
+        this(port, sharePort, System.getProperty("java.io.tmpdir")+File.separator+"p2p-uploads", ShareCluster.fromSystemProperties());
+    }
+
+    /**
+     * @param uploadDir blob 저장 위치 (한 프로세스에 노드를 여러 개 띄울 때는 노드마다 따로)
+     * @param cluster   공유 코드를 나눠 맡는 노드 ring, 단일 노드면 ShareCluster.standalone()
+     */
+    public FileController(int port, int sharePort, String uploadDir, ShareCluster cluster) throws IOException{
+        this.uploadDir = uploadDir;
+        this.cluster = cluster;
+        // 다운로드 검증용 chunk 해시 트리의 chunk 크기 (기본 1MiB)
+        this.blobStore = new BlobStore(uploadDir, Integer.getInteger("p2p.merkle.chunkSize", MerkleTree.DEFAULT_CHUNK_SIZE));
+        // 공유 색인: 재시작해도 공유 코드와 파일이 살아 있음 (p2p.index.enabled=false면 메모리에만)
+        ShareIndex index = Boolean.parseBoolean(System.getProperty("p2p.index.enabled", "true"))
+                ? ShareIndex.open(Paths.get(uploadDir, "index"), blobStore) : null;
+        this.fileSharer = new FileSharer(sharePort, Integer.getInteger("p2p.share.threads", Math.min(4, Runtime.getRuntime().availableProcessors())),
+                Long.getLong("p2p.share.sweepInterval", FileSharer.DEFAULT_SWEEP_INTERVAL_SECONDS), blobStore,
+                ContentCache.fromSystemProperties(), cluster, index);
+        this.metrics = fileSharer.getMetrics();
         this.server = HttpServer.create(new InetSocketAddress(port), 0);
-        this.uploadDir= System.getProperty("java.io.tmpdir")+File.separator+"p2p-uploads";
-        this.executorService = Executors.newFixedThreadPool(10);
+        // 업로드/다운로드 동시 처리 수와 대기열 (넘치면 429 + Retry-After)
+        this.maxUploads = Integer.getInteger("p2p.upload.maxConcurrent", 256);
+        this.maxDownloads = Integer.getInteger("p2p.download.maxConcurrent", 1024);
+        this.maxQueuedUploads = Integer.getInteger("p2p.upload.maxQueued", 256);
+        this.maxQueuedDownloads = Integer.getInteger("p2p.download.maxQueued", 1024);
+        // commit은 파일 전체를 해시하므로 따로, 더 작게
+        this.maxCommits = Integer.getInteger("p2p.commit.maxConcurrent", 16);
+        this.maxQueuedCommits = Integer.getInteger("p2p.commit.maxQueued", 64);
+        this.executorService = createExecutor(2 * (maxUploads + maxQueuedUploads) + maxDownloads + maxQueuedDownloads
+                + maxCommits + maxQueuedCommits);
+        // 압축 전송 사용 여부, 몇 번째 다운로드부터 압축본을 디스크에 캐시할지
+        this.compressionEnabled = Boolean.parseBoolean(System.getProperty("p2p.compression.enabled", "true"));
+        this.compressionCacheAfter = Integer.getInteger("p2p.compression.cacheAfter", 2);
+        // 공유 기본 수명: 24시간, 다운로드 횟수 무제한 (0)
+        this.defaultTtlSeconds = Long.getLong("p2p.share.ttl", 24 * 60 * 60);
+        this.defaultMaxDownloads = Integer.getInteger("p2p.share.maxDownloads", 0);
+        // 업로드 한 번에 묶을 수 있는 파일 수 (폴더 업로드)
+        this.maxFilesPerUpload = Integer.getInteger("p2p.upload.maxFiles", 10_000);
 
         File uploadDirFile = new File(uploadDir);
         if(!uploadDirFile.exists()){
             uploadDirFile.mkdirs();
         }
-        server.createContext("/upload", new UploadHandler());
-        server.createContext("/download", new DownloadHandler());
-        server.createContext("/", new CORSHandler());
+        this.chunkedUploads = new ChunkedUploadManager(fileSharer, blobStore, uploadDir);
+        // 새 업로드가 없어도 방치된 세션의 채널과 .part 파일을 sweeper가 정리
+        fileSharer.addSweepTask(chunkedUploads::expireIdle);
+        // 업로드 바디는 디스크 자리(Content-Length)와 힙 여유를 확인한 뒤에만 받음, 아니면 503 + Retry-After
+        // 항상 남겨 둘 디스크 여유 기본 256MiB, GC 뒤 힙 사용률 0.9 이상이면 거절 (1이면 힙은 보지 않음)
+        this.diskBudget = DiskSpaceBudget.forDirectory(uploadDirFile.toPath(), Long.getLong("p2p.admission.minFreeBytes", 256L * 1024 * 1024));
+        this.maxHeapUsage = Double.parseDouble(System.getProperty("p2p.admission.maxHeapUsage", "0.9"));
+        this.storageRetryAfter = Integer.getInteger("p2p.admission.storageRetryAfter", 30);
+        fileSharer.setDiskBudget(diskBudget);
         server.setExecutor(executorService);
     }
 
-    public void start(){
+    /*
+    업로드/다운로드는 종류별로 동시 전송 수 제한, 나머지 요청은 제한 없음
+    넘치는 요청은 정해진 수, 정해진 시간만 기다리고 그 뒤엔 429 + Retry-After
+    */
+    private void registerHandlers(){
+        long queueTimeout = Long.getLong("p2p.admission.queueTimeout", 10_000);
+        int busyRetryAfter = Integer.getInteger("p2p.admission.retryAfter", 2);
+        // 요청 종류마다 따로 제한. 상태 조회, DELETE, 세션 시작, manifest/목록은 제한 없이 지나감
+        uploadLimiter = new ConcurrencyLimitHandler(new UploadHandler(), exchange -> isMethod(exchange, "POST"),
+                maxUploads, maxQueuedUploads, queueTimeout, busyRetryAfter);
+        commitLimiter = new ConcurrencyLimitHandler(new ChunkedUploadHandler(), FileController::isCommit,
+                maxCommits, maxQueuedCommits, queueTimeout, busyRetryAfter);
+        chunkedUploadLimiter = new ConcurrencyLimitHandler(commitLimiter, FileController::isChunkWrite,
+                maxUploads, maxQueuedUploads, queueTimeout, busyRetryAfter);
+        downloadLimiter = new ConcurrencyLimitHandler(new DownloadHandler(), FileController::isBodyDownload,
+                maxDownloads, maxQueuedDownloads, queueTimeout, busyRetryAfter);
+        uploadAdmission = new AdmissionHandler(uploadLimiter, diskBudget, maxHeapUsage, storageRetryAfter);
+        chunkedUploadAdmission = new AdmissionHandler(chunkedUploadLimiter, diskBudget, maxHeapUsage, storageRetryAfter);
+        server.createContext("/upload", uploadAdmission);
+        server.createContext("/uploads", chunkedUploadAdmission);
+        server.createContext("/download", downloadLimiter);
+        server.createContext("/metrics", new MetricsHandler());
+        server.createContext("/cluster", new ClusterHandler());
+        server.createContext("/", new CORSHandler());
+    }
+
+    private static boolean isMethod(HttpExchange exchange, String method){
+        return exchange.getRequestMethod().equalsIgnoreCase(method);
+    }
+
+    // PUT /uploads/{id}/chunks/{n}
+    private static boolean isChunkWrite(HttpExchange exchange){
+        String[] segments = exchange.getRequestURI().getPath().split("/");
+        return isMethod(exchange, "PUT") && segments.length == 5 && segments[3].equals("chunks");
+    }
+
+    // POST /uploads/{id}/commit
+    private static boolean isCommit(HttpExchange exchange){
+        String[] segments = exchange.getRequestURI().getPath().split("/");
+        return isMethod(exchange, "POST") && segments.length == 4 && segments[3].equals("commit");
+    }
+
+    // GET /download/{code}, /download/{code}/files/{path} (manifest, 파일 목록 제외)
+    private static boolean isBodyDownload(HttpExchange exchange){
+        String[] segments = exchange.getRequestURI().getPath().split("/");
+        return isMethod(exchange, "GET") && (segments.length == 3 || (segments.length >= 5 && segments[3].equals("files")));
+    }
+
+    /*
+    p2p.http.executor=fixed (기본) : 플랫폼 스레드 풀 (p2p.http.threads)
+        기본 크기는 전송 permit과 대기 자리를 모두 채우고도 짧은 요청용 64개가 남는 수,
+        그래서 전송이 한도까지 차도 OPTIONS, /metrics 같은 요청이 스레드를 기다리지 않는다.
+        스레드는 필요할 때 만들고 1분 놀면 내려놓는다
+    p2p.http.executor=virtual      : 요청마다 가상 스레드
+        JDK 21 HttpServer는 응답 쓰기/요청 읽기가 synchronized라 느린 클라이언트에 막히면 carrier를
+        붙잡는다. 느린 클라이언트가 코어 수만큼만 있어도 API 전체가 멈출 수 있어 기본으로 쓰지 않음
+    */
+    private static ExecutorService createExecutor(int transferThreads){
+        String mode = System.getProperty("p2p.http.executor", "fixed");
+        if(mode.equalsIgnoreCase("virtual")){
+            return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("http-", 0).factory());
+        }
+        // 쉬는 스레드가 있으면 그 스레드에, 없으면 상한까지 새로 만든다 (상한을 넘는 연결은 서버가 닫음)
+        int threads = Integer.getInteger("p2p.http.threads", transferThreads + 64);
+        return new ThreadPoolExecutor(0, threads, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                Thread.ofPlatform().name("http-", 0).factory());
+    }
+
+    /**
+     * 핸들러 등록, share 서버, API 서버 시작. 두 번째 호출은 아무것도 하지 않는다 (같은 context를 다시 등록하지 않게).
+     */
+    public synchronized void start() throws IOException{
+        if(started){
+            return;
+        }
+        started = true;
+        long startedAt = System.currentTimeMillis();
+        registerHandlers();
+        fileSharer.startFileServer();
         server.start();
         System.out.println("API server started on port " + server.getAddress().getPort());
+        // 재시작 전 찌꺼기 정리는 요청 처리와 별도로
+        Thread collector = new Thread(() -> collectOrphans(startedAt), "orphan-collector");
+        collector.setDaemon(true);
+        collector.start();
+    }
+
+    /*
+    재시작 후 한 번: 파일이 사라진 공유 내리기 -> 어떤 공유도 참조하지 않는 blob, 업로드 임시 파일 지우기
+    - startedAt 이후에 생긴 파일은 새 업로드이므로 건드리지 않음
+    */
+    private void collectOrphans(long startedAt){
+        long started = System.nanoTime();
+        try{
+            int dropped = fileSharer.dropMissingFiles();
+            int blobs = blobStore.collectOrphans(startedAt);
+            int parts = chunkedUploads.collectOrphans(startedAt);
+            fileSharer.compactIndex(false);
+            if(dropped + blobs + parts > 0){
+                System.out.println("Orphan collection: " + dropped + " shares without files, " + blobs + " blob files, "
+                        + parts + " partial uploads removed in " + (System.nanoTime() - started) / 1_000_000 + " ms");
+            }
+        }
+        catch(IOException | RuntimeException e){
+            System.err.println("Error collecting orphaned files: " + e.getMessage());
+        }
     }
 
 
     public void stop(){
         server.stop(0);
         executorService.shutdown();
+        fileSharer.stopFileServer();
         System.out.println("API Server Stopped");
     }
 
+    public int getPort(){
+        return server.getAddress().getPort();
+    }
+
+    public int getSharePort(){
+        return fileSharer.getSharePort();
+    }
+
+    public ShareCluster getCluster(){
+        return cluster;
+    }
+
     public class CORSHandler implements HttpHandler{
         @Override
         public void handle(HttpExchange exchange) throws IOException{
             Headers headers = exchange.getResponseHeaders();
             headers.add("Access-Control-Allow-Origin", "*");
-            headers.add("Access-Control-Allow-Methods", "GET, POST, OPTIONS");
-            headers.add("Access-Control-Allow-Headers", "Content-Type,Authorization");
+            headers.add("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
+            headers.add("Access-Control-Allow-Headers", "Content-Type,Authorization,Range,If-Range");
+            headers.add("Access-Control-Expose-Headers", INTEGRITY_EXPOSE_HEADERS);
 
             if(exchange.getRequestMethod().equals("OPTIONS")){
                 exchange.sendResponseHeaders(204, -1);
@@ -105,18 +350,76 @@ public class FileController {
                 return;
             }
 
+            // ?ttl=<seconds>&maxDownloads=<n> 로 공유별 제한 지정 가능
+            long expiresAt;
+            int maxDownloads;
             try{
+                Map<String, String> params = queryParams(exchange);
+                expiresAt = expiresAt(params);
+                maxDownloads = maxDownloads(params);
+            }
+            catch(NumberFormatException e){
+                String response = "Bad Request: Invalid ttl or maxDownloads";
+                exchange.sendResponseHeaders(400, response.getBytes().length);
+                try(OutputStream os = exchange.getResponseBody()){
+                    os.write(response.getBytes());
+                }
+                return;
+            }
+
+            String boundary = Multiparser.extractBoundary(contentType);
+            if(boundary == null){
+                String response = "Bad Request: Missing multipart boundary";
+                exchange.sendResponseHeaders(400, response.getBytes().length);
+                try(OutputStream os = exchange.getResponseBody()){
+                    os.write(response.getBytes());
+                }
+                return;
+            }
 
-                String boundary = contentType.substring(contentType.indexOf("boundary=")+9);
+            // Content-Encoding: gzip 으로 압축해 올린 바디는 스트리밍하면서 풀기
+            InputStream requestBody = decodedRequestBody(exchange);
+            if(requestBody == null){
+                String response = "Unsupported Media Type: Content-Encoding must be gzip or identity";
+                exchange.sendResponseHeaders(415, response.getBytes().length);
+                try(OutputStream os = exchange.getResponseBody()){
+                    os.write(response.getBytes());
+                }
+                return;
+            }
 
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                IOUtils.copy(exchange.getRequestBody(), baos);
-                byte[] requestData = baos.toByteArray();
+            // 요청 바디를 메모리에 모으지 않고 해시를 계산하면서 blob 저장소로 바로 스트리밍
+            // X-Content-SHA256 으로 미리 해시를 알려 주고 같은 blob이 있으면 디스크에 쓰지 않음 (파일 하나짜리 업로드)
+            // 파일 파트가 여러 개면 (여러 파일 선택, 폴더 업로드) 각각 blob으로 저장하고 하나의 공유로 묶음
+            List<BlobStore.Writer> writers = new ArrayList<>();
+            long started = System.nanoTime();
+            try{
+                Multiparser parser = new Multiparser(requestBody, boundary);
+                String declaredHash = requestHeaders.getFirst("X-Content-SHA256");
+                List<Multiparser.ParseResult> results = parser.parseAll(new Multiparser.PartTarget(){
+                    @Override
+                    public WritableByteChannel open(Multiparser.Part part) throws IOException{
+                        BlobStore.Writer writer = blobStore.newWriter(writers.isEmpty() ? declaredHash : null);
+                        writers.add(writer);
+                        return writer;
+                    }
 
-                Multiparser parser = new Multiparser(requestData, boundary);
-                Multiparser.ParseResult result = parser.parse();
+                    @Override
+                    public void discard(Multiparser.Part part, WritableByteChannel channel){
+                        writers.remove(channel);
+                        ((BlobStore.Writer) channel).abort();
+                    }
+                }, maxFilesPerUpload);
+                metrics.uploadParseNanos.record(System.nanoTime() - started);
+                long received = 0;
+                for(BlobStore.Writer writer : writers){
+                    metrics.uploadDiskWriteNanos.record(writer.writeNanos());
+                    received += writer.size();
+                }
+                metrics.bytesReceived.add(received);
 
-                if(result == null){
+                if(results.isEmpty() || results.size() == 1 && results.get(0).size == 0){
+                    metrics.uploadsFailed.increment();
                     String response = "Bad Request: Could not parse file content";
                     exchange.sendResponseHeaders(400, response.getBytes().length);
                     try(OutputStream os = exchange.getResponseBody()){
@@ -125,28 +428,41 @@ public class FileController {
                     return;
                 }
 
-                String filename = result.filename;
-                Boolean isUnamed = filename == null || filename.trim().isEmpty();
-                if(isUnamed){
-                    filename = "unamed-file";
+                String code;
+                String jsonResponse;
+                if(results.size() == 1){
+                    Multiparser.ParseResult result = results.get(0);
+                    BlobStore.Blob blob = blobStore.commit(writers.get(0));
+                    code = fileSharer.offerFile(SharedFile.fromBlob(blob, displayName(result.filename), result.contentType, expiresAt, maxDownloads));
+                    jsonResponse = "{\"code\":\"" + code + "\",\"expiresAt\":" + expiresAt + ",\"maxDownloads\":" + maxDownloads + "}";
                 }
-                String uniqueFilename = UUID.randomUUID().toString()+"_"+new File(filename).getName();
-                String filePath = uploadDir + File.separator + uniqueFilename;
-
-                try(FileOutputStream fos = new FileOutputStream(filePath)){
-                    fos.write(result.fileContent);
+                else{
+                    code = fileSharer.offerFile(commitBundle(results, writers, expiresAt, maxDownloads));
+                    jsonResponse = "{\"code\":\"" + code + "\",\"expiresAt\":" + expiresAt + ",\"maxDownloads\":" + maxDownloads
+                            + ",\"files\":" + results.size() + "}";
                 }
-
-                int port = fileSharer.offerFile(filePath);
-                new Thread(()->fileSharer.startFileServer(port)).start();
-                String jsonResponse = "{\"port\":" + port + "}";
+                metrics.uploadsCompleted.increment();
+                TransferMetrics.recordThroughput(metrics.uploadThroughput, received, System.nanoTime() - started);
                 headers.add("Content-Type", "application/json");
                 exchange.sendResponseHeaders(200, jsonResponse.getBytes().length);
                 try(OutputStream os = exchange.getResponseBody()){
                     os.write(jsonResponse.getBytes());
                 }
             }
+            catch(IllegalArgumentException e){
+                metrics.uploadsFailed.increment();
+                String response = "Bad Request: " + e.getMessage();
+                exchange.sendResponseHeaders(400, response.getBytes().length);
+                try(OutputStream os = exchange.getResponseBody()){
+                    os.write(response.getBytes());
+                }
+            }
+            catch(DiskSpaceBudget.InsufficientSpaceException e){
+                metrics.uploadsFailed.increment();
+                ConcurrencyLimitHandler.reject(exchange, 503, storageRetryAfter, "Service Unavailable: " + e.getMessage());
+            }
             catch(Exception e){
+                metrics.uploadsFailed.increment();
                 System.err.println("Error processing upload: "+ e.getMessage());
                 String response = "Server Error: "+e.getMessage();
                 exchange.sendResponseHeaders(500, response.getBytes().length);
@@ -155,115 +471,374 @@ public class FileController {
                 }
 
             }
+            finally{
+                // 어떻게 끝나든 확정되지 않은 임시 파일은 지움 (commit된 writer는 임시 파일이 이미 옮겨져 있어 아무 일도 안 함)
+                writers.forEach(BlobStore.Writer::abort);
+            }
             
 
         }
     }
 
-
-    public static class Multiparser{
-
-        /* HTTP Request: 브라우저에서 <input type="file">로 hello.txt 업로드
-        POST /upload HTTP/1.1
-        Host: localhost:8080
-        Content-Type: multipart/form-data; boundary=----WebKitFormBoundaryABC123
-
-        ------WebKitFormBoundaryABC123
-        Content-Disposition: form-data; name="file"; filename="hello.txt"
-        Content-Type: text/plain
-
-        Hello World!
-        This is a test file.
-        ------WebKitFormBoundaryABC123--
-
-        */
-        private final byte[] data;
-        private final String boundary;
-
-        public Multiparser(byte[] data, String boundary){
-            this.data= data;
-            this.boundary= boundary;
+    /*
+    나눠 올리기 API (이어 올리기, 병렬 업로드)
+        POST   /uploads?filename=a.iso&size=123&chunkSize=8388608   -> 세션 생성
+        PUT    /uploads/{id}/chunks/{n}   (X-Chunk-SHA256: hex)       -> n번째 chunk 기록
+        GET    /uploads/{id}                                         -> 아직 안 받은 chunk 목록
+        POST   /uploads/{id}/commit                                  -> 공유 코드 발급
+        DELETE /uploads/{id}                                         -> 취소
+    */
+    /*
+    여러 파일 업로드 확정: 경로를 먼저 모두 검사한 뒤 blob들을 commit
+    - 경로는 브라우저가 보낸 상대 경로 (폴더 업로드면 "폴더/하위/파일"), ".."은 거절
+    - 모든 파일이 같은 최상위 폴더 아래면 그 이름, 아니면 "files"가 아카이브 이름
+    - 중간에 실패하면 이미 잡은 blob 참조를 놓는다
+    */
+    private SharedFile commitBundle(List<Multiparser.ParseResult> results, List<BlobStore.Writer> writers, long expiresAt, int maxDownloads) throws IOException{
+        List<String> paths = new ArrayList<>(results.size());
+        Set<String> seen = new HashSet<>();
+        String root = null;
+        for(int i = 0; i < results.size(); i++){
+            String path = Archive.normalizePath(results.get(i).filename);
+            if(!seen.add(path)){
+                throw new IllegalArgumentException("Duplicate file path: " + path);
+            }
+            String top = path.indexOf('/') > 0 ? path.substring(0, path.indexOf('/')) : "";
+            root = i == 0 ? top : root.equals(top) ? root : "";
+            paths.add(path);
+        }
+        List<SharedFile.Member> members = new ArrayList<>(results.size());
+        long now = System.currentTimeMillis();
+        try{
+            for(int i = 0; i < results.size(); i++){
+                BlobStore.Writer writer = writers.get(i);
+                BlobStore.Blob blob = blobStore.commit(writer);
+                members.add(new SharedFile.Member(paths.get(i), blob, results.get(i).contentType, writer.crc32(), now));
+            }
         }
+        catch(IOException | RuntimeException e){
+            members.forEach(member -> blobStore.release(member.blobId));
+            throw e;
+        }
+        return SharedFile.bundle(root.isEmpty() ? "files" : root, members, expiresAt, maxDownloads);
+    }
 
+    public class ChunkedUploadHandler implements HttpHandler{
+        @Override
+        public void handle(HttpExchange exchange) throws IOException{
+            Headers headers = exchange.getResponseHeaders();
+            headers.add("Access-Control-Allow-Origin","*");
+            String method = exchange.getRequestMethod().toUpperCase();
+            if(method.equals("OPTIONS")){
+                headers.add("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
+                headers.add("Access-Control-Allow-Headers", "Content-Type,X-Chunk-SHA256");
+                exchange.sendResponseHeaders(204, -1);
+                return;
+            }
 
-        public ParseResult parse(){
+            // "/uploads/{id}/chunks/{n}" -> ["", "uploads", id, "chunks", n]
+            String[] segments = exchange.getRequestURI().getPath().split("/");
             try{
-                // multipart 헤더 파싱을 문자열 기반으로 하기 위함
-                String dataAsString = new String(data);
-
-                // Filename 추출
-                String filenameMarker = "filename=\"";
-                int filenameStart = dataAsString.indexOf(filenameMarker);
-                if(filenameStart ==-1){
-                    return null;
+                if(segments.length == 2 && method.equals("POST")){
+                    initiate(exchange);
+                }
+                else if(segments.length >= 3 && chunkedUploads.getSession(segments[2]) == null){
+                    sendText(exchange, 404, "Not Found: Unknown upload");
+                }
+                else if(segments.length == 3 && method.equals("GET")){
+                    status(exchange, chunkedUploads.getSession(segments[2]));
+                }
+                else if(segments.length == 3 && method.equals("DELETE")){
+                    chunkedUploads.abort(segments[2]);
+                    sendText(exchange, 204, "");
+                }
+                else if(segments.length == 5 && segments[3].equals("chunks") && method.equals("PUT")){
+                    InputStream body = decodedRequestBody(exchange);
+                    if(body == null){
+                        sendText(exchange, 415, "Unsupported Media Type: Content-Encoding must be gzip or identity");
+                        return;
+                    }
+                    // checksum, 길이는 압축을 푼 바이트 기준
+                    String checksum = chunkedUploads.writeChunk(segments[2], Integer.parseInt(segments[4]),
+                            body, exchange.getRequestHeaders().getFirst("X-Chunk-SHA256"));
+                    sendJson(exchange, 200, "{\"chunk\":" + segments[4] + ",\"sha256\":\"" + checksum + "\"}");
+                }
+                else if(segments.length == 4 && segments[3].equals("commit") && method.equals("POST")){
+                    String code = chunkedUploads.commit(segments[2]);
+                    metrics.uploadsCompleted.increment();
+                    sendJson(exchange, 200, "{\"code\":\"" + code + "\"}");
+                }
+                else{
+                    sendText(exchange, 405, "Method not Allowed");
                 }
-                filenameStart +=filenameMarker.length();
-                int filenameEnd = dataAsString.indexOf("\"", filenameStart);
-                String filename = dataAsString.substring(filenameStart, filenameEnd);
+            }
+            catch(IllegalArgumentException e){
+                sendText(exchange, 400, "Bad Request: " + e.getMessage());
+            }
+            catch(IllegalStateException e){
+                sendText(exchange, 409, "Conflict: " + e.getMessage());
+            }
+            catch(DiskSpaceBudget.InsufficientSpaceException e){
+                metrics.uploadsFailed.increment();
+                ConcurrencyLimitHandler.reject(exchange, 503, storageRetryAfter, "Service Unavailable: " + e.getMessage());
+            }
+            catch(IOException e){
+                metrics.uploadsFailed.increment();
+                System.err.println("Error processing chunked upload: "+ e.getMessage());
+                sendText(exchange, 500, "Server Error: " + e.getMessage());
+            }
+        }
 
+        private void initiate(HttpExchange exchange) throws IOException{
+            Map<String, String> params = queryParams(exchange);
+            if(!params.containsKey("size")){
+                throw new IllegalArgumentException("size is required");
+            }
+            long size = Long.parseLong(params.get("size"));
+            // 세션 전체를 예약해 두지는 않고, 지금 들어갈 자리가 있는지만 본다 (chunk마다 따로 예약)
+            if(!diskBudget.hasRoom(size)){
+                ConcurrencyLimitHandler.reject(exchange, 503, storageRetryAfter, "Service Unavailable: not enough disk space for " + size + " bytes");
+                return;
+            }
+            int chunkSize = params.containsKey("chunkSize") ? Integer.parseInt(params.get("chunkSize")) : ChunkedUploadManager.DEFAULT_CHUNK_SIZE;
+            String contentType = params.getOrDefault("contentType", "application/octet-stream");
+            ChunkedUploadManager.UploadSession session = chunkedUploads.initiate(displayName(params.get("filename")),
+                    contentType, size, chunkSize, expiresAt(params), maxDownloads(params));
+            sendJson(exchange, 201, "{\"uploadId\":\"" + session.uploadId + "\",\"chunkSize\":" + session.chunkSize
+                    + ",\"chunks\":" + session.chunks + "}");
+        }
 
-                // Content-Type 추출
-                String contentTypeMarker = "Content-Type: ";
-                int contentTypeStart = dataAsString.indexOf(contentTypeMarker, filenameEnd);
-                String contentType ="application/octet-stream";
-                if(contentTypeStart != -1){
-                    contentTypeStart += contentTypeMarker.length();
-                    int contentTypeEnd = dataAsString.indexOf("\r\n", contentTypeStart);
-                    contentType = dataAsString.substring(contentTypeStart, contentTypeEnd);
+        private void status(HttpExchange exchange, ChunkedUploadManager.UploadSession session) throws IOException{
+            StringBuilder missing = new StringBuilder();
+            for(int index : session.missingChunks()){
+                if(missing.length() > 0){
+                    missing.append(',');
                 }
+                missing.append(index);
+            }
+            sendJson(exchange, 200, "{\"uploadId\":\"" + session.uploadId + "\",\"chunkSize\":" + session.chunkSize
+                    + ",\"chunks\":" + session.chunks + ",\"missing\":[" + missing + "]}");
+        }
+    }
 
-                // 헤더 끝 찾기
-                String headerEndMarker = "\r\n\r\n";
-                int headerEnd = dataAsString.indexOf(headerEndMarker);
-                if(headerEnd == -1){return null;}
-
-                int contentStart = headerEnd + headerEndMarker.length();
+    /*
+    ttl 파라미터(초) -> 만료 시각, 0이면 만료 없음
+    */
+    private long expiresAt(Map<String, String> params){
+        long ttlSeconds = params.containsKey("ttl") ? Long.parseLong(params.get("ttl")) : defaultTtlSeconds;
+        if(ttlSeconds < 0){
+            throw new NumberFormatException("negative ttl");
+        }
+        return ttlSeconds == 0 ? 0 : System.currentTimeMillis() + ttlSeconds * 1000;
+    }
 
-                byte[] boundaryBytes = ("\r\n--"+boundary+"--").getBytes();
-                int contentEnd = findSequence(data, boundaryBytes, contentStart);
+    private int maxDownloads(Map<String, String> params){
+        int maxDownloads = params.containsKey("maxDownloads") ? Integer.parseInt(params.get("maxDownloads")) : defaultMaxDownloads;
+        if(maxDownloads < 0){
+            throw new NumberFormatException("negative maxDownloads");
+        }
+        return maxDownloads;
+    }
 
-                if(contentEnd ==-1){
-                    boundaryBytes = ("\r\n--"+boundary).getBytes();
-                    contentEnd = findSequence(data, boundaryBytes, contentStart);
-                }
+    private static void sendText(HttpExchange exchange, int status, String response) throws IOException{
+        byte[] body = response.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "text/plain");
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        try(OutputStream os = exchange.getResponseBody()){
+            os.write(body);
+        }
+    }
 
-                if(contentEnd ==-1 || contentEnd <= contentStart){return null;}
+    private static void sendJson(HttpExchange exchange, int status, String json) throws IOException{
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try(OutputStream os = exchange.getResponseBody()){
+            os.write(body);
+        }
+    }
 
-                byte[] fileContent = new byte[contentEnd - contentStart];
-                System.arraycopy(data, contentStart, fileContent, 0, fileContent.length);
+    /*
+    Content-Encoding 에 맞춰 요청 바디를 푼다. 지원하지 않는 인코딩이면 null.
+    디스크 예약(AdmissionHandler)이 있으면 푼 바이트 기준으로 예약을 쓴다.
+    */
+    private static InputStream decodedRequestBody(HttpExchange exchange) throws IOException{
+        String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        InputStream body;
+        if(encoding == null || encoding.isBlank() || encoding.trim().equalsIgnoreCase("identity")){
+            body = exchange.getRequestBody();
+        }
+        else if(encoding.trim().equalsIgnoreCase(Compression.GZIP) || encoding.trim().equalsIgnoreCase("x-gzip")){
+            body = new GZIPInputStream(exchange.getRequestBody(), 64 * 1024);
+        }
+        else{
+            return null;
+        }
+        DiskSpaceBudget.Reservation reservation = (DiskSpaceBudget.Reservation) exchange.getAttribute(AdmissionHandler.RESERVATION);
+        return reservation == null ? body : reservation.meter(body);
+    }
 
-                return new ParseResult(filename, contentType, fileContent);
+    private static Map<String, String> queryParams(HttpExchange exchange){
+        Map<String, String> params = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if(query == null || query.isEmpty()){
+            return params;
+        }
+        for(String pair : query.split("&")){
+            int eq = pair.indexOf('=');
+            if(eq > 0){
+                params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return params;
+    }
 
+    private static String jsonString(String value){
+        StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+        for(int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+            if(c == '"' || c == '\\'){
+                sb.append('\\').append(c);
             }
-            catch(Exception e){
-                System.err.println("Error parsing multipart data: "+ e.getMessage());
-                return null;
+            else if(c < 0x20){
+                sb.append(String.format("\\u%04x", (int) c));
+            }
+            else{
+                sb.append(c);
             }
+        }
+        return sb.append('"').toString();
+    }
 
+    private static String displayName(String filename){
+        Boolean isUnamed = filename == null || filename.trim().isEmpty();
+        if(isUnamed){
+            return "unamed-file";
         }
-        public static class ParseResult {
-            public final String filename;
-            public final String contentType;
-            public final byte[] fileContent;
-            
-            public ParseResult(String filename, String contentType, byte[] fileContent) {
-                this.filename = filename;
-                this.contentType = contentType;
-                this.fileContent = fileContent;
+        return new File(filename).getName();
+    }
+
+    /*
+    Prometheus 스크레이프용 GET /metrics
+    - 전송 계측 (TransferMetrics), 종류별 동시 처리/대기 수, HTTP executor, 메모리 캐시, 공유/blob 수
+    */
+    private class MetricsHandler implements HttpHandler{
+        @Override
+        public void handle(HttpExchange exchange) throws IOException{
+            if(!exchange.getRequestMethod().equalsIgnoreCase("GET")){
+                sendText(exchange, 405, "Method not Allowed");
+                return;
+            }
+            PrometheusWriter writer = new PrometheusWriter();
+            metrics.writeTo(writer);
+
+            writer.header("p2p_http_transfers_limit", "gauge", "Maximum concurrent transfers per kind");
+            writer.sample("p2p_http_transfers_limit", "kind=\"upload\"", uploadLimiter.getLimit());
+            writer.sample("p2p_http_transfers_limit", "kind=\"chunked_upload\"", chunkedUploadLimiter.getLimit());
+            writer.sample("p2p_http_transfers_limit", "kind=\"commit\"", commitLimiter.getLimit());
+            writer.sample("p2p_http_transfers_limit", "kind=\"download\"", downloadLimiter.getLimit());
+            writer.header("p2p_http_transfers_active", "gauge", "Transfers currently being served per kind");
+            writer.sample("p2p_http_transfers_active", "kind=\"upload\"", uploadLimiter.getActive());
+            writer.sample("p2p_http_transfers_active", "kind=\"chunked_upload\"", chunkedUploadLimiter.getActive());
+            writer.sample("p2p_http_transfers_active", "kind=\"commit\"", commitLimiter.getActive());
+            writer.sample("p2p_http_transfers_active", "kind=\"download\"", downloadLimiter.getActive());
+            writer.header("p2p_http_transfers_queued", "gauge", "Transfers waiting for a concurrency permit per kind");
+            writer.sample("p2p_http_transfers_queued", "kind=\"upload\"", uploadLimiter.getQueued());
+            writer.sample("p2p_http_transfers_queued", "kind=\"chunked_upload\"", chunkedUploadLimiter.getQueued());
+            writer.sample("p2p_http_transfers_queued", "kind=\"commit\"", commitLimiter.getQueued());
+            writer.sample("p2p_http_transfers_queued", "kind=\"download\"", downloadLimiter.getQueued());
+            writer.header("p2p_http_transfers_shed_total", "counter", "Transfers turned away with 429 because the queue was full or the wait timed out");
+            writer.sample("p2p_http_transfers_shed_total", "kind=\"upload\"", uploadLimiter.getShed());
+            writer.sample("p2p_http_transfers_shed_total", "kind=\"chunked_upload\"", chunkedUploadLimiter.getShed());
+            writer.sample("p2p_http_transfers_shed_total", "kind=\"commit\"", commitLimiter.getShed());
+            writer.sample("p2p_http_transfers_shed_total", "kind=\"download\"", downloadLimiter.getShed());
+            writer.header("p2p_admission_rejected_total", "counter", "Uploads turned away with 503 for lack of disk space or heap");
+            writer.sample("p2p_admission_rejected_total", "reason=\"disk\"", diskBudget.getRejected());
+            writer.sample("p2p_admission_rejected_total", "reason=\"heap\"", uploadAdmission.getRejectedHeap() + chunkedUploadAdmission.getRejectedHeap());
+            writer.gauge("p2p_disk_reserved_bytes", "Disk space reserved for upload bodies not yet received", diskBudget.getReservedBytes());
+            writer.gauge("p2p_disk_available_bytes", "Disk space uploads may still reserve", diskBudget.available());
+            // 가상 스레드 executor에는 큐가 없으므로 플랫폼 스레드 풀일 때만
+            if(executorService instanceof ThreadPoolExecutor){
+                ThreadPoolExecutor pool = (ThreadPoolExecutor) executorService;
+                writer.gauge("p2p_http_executor_threads", "HTTP worker pool size", pool.getPoolSize());
+                writer.gauge("p2p_http_executor_active_threads", "HTTP workers currently running a request", pool.getActiveCount());
+                writer.gauge("p2p_http_executor_queue_depth", "Requests waiting for an HTTP worker", pool.getQueue().size());
+            }
+
+            ContentCache cache = fileSharer.getContentCache();
+            writer.counter("p2p_cache_hits_total", "Content cache hits", cache.getHits());
+            writer.counter("p2p_cache_misses_total", "Content cache misses", cache.getMisses());
+            writer.counter("p2p_cache_evictions_total", "Content cache evictions", cache.getEvictions());
+            writer.counter("p2p_cache_loads_total", "Files loaded into the content cache", cache.getLoads());
+            writer.gauge("p2p_cache_used_bytes", "Off-heap bytes held by the content cache", cache.getUsedBytes());
+            writer.gauge("p2p_cache_budget_bytes", "Content cache byte budget", cache.getBudgetBytes());
+            writer.gauge("p2p_cache_entries", "Files held by the content cache", cache.getEntryCount());
+            writer.header("p2p_bandwidth_throttled_seconds_total", "counter", "Time downloads spent paused by the bandwidth scheduler");
+            writer.sample("p2p_bandwidth_throttled_seconds_total", null, fileSharer.getBandwidthScheduler().getThrottledNanos() / 1e9);
+            writer.gauge("p2p_shares", "Registered shares", fileSharer.getShareCount());
+            writer.gauge("p2p_blobs", "Blobs in the content-addressed store", blobStore.getBlobCount());
+
+            byte[] body = writer.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", PrometheusWriter.CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try(OutputStream os = exchange.getResponseBody()){
+                os.write(body);
             }
         }
-    
-        private int findSequence(byte[] data, byte[] sequence, int startPos) {
-            outer:
-            for (int i = startPos; i <= data.length - sequence.length; i++) {
-                for (int j = 0; j < sequence.length; j++) {
-                    if (data[i + j] != sequence[j]) {
-                        continue outer;
-                    }
+    }
+
+    /*
+    노드 간 요청
+    - GET  /cluster                              : 이 노드가 아는 ring 구성 (JSON)
+    - POST /cluster/replicas/{code}?from={nodeId} : from 노드의 share 포트에서 공유를 받아 같은 코드로 복제
+    복제 요청은 X-Cluster-Secret 헤더가 p2p.cluster.secret과 맞아야 함 (다른 노드가 있는데 비밀이 없으면 모두 거절)
+    */
+    private class ClusterHandler implements HttpHandler{
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException{
+            String[] segments = exchange.getRequestURI().getPath().split("/");
+            String method = exchange.getRequestMethod();
+            if(segments.length == 2 && method.equalsIgnoreCase("GET")){
+                StringBuilder json = new StringBuilder("{\"self\":\"").append(cluster.getSelfId()).append("\",\"members\":[");
+                List<ShareCluster.Node> members = cluster.getMembers();
+                for(int i = 0; i < members.size(); i++){
+                    ShareCluster.Node node = members.get(i);
+                    json.append(i == 0 ? "" : ",").append("{\"id\":\"").append(node.id).append("\",\"host\":\"").append(node.host)
+                            .append("\",\"httpPort\":").append(node.httpPort).append(",\"sharePort\":").append(node.sharePort).append('}');
                 }
-                return i;
+                sendJson(exchange, 200, json.append("]}").toString());
+                return;
+            }
+            if(segments.length != 4 || !segments[2].equals("replicas") || !method.equalsIgnoreCase("POST")){
+                sendText(exchange, 404, "Not Found");
+                return;
+            }
+            if(!cluster.acceptsSecret(exchange.getRequestHeaders().getFirst(FileSharer.CLUSTER_SECRET_HEADER))){
+                sendText(exchange, 403, "Forbidden");
+                return;
+            }
+            String code = ShareCodeAllocator.normalize(segments[3]);
+            ShareCluster.Node source = cluster.getNode(queryParams(exchange).getOrDefault("from", ""));
+            if(code == null || source == null || cluster.isSelf(source)){
+                sendText(exchange, 400, "Bad Request: Invalid share code or source node");
+                return;
+            }
+            try{
+                boolean created = fileSharer.fetchReplica(source, code);
+                sendText(exchange, created ? 201 : 200, created ? "Replicated " + code : "Already present: " + code);
+            }
+            catch(IllegalArgumentException e){
+                sendText(exchange, 400, "Bad Request: " + e.getMessage());
+            }
+            catch(DiskSpaceBudget.InsufficientSpaceException e){
+                ConcurrencyLimitHandler.reject(exchange, 503, storageRetryAfter, "Service Unavailable: " + e.getMessage());
+            }
+            catch(IOException e){
+                System.err.println("Error replicating " + code + " from " + source.id + ": " + e.getMessage());
+                sendText(exchange, 502, "Bad Gateway: " + e.getMessage());
             }
-            return -1;
         }
     }
 
@@ -271,13 +846,16 @@ public class FileController {
 
         /*
         브라우저는 TCP 소켓 직접 연결 못함
-        - 서버가 대신 소켓 연결 -> 파일 받아서 HTTP 다운로드로 변환
+        - 같은 노드에 저장된 공유 파일이면 디스크에서 바로 스트리밍
+        - 아니면 ring에서 코드를 가진 노드에 같은 요청을 보내 -> 받은 응답을 그대로 중계
         */
         @Override
         public void handle(HttpExchange exchange) throws IOException{
+            long started = System.nanoTime();
             // CORS 허용
             Headers headers = exchange.getResponseHeaders();
             headers.add("Access-Control-Allow-Origin","*");
+            headers.add("Access-Control-Expose-Headers", INTEGRITY_EXPOSE_HEADERS);
 
 
             // GET 요청만 허용
@@ -291,103 +869,671 @@ public class FileController {
                 return;
             }
 
-            // URL에서 PORT 번호 추출
-            String path = exchange.getRequestURI().getPath();
-            String portStr = path.substring(path.lastIndexOf("/")+1);
-
-            try{ 
-                int port = Integer.parseInt(portStr);
-                // PORT 번호로 소켓 연결
-                try(Socket socket = new Socket("localhost", port);
-                    InputStream socketInput = socket.getInputStream()){
-                        /* tempFile 필요성
-                        HTTP 응답에는 Content-Length가 필요함
-                        - 파일 크기를 미리 모르기 때문
-                        - 일단 다 받고 크기 측정하고 Content-Length 설정
-                        */
-                        File tempFile =  File.createTempFile("download-", ".tmp");
-                        String filename = "downloaded-file"; // default filename
-
-                        // 파일 이름 받기 -> 나머지는 전부 파일 데이터임
-                        /* 소켓에서 오는 데이터 구조 (내가 정한 형태임)
-                            Filename: example.pdf\n
-                            <binary file data>
-                        */
-                        try(FileOutputStream fos = new FileOutputStream(tempFile)){
-                            byte[] buffer = new byte[4096];
-                            int bytesRead;
-                            ByteArrayOutputStream headerBaos = new ByteArrayOutputStream();
-
-                            // 우선 파일 이름 먼저 읽기 (엔터(\n) 나올 때까지 한 바이트씩 읽기)
-                            int b;
-                            while((b = socketInput.read()) != -1){
-                                if(b == '\n')break;
-                                headerBaos.write(b);
-                            }
-                            // 헤더 해석 : "Filename: " 뒤에 있는 게 실제 다운로드될 파일 이름
-                            String header = headerBaos.toString().trim();
-                            if(header.startsWith("Filename: ")){
-                                filename = header.substring("Filename: ".length());
-                            }
-                  
-                            // 나머지는 파일 데이터 (소켓에서 오는 나머지 모든 바이트)
-                            while((bytesRead = socketInput.read(buffer)) != -1){
-                                fos.write(buffer, 0, bytesRead);
-                            }
-                        }
+            // URL에서 공유 코드 추출: /download/{code}, /download/{code}/manifest, /download/{code}/files[/{path}]
+            String[] segments = exchange.getRequestURI().getPath().split("/");
+            boolean manifest = segments.length == 4 && segments[3].equals("manifest");
+            boolean files = segments.length >= 4 && segments[3].equals("files");
+            String code = segments.length == 3 || manifest || files ? ShareCodeAllocator.normalize(segments[2]) : null;
 
-                        // 브라우저에서 파일로 인식하게 만들기
-                        headers.add("Content-Disposition", "attachment; filename=\"" + filename + "\"");
-                        headers.add("Content-Type", "application/octet-stream");
-                        exchange.sendResponseHeaders(200, tempFile.length());
-                        try(OutputStream os = exchange.getResponseBody();
-                            FileInputStream fis = new FileInputStream(tempFile)){
-                                byte[] buffer = new byte[4096];
-                                int bytesRead;
-                                while ((bytesRead = fis.read(buffer)) != -1) {
-                                    os.write(buffer, 0, bytesRead);
-                                }
-                            }
-                            tempFile.delete();
-                        }
-                        catch(IOException e){
-                            System.err.println("Error downloading file from peer: "+ e.getMessage());
-                            String response = "Error downloading file: " + e.getMessage();
-                            headers.add("Content-Type", "text/plain");
-                            exchange.sendResponseHeaders(400, response.getBytes().length);
-                            try(OutputStream os = exchange.getResponseBody()){
-                                os.write(response.getBytes());
-                            }
-                    
+            if(code == null){
+                String response = "Bad Request: Invalid share code";
+                exchange.sendResponseHeaders(400, response.getBytes().length);
+                try(OutputStream os = exchange.getResponseBody()){
+                    os.write(response.getBytes());
+                }
+                return;
+            }
+
+            if(manifest){
+                sendManifest(exchange, code, started);
+                return;
+            }
+
+            if(files){
+                String memberPath = segments.length > 4 ? String.join("/", Arrays.copyOfRange(segments, 4, segments.length)) : null;
+                sendBundleMember(exchange, code, memberPath, started);
+                return;
+            }
+
+            // Range 요청은 저장된 파일 기준으로 미리 해석 (If-Range 검증 포함)
+            SharedFile known = fileSharer.getSharedFile(code);
+            if(known != null && known.isBundle()){
+                streamArchive(exchange, code, started);
+                return;
+            }
+            List<ByteRange> ranges = null;
+            long lastModified = 0;
+            if(known != null){
+                lastModified = new File(known.filePath).lastModified();
+                try{
+                    ranges = requestedRanges(exchange, known, lastModified);
+                }
+                catch(IllegalArgumentException e){
+                    String response = "Range Not Satisfiable";
+                    headers.add("Content-Range", "bytes */" + known.size);
+                    headers.add("Content-Type", "text/plain");
+                    exchange.sendResponseHeaders(416, response.getBytes().length);
+                    try(OutputStream os = exchange.getResponseBody()){
+                        os.write(response.getBytes());
+                    }
+                    return;
+                }
+            }
+
+            // 같은 공유를 여러 클라이언트가 동시에 받을 수 있음 (만료/횟수 제한까지)
+            // 이어받기나 분할 다운로드의 뒷부분 요청은 다운로드 횟수로 세지 않음
+            boolean counted = countsAsDownload(ranges, known == null ? 0 : known.size);
+            SharedFile sharedFile = fileSharer.acquire(code, counted);
+            if(sharedFile != null){
+                // 대역폭 제한이 켜져 있으면 응답 스트림에 토큰 버킷을 건다
+                BandwidthScheduler scheduler = fileSharer.getBandwidthScheduler();
+                BandwidthScheduler.Flow flow = null;
+                OutputStream out = exchange.getResponseBody();
+                if(scheduler.isEnabled()){
+                    long expected = ranges == null ? sharedFile.size : ranges.stream().mapToLong(ByteRange::length).sum();
+                    flow = scheduler.open(clientAddress(exchange), code, expected, scheduler.weight("http"));
+                    out = new PacedOutputStream(out, flow);
+                }
+                CountingOutputStream body = new CountingOutputStream(out);
+                try{
+                    streamFromDisk(exchange, body, sharedFile, ranges, lastModified, started);
+                    if(exchange.getResponseCode() < 400){
+                        metrics.httpDownloadsCompleted.increment();
+                        TransferMetrics.recordThroughput(metrics.httpDownloadThroughput, body.getByteCount(), System.nanoTime() - started);
+                    }
+                    if(exchange.getResponseCode() == 200){
+                        fileSharer.downloadCompleted(code, sharedFile);
+                    }
+                    else if(exchange.getResponseCode() == 404 && counted){
+                        // 파일이 사라져 아무것도 못 보냄: 센 횟수를 돌려줌
+                        fileSharer.refundDownload(code, sharedFile);
+                    }
+                }
+                catch(IOException e){
+                    metrics.httpDownloadsFailed.increment();
+                    throw e;
+                }
+                finally{
+                    metrics.httpBytesSent.add(body.getByteCount());
+                    if(flow != null){
+                        flow.close();
+                    }
+                    fileSharer.release(sharedFile);
+                }
+            }
+            else if(fileSharer.hasShare(code)){
+                String response = "Gone: Share has expired or reached its download limit";
+                headers.add("Content-Type", "text/plain");
+                exchange.sendResponseHeaders(410, response.getBytes().length);
+                try(OutputStream os = exchange.getResponseBody()){
+                    os.write(response.getBytes());
+                }
+            }
+            else{
+                fetchFromCluster(exchange, code, started, "Not Found: No file is available for code " + code);
+            }
+        }
+
+        /*
+        여러 파일 공유: 파일들을 무압축(stored) zip 또는 tar로 이어 붙여 전송 (?format=zip|tar, 기본 zip)
+        - 헤더/디렉터리는 메모리에서 미리 만들고 파일 내용은 blob에서 바로 보냄 -> 아카이브를 디스크에 만들지 않음
+        - 전체 길이를 미리 알 수 있으므로 Content-Length를 바로 보냄
+        */
+        private void streamArchive(HttpExchange exchange, String code, long started) throws IOException{
+            String format = queryParams(exchange).getOrDefault("format", Archive.ZIP).toLowerCase();
+            if(!format.equals(Archive.ZIP) && !format.equals(Archive.TAR)){
+                sendText(exchange, 400, "Bad Request: format must be zip or tar");
+                return;
+            }
+            SharedFile sharedFile = fileSharer.acquire(code, true);
+            if(sharedFile == null){
+                sendText(exchange, 410, "Gone: Share has expired or reached its download limit");
+                return;
+            }
+            BandwidthScheduler scheduler = fileSharer.getBandwidthScheduler();
+            BandwidthScheduler.Flow flow = null;
+            CountingOutputStream body = null;
+            try{
+                Archive archive = sharedFile.archive(format);
+                Headers headers = exchange.getResponseHeaders();
+                headers.add("Content-Disposition", "attachment; filename=\"" + sharedFile.filename + "." + format + "\"");
+                headers.add("Content-Type", archive.getContentType());
+                OutputStream out = exchange.getResponseBody();
+                if(scheduler.isEnabled()){
+                    flow = scheduler.open(clientAddress(exchange), code, archive.length(), scheduler.weight("http"));
+                    out = new PacedOutputStream(out, flow);
+                }
+                body = new CountingOutputStream(out);
+                sendHeaders(exchange, 200, archive.length(), started);
+                try(OutputStream os = body){
+                    archive.writeTo(Channels.newChannel(os));
+                }
+                metrics.httpDownloadsCompleted.increment();
+                TransferMetrics.recordThroughput(metrics.httpDownloadThroughput, body.getByteCount(), System.nanoTime() - started);
+            }
+            catch(IOException e){
+                metrics.httpDownloadsFailed.increment();
+                throw e;
+            }
+            finally{
+                if(body != null){
+                    metrics.httpBytesSent.add(body.getByteCount());
+                }
+                if(flow != null){
+                    flow.close();
+                }
+                fileSharer.release(sharedFile);
+            }
+        }
+
+        /*
+        여러 파일 공유 안을 하나씩
+        - /download/{code}/files        -> 파일 목록 JSON {"name":..,"files":[{"path":..,"size":..},..]} (횟수로 세지 않음)
+        - /download/{code}/files/{path} -> 그 파일만 (Range 가능)
+          처음 받는 파일에서 다운로드 한 번으로 세고 X-Bundle-Session 토큰을 돌려줌,
+          같은 토큰(헤더 또는 ?session=)으로 받는 나머지 파일은 세지 않음
+        */
+        private void sendBundleMember(HttpExchange exchange, String code, String memberPath, long started) throws IOException{
+            SharedFile known = fileSharer.getSharedFile(code);
+            if(known == null){
+                if(fileSharer.hasShare(code)){
+                    sendText(exchange, 410, "Gone: Share has expired or reached its download limit");
+                }
+                else{
+                    fetchFromCluster(exchange, code, started, "Not Found: No file is available for code " + code);
+                }
+                return;
+            }
+            if(!known.isBundle()){
+                sendText(exchange, 404, "Not Found: Share " + code + " is a single file");
+                return;
+            }
+            if(memberPath == null){
+                StringBuilder json = new StringBuilder(64 + known.members.size() * 48);
+                json.append("{\"name\":").append(jsonString(known.filename)).append(",\"files\":[");
+                boolean first = true;
+                for(SharedFile.Member member : known.members.values()){
+                    if(!first){
+                        json.append(',');
+                    }
+                    first = false;
+                    json.append("{\"path\":").append(jsonString(member.path)).append(",\"size\":").append(member.size).append('}');
+                }
+                json.append("]}");
+                sendJson(exchange, 200, json.toString());
+                return;
+            }
+            SharedFile.Member member = known.members.get(memberPath);
+            if(member == null){
+                sendText(exchange, 404, "Not Found: No file " + memberPath + " in share " + code);
+                return;
+            }
+            SharedFile file = member.asSharedFile();
+            long lastModified = new File(member.filePath).lastModified();
+            List<ByteRange> ranges;
+            try{
+                ranges = requestedRanges(exchange, file, lastModified);
+            }
+            catch(IllegalArgumentException e){
+                exchange.getResponseHeaders().add("Content-Range", "bytes */" + file.size);
+                sendText(exchange, 416, "Range Not Satisfiable");
+                return;
+            }
+            // 묶음 안의 파일들은 세션 하나에서 처음 센 한 번만 다운로드로 침 (X-Bundle-Session 또는 ?session=)
+            String session = exchange.getRequestHeaders().getFirst(BUNDLE_SESSION_HEADER);
+            if(session == null){
+                session = queryParams(exchange).get("session");
+            }
+            SharedFile sharedFile = fileSharer.acquireInSession(code, session);
+            boolean counted = false;
+            if(sharedFile == null){
+                counted = countsAsDownload(ranges, file.size);
+                sharedFile = fileSharer.acquire(code, counted);
+            }
+            if(sharedFile == null){
+                sendText(exchange, 410, "Gone: Share has expired or reached its download limit");
+                return;
+            }
+            if(counted){
+                session = fileSharer.openBundleSession(code);
+            }
+            if(session != null){
+                exchange.getResponseHeaders().set(BUNDLE_SESSION_HEADER, session);
+                exchange.getResponseHeaders().set("Access-Control-Expose-Headers", INTEGRITY_EXPOSE_HEADERS + "," + BUNDLE_SESSION_HEADER);
+            }
+            // 묶음 안 파일도 단일 파일, 아카이브와 같은 클라이언트 흐름으로 속도를 나눔
+            BandwidthScheduler scheduler = fileSharer.getBandwidthScheduler();
+            BandwidthScheduler.Flow flow = null;
+            OutputStream out = exchange.getResponseBody();
+            if(scheduler.isEnabled()){
+                long expected = ranges == null ? file.size : ranges.stream().mapToLong(ByteRange::length).sum();
+                flow = scheduler.open(clientAddress(exchange), code, expected, scheduler.weight("http"));
+                out = new PacedOutputStream(out, flow);
+            }
+            CountingOutputStream body = new CountingOutputStream(out);
+            try{
+                streamFromDisk(exchange, body, file, ranges, lastModified, started);
+                if(exchange.getResponseCode() < 400){
+                    metrics.httpDownloadsCompleted.increment();
+                    TransferMetrics.recordThroughput(metrics.httpDownloadThroughput, body.getByteCount(), System.nanoTime() - started);
+                }
+                else if(exchange.getResponseCode() == 404 && counted){
+                    // 세션을 연 첫 파일을 못 보냄: 횟수와 세션을 되돌림
+                    fileSharer.refundDownload(code, sharedFile);
+                    fileSharer.closeBundleSession(code, session);
+                }
+            }
+            catch(IOException e){
+                metrics.httpDownloadsFailed.increment();
+                throw e;
+            }
+            finally{
+                metrics.httpBytesSent.add(body.getByteCount());
+                if(flow != null){
+                    flow.close();
+                }
+                fileSharer.release(sharedFile);
+            }
+        }
+
+        /*
+        이 노드에 없는 코드: ring에서 주인부터 차례로 물어보고 처음 가진 노드의 데이터를 중계
+        - 주인이 죽었거나 모르면 복제본을 가졌을 다음 노드로 넘어감
+        - 아무도 없으면 404, 연결조차 안 된 노드가 있었으면 502
+        - 단일 파일, 아카이브, 묶음 안 파일, manifest 모두 같은 경로로 중계
+        */
+        private void fetchFromCluster(HttpExchange exchange, String code, long started, String notFound) throws IOException{
+            if(exchange.getRequestHeaders().containsKey(CLUSTER_FORWARDED_HEADER)){
+                // 다른 노드가 중계하려고 보낸 요청: 한 번 더 넘기지 않음
+                sendText(exchange, 404, notFound);
+                return;
+            }
+            boolean unreachable = false;
+            for(ShareCluster.Node node : cluster.preferenceList(code)){
+                if(cluster.isSelf(node)){
+                    continue;
+                }
+                try{
+                    if(relayFromPeer(exchange, node, code, started)){
+                        return;
+                    }
+                }
+                catch(IOException e){
+                    // 헤더를 보내기 전 연결/헤더 단계 실패만 여기로 온다
+                    unreachable = true;
+                    System.err.println("Peer " + node.id + " unavailable for " + code + ": " + e.getMessage());
+                }
+            }
+            if(unreachable){
+                metrics.httpDownloadsFailed.increment();
+                sendText(exchange, 502, "Bad Gateway: The node holding code " + code + " is unavailable");
+                return;
+            }
+            sendText(exchange, 404, notFound);
+        }
+
+        /*
+        Range 요청을 다운로드 한 번으로 셀지: 보내는 구간이 첫 바이트나 파일 전체를 덮으면 센다
+        - bytes=1- 같은 이어받기 뒷부분만 세지 않음, 남은 첫 부분을 받으면 그때 셈
+        */
+        private boolean countsAsDownload(List<ByteRange> ranges, long size){
+            if(ranges == null){
+                return true;
+            }
+            long covered = 0;
+            for(ByteRange range : ranges){
+                if(range.start == 0){
+                    return true;
+                }
+                covered += range.length();
+            }
+            return covered >= size;
+        }
+
+        /*
+        Range / If-Range 해석
+        - Range 헤더가 없거나 If-Range 검증에 실패하면 null (전체 전송)
+        - 만족할 수 없는 범위면 IllegalArgumentException (416)
+        */
+        private List<ByteRange> requestedRanges(HttpExchange exchange, SharedFile sharedFile, long lastModified){
+            Headers requestHeaders = exchange.getRequestHeaders();
+            String range = requestHeaders.getFirst("Range");
+            if(range == null){
+                return null;
+            }
+            String ifRange = requestHeaders.getFirst("If-Range");
+            if(ifRange != null){
+                ifRange = ifRange.trim();
+                if(ifRange.startsWith("\"") || ifRange.startsWith("W/")){
+                    if(!ifRange.equals(etag(sharedFile, lastModified))){
+                        return null;
+                    }
+                }
+                else{
+                    try{
+                        long since = ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                        if(lastModified / 1000 != since / 1000){
+                            return null;
                         }
+                    }
+                    catch(DateTimeParseException e){
+                        return null;
+                    }
+                }
+            }
+            return ByteRange.parse(range.trim(), sharedFile.size);
+        }
 
+        /*
+        chunk 검증용 manifest (다운로드 횟수로 세지 않음)
+            {"algorithm":"sha256-merkle","size":..,"chunkSize":..,"sha256":"..","root":"..","chunks":["..",..]}
+        leaf = SHA-256(0x00 || chunk), node = SHA-256(0x01 || left || right), 짝 없는 노드는 그대로 올림
+        */
+        private void sendManifest(HttpExchange exchange, String code, long started) throws IOException{
+            SharedFile sharedFile = fileSharer.getSharedFile(code);
+            MerkleTree tree = sharedFile == null ? null : fileSharer.merkleTree(sharedFile);
+            if(tree == null){
+                if(sharedFile == null && fileSharer.hasShare(code)){
+                    sendText(exchange, 410, "Gone: Share has expired or reached its download limit");
+                }
+                else if(sharedFile == null){
+                    fetchFromCluster(exchange, code, started, "Not Found: No manifest for this share");
+                }
+                else{
+                    sendText(exchange, 404, "Not Found: No manifest for this share");
+                }
+                return;
+            }
+            StringBuilder json = new StringBuilder(128 + tree.getChunkCount() * 67);
+            json.append("{\"algorithm\":\"sha256-merkle\",\"size\":").append(tree.getSize())
+                    .append(",\"chunkSize\":").append(tree.getChunkSize())
+                    .append(",\"sha256\":\"").append(sharedFile.blobId)
+                    .append("\",\"root\":\"").append(tree.rootHex())
+                    .append("\",\"chunks\":[");
+            for(int i = 0; i < tree.getChunkCount(); i++){
+                if(i > 0){
+                    json.append(',');
+                }
+                json.append('"').append(tree.leafHex(i)).append('"');
+            }
+            json.append("]}");
+            exchange.getResponseHeaders().add("Cache-Control", "private, max-age=3600");
+            sendJson(exchange, 200, json.toString());
+        }
 
-                    
-            
+        /*
+        무결성 헤더: 원본 파일 기준 Merkle root, chunk 크기
+        Repr-Digest (RFC 9530)는 인코딩되지 않은 응답일 때만 (gzip이면 표현 자체가 달라짐)
+        */
+        private void addIntegrityHeaders(Headers headers, SharedFile sharedFile, boolean identity){
+            MerkleTree tree = fileSharer.merkleTree(sharedFile);
+            if(tree != null){
+                headers.add("X-Merkle-Root", tree.rootHex());
+                headers.add("X-Merkle-Chunk-Size", Integer.toString(tree.getChunkSize()));
+            }
+            if(identity && sharedFile.blobId != null){
+                headers.add("Repr-Digest", "sha-256=:" + Base64.getEncoder().encodeToString(HexFormat.of().parseHex(sharedFile.blobId)) + ":");
+            }
+        }
 
-                }catch(NumberFormatException e){
-                String response = "Bad Request: Invalid port number";
-                exchange.sendResponseHeaders(400, response.getBytes().length);
+        private String etag(SharedFile sharedFile, long lastModified){
+            return "\"" + Long.toHexString(sharedFile.size) + "-" + Long.toHexString(lastModified) + "\"";
+        }
+
+        /*
+        크기를 미리 알고 있으므로 Content-Length를 바로 보내고 첫 바이트부터 전송 시작
+        - 임시 파일, loopback 소켓 복사 없음
+        - Range 요청이면 206, 구간이 여러 개면 multipart/byteranges
+        - 모든 구간은 FileChannel 위치 지정 전송(transferTo)으로 읽음
+        */
+        private void streamFromDisk(HttpExchange exchange, OutputStream body, SharedFile sharedFile, List<ByteRange> ranges, long lastModified, long started) throws IOException{
+            Headers headers = exchange.getResponseHeaders();
+            FileChannel fileChannel;
+            try{
+                fileChannel = FileChannel.open(Paths.get(sharedFile.filePath), StandardOpenOption.READ);
+            }
+            catch(IOException e){
+                System.err.println("Shared file is not readable: "+ e.getMessage());
+                String response = "Not Found: Shared file is no longer available";
+                headers.add("Content-Type", "text/plain");
+                exchange.sendResponseHeaders(404, response.getBytes().length);
                 try(OutputStream os = exchange.getResponseBody()){
                     os.write(response.getBytes());
                 }
+                return;
             }
-           
 
+            try(FileChannel channel = fileChannel;
+                OutputStream os = body){
+                long size = channel.size();
+                headers.add("Content-Disposition", "attachment; filename=\"" + sharedFile.filename + "\"");
+                headers.add("Vary", "Accept-Encoding");
+                boolean gzip = ranges == null && wantsGzip(exchange, sharedFile, size);
+                addIntegrityHeaders(headers, sharedFile, !gzip);
+                if(gzip){
+                    streamCompressed(exchange, sharedFile, channel, os, lastModified, started);
+                    return;
+                }
+                // 자주 받는 공유는 메모리 캐시에서 전송 (같은 버퍼를 여러 reader가 공유)
+                ByteBuffer cached = fileSharer.cachedContent(sharedFile);
+                headers.add("Accept-Ranges", "bytes");
+                headers.add("ETag", etag(sharedFile, lastModified));
+                headers.add("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(lastModified), ZoneOffset.UTC)));
+                WritableByteChannel target = Channels.newChannel(os);
+
+                if(ranges == null){
+                    headers.add("Content-Type", "application/octet-stream");
+                    sendHeaders(exchange, 200, size == 0 ? -1 : size, started);
+                    transferRange(channel, cached, 0, size, target);
+                    return;
+                }
 
+                if(ranges.size() == 1){
+                    ByteRange range = ranges.get(0);
+                    headers.add("Content-Type", "application/octet-stream");
+                    headers.add("Content-Range", range.contentRange(size));
+                    sendHeaders(exchange, 206, range.length(), started);
+                    transferRange(channel, cached, range.start, range.length(), target);
+                    return;
+                }
 
-           
+                // 여러 구간: 각 파트 헤더를 미리 만들어 전체 길이를 계산
+                String boundary = UUID.randomUUID().toString().replace("-", "");
+                byte[][] partHeaders = new byte[ranges.size()][];
+                long contentLength = 0;
+                for(int i = 0; i < ranges.size(); i++){
+                    ByteRange range = ranges.get(i);
+                    partHeaders[i] = ("\r\n--" + boundary + "\r\n"
+                            + "Content-Type: " + sharedFile.contentType + "\r\n"
+                            + "Content-Range: " + range.contentRange(size) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+                    contentLength += partHeaders[i].length + range.length();
+                }
+                byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+                contentLength += closing.length;
+
+                headers.add("Content-Type", "multipart/byteranges; boundary=" + boundary);
+                sendHeaders(exchange, 206, contentLength, started);
+                for(int i = 0; i < ranges.size(); i++){
+                    os.write(partHeaders[i]);
+                    transferRange(channel, cached, ranges.get(i).start, ranges.get(i).length(), target);
+                }
+                os.write(closing);
+            }
+        }
 
+        /*
+        압축 전송 조건: 클라이언트가 gzip을 받고, Range 요청이 아니고, 저장된 content type이 압축할 만한 형식
+        */
+        private boolean wantsGzip(HttpExchange exchange, SharedFile sharedFile, long size){
+            return compressionEnabled
+                    && size >= Compression.MIN_COMPRESSIBLE_SIZE
+                    && Compression.acceptsGzip(exchange.getRequestHeaders().getFirst("Accept-Encoding"))
+                    && Compression.isCompressible(sharedFile.contentType, sharedFile.filename);
+        }
 
-            
+        /*
+        - 미리 압축해 둔 변형이 있으면 Content-Length와 함께 그대로 전송
+        - 없으면 실시간 gzip (chunked), 자주 받는 공유면 응답을 쓰면서 변형 캐시 파일도 같이 기록
+        */
+        private void streamCompressed(HttpExchange exchange, SharedFile sharedFile, FileChannel channel, OutputStream os, long lastModified, long started) throws IOException{
+            Headers headers = exchange.getResponseHeaders();
+            headers.add("Content-Type", "application/octet-stream");
+            headers.add("Content-Encoding", Compression.GZIP);
+            headers.add("ETag", "\"" + Long.toHexString(sharedFile.size) + "-" + Long.toHexString(lastModified) + "-gzip\"");
+
+            if(sharedFile.blobId != null){
+                try(FileChannel variant = FileChannel.open(blobStore.variantPath(sharedFile.blobId, Compression.GZIP), StandardOpenOption.READ)){
+                    long length = variant.size();
+                    sendHeaders(exchange, 200, length, started);
+                    transferRange(variant, 0, length, Channels.newChannel(os));
+                    return;
+                }
+                catch(NoSuchFileException e){
+                    // 아직 캐시 없음 -> 실시간 압축
+                }
+            }
 
-            // 브라우저에게 다운로드로 응답
+            BlobStore.VariantWriter cacheWriter = null;
+            if(sharedFile.blobId != null && sharedFile.getDownloads() >= compressionCacheAfter){
+                cacheWriter = blobStore.beginVariant(sharedFile.blobId, Compression.GZIP);
+            }
+            sendHeaders(exchange, 200, 0, started);
+            OutputStream out = cacheWriter == null ? os : new TeeOutputStream(os, cacheWriter.stream());
+            // 응답 중에 끊겨도 zlib 네이티브 메모리를 바로 돌려주도록 Deflater는 직접 만들고 끝낸다
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try{
+                Compression.GzipOutputStream gzip = new Compression.GzipOutputStream(out, deflater, 64 * 1024);
+                transferRange(channel, fileSharer.cachedContent(sharedFile), 0, channel.size(), Channels.newChannel(gzip));
+                gzip.finish();
+                gzip.flush();
+                if(cacheWriter != null){
+                    cacheWriter.commit();
+                    cacheWriter = null;
+                }
+            }
+            finally{
+                deflater.end();
+                if(cacheWriter != null){
+                    cacheWriter.abort();
+                }
+            }
+        }
 
-            // 임시 파일을 브라우저로 전송
+        /*
+        응답 헤더를 보내는 시점을 첫 바이트 시간(TTFB)으로 기록
+        */
+        private void sendHeaders(HttpExchange exchange, int status, long length, long started) throws IOException{
+            exchange.sendResponseHeaders(status, length);
+            metrics.httpFirstByteNanos.record(System.nanoTime() - started);
+        }
 
+        private void transferRange(FileChannel channel, ByteBuffer cached, long start, long length, WritableByteChannel target) throws IOException{
+            if(cached == null){
+                transferRange(channel, start, length, target);
+                return;
+            }
+            ByteBuffer slice = cached.duplicate();
+            slice.limit((int) (start + length));
+            slice.position((int) start);
+            while(slice.hasRemaining()){
+                target.write(slice);
+            }
+        }
 
-            // 끝나면 임시 파일 삭제
+        private void transferRange(FileChannel channel, long start, long length, WritableByteChannel target) throws IOException{
+            long position = start;
+            long end = start + length;
+            while(position < end){
+                long transferred = channel.transferTo(position, end - position, target);
+                if(transferred <= 0){
+                    throw new EOFException("Shared file truncated at " + position);
+                }
+                position += transferred;
+            }
+        }
+
+        /*
+        대역폭 흐름을 나눌 클라이언트 주소
+        - 다른 노드가 중계한 요청은 비밀이 맞을 때만 X-Cluster-Client를 믿음 (아니면 중계 노드 주소로 묶여 모든 중계가 한 클라이언트가 됨)
+        - 비밀 없이 보낸 X-Cluster-Client는 무시하므로 클라이언트가 주소를 꾸며 제한을 피할 수 없다
+        */
+        private String clientAddress(HttpExchange exchange){
+            Headers requestHeaders = exchange.getRequestHeaders();
+            String forwardedFor = requestHeaders.getFirst(CLUSTER_CLIENT_HEADER);
+            if(forwardedFor != null && requestHeaders.containsKey(CLUSTER_FORWARDED_HEADER) && cluster.isClustered()
+                    && cluster.acceptsSecret(requestHeaders.getFirst(FileSharer.CLUSTER_SECRET_HEADER))){
+                return forwardedFor;
+            }
+            return exchange.getRemoteAddress().getAddress().getHostAddress();
+        }
+
+        /*
+        다른 노드가 가진 파일: 그 노드에 같은 요청(경로, 쿼리, Range, If-Range, Accept-Encoding, X-Bundle-Session)을 보내고
+        받은 상태 코드, 헤더, 본문을 임시 파일 없이 그대로 중계
+        - X-Cluster-Forwarded 를 붙여 상대 노드가 다시 다른 노드로 넘기지 않게 함 (중계는 한 번만)
+        - 비밀과 함께 X-Cluster-Client를 보내 상대가 중계 노드가 아닌 원래 클라이언트 기준으로 속도를 나누게 함
+        - 길이를 알면 Content-Length로 보내므로 중간에 끊기면 클라이언트가 잘린 응답임을 알 수 있다
+        @return 상대가 코드를 모르면 false (아직 아무것도 보내지 않았으므로 다음 노드 시도 가능)
+        */
+        private boolean relayFromPeer(HttpExchange exchange, ShareCluster.Node node, String code, long started) throws IOException{
+            URI original = exchange.getRequestURI();
+            String query = original.getRawQuery();
+            HttpRequest.Builder request = HttpRequest.newBuilder(URI.create("http://" + node.host + ":" + node.httpPort
+                            + original.getRawPath() + (query == null ? "" : "?" + query)))
+                    .timeout(Duration.ofMillis(FileSharer.PEER_TIMEOUT_MILLIS))
+                    .header(CLUSTER_FORWARDED_HEADER, cluster.getSelfId())
+                    .header(CLUSTER_CLIENT_HEADER, clientAddress(exchange));
+            if(cluster.getSecret() != null){
+                request.header(FileSharer.CLUSTER_SECRET_HEADER, cluster.getSecret());
+            }
+            for(String name : RELAYED_REQUEST_HEADERS){
+                String value = exchange.getRequestHeaders().getFirst(name);
+                if(value != null){
+                    request.header(name, value);
+                }
+            }
+            HttpResponse<InputStream> response;
+            try{
+                response = fileSharer.clusterClient().send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+            }
+            catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while contacting " + node.id);
+            }
+            try(InputStream in = response.body()){
+                int status = response.statusCode();
+                if(status == 404 || status == 410){
+                    return false;
+                }
+                if(status >= 500){
+                    throw new IOException("HTTP " + status);
+                }
+                Headers headers = exchange.getResponseHeaders();
+                for(String name : RELAYED_RESPONSE_HEADERS){
+                    response.headers().firstValue(name).ifPresent(value -> headers.set(name, value));
+                }
+                long length = response.headers().firstValueAsLong("Content-Length").orElse(-1);
+                sendHeaders(exchange, status, length == 0 ? -1 : Math.max(length, 0), started);
+                try(OutputStream os = exchange.getResponseBody()){
+                    long relayed = IOUtils.copyLarge(in, os);
+                    metrics.httpBytesSent.add(relayed);
+                    if(length >= 0 && relayed != length){
+                        throw new EOFException("Peer closed after " + relayed + " of " + length + " bytes");
+                    }
+                }
+                catch(IOException e){
+                    // 이미 헤더를 보낸 뒤면 연결을 끊어 Content-Length보다 짧은 응답임을 알림
+                    metrics.httpDownloadsFailed.increment();
+                    System.err.println("Error downloading file from peer: "+ e.getMessage());
+                    exchange.close();
+                    return true;
+                }
+                if(status < 400){
+                    metrics.httpDownloadsCompleted.increment();
+                }
+                return true;
+            }
         }
     }
 
-}
\ No newline at end of file
+}
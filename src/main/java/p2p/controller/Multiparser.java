@@ -0,0 +1,356 @@
+package p2p.controller;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming multipart/form-data parser.
+ *
+ * 요청 바디를 고정 크기 버퍼로 조금씩 읽으면서 boundary를 찾고,
+ * 파트 본문은 그대로 대상 채널로 흘려보낸다. 힙 사용량은 버퍼 크기로 고정되고
+ * 파일 크기와 무관하다.
+ *
+ * <pre>
+ * ------WebKitFormBoundaryABC123
+ * Content-Disposition: form-data; name="file"; filename="hello.txt"
+ * Content-Type: text/plain
+ *
+ * Hello World!
+ * ------WebKitFormBoundaryABC123--
+ * </pre>
+ */
+public class Multiparser {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_HEADER_SIZE = 8 * 1024;
+
+    private final InputStream in;
+    private final byte[] delimiter;
+    private final int[] skipTable;
+    private final byte[] buffer;
+    private int pos;
+    private int limit;
+    private boolean eof;
+    private boolean started;
+    private boolean finished;
+    private boolean inBody;
+
+    public Multiparser(InputStream in, String boundary){
+        this(in, boundary, DEFAULT_BUFFER_SIZE);
+    }
+
+    public Multiparser(InputStream in, String boundary, int bufferSize){
+        this.in = in;
+        // 첫 boundary 앞에는 CRLF가 없으므로 버퍼에 미리 넣어 두고 모든 구분자를 "\r\n--boundary"로 통일
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        if(bufferSize < delimiter.length * 2 || bufferSize < MAX_HEADER_SIZE){
+            throw new IllegalArgumentException("Buffer size too small: " + bufferSize);
+        }
+        this.skipTable = buildSkipTable(delimiter);
+        this.buffer = new byte[bufferSize];
+        this.buffer[0] = '\r';
+        this.buffer[1] = '\n';
+        this.limit = 2;
+    }
+
+    /**
+     * Content-Type 헤더에서 boundary 값을 꺼낸다. 없으면 null.
+     */
+    public static String extractBoundary(String contentType){
+        if(contentType == null){
+            return null;
+        }
+        String boundary = headerParam(contentType, "boundary");
+        return boundary == null || boundary.isEmpty() ? null : boundary;
+    }
+
+    /**
+     * 첫 번째 파일 파트를 찾아 target이 열어 준 채널로 본문을 스트리밍한다.
+     * 파일 파트가 없으면 null.
+     */
+    public ParseResult parse(PartTarget target) throws IOException{
+        Part part;
+        while((part = nextPart()) != null){
+            if(part.isFile()){
+                WritableByteChannel channel = target.open(part);
+                long size = transferTo(channel);
+                return new ParseResult(part.filename, part.contentType, size);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 모든 파일 파트를 차례로 target이 열어 준 채널로 스트리밍한다 (한 번 읽기).
+     * 파일을 고르지 않은 빈 파일 입력(filename="", 0바이트)은 결과에서 빠진다.
+     *
+     * @param maxFiles 넘으면 IllegalArgumentException
+     */
+    public List<ParseResult> parseAll(PartTarget target, int maxFiles) throws IOException{
+        List<ParseResult> results = new ArrayList<>();
+        Part part;
+        while((part = nextPart()) != null){
+            if(!part.isFile()){
+                continue;
+            }
+            if(results.size() == maxFiles){
+                throw new IllegalArgumentException("Too many files, at most " + maxFiles);
+            }
+            WritableByteChannel channel = target.open(part);
+            long size = transferTo(channel);
+            if(size == 0 && part.filename.isEmpty()){
+                target.discard(part, channel);
+                continue;
+            }
+            results.add(new ParseResult(part.filename, part.contentType, size));
+        }
+        return results;
+    }
+
+    /**
+     * 다음 파트의 헤더를 읽는다. 이전 파트 본문이 남아 있으면 버린다.
+     * 종료 boundary에 도달하면 null.
+     */
+    public Part nextPart() throws IOException{
+        if(!started){
+            started = true;
+            drain(null); // preamble
+        }
+        if(inBody){
+            drain(null);
+        }
+        if(finished){
+            return null;
+        }
+
+        String name = null;
+        String filename = null;
+        String contentType = "application/octet-stream";
+        int headerBytes = 0;
+        while(true){
+            int lineEnd = indexOfCrlf(pos, limit);
+            if(lineEnd == -1){
+                if(limit - pos >= MAX_HEADER_SIZE){
+                    throw new IOException("Multipart header too large");
+                }
+                if(!fill()){
+                    throw new IOException("Unexpected end of multipart headers");
+                }
+                continue;
+            }
+            String line = new String(buffer, pos, lineEnd - pos, StandardCharsets.UTF_8);
+            headerBytes += lineEnd + 2 - pos;
+            pos = lineEnd + 2;
+            if(headerBytes > MAX_HEADER_SIZE){
+                throw new IOException("Multipart header too large");
+            }
+            if(line.isEmpty()){
+                break;
+            }
+            int colon = line.indexOf(':');
+            if(colon == -1){
+                continue;
+            }
+            String headerName = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if(headerName.equalsIgnoreCase("Content-Disposition")){
+                name = headerParam(value, "name");
+                filename = headerParam(value, "filename");
+            }
+            else if(headerName.equalsIgnoreCase("Content-Type")){
+                contentType = value;
+            }
+        }
+        inBody = true;
+        return new Part(name, filename, contentType);
+    }
+
+    /**
+     * 현재 파트의 본문을 target으로 스트리밍하고 쓴 바이트 수를 돌려준다.
+     */
+    public long transferTo(WritableByteChannel target) throws IOException{
+        if(!inBody){
+            throw new IllegalStateException("No part is open");
+        }
+        return drain(target);
+    }
+
+    private long drain(WritableByteChannel target) throws IOException{
+        long total = 0;
+        while(true){
+            int idx = findSequence(buffer, pos, limit);
+            if(idx != -1){
+                total += write(target, pos, idx - pos);
+                pos = idx + delimiter.length;
+                inBody = false;
+                readDelimiterSuffix();
+                return total;
+            }
+            // 구분자가 버퍼 경계에 걸쳐 있을 수 있으므로 마지막 (len - 1) 바이트는 남긴다
+            int safe = limit - (delimiter.length - 1);
+            if(safe > pos){
+                total += write(target, pos, safe - pos);
+                pos = safe;
+            }
+            if(!fill()){
+                throw new IOException("Unexpected end of multipart stream");
+            }
+        }
+    }
+
+    private void readDelimiterSuffix() throws IOException{
+        ensure(2);
+        if(limit - pos >= 2 && buffer[pos] == '-' && buffer[pos + 1] == '-'){
+            pos += 2;
+            finished = true;
+            return;
+        }
+        // boundary 뒤 공백(transport padding)과 CRLF 건너뛰기
+        while(true){
+            int lineEnd = indexOfCrlf(pos, limit);
+            if(lineEnd != -1){
+                pos = lineEnd + 2;
+                return;
+            }
+            if(limit - pos >= MAX_HEADER_SIZE || !fill()){
+                throw new IOException("Malformed multipart boundary");
+            }
+        }
+    }
+
+    private long write(WritableByteChannel target, int off, int len) throws IOException{
+        if(target == null || len == 0){
+            return len;
+        }
+        ByteBuffer bb = ByteBuffer.wrap(buffer, off, len);
+        while(bb.hasRemaining()){
+            target.write(bb);
+        }
+        return len;
+    }
+
+    private void ensure(int n) throws IOException{
+        while(limit - pos < n && fill()){
+            // keep reading
+        }
+    }
+
+    /**
+     * 남은 데이터를 버퍼 앞으로 옮기고 스트림에서 더 읽는다. 읽은 게 없으면 false.
+     */
+    private boolean fill() throws IOException{
+        if(eof){
+            return false;
+        }
+        if(pos > 0){
+            System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        int read = in.read(buffer, limit, buffer.length - limit);
+        if(read == -1){
+            eof = true;
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+
+    private int indexOfCrlf(int from, int to){
+        for(int i = from; i < to - 1; i++){
+            if(buffer[i] == '\r' && buffer[i + 1] == '\n'){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Boyer-Moore-Horspool 검색. data[from, to) 범위에서 구분자의 시작 위치, 없으면 -1.
+     */
+    public int findSequence(byte[] data, int from, int to){
+        int last = delimiter.length - 1;
+        int i = from;
+        while(i <= to - delimiter.length){
+            int j = last;
+            while(data[i + j] == delimiter[j]){
+                if(j == 0){
+                    return i;
+                }
+                j--;
+            }
+            i += skipTable[data[i + last] & 0xff];
+        }
+        return -1;
+    }
+
+    private static int[] buildSkipTable(byte[] pattern){
+        int[] table = new int[256];
+        java.util.Arrays.fill(table, pattern.length);
+        for(int i = 0; i < pattern.length - 1; i++){
+            table[pattern[i] & 0xff] = pattern.length - 1 - i;
+        }
+        return table;
+    }
+
+    static String headerParam(String header, String key){
+        for(String token : header.split(";")){
+            String t = token.trim();
+            int eq = t.indexOf('=');
+            if(eq == -1 || !t.substring(0, eq).trim().equalsIgnoreCase(key)){
+                continue;
+            }
+            String value = t.substring(eq + 1).trim();
+            if(value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")){
+                value = value.substring(1, value.length() - 1);
+            }
+            return value;
+        }
+        return null;
+    }
+
+    @FunctionalInterface
+    public interface PartTarget {
+        WritableByteChannel open(Part part) throws IOException;
+
+        /**
+         * parseAll이 결과에서 뺀 파트의 채널 정리.
+         */
+        default void discard(Part part, WritableByteChannel channel) throws IOException{
+            channel.close();
+        }
+    }
+
+    public static class Part {
+        public final String name;
+        public final String filename;
+        public final String contentType;
+
+        public Part(String name, String filename, String contentType){
+            this.name = name;
+            this.filename = filename;
+            this.contentType = contentType;
+        }
+
+        public boolean isFile(){
+            return filename != null;
+        }
+    }
+
+    public static class ParseResult {
+        public final String filename;
+        public final String contentType;
+        public final long size;
+
+        public ParseResult(String filename, String contentType, long size) {
+            this.filename = filename;
+            this.contentType = contentType;
+            this.size = size;
+        }
+    }
+}
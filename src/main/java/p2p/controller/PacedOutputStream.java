@@ -0,0 +1,38 @@
+package p2p.controller;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import p2p.service.BandwidthScheduler;
+
+/**
+ * 응답 스트림에 대역폭 스케줄러를 거는 래퍼. 큰 write는 quantum 단위로 나눠
+ * 조각마다 토큰을 가져가고, 빚이 쌓이면 쓰는 HTTP 스레드가 그 자리에서 잠시 쉰다.
+ */
+class PacedOutputStream extends FilterOutputStream {
+    private final BandwidthScheduler.Flow flow;
+
+    PacedOutputStream(OutputStream out, BandwidthScheduler.Flow flow){
+        super(out);
+        this.flow = flow;
+    }
+
+    @Override
+    public void write(int b) throws IOException{
+        out.write(b);
+        flow.pace(1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException{
+        int quantum = flow.quantum();
+        while(len > 0){
+            int n = Math.min(len, quantum);
+            out.write(b, off, n);
+            flow.pace(n);
+            off += n;
+            len -= n;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import p2p.utils.TokenBucket;
+
+/**
+ * 다운로드 대역폭 스케줄러.
+ *
+ * - 전체 상한 (p2p.bandwidth.global), 클라이언트별 (p2p.bandwidth.perClient), 공유별 (p2p.bandwidth.perShare)
+ *   토큰 버킷, 단위 bytes/s, 0이면 제한 없음
+ * - 전송은 quantum 크기씩 쓰고 매번 버킷에서 토큰을 가져간다. 같은 버킷을 쓰는 전송들은 빚을 함께 지므로
+ *   quantum 단위로 돌아가며 같은 몫을 받는다 (fair queuing)
+ * - 전체 크기가 p2p.bandwidth.interactiveBytes 이하인 작은 다운로드는 전체/공유 버킷의 빚이 burst 하나를
+ *   넘을 때까지는 토큰만 가져가고 기다리지 않는다. 큰 전송이 그 빚을 대신 갚으므로 작은 요청은 빠르게 끝나고,
+ *   작은 요청만 몰려도 빚은 burst 하나 안에서 멈추므로 전체 상한을 계속 넘지는 않는다
+ * - 전송마다 weight가 있어 한 차례에 quantum x weight 바이트를 쓴다. 같은 빚을 기다리는 전송들이 차례로
+ *   쓰므로 weight 비율대로 대역폭을 나눠 받는다 (deficit round robin). weight는 전송 종류별로
+ *   p2p.bandwidth.weights (예: http=2,share=1,piece=1, 없으면 1, 최대 MAX_WEIGHT)
+ *
+ * 기다림은 쓰는 스레드 자신이 (HTTP는 요청 스레드 park, share 서버는 selector 타이머) 처리하므로
+ * chunk마다 다른 스레드로 넘기는 일이 없다.
+ */
+public class BandwidthScheduler {
+    public static final int DEFAULT_QUANTUM = 64 * 1024;
+    public static final long DEFAULT_INTERACTIVE_BYTES = 1024 * 1024;
+    public static final int MAX_WEIGHT = 64;
+    // 이보다 짧은 빚은 다음 write에서 같이 갚는다 (너무 잦은 park 방지)
+    private static final long MIN_PAUSE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final long perClientRate;
+    private final long perShareRate;
+    private final long interactiveBytes;
+    private final int quantum;
+    private final Map<String, Integer> weights;
+    private final TokenBucket global;
+    private final ConcurrentHashMap<String, SharedBucket> clients = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, SharedBucket> shares = new ConcurrentHashMap<>();
+    private final LongAdder throttledNanos = new LongAdder();
+
+    public BandwidthScheduler(long globalRate, long perClientRate, long perShareRate, long interactiveBytes, int quantum){
+        this(globalRate, perClientRate, perShareRate, interactiveBytes, quantum, Map.of());
+    }
+
+    public BandwidthScheduler(long globalRate, long perClientRate, long perShareRate, long interactiveBytes, int quantum,
+                              Map<String, Integer> weights){
+        this.perClientRate = perClientRate;
+        this.perShareRate = perShareRate;
+        this.interactiveBytes = interactiveBytes;
+        this.quantum = quantum;
+        this.weights = Map.copyOf(weights);
+        this.global = globalRate > 0 ? newBucket(globalRate) : null;
+    }
+
+    public static BandwidthScheduler fromSystemProperties(){
+        return new BandwidthScheduler(Long.getLong("p2p.bandwidth.global", 0),
+                Long.getLong("p2p.bandwidth.perClient", 0),
+                Long.getLong("p2p.bandwidth.perShare", 0),
+                Long.getLong("p2p.bandwidth.interactiveBytes", DEFAULT_INTERACTIVE_BYTES),
+                Integer.getInteger("p2p.bandwidth.quantum", DEFAULT_QUANTUM),
+                parseWeights(System.getProperty("p2p.bandwidth.weights", "")));
+    }
+
+    // "http=2,share=1" -> {http=2, share=1}
+    static Map<String, Integer> parseWeights(String spec){
+        Map<String, Integer> weights = new HashMap<>();
+        for(String pair : spec.split(",")){
+            if(pair.isBlank()){
+                continue;
+            }
+            int eq = pair.indexOf('=');
+            if(eq <= 0){
+                throw new IllegalArgumentException("Expected kind=weight: " + pair);
+            }
+            weights.put(pair.substring(0, eq).trim(), Integer.parseInt(pair.substring(eq + 1).trim()));
+        }
+        return weights;
+    }
+
+    /**
+     * 전송 종류(http, share, piece)의 weight, 설정이 없으면 1.
+     */
+    public int weight(String kind){
+        return Math.max(1, Math.min(MAX_WEIGHT, weights.getOrDefault(kind, 1)));
+    }
+
+    public boolean isEnabled(){
+        return global != null || perClientRate > 0 || perShareRate > 0;
+    }
+
+    // 순간 burst는 quantum 몇 개 또는 0.1초 분량
+    private TokenBucket newBucket(long rate){
+        return new TokenBucket(rate, Math.max(4L * quantum, rate / 10));
+    }
+
+    /**
+     * 전송 하나 시작. 끝나면 반드시 close().
+     *
+     * @param client        클라이언트 구분 키 (IP)
+     * @param share         공유 코드
+     * @param expectedBytes 보낼 바이트 수, 모르면 -1
+     */
+    public Flow open(String client, String share, long expectedBytes){
+        return open(client, share, expectedBytes, 1);
+    }
+
+    /**
+     * weight를 정해 전송 하나 시작. weight는 1..MAX_WEIGHT로 자른다.
+     */
+    public Flow open(String client, String share, long expectedBytes, int weight){
+        boolean interactive = expectedBytes >= 0 && expectedBytes <= interactiveBytes;
+        return new Flow(acquire(clients, client, perClientRate), acquire(shares, share, perShareRate), interactive,
+                Math.max(1, Math.min(MAX_WEIGHT, weight)));
+    }
+
+    private SharedBucket acquire(ConcurrentHashMap<String, SharedBucket> buckets, String key, long rate){
+        if(rate <= 0 || key == null){
+            return null;
+        }
+        return buckets.compute(key, (k, existing) -> {
+            SharedBucket bucket = existing != null ? existing : new SharedBucket(k, newBucket(rate));
+            bucket.users++;
+            return bucket;
+        });
+    }
+
+    private void release(ConcurrentHashMap<String, SharedBucket> buckets, SharedBucket bucket){
+        if(bucket != null){
+            buckets.computeIfPresent(bucket.key, (k, existing) -> --existing.users > 0 ? existing : null);
+        }
+    }
+
+    public long getThrottledNanos(){
+        return throttledNanos.sum();
+    }
+
+    public int getClientCount(){
+        return clients.size();
+    }
+
+    private static class SharedBucket {
+        final String key;
+        final TokenBucket bucket;
+        // compute() 안에서만 바뀜
+        int users;
+
+        SharedBucket(String key, TokenBucket bucket){
+            this.key = key;
+            this.bucket = bucket;
+        }
+    }
+
+    /**
+     * 전송 하나의 토큰 계정.
+     */
+    public class Flow implements AutoCloseable {
+        private final SharedBucket client;
+        private final SharedBucket share;
+        private final boolean interactive;
+        private final int weight;
+        private boolean closed;
+
+        Flow(SharedBucket client, SharedBucket share, boolean interactive, int weight){
+            this.client = client;
+            this.share = share;
+            this.interactive = interactive;
+            this.weight = weight;
+        }
+
+        /**
+         * 한 번에 쓸 최대 바이트 수 (quantum x weight).
+         */
+        public int quantum(){
+            return quantum * weight;
+        }
+
+        /**
+         * 방금 보낸 bytes만큼 토큰을 가져가고, 다음 write 전에 쉬어야 할 시간(ns)을 돌려준다.
+         */
+        public long take(long bytes){
+            long delay = 0;
+            // 작은 전송은 burst 하나 만큼의 빚까지는 기다리지 않음
+            if(global != null){
+                delay = global.take(bytes, interactive ? global.getBurst() : 0);
+            }
+            if(share != null){
+                delay = Math.max(delay, share.bucket.take(bytes, interactive ? share.bucket.getBurst() : 0));
+            }
+            if(client != null){
+                delay = Math.max(delay, client.bucket.take(bytes));
+            }
+            if(delay < MIN_PAUSE_NANOS){
+                return 0;
+            }
+            throttledNanos.add(delay);
+            return delay;
+        }
+
+        /**
+         * 블로킹 writer용: 토큰을 가져가고 필요한 만큼 현재 스레드를 재운다.
+         */
+        public void pace(long bytes) throws IOException{
+            long delay = take(bytes);
+            long deadline = System.nanoTime() + delay;
+            while(delay > 0){
+                LockSupport.parkNanos(delay);
+                if(Thread.interrupted()){
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while throttled");
+                }
+                delay = deadline - System.nanoTime();
+            }
+        }
+
+        @Override
+        public void close(){
+            if(closed){
+                return;
+            }
+            closed = true;
+            release(clients, client);
+            release(shares, share);
+        }
+    }
+}
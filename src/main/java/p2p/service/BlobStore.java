@@ -0,0 +1,644 @@
+package p2p.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.CRC32;
+import p2p.utils.Compression;
+import p2p.utils.LongIntTable;
+import p2p.utils.MerkleTree;
+
+/**
+ * 내용 해시(SHA-256)로 주소를 매기는 파일 저장소.
+ *
+ * 같은 바이트를 여러 번 올려도 디스크에는 blob 하나만 남고, 공유마다 참조 수를 센다.
+ * 마지막 공유가 정리되면 blob 파일을 지운다.
+ * <pre>
+ * p2p-uploads/blobs/ab/ab12...ef       (blob)
+ * p2p-uploads/blobs/ab/ab12...ef.gzip  (미리 압축해 둔 변형, blob과 같이 지워짐)
+ * p2p-uploads/blobs/ab/ab12...ef.merkle (chunk 해시 트리, 업로드 중에 계산)
+ * p2p-uploads/blobs/tmp/...            (업로드 중인 임시 파일)
+ * </pre>
+ */
+public class BlobStore {
+
+    private final Path root;
+    private final String rootString;
+    private final Path tmpDir;
+    private final int merkleChunkSize;
+    private final Map<String, Blob> blobs = new ConcurrentHashMap<>();
+    // 재시작 복원에서 아직 디코딩하지 않은 공유들의 참조: blob id 앞 8바이트 -> 참조 수.
+    // 0이 될 때까지는 blobs에 없어도 파일을 지우지 않는다
+    private volatile LongIntTable deferred;
+    private final Set<String> buildingVariants = ConcurrentHashMap.newKeySet();
+    // blob id 단위 디스크 작업 차례: 새 blob 옮기기, 마지막 참조 삭제, 고아 정리, 변형 저장이 겹치지 않게.
+    // 파일 I/O는 blobs의 compute 밖에서 하고 결과만 compute로 반영한다 (같은 칸을 쓰는 다른 id가 I/O를 기다리지 않게)
+    private final Map<String, CountDownLatch> claims = new ConcurrentHashMap<>();
+
+    public BlobStore(String baseDir) throws IOException{
+        this(baseDir, MerkleTree.DEFAULT_CHUNK_SIZE);
+    }
+
+    public BlobStore(String baseDir, int merkleChunkSize) throws IOException{
+        this.merkleChunkSize = merkleChunkSize;
+        this.root = Paths.get(baseDir, "blobs");
+        this.rootString = root.toString() + File.separator;
+        this.tmpDir = root.resolve("tmp");
+        Files.createDirectories(tmpDir);
+    }
+
+    public boolean contains(String blobId){
+        return blobId != null && blobs.containsKey(normalize(blobId));
+    }
+
+    public Blob get(String blobId){
+        return blobId == null ? null : blobs.get(normalize(blobId));
+    }
+
+    // 클라이언트가 보낸 해시는 대문자일 수 있음, 저장소의 id는 소문자 hex
+    private static String normalize(String blobId){
+        return blobId.trim().toLowerCase();
+    }
+
+    public int getBlobCount(){
+        return blobs.size();
+    }
+
+    /**
+     * 스트리밍하면서 해시를 같이 계산하는 writer. commit() 또는 abort()로 끝내야 한다.
+     */
+    public Writer newWriter() throws IOException{
+        Path tmp = tmpDir.resolve(UUID.randomUUID() + ".tmp");
+        return new Writer(FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), tmp, null,
+                MerkleTree.builder(merkleChunkSize));
+    }
+
+    /**
+     * 클라이언트가 미리 알려 준 해시의 blob이 이미 있으면 디스크에 쓰지 않고 해시만 계산하는 writer.
+     * 없으면 일반 writer. 어느 쪽이든 commit 때 실제 해시와 비교한다.
+     */
+    public Writer newWriter(String expectedBlobId) throws IOException{
+        if(expectedBlobId == null){
+            return newWriter();
+        }
+        String expected = normalize(expectedBlobId);
+        if(contains(expected)){
+            // 기존 blob에 이미 트리가 있으므로 chunk 해시는 계산하지 않음
+            return new Writer(null, null, expected, null);
+        }
+        Path tmp = tmpDir.resolve(UUID.randomUUID() + ".tmp");
+        return new Writer(FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), tmp, expected,
+                MerkleTree.builder(merkleChunkSize));
+    }
+
+    /**
+     * 업로드를 확정하고 참조를 하나 잡은 blob을 돌려준다.
+     * 같은 내용이 이미 있으면 임시 파일은 버리고 기존 blob을 쓴다.
+     */
+    public Blob commit(Writer writer) throws IOException{
+        writer.close();
+        String blobId = HexFormat.of().formatHex(writer.digest.digest());
+        if(writer.expectedBlobId != null && !writer.expectedBlobId.equals(blobId)){
+            throw new IllegalArgumentException("Content hash mismatch: expected " + writer.expectedBlobId);
+        }
+        return retainOrAdopt(blobId, writer.tmpPath, writer.size, writer.merkle);
+    }
+
+    /**
+     * 이미 디스크에 조립된 파일(나눠 올리기)을 해시 계산 후 저장소로 옮긴다.
+     * 전체 해시와 chunk 트리는 같은 한 번의 읽기로 계산한다.
+     */
+    public Blob adopt(Path file) throws IOException{
+        MessageDigest digest = sha256();
+        MerkleTree.Builder merkle = MerkleTree.builder(merkleChunkSize);
+        long size = 0;
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+            ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+            while(channel.read(buffer) != -1){
+                buffer.flip();
+                size += buffer.remaining();
+                ByteBuffer view = buffer.duplicate();
+                digest.update(buffer);
+                merkle.update(view);
+                buffer.clear();
+            }
+        }
+        return retainOrAdopt(HexFormat.of().formatHex(digest.digest()), file, size, merkle);
+    }
+
+    private Blob retainOrAdopt(String blobId, Path source, long size, MerkleTree.Builder merkle) throws IOException{
+        Blob existing = retain(blobId);
+        if(existing != null){
+            discardDuplicate(source);
+            return existing;
+        }
+        if(source == null){
+            throw new IOException("Blob disappeared during upload: " + blobId);
+        }
+        CountDownLatch claim = claim(blobId);
+        try{
+            // 차례를 기다리는 동안 같은 내용이 먼저 올라왔을 수 있음
+            existing = retain(blobId);
+            if(existing != null){
+                discardDuplicate(source);
+                return existing;
+            }
+            Path target = blobPath(blobId);
+            Files.createDirectories(target.getParent());
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            MerkleTree tree = merkle != null ? merkle.build() : null;
+            if(tree != null){
+                writeMerkle(blobId, tree);
+            }
+            Blob created = new Blob(blobId, root, target, size, tree);
+            created.refs = 1;
+            return blobs.merge(blobId, created, (current, mine) -> {
+                current.refs++;
+                return current;
+            });
+        }
+        finally{
+            unclaim(blobId, claim);
+        }
+    }
+
+    // 이미 있는 내용으로 확인된 업로드의 임시 파일, 못 지우면 다음 시작의 collectOrphans가 정리
+    private void discardDuplicate(Path source){
+        if(source == null){
+            return;
+        }
+        try{
+            Files.deleteIfExists(source);
+        }
+        catch(IOException e){
+            System.out.println("Error deleting duplicate upload " + source + ": " + e.getMessage());
+        }
+    }
+
+    private CountDownLatch claim(String blobId){
+        CountDownLatch mine = new CountDownLatch(1);
+        boolean interrupted = false;
+        CountDownLatch held;
+        while((held = claims.putIfAbsent(blobId, mine)) != null){
+            try{
+                held.await();
+            }
+            catch(InterruptedException e){
+                interrupted = true;
+            }
+        }
+        if(interrupted){
+            Thread.currentThread().interrupt();
+        }
+        return mine;
+    }
+
+    private void unclaim(String blobId, CountDownLatch claim){
+        claims.remove(blobId, claim);
+        claim.countDown();
+    }
+
+    /**
+     * 재시작 복원: 색인에 남아 있던 공유 하나가 blob을 참조한다.
+     * 시작을 빠르게 하려고 파일 존재 확인, 트리 읽기는 하지 않는다 (트리는 처음 쓸 때 sidecar에서 읽음).
+     */
+    public Blob restore(String blobId, long size){
+        return blobs.compute(blobId, (id, existing) -> {
+            if(existing != null){
+                existing.refs++;
+                return existing;
+            }
+            Blob restored = new Blob(id, root, null, size, null);
+            restored.refs = 1;
+            return restored;
+        });
+    }
+
+    /**
+     * 재시작 복원: 아직 디코딩하지 않은 공유가 blob을 참조한다 (Blob 객체는 만들지 않음).
+     * 색인을 여는 스레드만, 다른 스레드가 저장소를 쓰기 전에 부른다.
+     * 공유를 디코딩할 때 completeRestore로 넘긴다.
+     *
+     * @param idPrefix blob id 앞 8바이트 (big-endian)
+     */
+    public void deferRestore(long idPrefix, int expected){
+        LongIntTable table = deferred;
+        if(table == null){
+            table = new LongIntTable(expected);
+            deferred = table;
+        }
+        table.add(deferredKey(idPrefix), 1);
+    }
+
+    /**
+     * deferRestore로 미뤄 둔 참조 하나를 실제 참조로 바꾼다.
+     */
+    public Blob completeRestore(String blobId, long size){
+        Blob blob = restore(blobId, size);
+        LongIntTable table = deferred;
+        if(table != null){
+            table.addIfPresent(deferredKey(idPrefix(blobId)), -1);
+        }
+        return blob;
+    }
+
+    // 디코딩하지 않은 공유가 아직 참조하는 blob인지 (앞 8바이트만 비교하므로 드물게 더 오래 남을 수 있음)
+    private boolean isDeferred(String blobId){
+        LongIntTable table = deferred;
+        if(table == null || blobId.length() < 16){
+            return false;
+        }
+        try{
+            return table.get(deferredKey(idPrefix(blobId))) > 0;
+        }
+        catch(NumberFormatException e){
+            // blob이 아닌 파일
+            return false;
+        }
+    }
+
+    static long idPrefix(String blobId){
+        return Long.parseUnsignedLong(blobId.substring(0, 16), 16);
+    }
+
+    // 0은 LongIntTable의 빈 칸
+    private static long deferredKey(long idPrefix){
+        return idPrefix == 0 ? 1 : idPrefix;
+    }
+
+    /**
+     * 어떤 blob도 가리키지 않는 파일 정리 (재시작 전에 지우다 만 blob, sidecar, 업로드 임시 파일).
+     * startedBefore 이후에 바뀐 파일은 지금 올라오는 중일 수 있으므로 건드리지 않는다.
+     *
+     * @return 지운 파일 수
+     */
+    public int collectOrphans(long startedBefore) throws IOException{
+        int removed = 0;
+        try(DirectoryStream<Path> dirs = Files.newDirectoryStream(root)){
+            for(Path dir : dirs){
+                if(!Files.isDirectory(dir)){
+                    continue;
+                }
+                boolean tmp = dir.equals(tmpDir);
+                try(DirectoryStream<Path> files = Files.newDirectoryStream(dir)){
+                    for(Path file : files){
+                        if(Files.getLastModifiedTime(file).toMillis() >= startedBefore){
+                            continue;
+                        }
+                        if(tmp){
+                            removed += Files.deleteIfExists(file) ? 1 : 0;
+                            continue;
+                        }
+                        String name = file.getFileName().toString();
+                        int dot = name.indexOf('.');
+                        String id = dot < 0 ? name : name.substring(0, dot);
+                        // 검사와 삭제 사이에 같은 내용이 다시 올라온 경우를 막기 위해 blob 차례를 잡고 지움
+                        CountDownLatch claim = claim(id);
+                        try{
+                            if(!blobs.containsKey(id) && !isDeferred(id) && Files.deleteIfExists(file)){
+                                removed++;
+                            }
+                        }
+                        catch(IOException e){
+                            System.out.println("Error deleting orphan " + file + ": " + e.getMessage());
+                        }
+                        finally{
+                            unclaim(id, claim);
+                        }
+                    }
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * 공유 하나가 blob을 추가로 참조한다. blob이 없으면 null.
+     */
+    public Blob retain(String blobId){
+        return blobs.computeIfPresent(blobId, (id, blob) -> {
+            blob.refs++;
+            return blob;
+        });
+    }
+
+    /**
+     * 참조 하나를 놓는다. 아무도 참조하지 않으면 blob 파일을 지운다.
+     */
+    public void release(String blobId){
+        boolean[] unreferenced = new boolean[1];
+        blobs.computeIfPresent(blobId, (id, blob) -> {
+            if(--blob.refs > 0){
+                return blob;
+            }
+            unreferenced[0] = true;
+            return null;
+        });
+        if(!unreferenced[0]){
+            return;
+        }
+        CountDownLatch claim = claim(blobId);
+        try{
+            // 목록에서 뺀 뒤 차례를 잡기 전에 같은 내용이 다시 올라왔으면 파일은 새 blob 것
+            if(blobs.containsKey(blobId) || isDeferred(blobId)){
+                return;
+            }
+            Files.deleteIfExists(blobPath(blobId));
+            Files.deleteIfExists(variantPath(blobId, Compression.GZIP));
+            Files.deleteIfExists(merklePath(blobId));
+        }
+        catch(IOException e){
+            System.out.println("Error deleting blob " + blobId + ": " + e.getMessage());
+        }
+        finally{
+            unclaim(blobId, claim);
+        }
+    }
+
+    /**
+     * blob을 encoding으로 미리 압축해 둔 파일 경로 (없을 수도 있음).
+     */
+    public Path variantPath(String blobId, String encoding){
+        return blobPath(blobId).resolveSibling(blobId + "." + encoding);
+    }
+
+    /**
+     * 압축 변형 캐시 파일 쓰기 시작. 같은 변형을 이미 누가 만들고 있으면 null.
+     */
+    public VariantWriter beginVariant(String blobId, String encoding) throws IOException{
+        String key = blobId + "." + encoding;
+        if(!buildingVariants.add(key)){
+            return null;
+        }
+        Path tmp = tmpDir.resolve(UUID.randomUUID() + "." + encoding + ".tmp");
+        try{
+            return new VariantWriter(key, blobId, variantPath(blobId, encoding), tmp, Files.newOutputStream(tmp));
+        }
+        catch(IOException e){
+            buildingVariants.remove(key);
+            throw e;
+        }
+    }
+
+    // sidecar를 못 써도 메모리의 트리로 계속 서비스
+    private void writeMerkle(String blobId, MerkleTree tree){
+        try{
+            tree.writeTo(merklePath(blobId));
+        }
+        catch(IOException e){
+            System.out.println("Error writing merkle tree for " + blobId + ": " + e.getMessage());
+        }
+    }
+
+    private Path merklePath(String blobId){
+        return blobPath(blobId).resolveSibling(blobId + ".merkle");
+    }
+
+    /**
+     * blob 파일 위치 문자열 (있는지는 확인하지 않음). 재시작 복원처럼 공유가 아주 많을 때 Path를 만들지 않으려고.
+     */
+    public String blobPathString(String blobId){
+        return rootString + blobId.substring(0, 2) + File.separator + blobId;
+    }
+
+    private Path blobPath(String blobId){
+        return root.resolve(blobId.substring(0, 2)).resolve(blobId);
+    }
+
+    private static MessageDigest sha256(){
+        try{
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch(NoSuchAlgorithmException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static class Blob {
+        public final String id;
+        public final long size;
+        private final Path root;
+        // 복원한 blob은 처음 쓸 때 만듦 (공유가 많을 때 시작 시간, 메모리 절약)
+        private volatile Path path;
+        // chunk 해시 트리 (다운로드 검증용 manifest), 재시작으로 복원한 blob은 처음 쓸 때 sidecar에서 읽음
+        private volatile MerkleTree merkle;
+        private volatile boolean merkleLoaded;
+        // compute() 안에서만 바뀜
+        private volatile int refs;
+
+        Blob(String id, Path root, Path path, long size, MerkleTree merkle){
+            this.id = id;
+            this.root = root;
+            this.path = path;
+            this.size = size;
+            this.merkle = merkle;
+            this.merkleLoaded = merkle != null;
+        }
+
+        public Path getPath(){
+            Path resolved = path;
+            if(resolved == null){
+                resolved = root.resolve(id.substring(0, 2)).resolve(id);
+                path = resolved;
+            }
+            return resolved;
+        }
+
+        /**
+         * chunk 해시 트리, sidecar가 없거나 읽을 수 없으면 null.
+         */
+        public MerkleTree getMerkle(){
+            if(!merkleLoaded){
+                synchronized(this){
+                    if(!merkleLoaded){
+                        try{
+                            merkle = MerkleTree.readFrom(getPath().resolveSibling(id + ".merkle"));
+                        }
+                        catch(IOException e){
+                            System.out.println("Merkle tree for blob " + id + " unavailable: " + e.getMessage());
+                        }
+                        merkleLoaded = true;
+                    }
+                }
+            }
+            return merkle;
+        }
+
+        public int getRefs(){
+            return refs;
+        }
+    }
+
+    /**
+     * 다운로드 응답과 같이 흘려 쓰는 압축 변형 캐시 파일. 끝까지 쓴 경우에만 commit.
+     */
+    public class VariantWriter {
+        private final String key;
+        private final String blobId;
+        private final Path target;
+        private final Path tmpPath;
+        private final OutputStream stream;
+
+        VariantWriter(String key, String blobId, Path target, Path tmpPath, OutputStream stream){
+            this.key = key;
+            this.blobId = blobId;
+            this.target = target;
+            this.tmpPath = tmpPath;
+            this.stream = stream;
+        }
+
+        public OutputStream stream(){
+            return stream;
+        }
+
+        public void commit(){
+            try{
+                stream.close();
+                // 쓰는 동안 blob이 정리되었으면 변형도 버린다
+                CountDownLatch claim = claim(blobId);
+                try{
+                    if(blobs.containsKey(blobId)){
+                        Files.move(tmpPath, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+                catch(IOException e){
+                    System.out.println("Error caching variant " + key + ": " + e.getMessage());
+                }
+                finally{
+                    unclaim(blobId, claim);
+                }
+                Files.deleteIfExists(tmpPath);
+            }
+            catch(IOException e){
+                System.out.println("Error caching variant " + key + ": " + e.getMessage());
+            }
+            finally{
+                buildingVariants.remove(key);
+            }
+        }
+
+        public void abort(){
+            try{
+                stream.close();
+                Files.deleteIfExists(tmpPath);
+            }
+            catch(IOException e){
+                System.out.println("Error discarding variant " + key + ": " + e.getMessage());
+            }
+            finally{
+                buildingVariants.remove(key);
+            }
+        }
+    }
+
+    /**
+     * 임시 파일에 쓰면서 SHA-256을 계산하는 채널. 중복으로 확인된 업로드는 파일 없이 해시만 계산.
+     * 여러 파일 공유를 zip으로 내려줄 때 필요한 CRC-32도 같이 계산한다.
+     */
+    public static class Writer implements WritableByteChannel {
+        private final FileChannel channel;
+        private final Path tmpPath;
+        private final String expectedBlobId;
+        private final MessageDigest digest = sha256();
+        private final CRC32 crc = new CRC32();
+        private final MerkleTree.Builder merkle;
+        private long size;
+        private long writeNanos;
+        private boolean open = true;
+
+        Writer(FileChannel channel, Path tmpPath, String expectedBlobId, MerkleTree.Builder merkle){
+            this.channel = channel;
+            this.tmpPath = tmpPath;
+            this.expectedBlobId = expectedBlobId;
+            this.merkle = merkle;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException{
+            ByteBuffer view = src.duplicate();
+            int written;
+            if(channel != null){
+                long started = System.nanoTime();
+                written = channel.write(src);
+                writeNanos += System.nanoTime() - started;
+                view.limit(view.position() + written);
+            }
+            else{
+                written = src.remaining();
+                src.position(src.limit());
+            }
+            // 같은 바이트로 전체 해시와 chunk 해시를 같이 계산 (추가 읽기 없음)
+            if(merkle != null){
+                merkle.update(view.duplicate());
+            }
+            crc.update(view.duplicate());
+            digest.update(view);
+            size += written;
+            return written;
+        }
+
+        public long size(){
+            return size;
+        }
+
+        public long crc32(){
+            return crc.getValue();
+        }
+
+        /**
+         * 디스크 쓰기에 걸린 시간 합계 (해시 계산 제외).
+         */
+        public long writeNanos(){
+            return writeNanos;
+        }
+
+        public boolean isDuplicate(){
+            return channel == null;
+        }
+
+        @Override
+        public boolean isOpen(){
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException{
+            open = false;
+            if(channel != null){
+                channel.close();
+            }
+        }
+
+        /**
+         * 실패한 업로드의 임시 파일 정리.
+         */
+        public void abort(){
+            try{
+                close();
+                if(tmpPath != null){
+                    Files.deleteIfExists(tmpPath);
+                }
+            }
+            catch(IOException e){
+                System.out.println("Error discarding partial upload: " + e.getMessage());
+            }
+        }
+    }
+}
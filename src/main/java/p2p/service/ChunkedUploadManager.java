@@ -0,0 +1,312 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 여러 요청으로 나눠 올리는 업로드 세션 관리.
+ *
+ * initiate -> 번호 붙은 chunk를 순서 상관없이 동시에 PUT -> commit.
+ * 파일은 처음에 전체 크기로 잡아 두고, 각 chunk는 자기 offset에 위치 지정 쓰기로 기록한다.
+ * commit 시 완성된 파일을 BlobStore로 옮기며, 이미 같은 내용이 있으면 기존 blob을 공유한다.
+ */
+public class ChunkedUploadManager {
+    public static final int MIN_CHUNK_SIZE = 64 * 1024;
+    public static final int MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+    public static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60 * 60 * 1000;
+
+    private final FileSharer fileSharer;
+    private final BlobStore blobStore;
+    private final String uploadDir;
+    private final long idleTimeoutMillis;
+    private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+
+    public ChunkedUploadManager(FileSharer fileSharer, BlobStore blobStore, String uploadDir){
+        this(fileSharer, blobStore, uploadDir, DEFAULT_IDLE_TIMEOUT_MILLIS);
+    }
+
+    public ChunkedUploadManager(FileSharer fileSharer, BlobStore blobStore, String uploadDir, long idleTimeoutMillis){
+        this.fileSharer = fileSharer;
+        this.blobStore = blobStore;
+        this.uploadDir = uploadDir;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    public UploadSession initiate(String filename, String contentType, long size, int chunkSize, long expiresAt, int maxDownloads) throws IOException{
+        if(size <= 0){
+            throw new IllegalArgumentException("size must be positive");
+        }
+        if(chunkSize < MIN_CHUNK_SIZE || chunkSize > MAX_CHUNK_SIZE){
+            throw new IllegalArgumentException("chunkSize must be between " + MIN_CHUNK_SIZE + " and " + MAX_CHUNK_SIZE);
+        }
+        long chunks = (size + chunkSize - 1) / chunkSize;
+        if(chunks > Integer.MAX_VALUE){
+            throw new IllegalArgumentException("Too many chunks");
+        }
+        expireIdle();
+
+        String uploadId = UUID.randomUUID().toString();
+        Path partPath = Paths.get(uploadDir, uploadId + "_" + filename + ".part");
+        // 전체 크기로 미리 잡아 두기 (sparse)
+        try(RandomAccessFile raf = new RandomAccessFile(partPath.toFile(), "rw")){
+            raf.setLength(size);
+        }
+        FileChannel channel = FileChannel.open(partPath, StandardOpenOption.WRITE);
+        UploadSession session = new UploadSession(uploadId, filename, contentType, size, chunkSize, (int) chunks,
+                expiresAt, maxDownloads, partPath, channel);
+        sessions.put(uploadId, session);
+        return session;
+    }
+
+    public UploadSession getSession(String uploadId){
+        return sessions.get(uploadId);
+    }
+
+    /**
+     * chunk 하나를 offset 위치에 기록한다. 같은 chunk를 다시 보내면 덮어쓴다.
+     * 쓰는 동안은 받지 않은 chunk로 돌려 두고, 길이와 checksum이 맞아야 받은 것으로 표시한다
+     * (짧거나 깨진 재전송이 앞서 받은 내용을 덮어썼는데도 commit 되는 일이 없게).
+     * 같은 chunk를 동시에 두 요청이 쓰면 나중 요청은 IllegalStateException.
+     *
+     * @param expectedSha256 hex 문자열, null이면 검증 생략
+     * @return 받은 chunk의 SHA-256 (hex)
+     */
+    public String writeChunk(String uploadId, int index, InputStream body, String expectedSha256) throws IOException{
+        UploadSession session = requireSession(uploadId);
+        if(index < 0 || index >= session.chunks){
+            throw new IllegalArgumentException("Chunk index out of range: " + index);
+        }
+        long offset = (long) index * session.chunkSize;
+        long expectedLength = Math.min(session.chunkSize, session.size - offset);
+
+        session.beginWrite(index);
+        boolean verified = false;
+        try{
+            MessageDigest digest = sha256();
+            byte[] buffer = new byte[64 * 1024];
+            long written = 0;
+            long writeNanos = 0;
+            int read;
+            while((read = body.read(buffer)) != -1){
+                if(written + read > expectedLength){
+                    throw new IllegalArgumentException("Chunk " + index + " is larger than " + expectedLength + " bytes");
+                }
+                digest.update(buffer, 0, read);
+                ByteBuffer bb = ByteBuffer.wrap(buffer, 0, read);
+                long position = offset + written;
+                long started = System.nanoTime();
+                while(bb.hasRemaining()){
+                    position += session.channel.write(bb, position);
+                }
+                writeNanos += System.nanoTime() - started;
+                written += read;
+            }
+            TransferMetrics metrics = fileSharer.getMetrics();
+            metrics.uploadDiskWriteNanos.record(writeNanos);
+            metrics.bytesReceived.add(written);
+            if(written != expectedLength){
+                throw new IllegalArgumentException("Chunk " + index + " has " + written + " bytes, expected " + expectedLength);
+            }
+            String actual = HexFormat.of().formatHex(digest.digest());
+            if(expectedSha256 != null && !expectedSha256.trim().equalsIgnoreCase(actual)){
+                throw new IllegalArgumentException("Checksum mismatch for chunk " + index);
+            }
+            verified = true;
+            return actual;
+        }
+        finally{
+            session.endWrite(index, verified);
+        }
+    }
+
+    /**
+     * 모든 chunk가 도착했으면 파일을 확정하고 공유 코드를 발급한다.
+     */
+    public String commit(String uploadId) throws IOException{
+        UploadSession session = requireSession(uploadId);
+        synchronized(session){
+            // 쓰는 중인 chunk는 받은 것으로 세지 않으므로, 다 받았으면 쓰는 요청도 없다
+            if(session.receivedCount() != session.chunks){
+                throw new IllegalStateException("Missing " + (session.chunks - session.receivedCount()) + " chunks");
+            }
+            if(!sessions.remove(uploadId, session)){
+                throw new IllegalStateException("Upload already finished: " + uploadId);
+            }
+            session.finished = true;
+        }
+        session.channel.force(false);
+        session.channel.close();
+        // chunk가 순서 없이 들어오므로 전체 해시는 commit 때 한 번 읽어서 계산
+        BlobStore.Blob blob;
+        try{
+            blob = blobStore.adopt(session.partPath);
+        }
+        catch(IOException e){
+            Files.deleteIfExists(session.partPath);
+            throw e;
+        }
+        return fileSharer.offerFile(SharedFile.fromBlob(blob, session.filename, session.contentType,
+                session.expiresAt, session.maxDownloads));
+    }
+
+    public boolean abort(String uploadId){
+        UploadSession session = sessions.remove(uploadId);
+        if(session == null){
+            return false;
+        }
+        discard(session);
+        return true;
+    }
+
+    /**
+     * 오래 방치된 세션 정리 (새 세션을 만들 때, 그리고 공유 sweeper가 주기마다 호출).
+     */
+    public int expireIdle(){
+        long cutoff = System.currentTimeMillis() - idleTimeoutMillis;
+        int removed = 0;
+        for(UploadSession session : sessions.values()){
+            if(session.lastActivity < cutoff && sessions.remove(session.uploadId, session)){
+                discard(session);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * 재시작 전에 끝나지 않은 세션이 남긴 .part 파일 정리 (세션은 메모리에만 있으므로 이어 올릴 수 없음).
+     * startedBefore 이후에 바뀐 파일은 지금 세션이 쓰는 중일 수 있으므로 건드리지 않는다.
+     *
+     * @return 지운 파일 수
+     */
+    public int collectOrphans(long startedBefore) throws IOException{
+        Set<Path> live = new HashSet<>();
+        sessions.values().forEach(session -> live.add(session.partPath));
+        int removed = 0;
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(uploadDir), "*.part")){
+            for(Path file : files){
+                if(!live.contains(file) && Files.getLastModifiedTime(file).toMillis() < startedBefore && Files.deleteIfExists(file)){
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    private void discard(UploadSession session){
+        synchronized(session){
+            session.finished = true;
+        }
+        try{
+            session.channel.close();
+            Files.deleteIfExists(session.partPath);
+        }
+        catch(IOException e){
+            System.out.println("Error discarding upload " + session.uploadId + ": " + e.getMessage());
+        }
+    }
+
+    private UploadSession requireSession(String uploadId){
+        UploadSession session = sessions.get(uploadId);
+        if(session == null){
+            throw new IllegalStateException("Unknown upload: " + uploadId);
+        }
+        session.lastActivity = System.currentTimeMillis();
+        return session;
+    }
+
+    private static MessageDigest sha256(){
+        try{
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch(NoSuchAlgorithmException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static class UploadSession {
+        public final String uploadId;
+        public final String filename;
+        public final String contentType;
+        public final long size;
+        public final int chunkSize;
+        public final int chunks;
+        public final long expiresAt;
+        public final int maxDownloads;
+
+        private final Path partPath;
+        private final FileChannel channel;
+        private final BitSet received;
+        private final BitSet writing;
+        // commit/abort 뒤에는 chunk를 더 쓰지 않음, session lock으로 보호
+        private boolean finished;
+        private volatile long lastActivity;
+
+        UploadSession(String uploadId, String filename, String contentType, long size, int chunkSize, int chunks,
+                      long expiresAt, int maxDownloads, Path partPath, FileChannel channel){
+            this.uploadId = uploadId;
+            this.filename = filename;
+            this.contentType = contentType;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.chunks = chunks;
+            this.expiresAt = expiresAt;
+            this.maxDownloads = maxDownloads;
+            this.partPath = partPath;
+            this.channel = channel;
+            this.received = new BitSet(chunks);
+            this.writing = new BitSet(chunks);
+            this.lastActivity = System.currentTimeMillis();
+        }
+
+        synchronized void beginWrite(int index){
+            if(finished){
+                throw new IllegalStateException("Upload already finished: " + uploadId);
+            }
+            if(writing.get(index)){
+                throw new IllegalStateException("Chunk " + index + " is already being written");
+            }
+            writing.set(index);
+            received.clear(index);
+        }
+
+        synchronized void endWrite(int index, boolean verified){
+            writing.clear(index);
+            if(verified){
+                received.set(index);
+            }
+        }
+
+        public synchronized int receivedCount(){
+            return received.cardinality();
+        }
+
+        /**
+         * 이어 올리기용: 아직 받지 못한 chunk 번호들.
+         */
+        public synchronized int[] missingChunks(){
+            BitSet missing = new BitSet(chunks);
+            missing.set(0, chunks);
+            missing.andNot(received);
+            return missing.stream().toArray();
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 자주 받는 공유 파일을 off-heap(direct) ByteBuffer에 올려 두는 캐시.
+ *
+ * - 전체 크기는 byte budget으로 제한, 넘치면 가장 오래 안 쓴 항목부터 내보냄 (LRU)
+ * - 한 번 받고 끝나는 파일이 캐시를 밀어내지 않도록 admitAfter 번 요청된 파일만 올림
+ * - 같은 파일을 받는 reader들은 같은 버퍼의 read-only duplicate를 공유 (디스크 I/O 없음)
+ * - 블록하면 안 되는 호출자(share 서버 selector)는 getIfLoaded로 hit만 받고, 올리기는 loader 스레드가 한다
+ *
+ * direct 메모리는 -XX:MaxDirectMemorySize (기본 = 최대 힙) 안에서 잡히므로 budget을 그보다 작게 둔다.
+ */
+public class ContentCache {
+    public static final long DEFAULT_BUDGET_BYTES = 256L * 1024 * 1024;
+    public static final long DEFAULT_MAX_ENTRY_BYTES = 64L * 1024 * 1024;
+    public static final int DEFAULT_ADMIT_AFTER = 2;
+    // 빈도 기록이 무한히 커지지 않도록
+    private static final int MAX_TRACKED_KEYS = 100_000;
+
+    private final long budgetBytes;
+    private final long maxEntryBytes;
+    private final int admitAfter;
+
+    // access-order LinkedHashMap, lock으로 보호
+    private final LinkedHashMap<String, ByteBuffer> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Integer> frequency = new ConcurrentHashMap<>();
+    private final Map<String, Object> loadLocks = new ConcurrentHashMap<>();
+    // 백그라운드 올리기. 한 번에 하나씩, 밀린 요청은 몇 개까지만 (넘치면 다음 요청 때 다시 시도)
+    private final ThreadPoolExecutor loader = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(64),
+            Thread.ofPlatform().daemon().name("cache-loader").factory());
+    private long usedBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+
+    public ContentCache(long budgetBytes, long maxEntryBytes, int admitAfter){
+        this.budgetBytes = budgetBytes;
+        this.maxEntryBytes = Math.min(maxEntryBytes, Math.min(budgetBytes, Integer.MAX_VALUE));
+        this.admitAfter = Math.max(1, admitAfter);
+        loader.allowCoreThreadTimeOut(true);
+    }
+
+    public static ContentCache fromSystemProperties(){
+        return new ContentCache(Long.getLong("p2p.cache.bytes", DEFAULT_BUDGET_BYTES),
+                Long.getLong("p2p.cache.maxEntryBytes", DEFAULT_MAX_ENTRY_BYTES),
+                Integer.getInteger("p2p.cache.admitAfter", DEFAULT_ADMIT_AFTER));
+    }
+
+    /**
+     * 캐시된 내용을 돌려준다. 없으면 요청 빈도를 기록하고, 충분히 자주 요청된 파일이면 이번에 올린다.
+     *
+     * @return 이 호출자 전용 read-only 버퍼 (position 0), 캐시하지 않으면 null
+     */
+    public ByteBuffer get(String key, Path path, long size){
+        ByteBuffer buffer = lookup(key);
+        if(buffer != null){
+            hits.increment();
+            return buffer;
+        }
+        misses.increment();
+        if(budgetBytes <= 0 || size <= 0 || size > maxEntryBytes || !admit(key)){
+            return null;
+        }
+        // 같은 파일을 동시에 여러 번 읽어 올리지 않도록 key별로 한 번만 로드
+        Object lock = loadLocks.computeIfAbsent(key, k -> new Object());
+        try{
+            return loadOnce(key, path, size, lock);
+        }
+        finally{
+            loadLocks.remove(key, lock);
+        }
+    }
+
+    /**
+     * get과 같지만 디스크를 읽거나 다른 로드를 기다리지 않는다. 캐시에 없으면 null을 돌려주고,
+     * 올릴 만한 파일이면 loader 스레드에 맡겨 다음 요청부터 hit가 되게 한다.
+     */
+    public ByteBuffer getIfLoaded(String key, Path path, long size){
+        ByteBuffer buffer = lookup(key);
+        if(buffer != null){
+            hits.increment();
+            return buffer;
+        }
+        misses.increment();
+        if(budgetBytes <= 0 || size <= 0 || size > maxEntryBytes || !admit(key)){
+            return null;
+        }
+        Object lock = new Object();
+        // 이미 누가 올리는 중이면 그쪽에 맡김
+        if(loadLocks.putIfAbsent(key, lock) != null){
+            return null;
+        }
+        try{
+            loader.execute(() -> {
+                try{
+                    loadOnce(key, path, size, lock);
+                }
+                finally{
+                    loadLocks.remove(key, lock);
+                }
+            });
+        }
+        catch(RejectedExecutionException e){
+            loadLocks.remove(key, lock);
+        }
+        return null;
+    }
+
+    private ByteBuffer loadOnce(String key, Path path, long size, Object lock){
+        synchronized(lock){
+            ByteBuffer buffer = lookup(key);
+            if(buffer != null){
+                return buffer;
+            }
+            ByteBuffer loaded = load(path, size);
+            if(loaded == null){
+                return null;
+            }
+            put(key, loaded);
+            return loaded.asReadOnlyBuffer();
+        }
+    }
+
+    private ByteBuffer lookup(String key){
+        synchronized(entries){
+            ByteBuffer buffer = entries.get(key);
+            return buffer == null ? null : buffer.asReadOnlyBuffer();
+        }
+    }
+
+    private boolean admit(String key){
+        if(frequency.size() > MAX_TRACKED_KEYS){
+            frequency.clear();
+        }
+        int count = frequency.merge(key, 1, Integer::sum);
+        return count >= admitAfter;
+    }
+
+    private ByteBuffer load(Path path, long size){
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)){
+            while(buffer.hasRemaining()){
+                if(channel.read(buffer, buffer.position()) == -1){
+                    return null;
+                }
+            }
+        }
+        catch(IOException | OutOfMemoryError e){
+            System.out.println("Error caching " + path.getFileName() + ": " + e.getMessage());
+            return null;
+        }
+        buffer.flip();
+        loads.increment();
+        return buffer;
+    }
+
+    private void put(String key, ByteBuffer buffer){
+        synchronized(entries){
+            ByteBuffer previous = entries.put(key, buffer);
+            if(previous != null){
+                usedBytes -= previous.capacity();
+            }
+            usedBytes += buffer.capacity();
+            Iterator<Map.Entry<String, ByteBuffer>> it = entries.entrySet().iterator();
+            while(usedBytes > budgetBytes && it.hasNext()){
+                Map.Entry<String, ByteBuffer> eldest = it.next();
+                if(eldest.getKey().equals(key)){
+                    continue;
+                }
+                // 읽는 중인 reader는 자기 duplicate를 계속 쓰고, 다 쓰면 GC가 정리
+                usedBytes -= eldest.getValue().capacity();
+                it.remove();
+                evictions.increment();
+            }
+        }
+        frequency.remove(key);
+    }
+
+    /**
+     * 공유가 정리되어 더 이상 필요 없는 항목 제거.
+     */
+    public void invalidate(String key){
+        synchronized(entries){
+            ByteBuffer removed = entries.remove(key);
+            if(removed != null){
+                usedBytes -= removed.capacity();
+            }
+        }
+        frequency.remove(key);
+    }
+
+    public long getHits(){
+        return hits.sum();
+    }
+
+    public long getMisses(){
+        return misses.sum();
+    }
+
+    public long getEvictions(){
+        return evictions.sum();
+    }
+
+    public long getLoads(){
+        return loads.sum();
+    }
+
+    public long getBudgetBytes(){
+        return budgetBytes;
+    }
+
+    public long getUsedBytes(){
+        synchronized(entries){
+            return usedBytes;
+        }
+    }
+
+    public int getEntryCount(){
+        synchronized(entries){
+            return entries.size();
+        }
+    }
+}
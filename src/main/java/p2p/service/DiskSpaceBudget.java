@@ -0,0 +1,152 @@
+package p2p.service;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * 업로드 디스크 예약.
+ *
+ * - 바디를 받기 전에 Content-Length만큼 자리를 잡는다. 동시에 들어온 업로드들이 같은 빈 공간을 두고
+ *   각자 "들어간다"고 판단한 뒤 중간에 디스크가 차서 실패하는 일을 막는다
+ * - 남은 공간 = 파일 시스템 usable space - 아직 쓰지 않은 예약 - 항상 남겨 둘 여유 (minFreeBytes)
+ * - 바디를 읽은 만큼 예약을 줄인다 (그만큼 usable space가 줄어드므로 두 번 세지 않음)
+ * - 길이를 모르거나 (chunked) 압축을 풀어 더 커지면 읽는 중에 조금씩 더 잡고, 못 잡으면 InsufficientSpaceException
+ */
+public class DiskSpaceBudget {
+    // 읽는 중에 모자라면 한 번에 이만큼씩 더 잡는다
+    static final long EXTEND_BYTES = 8L * 1024 * 1024;
+
+    private final LongSupplier usableSpace;
+    private final long minFreeBytes;
+    private final AtomicLong reserved = new AtomicLong();
+    private final LongAdder rejected = new LongAdder();
+
+    public DiskSpaceBudget(LongSupplier usableSpace, long minFreeBytes){
+        this.usableSpace = usableSpace;
+        this.minFreeBytes = minFreeBytes;
+    }
+
+    public static DiskSpaceBudget forDirectory(Path dir, long minFreeBytes){
+        return new DiskSpaceBudget(() -> dir.toFile().getUsableSpace(), minFreeBytes);
+    }
+
+    /**
+     * bytes만큼 예약한다. 자리가 없으면 null.
+     */
+    public Reservation reserve(long bytes){
+        if(!tryReserve(bytes)){
+            rejected.increment();
+            return null;
+        }
+        return new Reservation(bytes);
+    }
+
+    /**
+     * 지금 bytes가 들어갈 자리가 있는지만 본다 (나눠 올리기 세션 시작 때).
+     */
+    public boolean hasRoom(long bytes){
+        return available() >= bytes;
+    }
+
+    public long available(){
+        return Math.max(0, usableSpace.getAsLong() - reserved.get() - minFreeBytes);
+    }
+
+    private boolean tryReserve(long bytes){
+        long free = usableSpace.getAsLong() - minFreeBytes;
+        while(true){
+            long current = reserved.get();
+            if(free - current < bytes){
+                return false;
+            }
+            if(reserved.compareAndSet(current, current + bytes)){
+                return true;
+            }
+        }
+    }
+
+    public long getReservedBytes(){
+        return reserved.get();
+    }
+
+    public long getRejected(){
+        return rejected.sum();
+    }
+
+    /**
+     * 요청 하나의 예약. 한 요청을 처리하는 스레드만 쓰므로 남은 양은 잠금 없이 센다.
+     */
+    public final class Reservation implements AutoCloseable {
+        private long remaining;
+        private boolean closed;
+
+        private Reservation(long bytes){
+            this.remaining = bytes;
+        }
+
+        /**
+         * 읽은 바이트만큼 예약을 쓰는 스트림. 예약을 넘으면 더 잡고, 못 잡으면 읽기가 실패한다.
+         */
+        public InputStream meter(InputStream in){
+            return new FilterInputStream(in){
+                @Override
+                public int read() throws IOException{
+                    int b = super.read();
+                    if(b != -1){
+                        consume(1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException{
+                    int read = super.read(buffer, offset, length);
+                    if(read > 0){
+                        consume(read);
+                    }
+                    return read;
+                }
+            };
+        }
+
+        void consume(long bytes) throws InsufficientSpaceException{
+            if(bytes > remaining){
+                long extra = Math.max(bytes - remaining, EXTEND_BYTES);
+                if(closed || !tryReserve(extra)){
+                    rejected.increment();
+                    throw new InsufficientSpaceException("Not enough disk space for upload");
+                }
+                remaining += extra;
+            }
+            remaining -= bytes;
+            reserved.addAndGet(-bytes);
+        }
+
+        public long getRemaining(){
+            return remaining;
+        }
+
+        // 쓰지 않은 예약을 돌려준다, 여러 번 불러도 됨
+        @Override
+        public void close(){
+            if(!closed){
+                closed = true;
+                reserved.addAndGet(-remaining);
+                remaining = 0;
+            }
+        }
+    }
+
+    public static class InsufficientSpaceException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public InsufficientSpaceException(String message){
+            super(message);
+        }
+    }
+}
@@ -1,89 +1,677 @@
 package p2p.service;
 
-import java.util.HashMap;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import p2p.utils.UploadUtils;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import p2p.utils.MerkleTree;
+import p2p.utils.ShareCodeAllocator;
 
 public class FileSharer {
-    private HashMap<Integer, String> availableFiles;
+    public static final int DEFAULT_SHARE_PORT = 9090;
+    public static final long DEFAULT_SWEEP_INTERVAL_SECONDS = 60;
+    public static final int PEER_TIMEOUT_MILLIS = 5000;
+    public static final String CLUSTER_SECRET_HEADER = "X-Cluster-Secret";
+    // 공유 하나에 동시에 살아 있을 수 있는 묶음 세션 수
+    static final int MAX_BUNDLE_SESSIONS = Math.max(1, Integer.getInteger("p2p.bundle.maxSessions", 256));
+
+    // sweeper 스레드, share event loop, HTTP 스레드가 동시에 접근
+    private final ShareRegistry availableFiles;
+    private final int sharePort;
+    private final int shareThreads;
+    // startFileServer()에서 만듦 (생성 중인 this를 서버에 넘기지 않음)
+    private ShareServer shareServer;
+    private final BlobStore blobStore;
+    private final ContentCache contentCache;
+    private final TransferMetrics metrics = new TransferMetrics();
+    private final BandwidthScheduler bandwidthScheduler = BandwidthScheduler.fromSystemProperties();
+    private final ShareCluster cluster;
+    private final SwarmTracker swarmTracker = new SwarmTracker();
+    // 여러 파일 공유를 하나씩 받는 세션: 코드 -> (토큰 -> 만료 시각). 처음 한 번만 다운로드로 센다
+    private final Map<String, Map<String, Long>> bundleSessions = new ConcurrentHashMap<>();
+    private final long bundleSessionTtlMillis = TimeUnit.SECONDS.toMillis(Long.getLong("p2p.bundle.sessionTtl", 600));
+    // 재시작 복원용 색인 (null이면 메모리에만)
+    private final ShareIndex index;
+    private volatile HttpClient clusterClient;
+    // 업로드와 같은 디스크 예약 (복제본, 스웜 다운로드도 자리를 잡고 받음), null이면 확인하지 않음
+    private volatile DiskSpaceBudget diskBudget;
+    private final long sweepIntervalSeconds;
+    private ScheduledExecutorService sweeper;
+    // 공유 만료와 함께 sweeper가 주기적으로 돌리는 다른 정리 작업 (방치된 chunk 업로드 등)
+    private final List<Runnable> sweepTasks = new CopyOnWriteArrayList<>();
 
     public FileSharer(){
-        availableFiles = new HashMap<>();
+        this(DEFAULT_SHARE_PORT, Math.min(4, Runtime.getRuntime().availableProcessors()));
     }
 
-    public int offerFile(String filePath){
-        int port;
-        while(true){
-            port = UploadUtils.generateCode();
-            if(!availableFiles.containsKey(port)){
-                availableFiles.put(port, filePath);
-                return port;
-            }
+    public FileSharer(int sharePort, int shareThreads){
+        this(sharePort, shareThreads, Long.getLong("p2p.share.sweepInterval", DEFAULT_SWEEP_INTERVAL_SECONDS));
+    }
+
+    public FileSharer(int sharePort, int shareThreads, long sweepIntervalSeconds){
+        this(sharePort, shareThreads, sweepIntervalSeconds, null);
+    }
+
+    public FileSharer(int sharePort, int shareThreads, long sweepIntervalSeconds, BlobStore blobStore){
+        this(sharePort, shareThreads, sweepIntervalSeconds, blobStore, ContentCache.fromSystemProperties());
+    }
+
+    public FileSharer(int sharePort, int shareThreads, long sweepIntervalSeconds, BlobStore blobStore, ContentCache contentCache){
+        this(sharePort, shareThreads, sweepIntervalSeconds, blobStore, contentCache, ShareCluster.standalone());
+    }
+
+    public FileSharer(int sharePort, int shareThreads, long sweepIntervalSeconds, BlobStore blobStore, ContentCache contentCache,
+                      ShareCluster cluster){
+        this(sharePort, shareThreads, sweepIntervalSeconds, blobStore, contentCache, cluster, null);
+    }
+
+    /**
+     * @param index 열어 둔 공유 색인, 복원된 공유와 코드 발급기 상태를 이어받는다 (null이면 저장하지 않음)
+     */
+    public FileSharer(int sharePort, int shareThreads, long sweepIntervalSeconds, BlobStore blobStore, ContentCache contentCache,
+                      ShareCluster cluster, ShareIndex index){
+        this.index = index;
+        availableFiles = index == null ? new ShareRegistry()
+                : new ShareRegistry(new ShareCodeAllocator(index.getKey(), index.getCounter()), index.restored());
+        this.blobStore = blobStore;
+        this.cluster = cluster;
+        this.contentCache = contentCache;
+        this.sharePort = sharePort;
+        this.shareThreads = shareThreads;
+        this.sweepIntervalSeconds = sweepIntervalSeconds;
+    }
+
+    public String offerFile(String filePath){
+        return offerFile(SharedFile.of(filePath));
+    }
+
+    /**
+     * 공유를 등록하고 추측할 수 없는 8자리 코드를 돌려준다.
+     * 클러스터면 ring에서 이 노드가 주인인 코드만 발급한다.
+     */
+    public String offerFile(SharedFile sharedFile){
+        String code = availableFiles.register(sharedFile, cluster::ownsLocally);
+        if(index != null){
+            index.added(code, sharedFile, availableFiles.getAllocator().getCounter());
         }
+        return code;
     }
 
-    public void startFileServer(int port){
-        String filePath = availableFiles.get(port)  ;
-        if(filePath ==null){
-            System.out.println("No File is associated with this port: " + port);
-            return;
+    /**
+     * 스웜으로 받기 시작한 파일을 원본과 같은 코드로 등록한다.
+     * 다 받기 전에는 가진 piece만 share 포트로 내주고, 전체 다운로드는 거절한다.
+     */
+    public void offerPartial(String code, SharedFile sharedFile){
+        if(!availableFiles.restore(code, sharedFile)){
+            throw new IllegalStateException("Already sharing code " + code);
+        }
+    }
+
+    /**
+     * 스웜으로 끝까지 받은 공유를 색인에 남긴다 (받는 중에는 남기지 않음, 재시작하면 일반 파일 공유로 복원).
+     */
+    public void partialCompleted(String code, SharedFile sharedFile){
+        if(index != null && sharedFile.isComplete()){
+            index.added(code, sharedFile, availableFiles.getAllocator().getCounter());
+        }
+    }
+
+    /**
+     * 코드 등록만 내린다 (파일은 그대로). 스웜 다운로드가 실패했을 때.
+     */
+    public boolean withdraw(String code, SharedFile sharedFile){
+        if(!availableFiles.remove(code, sharedFile)){
+            return false;
+        }
+        swarmTracker.forget(code);
+        if(index != null){
+            index.removed(code);
+        }
+        return true;
+    }
+
+    /**
+     * 만료되지 않았고 전체를 내줄 수 있는 공유만 돌려준다.
+     */
+    public SharedFile getSharedFile(String code){
+        SharedFile sharedFile = availableFiles.get(code);
+        if(sharedFile == null || sharedFile.isExpired(System.currentTimeMillis()) || !sharedFile.isComplete()){
+            return null;
+        }
+        return sharedFile;
+    }
+
+    /**
+     * 만료 여부와 관계없이 아직 정리되지 않은 코드인지.
+     */
+    public boolean hasShare(String code){
+        return availableFiles.contains(code);
+    }
+
+    /**
+     * 다운로드 하나를 시작한다. 만료/횟수 초과면 null.
+     * 성공하면 전송이 끝난 뒤 release(sharedFile)를 호출해야 한다.
+     */
+    public SharedFile acquire(String code){
+        return acquire(code, true);
+    }
+
+    /**
+     * @param countDownload false면 다운로드 횟수를 올리지 않는다 (이어받기, 분할 Range 요청)
+     */
+    public SharedFile acquire(String code, boolean countDownload){
+        SharedFile sharedFile = availableFiles.get(code);
+        if(sharedFile == null || !sharedFile.isComplete() || !sharedFile.tryAcquire(System.currentTimeMillis(), countDownload)){
+            return null;
+        }
+        // 횟수 제한이 있는 공유만 다운로드 수를 남김 (재시작으로 횟수가 초기화되지 않게)
+        if(index != null && countDownload && sharedFile.maxDownloads > 0){
+            index.downloaded(ShareCodeAllocator.normalize(code), sharedFile.getDownloads());
+        }
+        return sharedFile;
+    }
+
+    /**
+     * acquire에서 센 다운로드를 되돌린다. 파일이 사라져 404만 보낸 요청이 남은 횟수를 쓰지 않게.
+     * 색인은 재적용에 안전하도록 큰 값을 남기므로 되돌린 횟수는 다음 compaction부터 재시작 후에도 반영된다.
+     */
+    public void refundDownload(String code, SharedFile sharedFile){
+        sharedFile.refundDownload();
+        if(index != null && sharedFile.maxDownloads > 0){
+            index.downloaded(ShareCodeAllocator.normalize(code), sharedFile.getDownloads());
+        }
+    }
+
+    /**
+     * 묶음 세션을 닫는다 (세션을 연 다운로드를 되돌린 경우).
+     */
+    public void closeBundleSession(String code, String token){
+        bundleSessions.computeIfPresent(code, (key, sessions) -> {
+            sessions.remove(token);
+            return sessions.isEmpty() ? null : sessions;
+        });
+    }
+
+    /**
+     * 다운로드 한 번으로 센 여러 파일 공유에 세션을 연다. 같은 토큰으로 받는 나머지 파일은 다시 세지 않는다.
+     */
+    public String openBundleSession(String code){
+        String token = UUID.randomUUID().toString();
+        long now = System.currentTimeMillis();
+        bundleSessions.compute(code, (key, current) -> {
+            Map<String, Long> sessions = current == null ? new ConcurrentHashMap<>() : current;
+            sessions.values().removeIf(expiresAt -> expiresAt <= now);
+            // 공유 하나에 열린 세션 수를 제한: 넘치면 가장 먼저 끝날 (가장 오래된) 세션을 닫음
+            while(sessions.size() >= MAX_BUNDLE_SESSIONS){
+                sessions.entrySet().stream().min(Map.Entry.comparingByValue())
+                        .ifPresent(oldest -> sessions.remove(oldest.getKey()));
+            }
+            sessions.put(token, now + bundleSessionTtlMillis);
+            return sessions;
+        });
+        return token;
+    }
+
+    /**
+     * 세션 토큰으로 묶음 안의 파일 하나를 받는다. 토큰이 이 코드의 살아 있는 세션이 아니면 null (새로 세야 함).
+     * 횟수 제한을 다 썼어도 세션이 살아 있는 동안은 나머지 파일을 받을 수 있다.
+     */
+    public SharedFile acquireInSession(String code, String token){
+        Map<String, Long> sessions = token == null ? null : bundleSessions.get(code);
+        Long expiresAt = sessions == null ? null : sessions.get(token);
+        long now = System.currentTimeMillis();
+        if(expiresAt == null || expiresAt <= now){
+            return null;
+        }
+        SharedFile sharedFile = availableFiles.get(code);
+        if(sharedFile == null || !sharedFile.tryAcquireInSession(now)){
+            return null;
         }
+        return sharedFile;
+    }
 
-        try(ServerSocket serverSocket = new ServerSocket(port)){
-            System.out.println("File server started on port: " +new File(filePath).getName() +"on port"+ port);
-            Socket clientSocket = serverSocket.accept();
-            System.out.println("Client connection:"+ clientSocket.getInetAddress());
-            new Thread(new FileTransferHandler(clientSocket, filePath)).start();
+    private boolean hasBundleSession(String code, long now){
+        Map<String, Long> sessions = bundleSessions.get(code);
+        if(sessions == null){
+            return false;
         }
-        catch(IOException err){
-            System.out.println("Error starting file server: " + err.getMessage() + ", Port: " + port);
+        for(long expiresAt : sessions.values()){
+            if(expiresAt > now){
+                return true;
+            }
         }
+        return false;
     }
 
-    private static class FileTransferHandler implements Runnable{
+    /**
+     * piece 단위 전송용. 스웜으로 내주는 공유만 (받는 중인 것 포함) 돌려준다.
+     * 스웜 다운로드는 시작할 때 PIECES를 한 번 묻으므로 그때 (countDownload) 다운로드 한 번으로 세고,
+     * HAVE, PIECE는 세지 않는다.
+     */
+    public SharedFile acquirePieces(String code, boolean countDownload){
+        SharedFile sharedFile = availableFiles.get(code);
+        if(sharedFile == null || !sharedFile.isSwarmSeed() || !sharedFile.tryAcquire(System.currentTimeMillis(), countDownload)){
+            return null;
+        }
+        return sharedFile;
+    }
 
-        private final Socket clientSocket;
-        private final String filePath;
+    public void release(SharedFile sharedFile){
+        if(sharedFile.release()){
+            deleteBackingFile(sharedFile);
+        }
+    }
 
+    /**
+     * 만료되었거나 다운로드 횟수를 다 쓴 공유를 정리한다.
+     * 코드를 반납하고, 읽는 중인 reader가 없으면 파일도 바로 지운다.
+     * @return 정리한 공유 수
+     */
+    public int sweepExpired(){
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        for(String code : bundleSessions.keySet()){
+            bundleSessions.computeIfPresent(code, (key, sessions) -> {
+                sessions.values().removeIf(expiresAt -> expiresAt <= now);
+                return sessions.isEmpty() ? null : sessions;
+            });
+        }
+        availableFiles.loadExpired(now);
+        for(Map.Entry<String, SharedFile> entry : availableFiles.entries()){
+            SharedFile sharedFile = entry.getValue();
+            if(!sharedFile.isExpired(now) && !sharedFile.isExhausted()){
+                continue;
+            }
+            // 횟수를 다 쓴 묶음도 받는 중인 세션이 끝날 때까지는 남겨 둠
+            if(!sharedFile.isExpired(now) && sharedFile.isBundle() && hasBundleSession(entry.getKey(), now)){
+                continue;
+            }
+            if(availableFiles.remove(entry.getKey(), sharedFile)){
+                removed++;
+                if(index != null){
+                    index.removed(entry.getKey());
+                }
+                cluster.forgetReplication(entry.getKey());
+                swarmTracker.forget(entry.getKey());
+                bundleSessions.remove(entry.getKey());
+                System.out.println("Share expired: " + sharedFile.filename + " (code " + entry.getKey() + ", " + sharedFile.getDownloads() + " downloads)");
+                if(sharedFile.retire()){
+                    deleteBackingFile(sharedFile);
+                }
+            }
+        }
+        return removed;
+    }
 
-        public FileTransferHandler(Socket clientSocket, String filePath){
-            this.clientSocket = clientSocket;
-            this.filePath = filePath;
+    /**
+     * 다운로드 하나가 끝까지 전송되었을 때 (HTTP, share 포트 공통).
+     * 횟수 제한 없는 blob 공유가 충분히 인기 있으면 ring의 다음 노드들에 복제를 요청한다.
+     */
+    public void downloadCompleted(String code, SharedFile sharedFile){
+        if(sharedFile.maxDownloads > 0 || sharedFile.blobId == null || blobStore == null){
+            return;
         }
+        for(ShareCluster.Node target : cluster.replicaTargets(code, sharedFile.getDownloads())){
+            requestReplica(target, code);
+        }
+    }
 
-        @Override
-        public void run(){
-            try( FileInputStream fileInputStream = new FileInputStream(filePath) ){
-                OutputStream oos = clientSocket.getOutputStream();
-                String fileName = new File(filePath).getName();
-                String header = "Filename: " + fileName + "\n";
-                oos.write(header.getBytes());
+    // 대상 노드에게 "나한테서 이 코드를 받아 가라"고 알림, 응답은 기다리지 않음
+    private void requestReplica(ShareCluster.Node target, String code){
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create("http://" + target.host + ":" + target.httpPort
+                        + "/cluster/replicas/" + code + "?from=" + cluster.getSelfId()))
+                .timeout(Duration.ofMillis(PEER_TIMEOUT_MILLIS))
+                .POST(HttpRequest.BodyPublishers.noBody());
+        if(cluster.getSecret() != null){
+            request.header(CLUSTER_SECRET_HEADER, cluster.getSecret());
+        }
+        clusterClient().sendAsync(request.build(), HttpResponse.BodyHandlers.discarding()).whenComplete((response, e) -> {
+            if(e != null || response.statusCode() >= 400){
+                cluster.forgetReplication(code);
+                System.out.println("Replication of " + code + " to " + target.id + " failed: "
+                        + (e != null ? e.getMessage() : "HTTP " + response.statusCode()));
+            }
+            else{
+                System.out.println("Replicated " + code + " to " + target.id);
+            }
+        });
+    }
 
-                byte[] buffer = new byte[4096];
-                int byteRead;
-                while((byteRead = fileInputStream.read(buffer)) != -1){
-                    oos.write(buffer, 0, byteRead);
+    /**
+     * 노드 간 HTTP 요청(복제 요청, 다운로드 중계)에 같이 쓰는 클라이언트.
+     */
+    public HttpClient clusterClient(){
+        HttpClient client = clusterClient;
+        if(client == null){
+            synchronized(this){
+                if(clusterClient == null){
+                    clusterClient = HttpClient.newBuilder().connectTimeout(Duration.ofMillis(PEER_TIMEOUT_MILLIS)).build();
                 }
-                System.out.println("File ("+fileName+ ") transferred successfully to: " + clientSocket.getInetAddress());
+                client = clusterClient;
+            }
+        }
+        return client;
+    }
+
+    /**
+     * 다른 노드의 share 포트에서 공유를 받아 같은 코드로 등록한다 (복제본).
+     * 본문은 blob writer로 바로 흘려 넣고, 원본 노드가 알려 준 SHA-256과 다르면 버린다.
+     *
+     * @return 새로 등록했으면 true, 이미 이 코드가 있으면 false
+     */
+    public boolean fetchReplica(ShareCluster.Node source, String code) throws IOException{
+        if(blobStore == null){
+            throw new IllegalStateException("Replicas need a blob store");
+        }
+        if(availableFiles.contains(code)){
+            return false;
+        }
+        try(PeerClient peer = PeerClient.open(source.host, source.sharePort, code, PEER_TIMEOUT_MILLIS)){
+            if(peer.isError()){
+                throw new IllegalArgumentException(peer.error);
             }
-            catch(Exception err){
-                System.out.println("Error transferring file: " + err.getMessage());
+            if(peer.sha256 == null){
+                throw new IllegalArgumentException("Peer did not send a content hash for " + code);
             }
-            finally{
+            // 같은 내용이 이미 있으면 디스크에 쓰지 않으므로 자리도 잡지 않음
+            DiskSpaceBudget.Reservation reservation = reserve(blobStore.contains(peer.sha256) ? 0 : peer.length,
+                    "replica of " + code);
+            BlobStore.Blob blob;
+            try{
+                BlobStore.Writer writer = blobStore.newWriter(peer.sha256);
                 try{
-                    clientSocket.close();
+                    InputStream in = reservation != null ? reservation.meter(peer.body()) : peer.body();
+                    byte[] buffer = new byte[64 * 1024];
+                    long remaining = peer.length;
+                    while(remaining > 0){
+                        int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if(read == -1){
+                            throw new IOException("Peer closed after " + (peer.length - remaining) + " of " + peer.length + " bytes");
+                        }
+                        ByteBuffer bb = ByteBuffer.wrap(buffer, 0, read);
+                        while(bb.hasRemaining()){
+                            writer.write(bb);
+                        }
+                        remaining -= read;
+                    }
+                    blob = blobStore.commit(writer);
                 }
-                catch(Exception err){
-                    System.out.println("Error closing client socket: " + err.getMessage());
+                catch(IOException | RuntimeException e){
+                    writer.abort();
+                    throw e;
+                }
+            }
+            finally{
+                if(reservation != null){
+                    reservation.close();
                 }
             }
+            metrics.bytesReceived.add(peer.length);
+            SharedFile replica = SharedFile.fromBlob(blob, peer.filename, peer.contentType, peer.expiresAt, 0);
+            if(!availableFiles.restore(code, replica)){
+                blobStore.release(blob.id);
+                return false;
+            }
+            if(index != null){
+                index.added(code, replica, availableFiles.getAllocator().getCounter());
+            }
+            return true;
+        }
+    }
 
+    /**
+     * 디스크 예약이 있으면 bytes만큼 잡는다. 예약이 없으면 null, 자리가 없으면 InsufficientSpaceException.
+     */
+    DiskSpaceBudget.Reservation reserve(long bytes, String what) throws DiskSpaceBudget.InsufficientSpaceException{
+        DiskSpaceBudget budget = diskBudget;
+        if(budget == null){
+            return null;
         }
+        DiskSpaceBudget.Reservation reservation = budget.reserve(bytes);
+        if(reservation == null){
+            throw new DiskSpaceBudget.InsufficientSpaceException("Not enough disk space for " + what);
+        }
+        return reservation;
+    }
+
+    private void deleteBackingFile(SharedFile sharedFile){
+        if(!sharedFile.markDeleted()){
+            return;
+        }
+        // 같은 내용을 다른 공유가 쓰고 있을 수 있으므로 blob은 참조만 놓는다
+        if(sharedFile.isBundle()){
+            for(SharedFile.Member member : sharedFile.members.values()){
+                releaseBlob(member.blobId);
+            }
+            return;
+        }
+        if(sharedFile.blobId != null && blobStore != null){
+            releaseBlob(sharedFile.blobId);
+            return;
+        }
+        contentCache.invalidate(cacheKey(sharedFile));
+        try{
+            Files.deleteIfExists(Paths.get(sharedFile.filePath));
+        }
+        catch(IOException e){
+            System.out.println("Error deleting shared file: " + e.getMessage());
+        }
+    }
+
+    private void releaseBlob(String blobId){
+        blobStore.release(blobId);
+        if(!blobStore.contains(blobId)){
+            contentCache.invalidate(blobId);
+        }
+    }
+
+    /**
+     * 자주 받는 공유면 메모리에 올려 둔 내용 (호출자 전용 read-only 버퍼), 아니면 null.
+     */
+    public ByteBuffer cachedContent(SharedFile sharedFile){
+        if(sharedFile.isBundle()){
+            return null;
+        }
+        return contentCache.get(cacheKey(sharedFile), Paths.get(sharedFile.filePath), sharedFile.size);
+    }
+
+    /**
+     * cachedContent와 같지만 블록하지 않는다 (selector 스레드용). 캐시에 없으면 null이고,
+     * 자주 받는 파일이면 백그라운드에서 올려 다음 전송부터 메모리에서 보낸다.
+     */
+    public ByteBuffer loadedContent(SharedFile sharedFile){
+        if(sharedFile.isBundle()){
+            return null;
+        }
+        return contentCache.getIfLoaded(cacheKey(sharedFile), Paths.get(sharedFile.filePath), sharedFile.size);
+    }
+
+    // 같은 blob을 가리키는 공유들은 캐시 항목 하나를 같이 쓴다
+    private static String cacheKey(SharedFile sharedFile){
+        return sharedFile.blobId != null ? sharedFile.blobId : sharedFile.filePath;
+    }
+
+    /**
+     * blob으로 저장된 공유의 chunk 해시 트리, 없으면 null.
+     */
+    public MerkleTree merkleTree(SharedFile sharedFile){
+        if(sharedFile.merkle != null){
+            return sharedFile.merkle;
+        }
+        if(blobStore == null || sharedFile.blobId == null){
+            return null;
+        }
+        BlobStore.Blob blob = blobStore.get(sharedFile.blobId);
+        return blob == null ? null : blob.getMerkle();
+    }
+
+    /**
+     * 색인에서 복원했지만 파일이 사라진 공유를 내린다 (시작 후 백그라운드에서 한 번).
+     * 시작을 막지 않으려고 복원할 때는 파일을 확인하지 않는다.
+     *
+     * @return 내린 공유 수
+     */
+    public int dropMissingFiles(){
+        // 디코딩하지 않은 공유는 임시로 디코딩해 확인하고, 없는 것만 디코딩해서 아래에서 내린다
+        availableFiles.forEachPending((code, pending) -> {
+            if(!hasBackingFiles(pending)){
+                availableFiles.get(code);
+            }
+        });
+        int removed = 0;
+        for(Map.Entry<String, SharedFile> entry : availableFiles.entries()){
+            SharedFile sharedFile = entry.getValue();
+            if(!sharedFile.isComplete() || hasBackingFiles(sharedFile)){
+                continue;
+            }
+            if(availableFiles.remove(entry.getKey(), sharedFile)){
+                removed++;
+                if(index != null){
+                    index.removed(entry.getKey());
+                }
+                System.out.println("Share dropped, file is missing: " + sharedFile.filename + " (code " + entry.getKey() + ")");
+                if(sharedFile.retire()){
+                    deleteBackingFile(sharedFile);
+                }
+            }
+        }
+        return removed;
+    }
+
+    private static boolean hasBackingFiles(SharedFile sharedFile){
+        if(sharedFile.isBundle()){
+            for(SharedFile.Member member : sharedFile.members.values()){
+                if(!Files.exists(Paths.get(member.filePath))){
+                    return false;
+                }
+            }
+            return true;
+        }
+        return Files.exists(Paths.get(sharedFile.filePath));
+    }
+
+    /**
+     * log가 충분히 길어졌으면 살아 있는 공유만 snapshot으로 다시 쓴다 (sweeper에서 호출).
+     *
+     * @return compaction 했으면 true
+     */
+    public boolean compactIndex(boolean force) throws IOException{
+        if(index == null || !force && !index.needsCompaction(availableFiles.size())){
+            return false;
+        }
+        index.compact(availableFiles.entries(), availableFiles.getAllocator().getCounter());
+        return true;
+    }
+
+    public ContentCache getContentCache(){
+        return contentCache;
+    }
+
+    public TransferMetrics getMetrics(){
+        return metrics;
+    }
+
+    public BandwidthScheduler getBandwidthScheduler(){
+        return bandwidthScheduler;
+    }
+
+    public SwarmTracker getSwarmTracker(){
+        return swarmTracker;
+    }
+
+    public ShareCluster getCluster(){
+        return cluster;
+    }
+
+    public void setDiskBudget(DiskSpaceBudget diskBudget){
+        this.diskBudget = diskBudget;
+    }
+
+    public DiskSpaceBudget getDiskBudget(){
+        return diskBudget;
+    }
+
+    public BlobStore getBlobStore(){
+        return blobStore;
+    }
+
+    public int getShareCount(){
+        return availableFiles.size();
+    }
+
+    /**
+     * 모든 공유 코드를 하나의 포트에서 받는 share 서버와 만료 sweeper 시작.
+     * 예전처럼 파일마다 ServerSocket, 스레드를 만들지 않는다.
+     */
+    public synchronized void startFileServer() throws IOException{
+        if(shareServer == null){
+            shareServer = new ShareServer(sharePort, shareThreads, this);
+        }
+        shareServer.start();
+        if(sweeper == null && sweepIntervalSeconds > 0){
+            sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "share-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            });
+            sweeper.scheduleWithFixedDelay(this::sweep, sweepIntervalSeconds, sweepIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * sweeper가 주기마다 돌릴 정리 작업을 등록한다. 작업 하나가 실패해도 나머지와 공유 만료는 계속 돈다.
+     */
+    public void addSweepTask(Runnable task){
+        sweepTasks.add(task);
+    }
+
+    // sweeper 한 번: 만료 공유 정리, 색인 압축, 등록된 정리 작업
+    void sweep(){
+        try{
+            sweepExpired();
+            compactIndex(false);
+        }
+        catch(IOException | RuntimeException e){
+            System.out.println("Error sweeping shares: " + e.getMessage());
+        }
+        for(Runnable task : sweepTasks){
+            try{
+                task.run();
+            }
+            catch(RuntimeException e){
+                System.out.println("Error in sweep task: " + e.getMessage());
+            }
+        }
+    }
+
+    public synchronized void stopFileServer(){
+        if(shareServer != null){
+            shareServer.stop();
+        }
+        if(sweeper != null){
+            sweeper.shutdownNow();
+            sweeper = null;
+        }
+        if(index != null){
+            index.close();
+        }
+    }
+
+    public synchronized int getSharePort(){
+        return shareServer == null ? sharePort : shareServer.getPort();
     }
 }
-    
\ No newline at end of file
@@ -0,0 +1,144 @@
+package p2p.service;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 다른 노드(또는 피어)의 share 포트에 연결해 공유 하나를 받는 클라이언트.
+ * 헤더만 읽어 두고 본문은 body()로 그대로 흘려보낸다 (임시 파일 없음).
+ */
+public class PeerClient implements Closeable {
+    // 스웜 Have 비트필드가 한 줄이라 넉넉히 (64KB = piece 약 39만 개)
+    private static final int MAX_HEADER_LINE = 64 * 1024;
+
+    private final Socket socket;
+    private final InputStream in;
+    public final String error;
+    public final String filename;
+    public final String contentType;
+    public final long length;
+    public final long expiresAt;
+    public final String sha256;
+    public final String merkleRoot;
+    public final String merkleChunkSize;
+    private final Map<String, String> headers;
+
+    private PeerClient(Socket socket, InputStream in, String error, String filename, String contentType, long length,
+                       long expiresAt, String sha256, String merkleRoot, String merkleChunkSize, Map<String, String> headers){
+        this.socket = socket;
+        this.in = in;
+        this.error = error;
+        this.filename = filename;
+        this.contentType = contentType;
+        this.length = length;
+        this.expiresAt = expiresAt;
+        this.sha256 = sha256;
+        this.merkleRoot = merkleRoot;
+        this.merkleChunkSize = merkleChunkSize;
+        this.headers = headers;
+    }
+
+    /**
+     * 연결하고 요청 줄(공유 코드, 스웜 요청이면 "코드 PIECE n" 등)을 보낸 뒤 응답 헤더까지 읽는다.
+     * 상대가 코드를 모르면 error가 채워진다.
+     */
+    public static PeerClient open(String host, int port, String request, int timeoutMillis) throws IOException{
+        Socket socket = new Socket();
+        try{
+            socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            socket.getOutputStream().write((request + "\n").getBytes(StandardCharsets.US_ASCII));
+            socket.getOutputStream().flush();
+            InputStream in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+
+            String first = readLine(in);
+            if(first.startsWith("Error: ")){
+                return new PeerClient(socket, in, first.substring("Error: ".length()), null, null, -1, 0, null, null, null,
+                        Collections.emptyMap());
+            }
+            Map<String, String> headers = new HashMap<>();
+            String filename = null;
+            String contentType = "application/octet-stream";
+            long length = -1;
+            long expiresAt = 0;
+            String sha256 = null;
+            String merkleRoot = null;
+            String merkleChunkSize = null;
+            String line = first;
+            for(; !line.isEmpty(); line = readLine(in)){
+                int colon = line.indexOf(": ");
+                if(colon < 0){
+                    continue;
+                }
+                String value = line.substring(colon + 2);
+                headers.put(line.substring(0, colon), value);
+                switch(line.substring(0, colon)){
+                    case "Filename": filename = value; break;
+                    case "Length": length = Long.parseLong(value); break;
+                    case "Content-Type": contentType = value; break;
+                    case "Expires-At": expiresAt = Long.parseLong(value); break;
+                    case "Content-SHA256": sha256 = value; break;
+                    case "Merkle-Root": merkleRoot = value; break;
+                    case "Merkle-Chunk-Size": merkleChunkSize = value; break;
+                    default: break;
+                }
+            }
+            if(length < 0){
+                throw new IOException("Peer response has no Length");
+            }
+            return new PeerClient(socket, in, null, filename, contentType, length, expiresAt, sha256, merkleRoot, merkleChunkSize, headers);
+        }
+        catch(IOException | RuntimeException e){
+            socket.close();
+            throw e;
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException{
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while((b = in.read()) != -1 && b != '\n'){
+            if(line.size() >= MAX_HEADER_LINE){
+                throw new IOException("Peer header line too long");
+            }
+            line.write(b);
+        }
+        if(b == -1){
+            throw new EOFException("Peer closed during header");
+        }
+        return line.toString(StandardCharsets.UTF_8).trim();
+    }
+
+    /**
+     * 위 필드에 없는 응답 헤더 (Pieces, Have, Peers 등), 없으면 null.
+     */
+    public String header(String name){
+        return headers.get(name);
+    }
+
+    public boolean isError(){
+        return error != null;
+    }
+
+    /**
+     * 파일 바이트 (Length 만큼).
+     */
+    public InputStream body(){
+        return in;
+    }
+
+    @Override
+    public void close() throws IOException{
+        socket.close();
+    }
+}
@@ -0,0 +1,73 @@
+package p2p.service;
+
+import java.util.Base64;
+import java.util.BitSet;
+
+/**
+ * 스웜 다운로드에서 이 피어가 가진 piece 목록 (Merkle chunk 단위).
+ * 여러 다운로드 스레드가 채우고 share 서버가 동시에 읽으므로 모든 접근은 동기화.
+ */
+public class PieceSet {
+    private final int count;
+    private final BitSet have;
+
+    public PieceSet(int count){
+        this(count, new BitSet(count));
+    }
+
+    private PieceSet(int count, BitSet have){
+        this.count = count;
+        this.have = have;
+    }
+
+    public static PieceSet full(int count){
+        BitSet have = new BitSet(count);
+        have.set(0, count);
+        return new PieceSet(count, have);
+    }
+
+    /**
+     * share 프로토콜의 Have 헤더 값. 잘못된 값이면 IllegalArgumentException.
+     */
+    public static PieceSet fromBase64(String value, int count){
+        BitSet have = BitSet.valueOf(Base64.getDecoder().decode(value));
+        if(have.length() > count){
+            throw new IllegalArgumentException("Piece bitfield longer than " + count);
+        }
+        return new PieceSet(count, have);
+    }
+
+    public int count(){
+        return count;
+    }
+
+    public synchronized boolean has(int index){
+        return have.get(index);
+    }
+
+    public synchronized void add(int index){
+        have.set(index);
+    }
+
+    public synchronized int cardinality(){
+        return have.cardinality();
+    }
+
+    public synchronized boolean isComplete(){
+        return have.cardinality() == count;
+    }
+
+    /**
+     * 아직 없는 piece 번호들.
+     */
+    public synchronized BitSet missing(){
+        BitSet missing = new BitSet(count);
+        missing.set(0, count);
+        missing.andNot(have);
+        return missing;
+    }
+
+    public synchronized String toBase64(){
+        return Base64.getEncoder().encodeToString(have.toByteArray());
+    }
+}
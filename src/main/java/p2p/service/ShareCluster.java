@@ -0,0 +1,284 @@
+package p2p.service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 여러 노드가 공유 코드를 나눠 맡는 consistent-hash ring.
+ *
+ * - 노드마다 가상 노드(vnodes)를 ring에 뿌려 두고, 코드의 해시에서 시계 방향으로 처음 만나는 노드가 주인
+ * - 업로드를 받은 노드는 자기에게 떨어지는 코드만 발급하므로, 어느 노드든 코드만 보고 주인을 찾는다 (조회 없음)
+ * - 주인 다음으로 만나는 서로 다른 노드들이 복제본 후보 (preference list)
+ *
+ * 설정 (system property):
+ * <pre>
+ * p2p.cluster.nodes=a@10.0.0.1:8080:9090,b@10.0.0.2:8080:9090   (id@host:httpPort:sharePort)
+ * p2p.cluster.self=a
+ * p2p.cluster.replicas=1          주인 외에 인기 공유를 복제해 둘 노드 수 (기본 0)
+ * p2p.cluster.replicateAfter=10   이 횟수만큼 받아 가면 복제
+ * p2p.cluster.secret=...          노드 간 요청에 실을 공유 비밀 (다른 노드가 있으면 필수)
+ * </pre>
+ * 설정이 없으면 자기 자신 하나뿐인 ring (단일 노드).
+ */
+public class ShareCluster {
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+    public static final int DEFAULT_REPLICATE_AFTER = 10;
+
+    private final String selfId;
+    private final int virtualNodes;
+    private final int replicas;
+    private final int replicateAfter;
+    private final String secret;
+    private final Set<String> replicated = ConcurrentHashMap.newKeySet();
+    // 멤버가 바뀌면 통째로 새로 만들어 교체 (조회는 lock 없음)
+    private volatile Ring ring;
+
+    public ShareCluster(String selfId, List<Node> members, int virtualNodes, int replicas, int replicateAfter, String secret){
+        this.selfId = selfId;
+        this.virtualNodes = virtualNodes;
+        this.replicas = replicas;
+        this.replicateAfter = replicateAfter;
+        this.secret = secret;
+        this.ring = new Ring(members, virtualNodes);
+    }
+
+    /**
+     * 다른 노드가 없는 단일 노드 구성.
+     */
+    public static ShareCluster standalone(){
+        return new ShareCluster("local", List.of(new Node("local", "localhost", 0, 0)), 1, 0, 0, null);
+    }
+
+    public static ShareCluster fromSystemProperties(){
+        String nodes = System.getProperty("p2p.cluster.nodes");
+        if(nodes == null || nodes.isBlank()){
+            return standalone();
+        }
+        String self = System.getProperty("p2p.cluster.self");
+        if(self == null){
+            throw new IllegalArgumentException("p2p.cluster.self is required with p2p.cluster.nodes");
+        }
+        List<Node> members = parseNodes(nodes);
+        String secret = System.getProperty("p2p.cluster.secret");
+        if(members.size() > 1 && (secret == null || secret.isBlank())){
+            throw new IllegalArgumentException("p2p.cluster.secret is required when p2p.cluster.nodes lists other nodes");
+        }
+        return new ShareCluster(self, members,
+                Integer.getInteger("p2p.cluster.vnodes", DEFAULT_VIRTUAL_NODES),
+                Integer.getInteger("p2p.cluster.replicas", 0),
+                Integer.getInteger("p2p.cluster.replicateAfter", DEFAULT_REPLICATE_AFTER),
+                secret);
+    }
+
+    /**
+     * "a@host:8080:9090,b@host:8081:9091" 형식.
+     */
+    public static List<Node> parseNodes(String spec){
+        List<Node> nodes = new ArrayList<>();
+        for(String entry : spec.split(",")){
+            entry = entry.trim();
+            if(entry.isEmpty()){
+                continue;
+            }
+            int at = entry.indexOf('@');
+            String[] address = entry.substring(at + 1).split(":");
+            if(at <= 0 || address.length != 3){
+                throw new IllegalArgumentException("Invalid cluster node: " + entry);
+            }
+            nodes.add(new Node(entry.substring(0, at), address[0], Integer.parseInt(address[1]), Integer.parseInt(address[2])));
+        }
+        return nodes;
+    }
+
+    public void setMembers(List<Node> members){
+        this.ring = new Ring(members, virtualNodes);
+    }
+
+    public List<Node> getMembers(){
+        return ring.members;
+    }
+
+    public String getSelfId(){
+        return selfId;
+    }
+
+    public boolean isSelf(Node node){
+        return node.id.equals(selfId);
+    }
+
+    public boolean isClustered(){
+        return ring.members.size() > 1;
+    }
+
+    public Node getNode(String id){
+        for(Node node : ring.members){
+            if(node.id.equals(id)){
+                return node;
+            }
+        }
+        return null;
+    }
+
+    public Node owner(String code){
+        return ring.owner(hash(code));
+    }
+
+    /**
+     * 이 노드가 발급해도 되는 코드인지. 자기가 ring에 없으면 (설정 오류) 아무 코드나 허용.
+     */
+    public boolean ownsLocally(String code){
+        Ring current = ring;
+        return current.members.size() <= 1 || !current.contains(selfId) || current.owner(hash(code)).id.equals(selfId);
+    }
+
+    /**
+     * 주인부터 시계 방향으로 서로 다른 노드 목록 (전달/복제 순서).
+     */
+    public List<Node> preferenceList(String code){
+        return ring.walk(hash(code));
+    }
+
+    /**
+     * 주인 다음 replicas 개 노드 중 자기를 뺀 복제 대상. 복제는 주인만 시작하고, 이미 시작한 코드면 빈 목록.
+     */
+    public List<Node> replicaTargets(String code, long downloads){
+        if(replicas <= 0 || downloads < replicateAfter || !isClustered() || !isSelf(owner(code)) || !replicated.add(code)){
+            return Collections.emptyList();
+        }
+        List<Node> targets = new ArrayList<>();
+        for(Node node : preferenceList(code)){
+            if(targets.size() == replicas){
+                break;
+            }
+            if(!isSelf(node)){
+                targets.add(node);
+            }
+        }
+        return targets;
+    }
+
+    public void forgetReplication(String code){
+        replicated.remove(code);
+    }
+
+    /**
+     * 노드 간 요청의 비밀이 맞는지. 다른 노드가 있는데 비밀이 설정되지 않았으면 아무 요청도 받지 않는다
+     * (멤버 목록은 나중에 setMembers로 늘어날 수 있으므로 요청마다 확인).
+     */
+    public boolean acceptsSecret(String presented){
+        if(secret == null){
+            return !isClustered();
+        }
+        return MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8),
+                (presented == null ? "" : presented).getBytes(StandardCharsets.UTF_8));
+    }
+
+    public String getSecret(){
+        return secret;
+    }
+
+    // FNV-1a 64 + murmur3 fmix64: 짧은 코드/가상 노드 이름도 ring 전체에 고르게 퍼지도록
+    static long hash(String key){
+        long h = 0xcbf29ce484222325L;
+        for(byte b : key.getBytes(StandardCharsets.UTF_8)){
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public static class Node {
+        public final String id;
+        public final String host;
+        public final int httpPort;
+        public final int sharePort;
+
+        public Node(String id, String host, int httpPort, int sharePort){
+            this.id = id;
+            this.host = host;
+            this.httpPort = httpPort;
+            this.sharePort = sharePort;
+        }
+
+        @Override
+        public String toString(){
+            return id + "@" + host + ":" + httpPort + ":" + sharePort;
+        }
+    }
+
+    /**
+     * 정렬된 가상 노드 해시 배열 + 이진 탐색.
+     */
+    private static class Ring {
+        final List<Node> members;
+        final long[] points;
+        final Node[] owners;
+
+        Ring(List<Node> members, int virtualNodes){
+            if(members.isEmpty()){
+                throw new IllegalArgumentException("Cluster needs at least one node");
+            }
+            this.members = List.copyOf(members);
+            int count = members.size() * virtualNodes;
+            long[][] entries = new long[count][2];
+            int i = 0;
+            for(int m = 0; m < members.size(); m++){
+                for(int v = 0; v < virtualNodes; v++){
+                    entries[i][0] = hash(members.get(m).id + "#" + v);
+                    entries[i][1] = m;
+                    i++;
+                }
+            }
+            Arrays.sort(entries, Comparator.comparingLong(e -> e[0]));
+            this.points = new long[count];
+            this.owners = new Node[count];
+            for(i = 0; i < count; i++){
+                points[i] = entries[i][0];
+                owners[i] = members.get((int) entries[i][1]);
+            }
+        }
+
+        boolean contains(String id){
+            for(Node node : members){
+                if(node.id.equals(id)){
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private int start(long hash){
+            int index = Arrays.binarySearch(points, hash);
+            if(index < 0){
+                index = -index - 1;
+            }
+            return index == points.length ? 0 : index;
+        }
+
+        Node owner(long hash){
+            return owners[start(hash)];
+        }
+
+        List<Node> walk(long hash){
+            Set<Node> seen = new LinkedHashSet<>();
+            int index = start(hash);
+            for(int i = 0; i < owners.length && seen.size() < members.size(); i++){
+                seen.add(owners[(index + i) % owners.length]);
+            }
+            return new ArrayList<>(seen);
+        }
+    }
+}
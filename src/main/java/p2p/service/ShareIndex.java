@@ -0,0 +1,828 @@
+package p2p.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+import p2p.utils.LongIntTable;
+
+/**
+ * 재시작해도 공유 코드가 그대로 살아 있도록 등록부 변경을 디스크에 남기는 색인.
+ *
+ * 변경은 append-only log에 record 하나씩 (ADD / REMOVE / DOWNLOADS) 덧붙이고, log가 길어지면
+ * 살아 있는 공유만 snapshot으로 다시 쓴 뒤 새 generation의 log로 넘어간다 (compaction).
+ * 시작할 때는 snapshot을 mmap으로 훑어 코드 -> record 위치 표만 만들고 공유는 처음 조회할 때 디코딩한다
+ * (공유 수백만 개를 SharedFile, Blob 객체로 만들지 않음). snapshot 뒤 log들은 짧으므로 바로 적용한다.
+ * <pre>
+ * p2p-uploads/index/allocator.key  (공유 코드 발급기 키, 처음 한 번 생성)
+ * p2p-uploads/index/snapshot       ([magic][version][generation][counter] + ADD record들)
+ * p2p-uploads/index/log.{g}        (generation g snapshot 이후 변경)
+ * </pre>
+ * record = [u32 body 길이][u32 body CRC-32][body], 쓰다가 죽어 끝이 잘린 record부터는 버린다.
+ * blob 공유는 경로 대신 blob id(32바이트)만 남기고, 경로는 복원할 때 BlobStore 배치로 다시 만든다.
+ */
+public class ShareIndex implements Closeable {
+    public static final int KEY_LENGTH = 32;
+    // log record가 이 수와 살아 있는 공유 수 중 큰 쪽을 넘으면 compaction
+    public static final long COMPACT_MIN_RECORDS = 10_000;
+
+    static final byte ADD = 1;
+    static final byte REMOVE = 2;
+    static final byte DOWNLOADS = 3;
+    private static final byte KIND_FILE = 0;
+    private static final byte KIND_BLOB = 1;
+    private static final byte KIND_BUNDLE = 2;
+    private static final int SNAPSHOT_MAGIC = 0x50325053;
+    private static final int VERSION = 1;
+    private static final int SNAPSHOT_HEADER = 24;
+    private static final int CODE_LENGTH = 8;
+    private static final int BLOB_ID_BYTES = 32;
+
+    private final Path dir;
+    private final BlobStore blobStore;
+    private final byte[] key;
+    private long counter;
+    private Restored restored;
+    private long generation;
+    private FileChannel log;
+    private long logRecords;
+    private ByteBuffer scratch = ByteBuffer.allocate(4096);
+
+    private ShareIndex(Path dir, BlobStore blobStore, byte[] key){
+        this.dir = dir;
+        this.blobStore = blobStore;
+        this.key = key;
+    }
+
+    /**
+     * 색인을 열고 snapshot + log를 읽어 살아 있는 공유를 복원해 둔다 (FileSharer가 restored()로 가져감).
+     * 만료되었거나 다운로드 횟수를 다 쓴 공유는 복원하지 않는다.
+     *
+     * @param blobStore blob 공유의 경로를 되살릴 저장소, null이면 blob 공유는 건너뜀
+     */
+    public static ShareIndex open(Path dir, BlobStore blobStore) throws IOException{
+        Files.createDirectories(dir);
+        ShareIndex index = new ShareIndex(dir, blobStore, loadOrCreateKey(dir.resolve("allocator.key")));
+        index.load();
+        return index;
+    }
+
+    public byte[] getKey(){
+        return key.clone();
+    }
+
+    /**
+     * 복원한 공유들이 쓴 발급기 카운터 다음 값 (같은 키로 같은 코드가 다시 나오지 않게).
+     */
+    public long getCounter(){
+        return counter;
+    }
+
+    /**
+     * 시작할 때 복원한 공유들. 등록부 하나만 가져가야 한다.
+     */
+    synchronized Restored restored(){
+        return restored;
+    }
+
+    public synchronized long getLogRecords(){
+        return logRecords;
+    }
+
+    public synchronized boolean needsCompaction(int liveShares){
+        return log != null && logRecords > Math.max(COMPACT_MIN_RECORDS, liveShares);
+    }
+
+    /**
+     * @param counter 이 공유를 발급한 뒤의 발급기 카운터
+     */
+    public synchronized void added(String code, SharedFile sharedFile, long counter){
+        if(log == null){
+            return;
+        }
+        begin(ADD, code);
+        encodeAdd(sharedFile, counter);
+        append(code);
+    }
+
+    public synchronized void removed(String code){
+        if(log == null){
+            return;
+        }
+        begin(REMOVE, code);
+        append(code);
+    }
+
+    /**
+     * 횟수 제한이 있는 공유의 다운로드 수 (재시작해도 남은 횟수가 늘어나지 않게).
+     */
+    public synchronized void downloaded(String code, int downloads){
+        if(log == null){
+            return;
+        }
+        begin(DOWNLOADS, code);
+        ensure(4);
+        scratch.putInt(downloads);
+        append(code);
+    }
+
+    /**
+     * 살아 있는 공유만 새 snapshot으로 쓰고 이전 snapshot, log를 지운다.
+     * 새 log로 먼저 넘어간 뒤 등록부를 훑으므로 그 사이 변경은 새 log에 남고, 다시 적용해도 결과가 같다.
+     */
+    public void compact(Collection<Map.Entry<String, SharedFile>> live, long allocatorCounter) throws IOException{
+        long next;
+        synchronized(this){
+            if(log == null){
+                return;
+            }
+            next = generation + 1;
+            FileChannel nextLog = openLog(next);
+            log.force(false);
+            log.close();
+            log = nextLog;
+            generation = next;
+            logRecords = 0;
+        }
+        Path tmp = dir.resolve("snapshot.tmp");
+        long written = 0;
+        try(FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)){
+            ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER);
+            header.putInt(SNAPSHOT_MAGIC).putInt(VERSION).putLong(next).putLong(allocatorCounter).flip();
+            writeFully(out, header);
+            ByteBuffer batch = ByteBuffer.allocateDirect(1 << 20);
+            Snapshotter snapshotter = new Snapshotter();
+            long now = System.currentTimeMillis();
+            // 아직 디코딩하지 않은 공유는 이전 snapshot의 record를 그대로 복사 (그 뒤로 바뀐 적이 없음).
+            // 디코딩한 공유는 등록부 map에 먼저 들어간 뒤 표에서 빠지므로 표 -> map 순서로 훑으면 빠뜨리지 않는다
+            Restored pending = restored();
+            if(pending != null){
+                for(int slot = 0; slot < pending.offsets.capacity(); slot++){
+                    int offset = pending.offsets.valueAt(slot);
+                    if(pending.offsets.keyAt(slot) == 0 || offset < 0 || pending.isExpired(offset, now)){
+                        continue;
+                    }
+                    batch(out, batch, pending.snapshot.slice(offset - 8, pending.snapshot.getInt(offset - 8) + 8));
+                    written++;
+                }
+            }
+            for(Map.Entry<String, SharedFile> entry : live){
+                SharedFile sharedFile = entry.getValue();
+                if(!sharedFile.isComplete() || sharedFile.isExpired(now) || sharedFile.isExhausted()){
+                    continue;
+                }
+                batch(out, batch, snapshotter.encode(entry.getKey(), sharedFile, allocatorCounter));
+                written++;
+            }
+            batch.flip();
+            writeFully(out, batch);
+            out.force(true);
+        }
+        Files.move(tmp, dir.resolve("snapshot"), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        for(Map.Entry<Long, Path> old : logs().entrySet()){
+            if(old.getKey() < next){
+                Files.deleteIfExists(old.getValue());
+            }
+        }
+        System.out.println("Share index compacted: " + written + " shares (generation " + next + ")");
+    }
+
+    @Override
+    public synchronized void close(){
+        if(log == null){
+            return;
+        }
+        try{
+            log.force(false);
+            log.close();
+        }
+        catch(IOException e){
+            System.out.println("Error closing share index: " + e.getMessage());
+        }
+        log = null;
+    }
+
+    /*
+    snapshot은 위치 표만 만들고, 그 뒤 generation 순서로 log 적용. 마지막 log 끝의 잘린 record는 잘라 내고 거기에 이어 쓴다.
+    compaction 도중 죽었으면 snapshot보다 새 log가 여러 개일 수 있으므로 전부 적용한다.
+    */
+    private void load() throws IOException{
+        long started = System.nanoTime();
+        Path snapshot = dir.resolve("snapshot");
+        TreeMap<Long, Path> logs = logs();
+        long logBytes = 0;
+        for(Path file : logs.values()){
+            logBytes += Files.size(file);
+        }
+        ByteBuffer mapped = null;
+        generation = 0;
+        if(Files.exists(snapshot)){
+            // 매핑은 채널을 닫아도 남고, compaction이 파일을 바꿔도 (POSIX) 이전 내용을 계속 가리킨다
+            try(FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)){
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if(buffer.remaining() < SNAPSHOT_HEADER || buffer.getInt() != SNAPSHOT_MAGIC || buffer.getInt() != VERSION){
+                    throw new IOException("Corrupt share index snapshot: " + snapshot);
+                }
+                generation = buffer.getLong();
+                counter = buffer.getLong();
+                mapped = buffer;
+            }
+        }
+        // log에서 되살리는 공유 수를 record 평균 크기로 어림해 map을 미리 키워 둠
+        Restored shares = new Restored(mapped, (int) Math.min(logBytes / 128 + 16, 1 << 28));
+        long now = System.currentTimeMillis();
+        if(mapped != null){
+            shares.scan(mapped, now);
+        }
+        Decoder decoder = new Decoder(shares, false);
+        long records = 0;
+        long validEnd = 0;
+        for(Map.Entry<Long, Path> entry : logs.entrySet()){
+            if(entry.getKey() < generation){
+                // 끝난 compaction이 지우지 못한 log
+                Files.deleteIfExists(entry.getValue());
+                continue;
+            }
+            generation = entry.getKey();
+            try(FileChannel channel = FileChannel.open(entry.getValue(), StandardOpenOption.READ)){
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                records += decoder.replay(buffer);
+                validEnd = buffer.position();
+            }
+        }
+        counter = Math.max(counter, decoder.maxCounter);
+
+        shares.shares.values().removeIf(sharedFile -> sharedFile.isExpired(now) || sharedFile.isExhausted());
+        shares.retainBlobs();
+        restored = shares;
+        log = openLog(generation);
+        if(log.size() > validEnd){
+            System.out.println("Share index: dropping " + (log.size() - validEnd) + " bytes of a torn log record");
+            log.truncate(validEnd);
+        }
+        log.position(validEnd);
+        logRecords = records;
+        System.out.println("Share index loaded: " + shares.size() + " shares (" + shares.shares.size() + " decoded), "
+                + records + " log records in " + (System.nanoTime() - started) / 1_000_000 + " ms");
+    }
+
+    private FileChannel openLog(long gen) throws IOException{
+        return FileChannel.open(dir.resolve("log." + gen), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    // generation -> log 파일
+    private TreeMap<Long, Path> logs() throws IOException{
+        TreeMap<Long, Path> logs = new TreeMap<>();
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(dir, "log.*")){
+            for(Path file : files){
+                try{
+                    logs.put(Long.parseLong(file.getFileName().toString().substring(4)), file);
+                }
+                catch(NumberFormatException e){
+                    // 다른 파일
+                }
+            }
+        }
+        return logs;
+    }
+
+    private void begin(byte type, String code){
+        scratch.clear();
+        scratch.putInt(0).putInt(0).put(type);
+        putCode(scratch, code);
+    }
+
+    private void append(String code){
+        finish(scratch);
+        try{
+            writeFully(log, scratch);
+            logRecords++;
+        }
+        catch(IOException e){
+            // 색인을 못 써도 공유는 계속 서비스 (재시작하면 이 변경만 잃음)
+            System.out.println("Error writing share index for " + code + ": " + e.getMessage());
+        }
+    }
+
+    private void encodeAdd(SharedFile sharedFile, long counter){
+        scratch = encodeAdd(scratch, sharedFile, counter, blobStore != null);
+    }
+
+    private void ensure(int more){
+        scratch = ensure(scratch, more);
+    }
+
+    /*
+    ADD body: [type][code][counter][expiresAt][maxDownloads][downloads][kind] +
+      FILE   : [filePath][filename][contentType][size]
+      BLOB   : [blob id 32][filename][contentType][size]
+      BUNDLE : [name][count] + count x ([path][blob id 32][contentType][size][crc32][modified])
+    문자열은 [u16 길이][UTF-8]
+    */
+    private static ByteBuffer encodeAdd(ByteBuffer buffer, SharedFile sharedFile, long counter, boolean blobs){
+        buffer = ensure(buffer, 25);
+        buffer.putLong(counter).putLong(sharedFile.expiresAt).putInt(sharedFile.maxDownloads).putInt(sharedFile.getDownloads());
+        if(sharedFile.isBundle()){
+            buffer.put(KIND_BUNDLE);
+            buffer = putString(buffer, sharedFile.filename);
+            buffer = ensure(buffer, 4);
+            buffer.putInt(sharedFile.members.size());
+            for(SharedFile.Member member : sharedFile.members.values()){
+                buffer = putString(buffer, member.path);
+                buffer = ensure(buffer, BLOB_ID_BYTES);
+                buffer.put(HexFormat.of().parseHex(member.blobId));
+                buffer = putString(buffer, member.contentType);
+                buffer = ensure(buffer, 24);
+                buffer.putLong(member.size).putLong(member.crc32).putLong(member.modified);
+            }
+            return buffer;
+        }
+        if(sharedFile.blobId != null && blobs){
+            buffer.put(KIND_BLOB);
+            buffer = ensure(buffer, BLOB_ID_BYTES);
+            buffer.put(HexFormat.of().parseHex(sharedFile.blobId));
+        }
+        else{
+            buffer.put(KIND_FILE);
+            buffer = putString(buffer, sharedFile.filePath);
+        }
+        buffer = putString(buffer, sharedFile.filename);
+        buffer = putString(buffer, sharedFile.contentType);
+        buffer = ensure(buffer, 8);
+        buffer.putLong(sharedFile.size);
+        return buffer;
+    }
+
+    private static ByteBuffer putString(ByteBuffer buffer, String value){
+        byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+        if(bytes.length > 0xffff){
+            throw new IllegalArgumentException("Value too long for the share index: " + bytes.length + " bytes");
+        }
+        buffer = ensure(buffer, 2 + bytes.length);
+        buffer.putShort((short) bytes.length).put(bytes);
+        return buffer;
+    }
+
+    private static void putCode(ByteBuffer buffer, String code){
+        for(int i = 0; i < CODE_LENGTH; i++){
+            buffer.put((byte) code.charAt(i));
+        }
+    }
+
+    private static ByteBuffer ensure(ByteBuffer buffer, int more){
+        if(buffer.remaining() >= more){
+            return buffer;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + more));
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+
+    // 앞 8바이트에 [body 길이][CRC-32]를 채우고 읽기 모드로
+    private static void finish(ByteBuffer buffer){
+        int length = buffer.position() - 8;
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 8, length);
+        buffer.putInt(0, length).putInt(4, (int) crc.getValue());
+        buffer.flip();
+    }
+
+    // record를 모아 큰 단위로 쓰기, batch보다 큰 record는 바로
+    private static void batch(FileChannel out, ByteBuffer batch, ByteBuffer record) throws IOException{
+        if(record.remaining() > batch.remaining()){
+            batch.flip();
+            writeFully(out, batch);
+            batch.clear();
+        }
+        if(record.remaining() > batch.capacity()){
+            writeFully(out, record);
+        }
+        else{
+            batch.put(record);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException{
+        while(buffer.hasRemaining()){
+            channel.write(buffer);
+        }
+    }
+
+    private static byte[] loadOrCreateKey(Path path) throws IOException{
+        if(Files.exists(path)){
+            byte[] key = Files.readAllBytes(path);
+            if(key.length != KEY_LENGTH){
+                throw new IOException("Corrupt share code key: " + path);
+            }
+            return key;
+        }
+        byte[] key = new byte[KEY_LENGTH];
+        new SecureRandom().nextBytes(key);
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(tmp, key);
+        try{
+            // 키를 알면 다음 코드를 계산할 수 있으므로 소유자만 읽기
+            Files.setPosixFilePermissions(tmp, PosixFilePermissions.fromString("rw-------"));
+        }
+        catch(UnsupportedOperationException e){
+            // POSIX 권한이 없는 파일 시스템
+        }
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+        return key;
+    }
+
+    // compaction용: 공유 하나를 완성된 record로 (버퍼 재사용)
+    private final class Snapshotter {
+        private ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+        ByteBuffer encode(String code, SharedFile sharedFile, long counter){
+            buffer.clear();
+            buffer.putInt(0).putInt(0).put(ADD);
+            putCode(buffer, code);
+            buffer = encodeAdd(buffer, sharedFile, counter, blobStore != null);
+            finish(buffer);
+            return buffer;
+        }
+    }
+
+    /*
+    [u32 길이][u32 CRC-32][body] record마다 handler(body 위치, 길이). 잘렸거나 CRC가 틀린 record에서 멈춘다.
+    buffer position은 마지막으로 온전한 record 끝.
+    */
+    private static long forEachRecord(ByteBuffer buffer, CRC32 crc, RecordHandler handler){
+        long count = 0;
+        while(buffer.remaining() >= 8){
+            int start = buffer.position();
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if(length <= CODE_LENGTH || length > buffer.remaining()){
+                buffer.position(start);
+                break;
+            }
+            int body = buffer.position();
+            crc.reset();
+            crc.update(buffer.slice(body, length));
+            if((int) crc.getValue() != checksum){
+                buffer.position(start);
+                break;
+            }
+            handler.record(body, length);
+            buffer.position(body + length);
+            count++;
+        }
+        return count;
+    }
+
+    private interface RecordHandler {
+        void record(int body, int length);
+    }
+
+    // 8자리 코드 <-> long (ASCII 8바이트, snapshot에 쓰는 순서 그대로)
+    static long packCode(String code){
+        long packed = 0;
+        for(int i = 0; i < CODE_LENGTH; i++){
+            packed = packed << 8 | (code.charAt(i) & 0xff);
+        }
+        return packed;
+    }
+
+    static String unpackCode(long packed){
+        char[] chars = new char[CODE_LENGTH];
+        for(int i = CODE_LENGTH - 1; i >= 0; i--){
+            chars[i] = (char) (packed & 0xff);
+            packed >>>= 8;
+        }
+        return new String(chars);
+    }
+
+    /**
+     * 재시작으로 되살린 공유. log에서 읽은 것은 shares에 이미 디코딩되어 있고, snapshot에 있던 것은
+     * 코드 -> record 위치 표 (LongIntTable, 공유당 객체 없음)로만 들고 있다가 처음 조회할 때 디코딩한다.
+     * ShareRegistry가 shares를 등록부 map으로 그대로 쓰고, 디코딩한 공유를 넣은 뒤 loaded()로 표에서 뺀다.
+     */
+    final class Restored {
+        private static final int LOADED = -1;
+
+        final ConcurrentHashMap<String, SharedFile> shares;
+        private final ByteBuffer snapshot;
+        // 코드 -> snapshot 안 ADD body 위치, 디코딩했거나 지웠으면 LOADED
+        private final LongIntTable offsets;
+        private final AtomicInteger remaining = new AtomicInteger();
+
+        Restored(ByteBuffer snapshot, int decoded){
+            this.snapshot = snapshot;
+            this.shares = new ConcurrentHashMap<>(decoded);
+            // 공유 수를 record 평균 크기로 어림해 표를 미리 키워 둠 (다시 해시하지 않게)
+            this.offsets = new LongIntTable(snapshot == null ? 16 : Math.min(snapshot.capacity() / 96 + 16, 1 << 28));
+        }
+
+        /*
+        ADD body 고정 위치: [type 0][code 1][counter 9][expiresAt 17][maxDownloads 25][downloads 29][kind 33][34 ~]
+        고정 위치만 읽어 살아 있는 공유의 위치를 표에 넣는다.
+        */
+        private void scan(ByteBuffer buffer, long now){
+            forEachRecord(buffer, new CRC32(), (body, length) -> {
+                if(buffer.get(body) != ADD){
+                    return;
+                }
+                long expiresAt = buffer.getLong(body + 17);
+                int maxDownloads = buffer.getInt(body + 25);
+                byte kind = buffer.get(body + 33);
+                // SharedFile.isExpired, isExhausted와 같은 조건
+                boolean dead = expiresAt > 0 && now >= expiresAt || maxDownloads > 0 && buffer.getInt(body + 29) >= maxDownloads
+                        || kind != KIND_FILE && blobStore == null;
+                if(dead){
+                    // 같은 코드의 예전 record가 살아 있는 것으로 남지 않게
+                    if(offsets.get(buffer.getLong(body + 1)) >= 0){
+                        offsets.put(buffer.getLong(body + 1), LOADED);
+                    }
+                    return;
+                }
+                offsets.put(buffer.getLong(body + 1), body);
+            });
+            int live = 0;
+            for(int slot = 0; slot < offsets.capacity(); slot++){
+                if(offsets.keyAt(slot) != 0 && offsets.valueAt(slot) >= 0){
+                    live++;
+                }
+            }
+            remaining.set(live);
+        }
+
+        /*
+        blob 참조: 디코딩한 공유는 바로 잡고, 표에만 있는 공유는 BlobStore에 미뤄 둔다 (Blob 객체 없이 개수만).
+        */
+        private void retainBlobs(){
+            if(blobStore == null){
+                return;
+            }
+            for(SharedFile sharedFile : shares.values()){
+                if(sharedFile.isBundle()){
+                    for(SharedFile.Member member : sharedFile.members.values()){
+                        blobStore.restore(member.blobId, member.size);
+                    }
+                }
+                else if(sharedFile.blobId != null){
+                    blobStore.restore(sharedFile.blobId, sharedFile.size);
+                }
+            }
+            int expected = remaining.get();
+            for(int slot = 0; slot < offsets.capacity(); slot++){
+                int body = offsets.valueAt(slot);
+                if(offsets.keyAt(slot) == 0 || body < 0){
+                    continue;
+                }
+                byte kind = snapshot.get(body + 33);
+                int position = body + 34;
+                if(kind == KIND_BLOB){
+                    blobStore.deferRestore(snapshot.getLong(position), expected);
+                }
+                else if(kind == KIND_BUNDLE){
+                    position = skipString(position);
+                    int count = snapshot.getInt(position);
+                    position += 4;
+                    for(int i = 0; i < count; i++){
+                        position = skipString(position);
+                        blobStore.deferRestore(snapshot.getLong(position), expected);
+                        position = skipString(position + BLOB_ID_BYTES) + 24;
+                    }
+                }
+            }
+        }
+
+        private int skipString(int position){
+            return position + 2 + (snapshot.getShort(position) & 0xffff);
+        }
+
+        /**
+         * 아직 디코딩하지 않은 공유 수.
+         */
+        int size(){
+            return remaining.get();
+        }
+
+        boolean contains(String code){
+            return offsets.get(packCode(code)) >= 0;
+        }
+
+        /**
+         * 표에 있는 공유를 디코딩하고 blob 참조를 잡는다. 없으면 null.
+         * 등록부 map의 computeIfAbsent 안에서 부르고, 넣은 뒤 loaded(code)로 표에서 뺀다.
+         */
+        SharedFile load(String code){
+            int body = offsets.get(packCode(code));
+            return body < 0 ? null : decode(body, true);
+        }
+
+        /**
+         * 디코딩했거나 (map에 들어감) 지우는 공유를 표에서 뺀다. 여러 번 불러도 된다.
+         */
+        void loaded(String code){
+            long key = packCode(code);
+            while(true){
+                int body = offsets.get(key);
+                if(body < 0){
+                    return;
+                }
+                if(offsets.compareAndSet(key, body, LOADED)){
+                    remaining.decrementAndGet();
+                    return;
+                }
+            }
+        }
+
+        /**
+         * 표에만 있는 공유 중 만료된 코드 (sweeper가 디코딩해서 정리). 표의 공유는 다운로드한 적이 없으므로 횟수는 보지 않는다.
+         */
+        List<String> expired(long now){
+            List<String> codes = new ArrayList<>();
+            for(int slot = 0; slot < offsets.capacity(); slot++){
+                int body = offsets.valueAt(slot);
+                if(offsets.keyAt(slot) != 0 && body >= 0 && isExpired(body, now)){
+                    codes.add(unpackCode(offsets.keyAt(slot)));
+                }
+            }
+            return codes;
+        }
+
+        /**
+         * 표에만 있는 공유를 하나씩 임시로 디코딩해 보여 준다 (등록하지 않고 blob 참조도 잡지 않음).
+         */
+        void forEachPending(BiConsumer<String, SharedFile> action){
+            for(int slot = 0; slot < offsets.capacity(); slot++){
+                int body = offsets.valueAt(slot);
+                if(offsets.keyAt(slot) != 0 && body >= 0){
+                    action.accept(unpackCode(offsets.keyAt(slot)), decode(body, false));
+                }
+            }
+        }
+
+        private boolean isExpired(int body, long now){
+            long expiresAt = snapshot.getLong(body + 17);
+            return expiresAt > 0 && now >= expiresAt;
+        }
+
+        private SharedFile decode(int body, boolean retainBlobs){
+            ByteBuffer record = snapshot.slice(body, snapshot.getInt(body - 8));
+            record.position(1 + CODE_LENGTH);
+            return new Decoder(null, retainBlobs).decodeAdd(record);
+        }
+    }
+
+    /*
+    mmap한 log에서 record를 순서대로 적용 (Restored.load에서는 snapshot record 하나를 디코딩).
+    같은 변경이 snapshot과 log에 모두 있을 수 있으므로 (compaction 경계) 모든 적용은 여러 번 해도 결과가 같다.
+    */
+    private final class Decoder {
+        private final Restored restored;
+        // 디코딩하면서 blob 참조를 바로 잡을지 (false면 load 끝에 Restored.retainBlobs가 한꺼번에)
+        private final boolean retainBlobs;
+        // 같은 content type 문자열을 공유해서 메모리 절약
+        private final Map<String, String> strings = new HashMap<>();
+        private final CRC32 crc = new CRC32();
+        private final char[] code = new char[CODE_LENGTH];
+        private byte[] bytes = new byte[256];
+        private long maxCounter;
+
+        Decoder(Restored restored, boolean retainBlobs){
+            this.restored = restored;
+            this.retainBlobs = retainBlobs;
+        }
+
+        /**
+         * @return 적용한 record 수, buffer position은 마지막으로 온전한 record 끝
+         */
+        long replay(ByteBuffer buffer){
+            return forEachRecord(buffer, crc, (body, length) -> apply(buffer.slice(body, length)));
+        }
+
+        private void apply(ByteBuffer body){
+            byte type = body.get();
+            for(int i = 0; i < CODE_LENGTH; i++){
+                code[i] = (char) body.get();
+            }
+            String shareCode = new String(code);
+            Map<String, SharedFile> shares = restored.shares;
+            if(type == REMOVE){
+                shares.remove(shareCode);
+                restored.loaded(shareCode);
+            }
+            else if(type == DOWNLOADS){
+                SharedFile sharedFile = shares.get(shareCode);
+                if(sharedFile == null && restored.contains(shareCode)){
+                    // snapshot 뒤에 받은 공유는 지금 디코딩 (횟수를 표에 따로 두지 않음)
+                    sharedFile = restored.decode(restored.offsets.get(packCode(shareCode)), false);
+                    shares.put(shareCode, sharedFile);
+                    restored.loaded(shareCode);
+                }
+                if(sharedFile != null){
+                    sharedFile.restoreDownloads(body.getInt());
+                }
+            }
+            else if(type == ADD){
+                restored.loaded(shareCode);
+                SharedFile sharedFile = decodeAdd(body);
+                if(sharedFile != null){
+                    shares.put(shareCode, sharedFile);
+                }
+                else{
+                    shares.remove(shareCode);
+                }
+            }
+        }
+
+        private SharedFile decodeAdd(ByteBuffer body){
+            maxCounter = Math.max(maxCounter, body.getLong());
+            long expiresAt = body.getLong();
+            int maxDownloads = body.getInt();
+            int downloads = body.getInt();
+            byte kind = body.get();
+            SharedFile sharedFile;
+            if(kind == KIND_BUNDLE){
+                String name = string(body, false);
+                int count = body.getInt();
+                List<SharedFile.Member> members = new ArrayList<>(count);
+                for(int i = 0; i < count; i++){
+                    String path = string(body, false);
+                    String blobId = blobId(body);
+                    String contentType = string(body, true);
+                    long size = body.getLong();
+                    long crc32 = body.getLong();
+                    long modified = body.getLong();
+                    members.add(new SharedFile.Member(path, blobId, blobPath(blobId), contentType, size, crc32, modified));
+                }
+                if(blobStore == null){
+                    return null;
+                }
+                if(retainBlobs){
+                    for(SharedFile.Member member : members){
+                        blobStore.completeRestore(member.blobId, member.size);
+                    }
+                }
+                sharedFile = SharedFile.bundle(name, members, expiresAt, maxDownloads);
+            }
+            else if(kind == KIND_BLOB){
+                String blobId = blobId(body);
+                String filename = string(body, false);
+                String contentType = string(body, true);
+                long size = body.getLong();
+                if(blobStore == null){
+                    return null;
+                }
+                if(retainBlobs){
+                    blobStore.completeRestore(blobId, size);
+                }
+                sharedFile = new SharedFile(blobId, blobPath(blobId), filename, contentType, size, expiresAt, maxDownloads);
+            }
+            else{
+                String filePath = string(body, false);
+                String filename = string(body, false);
+                String contentType = string(body, true);
+                long size = body.getLong();
+                sharedFile = new SharedFile(filePath, filename, contentType, size, expiresAt, maxDownloads);
+            }
+            sharedFile.restoreDownloads(downloads);
+            return sharedFile;
+        }
+
+        private String blobPath(String blobId){
+            return blobStore == null ? null : blobStore.blobPathString(blobId);
+        }
+
+        private String blobId(ByteBuffer body){
+            body.get(bytes, 0, BLOB_ID_BYTES);
+            return HexFormat.of().formatHex(bytes, 0, BLOB_ID_BYTES);
+        }
+
+        private String string(ByteBuffer body, boolean shared){
+            int length = body.getShort() & 0xffff;
+            if(bytes.length < length){
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            body.get(bytes, 0, length);
+            String value = new String(bytes, 0, length, StandardCharsets.UTF_8);
+            return shared ? strings.computeIfAbsent(value, v -> v) : value;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package p2p.service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import p2p.utils.ShareCodeAllocator;
+
+/**
+ * 공유 코드 -> 공유 파일 등록부.
+ *
+ * 조회는 lock 없이 (ConcurrentHashMap), 등록/삭제는 bin 단위 lock만 잡으므로
+ * HTTP 스레드, share event loop, sweeper가 동시에 써도 안전하다.
+ * 재시작으로 복원한 공유는 처음 조회할 때 색인 snapshot에서 디코딩해 map에 넣는다.
+ */
+public class ShareRegistry {
+
+    private final ConcurrentHashMap<String, SharedFile> shares;
+    private final ShareCodeAllocator allocator;
+    // 아직 디코딩하지 않은 복원 공유 (없으면 null)
+    private final ShareIndex.Restored restored;
+
+    public ShareRegistry(){
+        this(new ShareCodeAllocator());
+    }
+
+    public ShareRegistry(ShareCodeAllocator allocator){
+        this.allocator = allocator;
+        this.shares = new ConcurrentHashMap<>();
+        this.restored = null;
+    }
+
+    /**
+     * 재시작 복원: 색인이 log에서 디코딩해 둔 map을 복사 없이 그대로 쓰고, snapshot의 공유는 조회할 때 디코딩한다.
+     */
+    ShareRegistry(ShareCodeAllocator allocator, ShareIndex.Restored restored){
+        this.allocator = allocator;
+        this.shares = restored.shares;
+        this.restored = restored;
+    }
+
+    /**
+     * 새 코드를 발급해 등록한다. 발급기가 순열이라 같은 프로세스 안에서는 한 번에 성공하고,
+     * putIfAbsent는 외부에서 복원한 코드와 겹치는 경우만 막는다.
+     */
+    public String register(SharedFile sharedFile){
+        return register(sharedFile, code -> true);
+    }
+
+    /**
+     * accept를 통과하는 코드가 나올 때까지 발급한다 (클러스터에서 자기 노드에 떨어지는 코드만 쓰기).
+     * 노드 N개면 평균 N번 발급으로 끝나고, 버린 코드는 다시 나오지 않는다.
+     */
+    public String register(SharedFile sharedFile, Predicate<String> accept){
+        while(true){
+            String code = allocator.next();
+            if(accept.test(code) && shares.putIfAbsent(code, sharedFile) == null){
+                return code;
+            }
+        }
+    }
+
+    /**
+     * 이미 정해진 코드로 등록 (재시작 복원 등). 이미 있으면 false.
+     */
+    public boolean restore(String code, SharedFile sharedFile){
+        if(restored != null && get(code) != null){
+            return false;
+        }
+        return shares.putIfAbsent(code, sharedFile) == null;
+    }
+
+    public SharedFile get(String code){
+        String normalized = ShareCodeAllocator.normalize(code);
+        if(normalized == null){
+            return null;
+        }
+        SharedFile sharedFile = shares.get(normalized);
+        if(sharedFile == null && restored != null && restored.contains(normalized)){
+            // 같은 코드를 동시에 찾으면 bin lock으로 한 번만 디코딩, map에 들어간 뒤에 표에서 뺀다
+            sharedFile = shares.computeIfAbsent(normalized, restored::load);
+            restored.loaded(normalized);
+        }
+        return sharedFile;
+    }
+
+    public boolean contains(String code){
+        return get(code) != null;
+    }
+
+    public boolean remove(String code, SharedFile sharedFile){
+        if(restored != null){
+            // 지운 뒤 다시 디코딩되지 않게 표에서 먼저 뺀다
+            restored.loaded(code);
+        }
+        return shares.remove(code, sharedFile);
+    }
+
+    /**
+     * 디코딩한 공유만. 아직 디코딩하지 않은 복원 공유는 loadExpired, forEachPending으로.
+     */
+    public Set<Map.Entry<String, SharedFile>> entries(){
+        return shares.entrySet();
+    }
+
+    /**
+     * 디코딩하지 않은 복원 공유 중 만료된 것을 디코딩해 entries()에 나오게 한다 (sweeper가 정리).
+     *
+     * @return 디코딩한 수
+     */
+    public int loadExpired(long now){
+        if(restored == null){
+            return 0;
+        }
+        List<String> codes = restored.expired(now);
+        for(String code : codes){
+            get(code);
+        }
+        return codes.size();
+    }
+
+    /**
+     * 디코딩하지 않은 복원 공유를 등록하지 않고 임시로 디코딩해 보여 준다 (파일 확인 등).
+     * 내려야 하면 get(code)로 디코딩한 공유를 remove 한다.
+     */
+    public void forEachPending(BiConsumer<String, SharedFile> action){
+        if(restored != null){
+            restored.forEachPending(action);
+        }
+    }
+
+    public int size(){
+        return shares.size() + (restored == null ? 0 : restored.size());
+    }
+
+    public ShareCodeAllocator getAllocator(){
+        return allocator;
+    }
+}
@@ -0,0 +1,571 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import p2p.utils.Archive;
+import p2p.utils.MerkleTree;
+
+/**
+ * 모든 공유 파일을 하나의 포트에서 서비스하는 selector 기반 서버.
+ *
+ * 클라이언트 프로토콜:
+ * <pre>
+ * client -> server : 7K3QX9MA\n                 (공유 코드)
+ * server -> client : Filename: a.pdf\n
+ *                    Length: 1048576\n
+ *                    Content-Type: application/pdf\n
+ *                    Expires-At: 1767225600000\n      (epoch ms, 0이면 만료 없음)
+ *                    Content-SHA256: ab12...\n   (blob으로 저장된 공유만)
+ *                    Merkle-Root: 9f3c...\n
+ *                    Merkle-Chunk-Size: 1048576\n
+ *                    \n                         + 파일 바이트 (정확히 Length 만큼)
+ *                    Error: ...\n               (코드가 없을 때)
+ * </pre>
+ * 받는 쪽은 Length로 잘린 전송을, 해시로 손상된 전송을 알아낼 수 있다.
+ * 여러 파일 공유는 Filename: 이름.zip, Length: 아카이브 길이로 zip(stored) 스트림을 보낸다.
+ *
+ * 스웜 요청 (Merkle chunk = piece 단위, hashed/스웜으로 받은 공유만, PIECES를 다운로드 한 번으로 셈):
+ * <pre>
+ * 7K3QX9MA PIECES 9091\n  -> Filename, Size, Content-Type, Expires-At, Merkle-Root, Merkle-Chunk-Size,
+ *                           Pieces, Have, Peers, Length 헤더 + leaf 해시 (32바이트 x Pieces)
+ * 7K3QX9MA HAVE 9091\n    -> Pieces, Have, Peers, Length: 0 헤더만
+ * 7K3QX9MA PIECE 12\n     -> Piece: 12\n Length: n\n \n + piece 바이트
+ * </pre>
+ * 9091은 요청한 피어가 piece를 내주는 share 포트 (생략 가능). Have는 가진 piece의 비트필드 (BitSet, base64),
+ * Peers는 같은 코드를 받는 다른 피어들 (host:port,...).
+ * 연결 수와 무관하게 소수의 event loop 스레드만 사용한다.
+ */
+public class ShareServer {
+
+    private static final int MAX_HANDSHAKE = 64;
+
+    private final int requestedPort;
+    private final FileSharer fileSharer;
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running;
+
+    public ShareServer(int port, int threads, FileSharer fileSharer){
+        this.requestedPort = port;
+        this.fileSharer = fileSharer;
+        this.loops = new EventLoop[Math.max(1, threads)];
+    }
+
+    public synchronized void start() throws IOException{
+        if(running){
+            return;
+        }
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(requestedPort), 1024);
+        serverChannel.configureBlocking(false);
+        for(int i = 0; i < loops.length; i++){
+            loops[i] = new EventLoop("share-loop-" + i);
+        }
+        // 0번 loop가 accept도 담당
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        for(EventLoop loop : loops){
+            loop.thread.start();
+        }
+        System.out.println("Share server listening on port " + getPort() + " with " + loops.length + " event loops");
+    }
+
+    public int getPort(){
+        return serverChannel == null ? requestedPort : serverChannel.socket().getLocalPort();
+    }
+
+    public synchronized void stop(){
+        if(!running){
+            return;
+        }
+        running = false;
+        for(EventLoop loop : loops){
+            loop.selector.wakeup();
+        }
+        for(EventLoop loop : loops){
+            try{
+                loop.thread.join(1000);
+            }
+            catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        }
+        try{
+            serverChannel.close();
+        }
+        catch(IOException e){
+            System.out.println("Error closing share server: " + e.getMessage());
+        }
+    }
+
+    private void accept() throws IOException{
+        SocketChannel client;
+        while((client = serverChannel.accept()) != null){
+            client.configureBlocking(false);
+            // 헤더와 piece 끝부분 같은 작은 쓰기가 Nagle + delayed ACK로 수십 ms 묶이지 않도록
+            client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+            loop.pending.add(client);
+            loop.selector.wakeup();
+        }
+    }
+
+    private class EventLoop implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        // 대역폭 제한으로 잠시 쉬는 전송들, 이 loop 스레드만 접근
+        final PriorityQueue<Transfer> paused = new PriorityQueue<>(Comparator.comparingLong(t -> t.resumeAt));
+
+        EventLoop(String name) throws IOException{
+            this.selector = Selector.open();
+            this.thread = new Thread(this, name);
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run(){
+            try{
+                while(running){
+                    selector.select(pauseTimeoutMillis());
+                    resumeDue();
+                    SocketChannel client;
+                    while((client = pending.poll()) != null){
+                        client.register(selector, SelectionKey.OP_READ, new Transfer(client, this));
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while(keys.hasNext()){
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if(!key.isValid()){
+                            continue;
+                        }
+                        if(key.isAcceptable()){
+                            accept();
+                            continue;
+                        }
+                        Transfer transfer = (Transfer) key.attachment();
+                        try{
+                            transfer.handle(key);
+                        }
+                        catch(IOException err){
+                            System.out.println("Error transferring file: " + err.getMessage());
+                            transfer.close();
+                        }
+                    }
+                }
+            }
+            catch(IOException err){
+                System.out.println("Share event loop failed: " + err.getMessage());
+            }
+            finally{
+                for(SelectionKey key : selector.keys()){
+                    if(key.attachment() instanceof Transfer){
+                        ((Transfer) key.attachment()).close();
+                    }
+                }
+                try{
+                    selector.close();
+                }
+                catch(IOException err){
+                    System.out.println("Error closing selector: " + err.getMessage());
+                }
+            }
+        }
+
+        // 쉬는 전송이 없으면 0 (이벤트가 올 때까지 대기)
+        private long pauseTimeoutMillis(){
+            Transfer next = paused.peek();
+            if(next == null){
+                return 0;
+            }
+            return Math.max(1, TimeUnit.NANOSECONDS.toMillis(next.resumeAt - System.nanoTime()));
+        }
+
+        private void resumeDue(){
+            long now = System.nanoTime();
+            while(!paused.isEmpty() && paused.peek().resumeAt <= now){
+                Transfer transfer = paused.poll();
+                if(!transfer.closed && transfer.key.isValid()){
+                    transfer.key.interestOps(SelectionKey.OP_WRITE);
+                }
+            }
+        }
+    }
+
+    /**
+     * 연결 하나의 상태: 핸드셰이크 읽기 -> 헤더 쓰기 -> 파일 전송.
+     */
+    private class Transfer {
+        private final SocketChannel socket;
+        private final EventLoop loop;
+        private final long started = System.nanoTime();
+        private final TransferMetrics metrics = fileSharer.getMetrics();
+        private final ByteBuffer handshake = ByteBuffer.allocate(MAX_HANDSHAKE);
+        private ByteBuffer header;
+        private FileChannel file;
+        private ByteBuffer cached;
+        private Iterator<Archive.Segment> segments;
+        private boolean fromCache;
+        private SharedFile sharedFile;
+        private String code;
+        private BandwidthScheduler.Flow flow;
+        private SelectionKey key;
+        private long resumeAt;
+        private boolean closed;
+        private boolean firstByteSent;
+        private boolean completed;
+        // 에러 응답을 보냄: 다 보내도 다운로드 완료가 아님
+        private boolean failed;
+        private boolean pieceTransfer;
+        private int piece = -1;
+        private long position;
+        private long size;
+        private long sent;
+
+        Transfer(SocketChannel socket, EventLoop loop){
+            this.socket = socket;
+            this.loop = loop;
+            metrics.shareConnections.incrementAndGet();
+        }
+
+        void handle(SelectionKey key) throws IOException{
+            if(key.isReadable() && header == null){
+                readHandshake(key);
+            }
+            if(key.isValid() && key.isWritable() && header != null){
+                write(key);
+            }
+        }
+
+        private void readHandshake(SelectionKey key) throws IOException{
+            if(socket.read(handshake) == -1){
+                close();
+                return;
+            }
+            int newline = -1;
+            for(int i = 0; i < handshake.position(); i++){
+                if(handshake.get(i) == '\n'){
+                    newline = i;
+                    break;
+                }
+            }
+            if(newline == -1){
+                if(!handshake.hasRemaining()){
+                    respondError(key, "Invalid handshake");
+                }
+                return;
+            }
+            String[] request = new String(handshake.array(), 0, newline, StandardCharsets.US_ASCII).trim().split(" ");
+            code = request[0];
+            if(request.length > 1){
+                readPieceRequest(key, request);
+                return;
+            }
+            sharedFile = fileSharer.acquire(code);
+            if(sharedFile == null){
+                respondError(key, "No file is available for code " + code);
+                return;
+            }
+            // 여러 파일 공유는 zip으로 이어 붙여 보냄 (헤더 바이트와 파일 구간을 차례로)
+            Archive archive = sharedFile.isBundle() ? sharedFile.archive(Archive.ZIP) : null;
+            BandwidthScheduler scheduler = fileSharer.getBandwidthScheduler();
+            if(scheduler.isEnabled()){
+                String client = ((InetSocketAddress) socket.getRemoteAddress()).getAddress().getHostAddress();
+                flow = scheduler.open(client, code, archive != null ? archive.length() : sharedFile.size, scheduler.weight("share"));
+            }
+            if(archive != null){
+                segments = archive.segments().iterator();
+                size = archive.length();
+                header = fileHeader();
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            // 자주 받는 파일은 메모리 버퍼에서 바로 전송 (selector 스레드에서는 이미 올라온 것만, 올리기는 백그라운드)
+            cached = fileSharer.loadedContent(sharedFile);
+            if(cached != null){
+                fromCache = true;
+                size = cached.remaining();
+                header = fileHeader();
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            try{
+                file = FileChannel.open(Paths.get(sharedFile.filePath), StandardOpenOption.READ);
+                size = file.size();
+            }
+            catch(IOException e){
+                // 보낸 것이 없으므로 센 횟수를 돌려줌
+                fileSharer.refundDownload(code, sharedFile);
+                respondError(key, "Shared file is no longer available");
+                return;
+            }
+            header = fileHeader();
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        private void readPieceRequest(SelectionKey key, String[] request) throws IOException{
+            pieceTransfer = true;
+            sharedFile = fileSharer.acquirePieces(code, request[1].equals("PIECES"));
+            if(sharedFile == null){
+                respondError(key, "No swarm is available for code " + code);
+                return;
+            }
+            MerkleTree tree = fileSharer.merkleTree(sharedFile);
+            PieceSet pieces = sharedFile.pieces != null ? sharedFile.pieces : PieceSet.full(tree.getChunkCount());
+            try{
+                switch(request[1]){
+                    case "PIECES":
+                    case "HAVE":
+                        header = swarmHeader(tree, pieces, request[1].equals("PIECES"), request.length > 2 ? Integer.parseInt(request[2]) : -1);
+                        break;
+                    case "PIECE":
+                        int index = Integer.parseInt(request[2]);
+                        if(index < 0 || index >= tree.getChunkCount() || !pieces.has(index)){
+                            respondError(key, "Piece " + index + " is not available");
+                            return;
+                        }
+                        piece = index;
+                        position = (long) index * tree.getChunkSize();
+                        size = position + tree.chunkLength(index);
+                        // 받는 중인 파일은 캐시에 올리지 않음 (아직 빈 구간이 있음)
+                        ByteBuffer content = sharedFile.isComplete() ? fileSharer.loadedContent(sharedFile) : null;
+                        if(content != null){
+                            cached = content.position((int) position).limit((int) size);
+                        }
+                        else{
+                            file = FileChannel.open(Paths.get(sharedFile.filePath), StandardOpenOption.READ);
+                        }
+                        header = ByteBuffer.wrap(("Piece: " + index + "\nLength: " + (size - position) + "\n\n").getBytes(StandardCharsets.UTF_8));
+                        BandwidthScheduler scheduler = fileSharer.getBandwidthScheduler();
+                        if(scheduler.isEnabled()){
+                            String client = ((InetSocketAddress) socket.getRemoteAddress()).getAddress().getHostAddress();
+                            flow = scheduler.open(client, code, size - position, scheduler.weight("piece"));
+                        }
+                        break;
+                    default:
+                        respondError(key, "Unknown request " + request[1]);
+                        return;
+                }
+            }
+            catch(NumberFormatException | ArrayIndexOutOfBoundsException e){
+                respondError(key, "Invalid piece request");
+                return;
+            }
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        private ByteBuffer swarmHeader(MerkleTree tree, PieceSet pieces, boolean withMetadata, int peerPort) throws IOException{
+            String self = null;
+            if(peerPort > 0){
+                self = ((InetSocketAddress) socket.getRemoteAddress()).getAddress().getHostAddress() + ":" + peerPort;
+                fileSharer.getSwarmTracker().announce(code, self);
+            }
+            StringBuilder sb = new StringBuilder();
+            if(withMetadata){
+                sb.append("Filename: ").append(sharedFile.filename).append('\n');
+                sb.append("Size: ").append(tree.getSize()).append('\n');
+                sb.append("Content-Type: ").append(sharedFile.contentType).append('\n');
+                sb.append("Expires-At: ").append(sharedFile.expiresAt).append('\n');
+                sb.append("Merkle-Root: ").append(tree.rootHex()).append('\n');
+                sb.append("Merkle-Chunk-Size: ").append(tree.getChunkSize()).append('\n');
+            }
+            sb.append("Pieces: ").append(tree.getChunkCount()).append('\n');
+            sb.append("Have: ").append(pieces.toBase64()).append('\n');
+            sb.append("Peers: ").append(String.join(",", fileSharer.getSwarmTracker().peers(code, self))).append('\n');
+            if(withMetadata){
+                ByteBuffer leaves = ByteBuffer.allocate(tree.getChunkCount() * 32);
+                for(int i = 0; i < tree.getChunkCount(); i++){
+                    leaves.put(tree.leaf(i));
+                }
+                cached = leaves.flip();
+                sb.append("Length: ").append(cached.remaining()).append('\n');
+            }
+            else{
+                sb.append("Length: 0\n");
+            }
+            sb.append('\n');
+            return ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        private ByteBuffer fileHeader(){
+            StringBuilder sb = new StringBuilder();
+            sb.append("Filename: ").append(sharedFile.filename).append(sharedFile.isBundle() ? "." + Archive.ZIP : "").append('\n');
+            sb.append("Length: ").append(size).append('\n');
+            sb.append("Content-Type: ").append(sharedFile.contentType).append('\n');
+            sb.append("Expires-At: ").append(sharedFile.expiresAt).append('\n');
+            if(sharedFile.blobId != null){
+                sb.append("Content-SHA256: ").append(sharedFile.blobId).append('\n');
+            }
+            MerkleTree tree = fileSharer.merkleTree(sharedFile);
+            if(tree != null){
+                sb.append("Merkle-Root: ").append(tree.rootHex()).append('\n');
+                sb.append("Merkle-Chunk-Size: ").append(tree.getChunkSize()).append('\n');
+            }
+            sb.append('\n');
+            return ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void respondError(SelectionKey key, String message){
+            failed = true;
+            header = ByteBuffer.wrap(("Error: " + message + "\n").getBytes(StandardCharsets.UTF_8));
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        private void write(SelectionKey key) throws IOException{
+            if(header.hasRemaining()){
+                if(socket.write(header) > 0 && !firstByteSent){
+                    firstByteSent = true;
+                    metrics.shareFirstByteNanos.record(System.nanoTime() - started);
+                }
+                if(header.hasRemaining()){
+                    return;
+                }
+            }
+            do{
+                if(cached != null && cached.hasRemaining()){
+                    int limit = cached.limit();
+                    if(flow != null){
+                        cached.limit((int) Math.min(limit, cached.position() + (long) flow.quantum()));
+                    }
+                    int written = socket.write(cached);
+                    cached.limit(limit);
+                    countSent(written);
+                    if(cached.hasRemaining()){
+                        throttle(key, written);
+                        return;
+                    }
+                }
+                else if(file != null && position < size){
+                    // 소켓 버퍼가 찰 때까지만 보내고 다음 OP_WRITE를 기다림
+                    long count = flow == null ? size - position : Math.min(size - position, flow.quantum());
+                    long transferred = file.transferTo(position, count, socket);
+                    if(transferred == 0 && position >= file.size()){
+                        // 연 뒤에 파일이 잘림: 더 보낼 바이트가 없어 OP_WRITE마다 헛돌게 되므로 실패로 끊음
+                        System.out.println("Shared file truncated at " + position + " of " + size + " for code " + code);
+                        close();
+                        return;
+                    }
+                    position += transferred;
+                    countSent(transferred);
+                    if(position < size){
+                        throttle(key, transferred);
+                        return;
+                    }
+                }
+            } while(nextSegment());
+            if(sharedFile != null && !pieceTransfer && !failed){
+                System.out.println("File (" + sharedFile.filename + ") transferred " + (fromCache ? "from cache" : "successfully")
+                        + " to: " + socket.getRemoteAddress());
+            }
+            // 에러 응답이 아니면 끝까지 보낸 것
+            completed = sharedFile != null && !failed;
+            close();
+        }
+
+        /*
+        아카이브 전송: 다음 구간을 cached(헤더 바이트) 또는 file(파일 전체)로 올린다. 더 없으면 false.
+        */
+        private boolean nextSegment() throws IOException{
+            if(segments == null || !segments.hasNext()){
+                return false;
+            }
+            Archive.Segment segment = segments.next();
+            if(file != null){
+                file.close();
+                file = null;
+            }
+            if(segment.bytes != null){
+                cached = ByteBuffer.wrap(segment.bytes);
+            }
+            else{
+                cached = null;
+                file = FileChannel.open(segment.file, StandardOpenOption.READ);
+                position = 0;
+                size = segment.length;
+            }
+            return true;
+        }
+
+        /*
+        대역폭 제한에 걸리면 OP_WRITE를 끄고 정해진 시간 뒤에 loop가 다시 켠다
+        */
+        private void throttle(SelectionKey key, long sent){
+            if(flow == null || sent <= 0){
+                return;
+            }
+            long delay = flow.take(sent);
+            if(delay > 0){
+                this.key = key;
+                resumeAt = System.nanoTime() + delay;
+                key.interestOps(0);
+                loop.paused.add(this);
+            }
+        }
+
+        private void countSent(long bytes){
+            sent += bytes;
+            metrics.shareBytesSent.add(bytes);
+        }
+
+        void close(){
+            if(closed){
+                return;
+            }
+            closed = true;
+            metrics.shareConnections.decrementAndGet();
+            if(flow != null){
+                flow.close();
+            }
+            if(sharedFile != null && pieceTransfer){
+                if(completed && piece >= 0){
+                    metrics.swarmPiecesServed.increment();
+                }
+                fileSharer.release(sharedFile);
+            }
+            else if(sharedFile != null){
+                if(completed){
+                    metrics.shareDownloadsCompleted.increment();
+                    TransferMetrics.recordThroughput(metrics.shareDownloadThroughput, sent, System.nanoTime() - started);
+                    fileSharer.downloadCompleted(code, sharedFile);
+                }
+                else{
+                    metrics.shareDownloadsFailed.increment();
+                }
+                fileSharer.release(sharedFile);
+            }
+            try{
+                if(file != null){
+                    file.close();
+                }
+            }
+            catch(IOException err){
+                System.out.println("Error closing shared file: " + err.getMessage());
+            }
+            try{
+                socket.close();
+            }
+            catch(IOException err){
+                System.out.println("Error closing client socket: " + err.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package p2p.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import p2p.utils.Archive;
+import p2p.utils.MerkleTree;
+
+/**
+ * 공유 코드에 묶인 파일 정보. 다운로드 시 Content-Length, 파일 이름을 미리 알기 위함.
+ *
+ * 하나의 공유는 만료 시각(expiresAt) 또는 최대 다운로드 횟수(maxDownloads)에 도달할 때까지
+ * 여러 클라이언트가 동시에 받을 수 있다. 0이면 제한 없음.
+ */
+public class SharedFile {
+    public final String blobId;
+    public final String filePath;
+    public final String filename;
+    public final String contentType;
+    public final long size;
+    public final long expiresAt;
+    public final int maxDownloads;
+    // 스웜으로 내주는 공유만 (hashed, partial): chunk 트리 / 받는 중이면 지금까지 받은 piece (나머지 공유는 null)
+    public final MerkleTree merkle;
+    public final PieceSet pieces;
+    // 여러 파일 공유만: 아카이브 안 경로 -> 파일 (업로드 순서 유지, 나머지 공유는 null)
+    public final Map<String, Member> members;
+
+    // 재시작 복원 때 공유가 수백만 개일 수 있으므로 Atomic 객체 대신 필드 updater (공유당 객체 3개 절약)
+    private static final AtomicIntegerFieldUpdater<SharedFile> DOWNLOADS = AtomicIntegerFieldUpdater.newUpdater(SharedFile.class, "downloads");
+    private static final AtomicIntegerFieldUpdater<SharedFile> ACTIVE_READERS = AtomicIntegerFieldUpdater.newUpdater(SharedFile.class, "activeReaders");
+    private static final AtomicIntegerFieldUpdater<SharedFile> DELETED = AtomicIntegerFieldUpdater.newUpdater(SharedFile.class, "deleted");
+    private volatile int downloads;
+    private volatile int activeReaders;
+    private volatile int deleted;
+    private volatile boolean retired;
+
+    public SharedFile(String filePath, String filename, String contentType, long size){
+        this(filePath, filename, contentType, size, 0, 0);
+    }
+
+    public SharedFile(String filePath, String filename, String contentType, long size, long expiresAt, int maxDownloads){
+        this(null, filePath, filename, contentType, size, expiresAt, maxDownloads);
+    }
+
+    public SharedFile(String blobId, String filePath, String filename, String contentType, long size, long expiresAt, int maxDownloads){
+        this(blobId, filePath, filename, contentType, size, expiresAt, maxDownloads, null, null, null);
+    }
+
+    private SharedFile(String blobId, String filePath, String filename, String contentType, long size, long expiresAt, int maxDownloads,
+                       MerkleTree merkle, PieceSet pieces, Map<String, Member> members){
+        this.blobId = blobId;
+        this.filePath = filePath;
+        this.filename = filename;
+        this.contentType = contentType;
+        this.size = size;
+        this.expiresAt = expiresAt;
+        this.maxDownloads = maxDownloads;
+        this.merkle = merkle;
+        this.pieces = pieces;
+        this.members = members;
+    }
+
+    public static SharedFile of(String filePath){
+        File file = new File(filePath);
+        return new SharedFile(filePath, file.getName(), "application/octet-stream", file.length());
+    }
+
+    public static SharedFile fromBlob(BlobStore.Blob blob, String filename, String contentType, long expiresAt, int maxDownloads){
+        return new SharedFile(blob.id, blob.getPath().toString(), filename, contentType, blob.size, expiresAt, maxDownloads);
+    }
+
+    /**
+     * 로컬 파일을 chunk 단위로 해시해 두고 공유한다. 이렇게 올린 공유는 스웜 piece로도 내줄 수 있다.
+     */
+    public static SharedFile hashed(String filePath, int chunkSize) throws IOException{
+        MerkleTree.Builder builder = MerkleTree.builder(chunkSize);
+        try(FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)){
+            ByteBuffer buffer = ByteBuffer.allocate(256 * 1024);
+            while(channel.read(buffer) != -1){
+                builder.update(buffer.flip());
+                buffer.clear();
+            }
+        }
+        MerkleTree merkle = builder.build();
+        return new SharedFile(null, filePath, new File(filePath).getName(), "application/octet-stream", merkle.getSize(), 0, 0,
+                merkle, null, null);
+    }
+
+    /**
+     * 스웜으로 받기 시작한 파일. piece가 다 모이기 전에도 가진 piece는 다른 피어에게 내준다.
+     */
+    public static SharedFile partial(String filePath, String filename, String contentType, long expiresAt, MerkleTree merkle){
+        return new SharedFile(null, filePath, filename, contentType, merkle.getSize(), expiresAt, 0,
+                merkle, new PieceSet(merkle.getChunkCount()), null);
+    }
+
+    /**
+     * 한 번에 올린 여러 파일을 하나의 공유로 묶는다. 받을 때는 zip/tar로 이어 붙여 주고, 경로로 하나씩도 받을 수 있다.
+     * size는 파일 크기 합 (아카이브 길이는 형식마다 다름).
+     */
+    public static SharedFile bundle(String name, List<Member> members, long expiresAt, int maxDownloads){
+        Map<String, Member> byPath = new LinkedHashMap<>();
+        long size = 0;
+        for(Member member : members){
+            if(byPath.putIfAbsent(member.path, member) != null){
+                throw new IllegalArgumentException("Duplicate file path: " + member.path);
+            }
+            size += member.size;
+        }
+        return new SharedFile(null, null, name, "application/zip", size, expiresAt, maxDownloads,
+                null, null, Collections.unmodifiableMap(byPath));
+    }
+
+    /**
+     * 스웜 piece로 내주기로 한 공유인지 (hashed로 올렸거나 스웜으로 받는 중/받은 공유).
+     * 업로드한 blob 공유는 횟수 제한을 piece 요청으로 우회할 수 없도록 piece로 내주지 않는다.
+     */
+    public boolean isSwarmSeed(){
+        return merkle != null;
+    }
+
+    public boolean isBundle(){
+        return members != null;
+    }
+
+    /**
+     * 여러 파일 공유를 format(zip, tar) 스트림으로 늘어놓은 배치도.
+     */
+    public Archive archive(String format){
+        List<Archive.Entry> entries = new ArrayList<>(members.size());
+        long modified = 0;
+        for(Member member : members.values()){
+            entries.add(new Archive.Entry(member.path, Paths.get(member.filePath), member.size, member.crc32));
+            modified = Math.max(modified, member.modified);
+        }
+        return Archive.of(format, entries, modified);
+    }
+
+    /**
+     * 파일 전체를 내줄 수 있는지 (스웜으로 받는 중이면 false).
+     */
+    public boolean isComplete(){
+        return pieces == null || pieces.isComplete();
+    }
+
+    public boolean isExpired(long now){
+        return expiresAt > 0 && now >= expiresAt;
+    }
+
+    public boolean isExhausted(){
+        return maxDownloads > 0 && downloads >= maxDownloads;
+    }
+
+    public int getDownloads(){
+        return downloads;
+    }
+
+    public int getActiveReaders(){
+        return activeReaders;
+    }
+
+    /**
+     * 재시작 복원: 색인에 남아 있던 다운로드 수 (같은 공유의 record가 여러 번 적용돼도 줄지 않음).
+     */
+    void restoreDownloads(int count){
+        DOWNLOADS.accumulateAndGet(this, count, Math::max);
+    }
+
+    /**
+     * 다운로드 슬롯 하나를 잡는다. 성공하면 전송이 끝난 뒤 반드시 release() 호출.
+     */
+    boolean tryAcquire(long now, boolean countDownload){
+        // reader를 먼저 올려 두어야 retire와 경쟁해도 사용 중인 파일이 지워지지 않음
+        ACTIVE_READERS.incrementAndGet(this);
+        // 정리됐거나 만료된 공유는 횟수를 올리기 전에 거절 (받지도 못한 다운로드로 횟수가 줄지 않게)
+        if(retired || isExpired(now) || !(countDownload ? countDownload() : !isExhausted())){
+            ACTIVE_READERS.decrementAndGet(this);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * tryAcquire에서 센 다운로드를 되돌린다 (파일을 열지 못해 아무것도 보내지 못한 경우).
+     */
+    void refundDownload(){
+        DOWNLOADS.getAndUpdate(this, current -> Math.max(0, current - 1));
+    }
+
+    /**
+     * 이미 한 번 센 묶음 다운로드 세션 안의 요청. 횟수를 다 썼어도 만료 전이면 받는다.
+     */
+    boolean tryAcquireInSession(long now){
+        ACTIVE_READERS.incrementAndGet(this);
+        if(retired || isExpired(now)){
+            ACTIVE_READERS.decrementAndGet(this);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean countDownload(){
+        if(maxDownloads <= 0){
+            DOWNLOADS.incrementAndGet(this);
+            return true;
+        }
+        int current;
+        do{
+            current = downloads;
+            if(current >= maxDownloads){
+                return false;
+            }
+        }while(!DOWNLOADS.compareAndSet(this, current, current + 1));
+        return true;
+    }
+
+    /**
+     * @return 이미 retire 되었고 마지막 reader였으면 true (파일을 지워도 됨)
+     */
+    boolean release(){
+        return ACTIVE_READERS.decrementAndGet(this) == 0 && retired;
+    }
+
+    /**
+     * @return 읽는 중인 reader가 없어 바로 파일을 지워도 되면 true
+     */
+    boolean retire(){
+        retired = true;
+        return activeReaders == 0;
+    }
+
+    /**
+     * 파일 삭제는 sweeper, 마지막 reader 중 한 곳에서만 수행.
+     */
+    boolean markDeleted(){
+        return DELETED.compareAndSet(this, 0, 1);
+    }
+
+    /**
+     * 여러 파일 공유 안의 파일 하나 (blob 하나).
+     */
+    public static class Member {
+        public final String path;
+        public final String blobId;
+        public final String filePath;
+        public final String contentType;
+        public final long size;
+        public final long crc32;
+        public final long modified;
+
+        public Member(String path, BlobStore.Blob blob, String contentType, long crc32, long modified){
+            this(path, blob.id, blob.getPath().toString(), contentType, blob.size, crc32, modified);
+        }
+
+        public Member(String path, String blobId, String filePath, String contentType, long size, long crc32, long modified){
+            this.path = path;
+            this.blobId = blobId;
+            this.filePath = filePath;
+            this.contentType = contentType;
+            this.size = size;
+            this.crc32 = crc32;
+            this.modified = modified;
+        }
+
+        /**
+         * 경로로 하나만 받을 때 쓰는 공유 모양 (등록하지 않음, 만료/횟수는 묶음 공유 기준).
+         */
+        public SharedFile asSharedFile(){
+            return new SharedFile(blobId, filePath, path.substring(path.lastIndexOf('/') + 1), contentType, size, 0, 0);
+        }
+    }
+}
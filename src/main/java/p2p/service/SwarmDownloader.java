@@ -0,0 +1,411 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import p2p.utils.MerkleTree;
+
+/**
+ * 같은 공유를 가진 여러 피어에게서 piece를 동시에 받는 스웜 다운로드.
+ *
+ * 1. 원본 피어에게 PIECES를 물어 파일 정보, leaf 해시, 다른 피어 목록을 받는다
+ * 2. 받을 파일을 같은 코드로 로컬 FileSharer에 등록해 두고, 받은 piece는 바로 다른 피어에게 내준다
+ * 3. 주기적으로 알고 있는 피어들에게 HAVE를 물어 누가 어떤 piece를 가졌는지 갱신한다
+ * 4. 작업 스레드들은 가진 피어가 가장 적은 piece부터 (rarest-first), 그중 덜 바쁜 피어에게 요청한다
+ *    - 원본에만 있는 piece가 먼저 퍼지므로 원본이 병목이 되지 않는다
+ * 5. piece마다 leaf 해시로 검증하고, 틀린 데이터를 준 피어는 버린다
+ *
+ * 다 받은 뒤에도 등록된 공유는 남아 있으므로 이 피어가 계속 seed가 된다.
+ */
+public class SwarmDownloader {
+    public static final int DEFAULT_PARALLELISM = 8;
+    public static final int MAX_REQUESTS_PER_PEER = 4;
+    private static final int MAX_PEER_FAILURES = 3;
+    private static final long REFRESH_MILLIS = 500;
+    private static final long STALL_TIMEOUT_MILLIS = 30_000;
+    // 피어가 알려 준 목록은 믿지 않음: 한 응답에서 트래커 한도만큼, 전체로도 이만큼만 받아들임
+    static final int MAX_PEERS = 200;
+    private static final Pattern PEER_ADDRESS = Pattern.compile("[A-Za-z0-9.:%-]{1,255}:(\\d{1,5})");
+
+    private final FileSharer local;
+    private final String code;
+    private final Path target;
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    private int parallelism = DEFAULT_PARALLELISM;
+    private String expectedRoot;
+
+    // download() 동안만 쓰는 상태, pieces/inFlight/Peer 필드는 this로 보호
+    private MerkleTree tree;
+    private SharedFile sharedFile;
+    private FileChannel channel;
+    // 파일 크기만큼 잡아 두고 piece를 쓸 때마다 줄임 (this로 보호)
+    private DiskSpaceBudget.Reservation reservation;
+    private BitSet inFlight;
+    private volatile long lastProgress;
+    private volatile IOException failure;
+
+    /**
+     * @param local  받은 piece를 내줄 로컬 피어 (startFileServer 된 상태여야 다른 피어가 받아 갈 수 있음)
+     * @param origin 코드를 가진 피어의 share 주소 (host:port)
+     * @param target 받을 파일 위치
+     */
+    public SwarmDownloader(FileSharer local, String code, String origin, Path target){
+        this.local = local;
+        this.code = code;
+        this.target = target;
+        peers.put(origin, new Peer(origin));
+    }
+
+    public SwarmDownloader parallelism(int parallelism){
+        this.parallelism = Math.max(1, parallelism);
+        return this;
+    }
+
+    /**
+     * 원본 피어와 별개로 알고 있는 Merkle root (hex). 주면 받은 leaf 목록을 이 값으로 검증한다.
+     */
+    public SwarmDownloader expectRoot(String rootHex){
+        this.expectedRoot = rootHex;
+        return this;
+    }
+
+    /**
+     * 끝까지 받고 로컬에 등록된 공유를 돌려준다.
+     */
+    public SharedFile download() throws IOException, InterruptedException{
+        fetchMetadata();
+        reservation = local.reserve(tree.getSize(), "swarm download of " + code);
+        // 예전 파일이 남아 있으면 비우고 시작 (마지막 piece를 쓰면 정확히 원본 크기가 됨)
+        channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE, StandardOpenOption.READ);
+        ExecutorService workers = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("swarm-" + code + "-", 0).factory());
+        long started = System.nanoTime();
+        local.offerPartial(code, sharedFile);
+        boolean done = false;
+        try{
+            lastProgress = System.currentTimeMillis();
+            for(int i = 0; i < parallelism; i++){
+                workers.execute(this::work);
+            }
+            // 이 스레드는 피어 목록/보유 piece 갱신만 담당
+            while(!sharedFile.pieces.isComplete()){
+                refreshPeers();
+                synchronized(this){
+                    if(failure == null && !sharedFile.pieces.isComplete()){
+                        wait(REFRESH_MILLIS);
+                    }
+                }
+                if(failure != null){
+                    throw failure;
+                }
+                if(System.currentTimeMillis() - lastProgress > STALL_TIMEOUT_MILLIS){
+                    throw new IOException("Swarm download of " + code + " stalled with "
+                            + sharedFile.pieces.cardinality() + "/" + tree.getChunkCount() + " pieces");
+                }
+            }
+            channel.force(true);
+            done = true;
+        }
+        finally{
+            workers.shutdownNow();
+            workers.awaitTermination(5, TimeUnit.SECONDS);
+            channel.close();
+            if(reservation != null){
+                reservation.close();
+            }
+            if(!done){
+                // 반쯤 받은 파일을 계속 내주지 않도록 등록만 내림 (파일은 남겨 둠)
+                local.withdraw(code, sharedFile);
+            }
+        }
+        local.partialCompleted(code, sharedFile);
+        System.out.println("Swarm download of " + code + " finished: " + tree.getChunkCount() + " pieces from "
+                + peers.size() + " peers in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms");
+        return sharedFile;
+    }
+
+    private void fetchMetadata() throws IOException{
+        Peer origin = peers.values().iterator().next();
+        try(PeerClient client = request(origin, "PIECES " + local.getSharePort())){
+            if(client.isError()){
+                throw new IOException("Origin refused " + code + ": " + client.error);
+            }
+            long size = Long.parseLong(required(client, "Size"));
+            int chunkSize = Integer.parseInt(required(client, "Merkle-Chunk-Size"));
+            int count = Integer.parseInt(required(client, "Pieces"));
+            if(client.length != (long) count * 32){
+                throw new IOException("Origin sent " + client.length + " bytes of piece hashes for " + count + " pieces");
+            }
+            byte[][] leaves = new byte[count][32];
+            InputStream in = client.body();
+            for(byte[] leaf : leaves){
+                if(in.readNBytes(leaf, 0, leaf.length) != leaf.length){
+                    throw new IOException("Origin closed while sending piece hashes");
+                }
+            }
+            tree = MerkleTree.fromLeaves(chunkSize, size, leaves);
+            inFlight = new BitSet(count);
+            String root = expectedRoot != null ? expectedRoot : client.merkleRoot;
+            if(root == null || !HexFormat.of().formatHex(HexFormat.of().parseHex(root)).equals(tree.rootHex())){
+                throw new IOException("Piece hashes do not match the Merkle root of " + code);
+            }
+            sharedFile = SharedFile.partial(target.toString(), client.filename, client.contentType, client.expiresAt, tree);
+            update(origin, client);
+        }
+        catch(IllegalArgumentException e){
+            throw new IOException("Invalid swarm metadata for " + code + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void refreshPeers(){
+        for(Peer peer : new ArrayList<>(peers.values())){
+            if(peer.banned){
+                continue;
+            }
+            try(PeerClient client = request(peer, "HAVE " + local.getSharePort())){
+                if(client.isError()){
+                    // 아직 이 코드를 등록하지 않은 피어일 수 있음 (다음 갱신 때 다시)
+                    synchronized(this){
+                        peer.have = null;
+                    }
+                    continue;
+                }
+                update(peer, client);
+            }
+            catch(IOException | IllegalArgumentException e){
+                synchronized(this){
+                    peer.have = null;
+                }
+            }
+        }
+    }
+
+    private void update(Peer peer, PeerClient client){
+        PieceSet have = PieceSet.fromBase64(required(client, "Have"), tree.getChunkCount());
+        synchronized(this){
+            peer.have = have;
+            peer.failures = 0;
+            notifyAll();
+        }
+        String list = client.header("Peers");
+        if(list != null && !list.isEmpty()){
+            int accepted = 0;
+            for(String address : list.split(",")){
+                address = address.trim();
+                if(accepted == SwarmTracker.MAX_PEERS_PER_REPLY || peers.size() >= MAX_PEERS){
+                    break;
+                }
+                if(isValidPeerAddress(address) && peers.putIfAbsent(address, new Peer(address)) == null){
+                    accepted++;
+                }
+            }
+        }
+    }
+
+    /*
+    host:port, 포트 1..65535. IPv6는 트래커가 쓰는 그대로 (대괄호 없이, 마지막 ':' 뒤가 포트)
+    */
+    static boolean isValidPeerAddress(String address){
+        Matcher matcher = PEER_ADDRESS.matcher(address);
+        if(!matcher.matches()){
+            return false;
+        }
+        int port = Integer.parseInt(matcher.group(1));
+        return port > 0 && port <= 65535;
+    }
+
+    private void work(){
+        byte[] buffer = new byte[tree.getChunkSize()];
+        while(!Thread.currentThread().isInterrupted()){
+            Assignment assignment;
+            try{
+                assignment = next();
+            }
+            catch(InterruptedException e){
+                return;
+            }
+            if(assignment == null){
+                return;
+            }
+            boolean ok = false;
+            try{
+                ok = fetch(assignment, buffer);
+            }
+            catch(IOException e){
+                System.out.println("Swarm piece " + assignment.piece + " from " + assignment.peer.address + " failed: " + e.getMessage());
+            }
+            catch(RuntimeException e){
+                synchronized(this){
+                    failure = new IOException("Swarm worker failed: " + e.getMessage(), e);
+                    notifyAll();
+                }
+                return;
+            }
+            finish(assignment, ok);
+        }
+    }
+
+    /*
+    rarest-first: 아직 없고 요청 중이 아닌 piece 중 가진 피어 수가 가장 적은 것 (같으면 무작위),
+    그 piece를 가진 피어 중 요청이 가장 적은 피어. 받을 게 없으면 갱신/완료를 기다림.
+    */
+    private synchronized Assignment next() throws InterruptedException{
+        while(!sharedFile.pieces.isComplete() && failure == null){
+            BitSet wanted = sharedFile.pieces.missing();
+            wanted.andNot(inFlight);
+            int best = -1;
+            int bestCount = Integer.MAX_VALUE;
+            int ties = 0;
+            for(int i = wanted.nextSetBit(0); i >= 0; i = wanted.nextSetBit(i + 1)){
+                int count = 0;
+                boolean requestable = false;
+                for(Peer peer : peers.values()){
+                    if(peer.usable() && peer.have.has(i)){
+                        count++;
+                        requestable |= peer.active < MAX_REQUESTS_PER_PEER;
+                    }
+                }
+                if(!requestable || count > bestCount){
+                    continue;
+                }
+                if(count < bestCount){
+                    best = i;
+                    bestCount = count;
+                    ties = 1;
+                }
+                else if(ThreadLocalRandom.current().nextInt(++ties) == 0){
+                    best = i;
+                }
+            }
+            if(best >= 0){
+                Peer chosen = null;
+                for(Peer peer : peers.values()){
+                    if(peer.usable() && peer.have.has(best) && peer.active < MAX_REQUESTS_PER_PEER
+                            && (chosen == null || peer.active < chosen.active)){
+                        chosen = peer;
+                    }
+                }
+                chosen.active++;
+                inFlight.set(best);
+                return new Assignment(best, chosen);
+            }
+            wait(REFRESH_MILLIS);
+        }
+        return null;
+    }
+
+    private boolean fetch(Assignment assignment, byte[] buffer) throws IOException{
+        int length = tree.chunkLength(assignment.piece);
+        try(PeerClient client = request(assignment.peer, "PIECE " + assignment.piece)){
+            if(client.isError() || client.length != length){
+                return false;
+            }
+            if(client.body().readNBytes(buffer, 0, length) != length){
+                throw new IOException("Peer closed during piece " + assignment.piece);
+            }
+        }
+        if(!tree.verifyChunk(assignment.piece, buffer, 0, length)){
+            System.out.println("Swarm piece " + assignment.piece + " from " + assignment.peer.address + " failed verification");
+            synchronized(this){
+                // 틀린 데이터를 준 피어는 더 이상 쓰지 않음
+                assignment.peer.banned = true;
+            }
+            return false;
+        }
+        ByteBuffer bb = ByteBuffer.wrap(buffer, 0, length);
+        long position = (long) assignment.piece * tree.getChunkSize();
+        while(bb.hasRemaining()){
+            position += channel.write(bb, position);
+        }
+        if(reservation != null){
+            synchronized(this){
+                reservation.consume(length);
+            }
+        }
+        local.getMetrics().bytesReceived.add(length);
+        return true;
+    }
+
+    private synchronized void finish(Assignment assignment, boolean ok){
+        assignment.peer.active--;
+        inFlight.clear(assignment.piece);
+        if(ok){
+            // 이 시점부터 다른 피어에게 내줄 수 있음
+            sharedFile.pieces.add(assignment.piece);
+            local.getMetrics().swarmPiecesFetched.increment();
+            lastProgress = System.currentTimeMillis();
+        }
+        else{
+            local.getMetrics().swarmPiecesFailed.increment();
+            // 연달아 실패한 피어는 다음 HAVE 갱신에 성공할 때까지 쓰지 않음
+            assignment.peer.failures++;
+        }
+        notifyAll();
+    }
+
+    private PeerClient request(Peer peer, String command) throws IOException{
+        int colon = peer.address.lastIndexOf(':');
+        if(colon <= 0){
+            throw new IllegalArgumentException("Invalid peer address: " + peer.address);
+        }
+        return PeerClient.open(peer.address.substring(0, colon), Integer.parseInt(peer.address.substring(colon + 1)),
+                code + " " + command, FileSharer.PEER_TIMEOUT_MILLIS);
+    }
+
+    private static String required(PeerClient client, String name){
+        String value = client.header(name);
+        if(value == null){
+            throw new IllegalArgumentException("Missing " + name + " header");
+        }
+        return value;
+    }
+
+    /**
+     * @return 지금까지 알게 된 피어 수 (원본 포함)
+     */
+    public int getPeerCount(){
+        return peers.size();
+    }
+
+    private static class Peer {
+        final String address;
+        // 아래 필드는 SwarmDownloader 인스턴스 lock으로 보호
+        PieceSet have;
+        int active;
+        int failures;
+        boolean banned;
+
+        Peer(String address){
+            this.address = address;
+        }
+
+        boolean usable(){
+            return have != null && !banned && failures < MAX_PEER_FAILURES;
+        }
+    }
+
+    private static class Assignment {
+        final int piece;
+        final Peer peer;
+
+        Assignment(int piece, Peer peer){
+            this.piece = piece;
+            this.peer = peer;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package p2p.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 공유 코드별로 piece를 주고받는 피어 주소 목록 (peer exchange).
+ *
+ * 스웜 다운로더는 piece 목록을 물을 때 자기 share 포트를 같이 알려 주고,
+ * 응답으로 같은 코드를 받는 다른 피어들을 돌려받는다. 처음 물어보는 곳이 원본 피어이므로
+ * 원본이 자연스럽게 tracker 역할을 하고, 이후에는 피어끼리 목록을 퍼뜨린다.
+ */
+public class SwarmTracker {
+    public static final int MAX_PEERS_PER_REPLY = 50;
+    public static final long PEER_TTL_MILLIS = 2 * 60 * 1000;
+
+    private final Map<String, Map<String, Long>> swarms = new ConcurrentHashMap<>();
+
+    /**
+     * @param address host:port (피어의 share 포트)
+     */
+    public void announce(String code, String address){
+        swarms.computeIfAbsent(code, c -> new ConcurrentHashMap<>()).put(address, System.currentTimeMillis());
+    }
+
+    /**
+     * 최근에 알린 피어들, 요청한 피어 자신은 빼고 최대 MAX_PEERS_PER_REPLY 개.
+     */
+    public List<String> peers(String code, String exclude){
+        Map<String, Long> swarm = swarms.get(code);
+        List<String> peers = new ArrayList<>();
+        if(swarm == null){
+            return peers;
+        }
+        long cutoff = System.currentTimeMillis() - PEER_TTL_MILLIS;
+        for(Map.Entry<String, Long> entry : swarm.entrySet()){
+            if(entry.getValue() < cutoff){
+                swarm.remove(entry.getKey(), entry.getValue());
+            }
+            else if(!entry.getKey().equals(exclude) && peers.size() < MAX_PEERS_PER_REPLY){
+                peers.add(entry.getKey());
+            }
+        }
+        return peers;
+    }
+
+    public void forget(String code){
+        swarms.remove(code);
+    }
+}
@@ -0,0 +1,95 @@
+package p2p.service;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import p2p.utils.LogHistogram;
+import p2p.utils.PrometheusWriter;
+
+/**
+ * 업로드/다운로드 전송 계측.
+ *
+ * 모든 기록은 LongAdder, AtomicLongArray 증가뿐이라 lock, 할당이 없다.
+ * 바이트 수는 chunk마다 더하고, 시간/처리량은 전송 한 건이 끝날 때 한 번 기록한다.
+ * 공유 코드는 그 자체가 접근 권한이므로 label로 내보내지 않는다.
+ */
+public class TransferMetrics {
+    // 지연: 나노초 기록, 2^10ns(~1us) ~ 2^36ns(~69s) 구간으로 노출
+    private static final int LATENCY_MIN_EXP = 10;
+    private static final int LATENCY_MAX_EXP = 36;
+    // 처리량: bytes/s 기록, 2^10 (1KiB/s) ~ 2^34 (16GiB/s)
+    private static final int THROUGHPUT_MIN_EXP = 10;
+    private static final int THROUGHPUT_MAX_EXP = 34;
+    private static final double NANOS = 1e-9;
+
+    public final LogHistogram uploadParseNanos = latency();
+    public final LogHistogram uploadDiskWriteNanos = latency();
+    public final LogHistogram httpFirstByteNanos = latency();
+    public final LogHistogram shareFirstByteNanos = latency();
+    public final LogHistogram uploadThroughput = new LogHistogram(THROUGHPUT_MIN_EXP, THROUGHPUT_MAX_EXP);
+    public final LogHistogram httpDownloadThroughput = new LogHistogram(THROUGHPUT_MIN_EXP, THROUGHPUT_MAX_EXP);
+    public final LogHistogram shareDownloadThroughput = new LogHistogram(THROUGHPUT_MIN_EXP, THROUGHPUT_MAX_EXP);
+
+    public final LongAdder bytesReceived = new LongAdder();
+    public final LongAdder httpBytesSent = new LongAdder();
+    public final LongAdder shareBytesSent = new LongAdder();
+
+    public final LongAdder httpDownloadsCompleted = new LongAdder();
+    public final LongAdder httpDownloadsFailed = new LongAdder();
+    public final LongAdder shareDownloadsCompleted = new LongAdder();
+    public final LongAdder shareDownloadsFailed = new LongAdder();
+    public final LongAdder uploadsCompleted = new LongAdder();
+    public final LongAdder uploadsFailed = new LongAdder();
+    // 스웜: 다른 피어에게 내준 piece, 받아서 검증까지 끝낸 piece, 실패/해시 불일치로 버린 piece
+    public final LongAdder swarmPiecesServed = new LongAdder();
+    public final LongAdder swarmPiecesFetched = new LongAdder();
+    public final LongAdder swarmPiecesFailed = new LongAdder();
+
+    public final AtomicInteger shareConnections = new AtomicInteger();
+
+    private static LogHistogram latency(){
+        return new LogHistogram(LATENCY_MIN_EXP, LATENCY_MAX_EXP);
+    }
+
+    /**
+     * 끝난 전송 한 건의 처리량 기록 (bytes/s).
+     */
+    public static void recordThroughput(LogHistogram histogram, long bytes, long elapsedNanos){
+        if(bytes > 0 && elapsedNanos > 0){
+            histogram.record((long) (bytes * 1e9 / elapsedNanos));
+        }
+    }
+
+    public void writeTo(PrometheusWriter writer){
+        writer.histogram("p2p_upload_parse_seconds", "Time to parse and store a multipart upload body", uploadParseNanos, NANOS);
+        writer.histogram("p2p_upload_disk_write_seconds", "Time spent in disk writes per upload or chunk", uploadDiskWriteNanos, NANOS);
+
+        writer.header("p2p_download_first_byte_seconds", "histogram", "Time from request to first response byte");
+        httpFirstByteNanos.writeTo(writer, "p2p_download_first_byte_seconds", "path=\"http\"", NANOS);
+        shareFirstByteNanos.writeTo(writer, "p2p_download_first_byte_seconds", "path=\"share\"", NANOS);
+
+        writer.header("p2p_transfer_throughput_bytes_per_second", "histogram", "Throughput of individual completed transfers");
+        uploadThroughput.writeTo(writer, "p2p_transfer_throughput_bytes_per_second", "kind=\"upload\"", 1);
+        httpDownloadThroughput.writeTo(writer, "p2p_transfer_throughput_bytes_per_second", "kind=\"download\",path=\"http\"", 1);
+        shareDownloadThroughput.writeTo(writer, "p2p_transfer_throughput_bytes_per_second", "kind=\"download\",path=\"share\"", 1);
+
+        writer.counter("p2p_bytes_received_total", "Decoded upload bytes received", bytesReceived.sum());
+        writer.header("p2p_bytes_sent_total", "counter", "Bytes sent to downloaders");
+        writer.sample("p2p_bytes_sent_total", "path=\"http\"", httpBytesSent.sum());
+        writer.sample("p2p_bytes_sent_total", "path=\"share\"", shareBytesSent.sum());
+
+        writer.header("p2p_transfers_total", "counter", "Finished transfers by outcome");
+        writer.sample("p2p_transfers_total", "kind=\"upload\",result=\"ok\"", uploadsCompleted.sum());
+        writer.sample("p2p_transfers_total", "kind=\"upload\",result=\"error\"", uploadsFailed.sum());
+        writer.sample("p2p_transfers_total", "kind=\"download\",path=\"http\",result=\"ok\"", httpDownloadsCompleted.sum());
+        writer.sample("p2p_transfers_total", "kind=\"download\",path=\"http\",result=\"error\"", httpDownloadsFailed.sum());
+        writer.sample("p2p_transfers_total", "kind=\"download\",path=\"share\",result=\"ok\"", shareDownloadsCompleted.sum());
+        writer.sample("p2p_transfers_total", "kind=\"download\",path=\"share\",result=\"error\"", shareDownloadsFailed.sum());
+
+        writer.header("p2p_swarm_pieces_total", "counter", "Swarm pieces by direction and outcome");
+        writer.sample("p2p_swarm_pieces_total", "direction=\"sent\",result=\"ok\"", swarmPiecesServed.sum());
+        writer.sample("p2p_swarm_pieces_total", "direction=\"received\",result=\"ok\"", swarmPiecesFetched.sum());
+        writer.sample("p2p_swarm_pieces_total", "direction=\"received\",result=\"error\"", swarmPiecesFailed.sum());
+
+        writer.gauge("p2p_share_connections", "Open connections on the share port", shareConnections.get());
+    }
+}
@@ -0,0 +1,363 @@
+package p2p.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 여러 파일을 압축 없이(stored) 묶은 zip / tar 스트림의 배치도.
+ *
+ * 아카이브를 "메모리 헤더 바이트"와 "파일 구간"의 나열(segment)로만 표현하므로
+ * - 임시 아카이브 파일을 만들지 않고, 파일 구간은 transferTo로 그대로 보낸다
+ * - 보내기 전에 전체 길이를 알 수 있어 Content-Length / share 프로토콜 Length를 채울 수 있다
+ * zip은 로컬 헤더에 CRC-32와 크기를 미리 넣어야 하므로 업로드 때 계산해 둔 CRC를 쓴다.
+ * 4GiB가 넘는 파일/오프셋은 zip64, 긴 경로와 8GiB 이상 파일은 tar PAX 헤더로 처리한다.
+ */
+public class Archive {
+    public static final String ZIP = "zip";
+    public static final String TAR = "tar";
+
+    private static final long ZIP32_LIMIT = 0xFFFFFFFFL;
+    private static final int ZIP16_LIMIT = 0xFFFF;
+    private static final int ZIP_VERSION = 20;
+    private static final int ZIP64_VERSION = 45;
+    private static final int UTF8_FLAG = 1 << 11;
+    private static final int TAR_BLOCK = 512;
+    private static final long TAR_MAX_OCTAL_SIZE = 077777777777L;
+
+    private final String contentType;
+    private final List<Segment> segments;
+    private final long length;
+
+    private Archive(String contentType, List<Segment> segments){
+        this.contentType = contentType;
+        this.segments = Collections.unmodifiableList(segments);
+        long total = 0;
+        for(Segment segment : segments){
+            total += segment.length;
+        }
+        this.length = total;
+    }
+
+    public static Archive of(String format, List<Entry> entries, long modifiedMillis){
+        if(ZIP.equals(format)){
+            return zip(entries, modifiedMillis);
+        }
+        if(TAR.equals(format)){
+            return tar(entries, modifiedMillis);
+        }
+        throw new IllegalArgumentException("Unsupported archive format: " + format);
+    }
+
+    public String getContentType(){
+        return contentType;
+    }
+
+    public long length(){
+        return length;
+    }
+
+    public List<Segment> segments(){
+        return segments;
+    }
+
+    /**
+     * 아카이브 전체를 target으로 보낸다. 파일 구간은 FileChannel.transferTo 사용.
+     */
+    public void writeTo(WritableByteChannel target) throws IOException{
+        for(Segment segment : segments){
+            if(segment.bytes != null){
+                ByteBuffer buffer = ByteBuffer.wrap(segment.bytes);
+                while(buffer.hasRemaining()){
+                    target.write(buffer);
+                }
+                continue;
+            }
+            try(FileChannel channel = FileChannel.open(segment.file, StandardOpenOption.READ)){
+                long position = 0;
+                while(position < segment.length){
+                    long sent = channel.transferTo(position, segment.length - position, target);
+                    if(sent <= 0 && position + sent >= channel.size()){
+                        throw new IOException("File shrank while archiving: " + segment.file.getFileName());
+                    }
+                    position += sent;
+                }
+            }
+        }
+    }
+
+    /**
+     * 업로드된 경로를 아카이브 안 경로로 정리한다 (역슬래시 -> /, 빈 칸과 "." 제거).
+     * ".."이 있거나 남는 게 없으면 IllegalArgumentException.
+     */
+    public static String normalizePath(String path){
+        if(path == null){
+            throw new IllegalArgumentException("Missing file name");
+        }
+        StringBuilder sb = new StringBuilder();
+        for(String part : path.replace('\\', '/').split("/")){
+            if(part.isEmpty() || part.equals(".")){
+                continue;
+            }
+            if(part.equals("..") || part.indexOf('\0') >= 0){
+                throw new IllegalArgumentException("Invalid file path: " + path);
+            }
+            if(sb.length() > 0){
+                sb.append('/');
+            }
+            sb.append(part);
+        }
+        if(sb.length() == 0){
+            throw new IllegalArgumentException("Invalid file path: " + path);
+        }
+        return sb.toString();
+    }
+
+    /*
+    zip (stored)
+      [local header + name (+ zip64 extra)] [data] ... [central directory] [zip64 eocd + locator] [eocd]
+    */
+    private static Archive zip(List<Entry> entries, long modifiedMillis){
+        List<Segment> segments = new ArrayList<>(entries.size() * 2 + 1);
+        ByteArrayOutputStream central = new ByteArrayOutputStream();
+        int[] dos = dosTime(modifiedMillis);
+        long offset = 0;
+        for(Entry entry : entries){
+            byte[] name = entry.path.getBytes(StandardCharsets.UTF_8);
+            boolean zip64Size = entry.size >= ZIP32_LIMIT;
+            boolean zip64Offset = offset >= ZIP32_LIMIT;
+            int version = zip64Size || zip64Offset ? ZIP64_VERSION : ZIP_VERSION;
+
+            ByteBuffer local = le(30 + name.length + (zip64Size ? 20 : 0));
+            local.putInt(0x04034b50).putShort((short) version).putShort((short) UTF8_FLAG).putShort((short) 0)
+                    .putShort((short) dos[0]).putShort((short) dos[1]).putInt((int) entry.crc32)
+                    .putInt((int) (zip64Size ? ZIP32_LIMIT : entry.size)).putInt((int) (zip64Size ? ZIP32_LIMIT : entry.size))
+                    .putShort((short) name.length).putShort((short) (zip64Size ? 20 : 0)).put(name);
+            if(zip64Size){
+                local.putShort((short) 0x0001).putShort((short) 16).putLong(entry.size).putLong(entry.size);
+            }
+            segments.add(Segment.bytes(local.array()));
+            if(entry.size > 0){
+                segments.add(Segment.file(entry.source, entry.size));
+            }
+
+            int extra = (zip64Size ? 16 : 0) + (zip64Offset ? 8 : 0);
+            ByteBuffer header = le(46 + name.length + (extra > 0 ? extra + 4 : 0));
+            header.putInt(0x02014b50).putShort((short) ZIP64_VERSION).putShort((short) version).putShort((short) UTF8_FLAG)
+                    .putShort((short) 0).putShort((short) dos[0]).putShort((short) dos[1]).putInt((int) entry.crc32)
+                    .putInt((int) (zip64Size ? ZIP32_LIMIT : entry.size)).putInt((int) (zip64Size ? ZIP32_LIMIT : entry.size))
+                    .putShort((short) name.length).putShort((short) (extra > 0 ? extra + 4 : 0)).putShort((short) 0)
+                    .putShort((short) 0).putShort((short) 0).putInt(0).putInt((int) (zip64Offset ? ZIP32_LIMIT : offset)).put(name);
+            if(extra > 0){
+                header.putShort((short) 0x0001).putShort((short) extra);
+                if(zip64Size){
+                    header.putLong(entry.size).putLong(entry.size);
+                }
+                if(zip64Offset){
+                    header.putLong(offset);
+                }
+            }
+            central.writeBytes(header.array());
+            offset += local.capacity() + entry.size;
+        }
+
+        long centralSize = central.size();
+        boolean zip64 = entries.size() >= ZIP16_LIMIT || offset >= ZIP32_LIMIT || centralSize >= ZIP32_LIMIT;
+        if(zip64){
+            long eocd64Offset = offset + centralSize;
+            ByteBuffer eocd64 = le(56 + 20);
+            eocd64.putInt(0x06064b50).putLong(44).putShort((short) ZIP64_VERSION).putShort((short) ZIP64_VERSION)
+                    .putInt(0).putInt(0).putLong(entries.size()).putLong(entries.size()).putLong(centralSize).putLong(offset);
+            eocd64.putInt(0x07064b50).putInt(0).putLong(eocd64Offset).putInt(1);
+            central.writeBytes(eocd64.array());
+        }
+        ByteBuffer eocd = le(22);
+        int count = zip64 ? ZIP16_LIMIT : entries.size();
+        eocd.putInt(0x06054b50).putShort((short) 0).putShort((short) 0).putShort((short) count).putShort((short) count)
+                .putInt((int) (zip64 ? ZIP32_LIMIT : centralSize)).putInt((int) (zip64 ? ZIP32_LIMIT : offset)).putShort((short) 0);
+        central.writeBytes(eocd.array());
+        segments.add(Segment.bytes(central.toByteArray()));
+        return new Archive("application/zip", segments);
+    }
+
+    private static ByteBuffer le(int size){
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // MS-DOS 시간/날짜 (2초 단위, 1980년 이후)
+    private static int[] dosTime(long millis){
+        LocalDateTime t = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        if(t.getYear() < 1980){
+            return new int[]{0, (1 << 5) | 1};
+        }
+        int time = (t.getHour() << 11) | (t.getMinute() << 5) | (t.getSecond() / 2);
+        int date = ((t.getYear() - 1980) << 9) | (t.getMonthValue() << 5) | t.getDayOfMonth();
+        return new int[]{time, date};
+    }
+
+    /*
+    tar (POSIX ustar + 필요할 때만 PAX 확장 헤더)
+      [512 header] [data + 512 정렬 padding] ... [512 x 2 zero]
+    */
+    private static Archive tar(List<Entry> entries, long modifiedMillis){
+        List<Segment> segments = new ArrayList<>(entries.size() * 2 + 1);
+        long mtime = modifiedMillis / 1000;
+        byte[] pending = new byte[0];
+        for(Entry entry : entries){
+            byte[] path = entry.path.getBytes(StandardCharsets.UTF_8);
+            int split = ustarSplit(path);
+            boolean bigSize = entry.size > TAR_MAX_OCTAL_SIZE;
+            ByteArrayOutputStream headers = new ByteArrayOutputStream();
+            headers.writeBytes(pending);
+            if(split == -2 || bigSize){
+                StringBuilder pax = new StringBuilder();
+                if(split == -2){
+                    pax.append(paxRecord("path", entry.path));
+                }
+                if(bigSize){
+                    pax.append(paxRecord("size", Long.toString(entry.size)));
+                }
+                byte[] data = pax.toString().getBytes(StandardCharsets.UTF_8);
+                headers.writeBytes(tarHeader("PaxHeaders/entry".getBytes(StandardCharsets.US_ASCII), -1, data.length, mtime, (byte) 'x'));
+                headers.writeBytes(data);
+                headers.writeBytes(new byte[padding(data.length)]);
+            }
+            byte[] name = split == -2 ? truncate(path, 100) : path;
+            headers.writeBytes(tarHeader(name, split == -2 ? -1 : split, bigSize ? 0 : entry.size, mtime, (byte) '0'));
+            segments.add(Segment.bytes(headers.toByteArray()));
+            if(entry.size > 0){
+                segments.add(Segment.file(entry.source, entry.size));
+            }
+            // 데이터 뒤 padding은 다음 헤더와 합쳐서 한 segment로
+            pending = new byte[padding(entry.size)];
+        }
+        byte[] trailer = new byte[pending.length + TAR_BLOCK * 2];
+        segments.add(Segment.bytes(trailer));
+        return new Archive("application/x-tar", segments);
+    }
+
+    /*
+    ustar는 경로를 prefix(155) + "/" + name(100)으로 나눠 담는다.
+    -1: 나눌 필요 없음, -2: 담을 수 없음 (PAX), 그 외: prefix 끝 ('/') 위치
+    */
+    private static int ustarSplit(byte[] path){
+        if(path.length <= 100){
+            return -1;
+        }
+        for(int i = Math.min(155, path.length - 1); i > 0; i--){
+            if(path[i] == '/' && path.length - i - 1 <= 100 && path.length - i - 1 > 0){
+                return i;
+            }
+        }
+        return -2;
+    }
+
+    private static byte[] tarHeader(byte[] path, int split, long size, long mtime, byte type){
+        byte[] header = new byte[TAR_BLOCK];
+        if(split >= 0){
+            System.arraycopy(path, split + 1, header, 0, path.length - split - 1);
+            System.arraycopy(path, 0, header, 345, split);
+        }
+        else{
+            System.arraycopy(path, 0, header, 0, Math.min(100, path.length));
+        }
+        octal(header, 100, 8, 0644);
+        octal(header, 108, 8, 0);
+        octal(header, 116, 8, 0);
+        octal(header, 124, 12, size);
+        octal(header, 136, 12, mtime);
+        header[156] = type;
+        System.arraycopy("ustar\0".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 6);
+        header[263] = '0';
+        header[264] = '0';
+        // checksum: 체크섬 칸을 공백으로 둔 상태의 바이트 합
+        for(int i = 148; i < 156; i++){
+            header[i] = ' ';
+        }
+        long sum = 0;
+        for(byte b : header){
+            sum += b & 0xff;
+        }
+        octal(header, 148, 7, sum);
+        return header;
+    }
+
+    // width-1 자리 0 채움 8진수 + NUL
+    private static void octal(byte[] header, int offset, int width, long value){
+        String digits = Long.toOctalString(value);
+        int pad = width - 1 - digits.length();
+        for(int i = 0; i < width - 1; i++){
+            header[offset + i] = (byte) (i < pad ? '0' : digits.charAt(i - pad));
+        }
+        header[offset + width - 1] = 0;
+    }
+
+    // "길이 key=value\n", 길이는 자기 자신의 자릿수까지 포함
+    private static String paxRecord(String key, String value){
+        int body = key.getBytes(StandardCharsets.UTF_8).length + value.getBytes(StandardCharsets.UTF_8).length + 3;
+        int length = body + Integer.toString(body).length();
+        if(Integer.toString(length).length() != Integer.toString(body).length()){
+            length++;
+        }
+        return length + " " + key + "=" + value + "\n";
+    }
+
+    private static byte[] truncate(byte[] path, int max){
+        byte[] out = new byte[Math.min(max, path.length)];
+        System.arraycopy(path, 0, out, 0, out.length);
+        return out;
+    }
+
+    private static int padding(long size){
+        return (int) ((TAR_BLOCK - size % TAR_BLOCK) % TAR_BLOCK);
+    }
+
+    public static class Entry {
+        public final String path;
+        public final Path source;
+        public final long size;
+        public final long crc32;
+
+        public Entry(String path, Path source, long size, long crc32){
+            this.path = path;
+            this.source = source;
+            this.size = size;
+            this.crc32 = crc32;
+        }
+    }
+
+    /**
+     * 메모리 바이트(bytes != null) 또는 파일 전체 구간(file, length).
+     */
+    public static class Segment {
+        public final byte[] bytes;
+        public final Path file;
+        public final long length;
+
+        private Segment(byte[] bytes, Path file, long length){
+            this.bytes = bytes;
+            this.file = file;
+            this.length = length;
+        }
+
+        static Segment bytes(byte[] bytes){
+            return new Segment(bytes, null, bytes.length);
+        }
+
+        static Segment file(Path file, long length){
+            return new Segment(null, file, length);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package p2p.utils;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * HTTP Range 헤더의 한 구간 (start, end 모두 포함).
+ */
+public class ByteRange {
+    public static final int MAX_RANGES = 32;
+
+    public final long start;
+    public final long end;
+
+    public ByteRange(long start, long end){
+        this.start = start;
+        this.end = end;
+    }
+
+    public long length(){
+        return end - start + 1;
+    }
+
+    public String contentRange(long size){
+        return "bytes " + start + "-" + end + "/" + size;
+    }
+
+    /**
+     * "bytes=0-99,200-,-500" 형태를 파싱한다.
+     * 겹치거나 맞닿은 구간은 하나로 합치고 시작 위치 순으로 돌려준다 (같은 바이트를 여러 번 보내지 않음).
+     *
+     * @return 헤더를 무시하고 전체를 보내야 하면 null (형식 오류, 너무 많은 구간 등)
+     * @throws IllegalArgumentException 만족할 수 있는 구간이 하나도 없을 때 (416)
+     */
+    public static List<ByteRange> parse(String header, long size){
+        if(header == null || !header.startsWith("bytes=")){
+            return null;
+        }
+        String[] specs = header.substring("bytes=".length()).split(",");
+        if(specs.length > MAX_RANGES){
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<>();
+        for(String raw : specs){
+            String spec = raw.trim();
+            int dash = spec.indexOf('-');
+            if(dash == -1){
+                return null;
+            }
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+            try{
+                if(first.isEmpty()){
+                    // suffix range: 마지막 N 바이트
+                    long suffix = Long.parseLong(last);
+                    if(suffix <= 0){
+                        continue;
+                    }
+                    start = Math.max(0, size - suffix);
+                    end = size - 1;
+                }
+                else{
+                    start = Long.parseLong(first);
+                    end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+                    if(start < 0 || (!last.isEmpty() && Long.parseLong(last) < start)){
+                        return null;
+                    }
+                }
+            }
+            catch(NumberFormatException e){
+                return null;
+            }
+            if(start >= size || end < start){
+                continue;
+            }
+            ranges.add(new ByteRange(start, end));
+        }
+        if(ranges.isEmpty()){
+            throw new IllegalArgumentException("Range not satisfiable");
+        }
+        return merge(ranges);
+    }
+
+    private static List<ByteRange> merge(List<ByteRange> ranges){
+        if(ranges.size() == 1){
+            return ranges;
+        }
+        ranges.sort(Comparator.comparingLong(range -> range.start));
+        List<ByteRange> merged = new ArrayList<>(ranges.size());
+        ByteRange current = ranges.get(0);
+        for(int i = 1; i < ranges.size(); i++){
+            ByteRange next = ranges.get(i);
+            if(next.start <= current.end + 1){
+                current = new ByteRange(current.start, Math.max(current.end, next.end));
+            }
+            else{
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return merged;
+    }
+}
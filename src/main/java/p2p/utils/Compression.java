@@ -0,0 +1,129 @@
+package p2p.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * 전송 압축 협상과 압축 대상 판별.
+ *
+ * JDK에 내장된 gzip만 지원한다 (zstd는 네이티브 라이브러리가 필요해서 제외).
+ */
+public class Compression {
+    public static final String GZIP = "gzip";
+    // 이보다 작은 파일은 압축 이득이 없음
+    public static final long MIN_COMPRESSIBLE_SIZE = 1024;
+
+    private static final Set<String> COMPRESSIBLE_TYPES = Set.of(
+            "application/json", "application/xml", "application/javascript", "application/x-javascript",
+            "application/x-ndjson", "application/x-yaml", "application/yaml", "application/x-sh",
+            "application/sql", "application/csv", "image/svg+xml", "image/bmp", "application/x-tar");
+
+    private static final Set<String> COMPRESSIBLE_EXTENSIONS = Set.of(
+            "txt", "log", "csv", "tsv", "json", "ndjson", "xml", "html", "htm", "css", "js", "md",
+            "yaml", "yml", "sql", "sh", "ini", "conf", "tar", "svg", "out", "dump");
+
+    /**
+     * 저장된 content type (없거나 octet-stream이면 확장자)으로 압축할 가치가 있는지 판단한다.
+     * zip, jpeg, mp4 같은 이미 압축된 형식은 false.
+     */
+    public static boolean isCompressible(String contentType, String filename){
+        String type = contentType == null ? "" : contentType.toLowerCase(Locale.ROOT);
+        int semicolon = type.indexOf(';');
+        if(semicolon != -1){
+            type = type.substring(0, semicolon).trim();
+        }
+        if(type.startsWith("text/") || COMPRESSIBLE_TYPES.contains(type) || type.endsWith("+json") || type.endsWith("+xml")){
+            return true;
+        }
+        if(!type.isEmpty() && !type.equals("application/octet-stream")){
+            return false;
+        }
+        if(filename == null){
+            return false;
+        }
+        int dot = filename.lastIndexOf('.');
+        return dot != -1 && COMPRESSIBLE_EXTENSIONS.contains(filename.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Accept-Encoding 에 gzip이 q>0 으로 들어 있는지.
+     */
+    public static boolean acceptsGzip(String acceptEncoding){
+        if(acceptEncoding == null){
+            return false;
+        }
+        for(String token : acceptEncoding.split(",")){
+            String[] parts = token.trim().split(";");
+            String coding = parts[0].trim().toLowerCase(Locale.ROOT);
+            if(!coding.equals(GZIP) && !coding.equals("x-gzip") && !coding.equals("*")){
+                continue;
+            }
+            double q = 1.0;
+            for(int i = 1; i < parts.length; i++){
+                String param = parts[i].trim();
+                if(param.startsWith("q=")){
+                    try{
+                        q = Double.parseDouble(param.substring(2));
+                    }
+                    catch(NumberFormatException e){
+                        q = 0;
+                    }
+                }
+            }
+            if(q > 0){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 호출한 쪽이 만든 Deflater로 gzip 스트림을 쓴다 (RFC 1952 헤더 + raw deflate + CRC32/길이 trailer).
+     *
+     * GZIPOutputStream은 Deflater를 안에서 만들고 close()에서만 끝내므로, 응답 도중 예외가 나거나
+     * 바깥 스트림을 닫지 않는 경로에서는 네이티브 zlib 메모리가 GC 때까지 남는다.
+     * 여기서는 Deflater(nowrap = true)를 받기만 하고 끝내지 않으니 호출한 쪽이 finally에서 end()를 부른다.
+     * close()는 finish()만 하고 바깥 스트림은 닫지 않는다.
+     */
+    public static class GzipOutputStream extends DeflaterOutputStream {
+        private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+        private final CRC32 crc = new CRC32();
+        private boolean finished;
+
+        public GzipOutputStream(OutputStream out, Deflater deflater, int bufferSize) throws IOException{
+            super(out, deflater, bufferSize);
+            out.write(HEADER);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException{
+            super.write(b, off, len);
+            crc.update(b, off, len);
+        }
+
+        @Override
+        public void finish() throws IOException{
+            if(finished){
+                return;
+            }
+            super.finish();
+            finished = true;
+            int size = (int) def.getBytesRead();
+            int checksum = (int) crc.getValue();
+            out.write(new byte[]{(byte) checksum, (byte) (checksum >> 8), (byte) (checksum >> 16), (byte) (checksum >> 24),
+                    (byte) size, (byte) (size >> 8), (byte) (size >> 16), (byte) (size >> 24)});
+        }
+
+        @Override
+        public void close() throws IOException{
+            finish();
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package p2p.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HDR 방식의 log-linear 히스토그램. 2의 거듭제곱 구간마다 4개의 하위 구간을 두어
+ * 상대 오차 25% 이내로 0 ~ Long.MAX_VALUE 범위 값을 기록한다.
+ *
+ * record()는 lock 없이 배열 칸 하나와 합계만 증가시키므로 할당이 없고 hot path에서 호출해도 된다.
+ */
+public class LogHistogram {
+    private static final int SUB_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    // Prometheus로 내보낼 le 경계: 2^minExponent ~ 2^maxExponent
+    private final int minExponent;
+    private final int maxExponent;
+
+    public LogHistogram(int minExponent, int maxExponent){
+        if(minExponent < SUB_BITS || maxExponent > 62 || minExponent > maxExponent){
+            throw new IllegalArgumentException("Invalid exponent range: " + minExponent + ".." + maxExponent);
+        }
+        this.minExponent = minExponent;
+        this.maxExponent = maxExponent;
+    }
+
+    public void record(long value){
+        if(value < 0){
+            value = 0;
+        }
+        counts.incrementAndGet(index(value));
+        sum.add(value);
+    }
+
+    static int index(long value){
+        if(value < SUB_BUCKETS){
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * index 구간에 들어가는 가장 큰 값.
+     */
+    static long upperBound(int index){
+        if(index < SUB_BUCKETS){
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = index % SUB_BUCKETS;
+        long lower = (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+        return lower + (1L << (exponent - SUB_BITS)) - 1;
+    }
+
+    public long getCount(){
+        long count = 0;
+        for(int i = 0; i < BUCKETS; i++){
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public long getSum(){
+        return sum.sum();
+    }
+
+    /**
+     * q (0~1) 분위수의 근사값 (해당 구간의 상한). 기록이 없으면 0.
+     */
+    public long percentile(double q){
+        long[] snapshot = snapshot();
+        long total = 0;
+        for(long c : snapshot){
+            total += c;
+        }
+        if(total == 0){
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++){
+            seen += snapshot[i];
+            if(seen >= rank){
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    private long[] snapshot(){
+        long[] snapshot = new long[BUCKETS];
+        for(int i = 0; i < BUCKETS; i++){
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Prometheus histogram 형식의 누적 버킷. scale은 기록 단위 -> 내보낼 단위 (ns -> s 이면 1e-9).
+     */
+    public void writeTo(PrometheusWriter writer, String name, String labels, double scale){
+        long[] snapshot = snapshot();
+        long cumulative = 0;
+        int next = 0;
+        for(int exponent = minExponent; exponent <= maxExponent; exponent++){
+            // le = 2^exponent 이하인 구간들을 모두 더함
+            long bound = 1L << exponent;
+            while(next < BUCKETS && upperBound(next) < bound){
+                cumulative += snapshot[next++];
+            }
+            writer.sample(name + "_bucket", withLe(labels, PrometheusWriter.format(bound * scale)), cumulative);
+        }
+        while(next < BUCKETS){
+            cumulative += snapshot[next++];
+        }
+        writer.sample(name + "_bucket", withLe(labels, "+Inf"), cumulative);
+        writer.sample(name + "_sum", labels, sum.sum() * scale);
+        writer.sample(name + "_count", labels, cumulative);
+    }
+
+    private static String withLe(String labels, String le){
+        return labels == null || labels.isEmpty() ? "le=\"" + le + "\"" : labels + ",le=\"" + le + "\"";
+    }
+}
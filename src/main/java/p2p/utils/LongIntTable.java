@@ -0,0 +1,141 @@
+package p2p.utils;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * long 키 -> int 값 open addressing 표. 항목마다 객체를 만들지 않으므로 수백만 개를 담아도
+ * 칸당 12바이트 (키 배열 + 값 배열)만 쓴다.
+ *
+ * 키는 한 스레드가 채운 뒤 (put, add) 더 늘리지 않고, 그 뒤로는 값만 여러 스레드가 바꾼다 (compareAndSet, addIfPresent).
+ * 키 0은 빈 칸 표시라 넣을 수 없다.
+ */
+public class LongIntTable {
+    public static final int MISSING = Integer.MIN_VALUE;
+
+    private long[] keys;
+    private AtomicIntegerArray values;
+    private int mask;
+    private int size;
+
+    public LongIntTable(int expected){
+        int capacity = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+        keys = new long[capacity];
+        values = new AtomicIntegerArray(capacity);
+        mask = capacity - 1;
+    }
+
+    /**
+     * 채우는 단계 전용. 이미 있으면 값을 바꾼다.
+     */
+    public void put(long key, int value){
+        // insert가 배열을 키울 수 있으므로 칸을 먼저 정함
+        int slot = insert(key);
+        values.set(slot, value);
+    }
+
+    /**
+     * 채우는 단계 전용. 없으면 0에서 시작해 delta를 더한다.
+     */
+    public void add(long key, int delta){
+        int slot = insert(key);
+        values.set(slot, values.get(slot) + delta);
+    }
+
+    public int get(long key){
+        int slot = find(key);
+        return slot < 0 ? MISSING : values.get(slot);
+    }
+
+    /**
+     * 키가 있고 값이 expect일 때만 update로 바꾼다.
+     */
+    public boolean compareAndSet(long key, int expect, int update){
+        int slot = find(key);
+        return slot >= 0 && values.compareAndSet(slot, expect, update);
+    }
+
+    /**
+     * 키가 있으면 delta를 더한 값, 없으면 MISSING.
+     */
+    public int addIfPresent(long key, int delta){
+        int slot = find(key);
+        return slot < 0 ? MISSING : values.addAndGet(slot, delta);
+    }
+
+    public int size(){
+        return size;
+    }
+
+    // 칸 단위 순회: 0 <= slot < capacity(), keyAt(slot) == 0 이면 빈 칸
+
+    public int capacity(){
+        return keys.length;
+    }
+
+    public long keyAt(int slot){
+        return keys[slot];
+    }
+
+    public int valueAt(int slot){
+        return values.get(slot);
+    }
+
+    public boolean compareAndSetAt(int slot, int expect, int update){
+        return values.compareAndSet(slot, expect, update);
+    }
+
+    private int find(long key){
+        for(int slot = hash(key) & mask; ; slot = (slot + 1) & mask){
+            long k = keys[slot];
+            if(k == key){
+                return slot;
+            }
+            if(k == 0){
+                return -1;
+            }
+        }
+    }
+
+    private int insert(long key){
+        if(key == 0){
+            throw new IllegalArgumentException("Key 0 is reserved");
+        }
+        int slot = find(key);
+        if(slot >= 0){
+            return slot;
+        }
+        if((size + 1) * 2 > keys.length){
+            grow();
+        }
+        slot = hash(key) & mask;
+        while(keys[slot] != 0){
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        size++;
+        return slot;
+    }
+
+    private void grow(){
+        long[] oldKeys = keys;
+        AtomicIntegerArray oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new AtomicIntegerArray(keys.length);
+        mask = keys.length - 1;
+        for(int i = 0; i < oldKeys.length; i++){
+            if(oldKeys[i] != 0){
+                int slot = hash(oldKeys[i]) & mask;
+                while(keys[slot] != 0){
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values.set(slot, oldValues.get(i));
+            }
+        }
+    }
+
+    private static int hash(long key){
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,224 @@
+package p2p.utils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * 고정 크기 chunk 단위 SHA-256 Merkle tree.
+ * <pre>
+ * leaf = SHA-256(0x00 || chunk)
+ * node = SHA-256(0x01 || left || right)   (짝이 없는 마지막 노드는 그대로 위로 올림)
+ * </pre>
+ * leaf/node에 접두 바이트를 붙여 leaf 해시를 내부 노드로 위장할 수 없게 한다 (RFC 6962 방식).
+ * 클라이언트는 manifest의 leaf 목록으로 root를 다시 계산해 확인한 뒤,
+ * 받은 chunk마다 leaf와 비교해서 깨진 구간만 Range로 다시 받으면 된다.
+ */
+public class MerkleTree {
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+    private static final int HASH_LENGTH = 32;
+
+    private final int chunkSize;
+    private final long size;
+    private final byte[][] leaves;
+    private final byte[] root;
+
+    MerkleTree(int chunkSize, long size, byte[][] leaves){
+        this.chunkSize = chunkSize;
+        this.size = size;
+        this.leaves = leaves;
+        this.root = computeRoot(leaves);
+    }
+
+    public static Builder builder(int chunkSize){
+        return new Builder(chunkSize);
+    }
+
+    /**
+     * 다른 피어에게 받은 leaf 목록으로 트리를 만든다. 개수가 크기와 맞지 않으면 IllegalArgumentException.
+     * root는 호출자가 믿을 수 있는 값과 비교해야 한다.
+     */
+    public static MerkleTree fromLeaves(int chunkSize, long size, byte[][] leaves){
+        if(chunkSize <= 0 || size < 0 || leaves.length != (size + chunkSize - 1) / chunkSize){
+            throw new IllegalArgumentException("Leaf count does not match size " + size + " and chunk size " + chunkSize);
+        }
+        byte[][] copy = new byte[leaves.length][];
+        for(int i = 0; i < leaves.length; i++){
+            if(leaves[i].length != HASH_LENGTH){
+                throw new IllegalArgumentException("Invalid leaf hash length at " + i);
+            }
+            copy[i] = leaves[i].clone();
+        }
+        return new MerkleTree(chunkSize, size, copy);
+    }
+
+    public int getChunkSize(){
+        return chunkSize;
+    }
+
+    public long getSize(){
+        return size;
+    }
+
+    public int getChunkCount(){
+        return leaves.length;
+    }
+
+    public byte[] leaf(int index){
+        return leaves[index].clone();
+    }
+
+    /**
+     * chunk index의 바이트 범위 길이 (마지막 chunk만 짧을 수 있음).
+     */
+    public int chunkLength(int index){
+        return (int) Math.min(chunkSize, size - (long) index * chunkSize);
+    }
+
+    /**
+     * 받은 chunk가 트리의 leaf와 같은지.
+     */
+    public boolean verifyChunk(int index, byte[] data, int offset, int length){
+        return length == chunkLength(index) && MessageDigest.isEqual(leaves[index], hashLeaf(data, offset, length));
+    }
+
+    public String leafHex(int index){
+        return HexFormat.of().formatHex(leaves[index]);
+    }
+
+    public String rootHex(){
+        return HexFormat.of().formatHex(root);
+    }
+
+    /**
+     * chunk 하나의 leaf 해시 (클라이언트 검증과 같은 계산).
+     */
+    public static byte[] hashLeaf(byte[] data, int offset, int length){
+        MessageDigest digest = leafDigest();
+        digest.update(data, offset, length);
+        return digest.digest();
+    }
+
+    private static byte[] computeRoot(byte[][] leaves){
+        if(leaves.length == 0){
+            return leafDigest().digest();
+        }
+        List<byte[]> level = List.of(leaves);
+        MessageDigest digest = sha256();
+        while(level.size() > 1){
+            List<byte[]> parents = new ArrayList<>((level.size() + 1) / 2);
+            for(int i = 0; i < level.size(); i += 2){
+                if(i + 1 == level.size()){
+                    parents.add(level.get(i));
+                    continue;
+                }
+                digest.update((byte) 0x01);
+                digest.update(level.get(i));
+                digest.update(level.get(i + 1));
+                parents.add(digest.digest());
+            }
+            level = parents;
+        }
+        return level.get(0);
+    }
+
+    /*
+    sidecar 파일 형식: chunkSize(int) size(long) count(int) leaf*count (각 32바이트)
+    */
+    public void writeTo(Path path) throws IOException{
+        try(DataOutputStream out = new DataOutputStream(Files.newOutputStream(path))){
+            out.writeInt(chunkSize);
+            out.writeLong(size);
+            out.writeInt(leaves.length);
+            for(byte[] leaf : leaves){
+                out.write(leaf);
+            }
+        }
+    }
+
+    public static MerkleTree readFrom(Path path) throws IOException{
+        try(DataInputStream in = new DataInputStream(Files.newInputStream(path))){
+            int chunkSize = in.readInt();
+            long size = in.readLong();
+            int count = in.readInt();
+            if(chunkSize <= 0 || count < 0 || (long) count * chunkSize < size){
+                throw new IOException("Corrupt merkle file: " + path);
+            }
+            byte[][] leaves = new byte[count][HASH_LENGTH];
+            for(byte[] leaf : leaves){
+                in.readFully(leaf);
+            }
+            return new MerkleTree(chunkSize, size, leaves);
+        }
+    }
+
+    private static MessageDigest leafDigest(){
+        MessageDigest digest = sha256();
+        digest.update((byte) 0x00);
+        return digest;
+    }
+
+    private static MessageDigest sha256(){
+        try{
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch(NoSuchAlgorithmException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 스트리밍 중인 바이트를 받아 chunk 경계마다 leaf를 확정한다. 데이터를 따로 다시 읽지 않는다.
+     */
+    public static class Builder {
+        private final int chunkSize;
+        private final List<byte[]> leaves = new ArrayList<>();
+        private final MessageDigest current = leafDigest();
+        private int filled;
+        private long size;
+
+        Builder(int chunkSize){
+            if(chunkSize <= 0){
+                throw new IllegalArgumentException("chunkSize must be positive");
+            }
+            this.chunkSize = chunkSize;
+        }
+
+        /**
+         * buffer의 position ~ limit 를 소비한다.
+         */
+        public void update(ByteBuffer buffer){
+            while(buffer.hasRemaining()){
+                int n = Math.min(buffer.remaining(), chunkSize - filled);
+                int limit = buffer.limit();
+                buffer.limit(buffer.position() + n);
+                current.update(buffer);
+                buffer.limit(limit);
+                filled += n;
+                size += n;
+                if(filled == chunkSize){
+                    // digest()가 초기화하므로 접두 바이트만 다시 넣고 재사용
+                    leaves.add(current.digest());
+                    current.update((byte) 0x00);
+                    filled = 0;
+                }
+            }
+        }
+
+        public MerkleTree build(){
+            if(filled > 0){
+                leaves.add(current.digest());
+                filled = 0;
+            }
+            return new MerkleTree(chunkSize, size, leaves.toArray(new byte[0][]));
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package p2p.utils;
+
+/**
+ * Prometheus text exposition format (0.0.4) 작성기.
+ * <pre>
+ * # HELP p2p_bytes_sent_total Bytes sent to downloaders
+ * # TYPE p2p_bytes_sent_total counter
+ * p2p_bytes_sent_total{path="http"} 1024
+ * </pre>
+ * 스크레이프마다 한 번 만들어 쓰므로 thread-safe 하지 않다.
+ */
+public class PrometheusWriter {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final StringBuilder out = new StringBuilder(8 * 1024);
+
+    public PrometheusWriter header(String name, String type, String help){
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        return this;
+    }
+
+    public PrometheusWriter sample(String name, String labels, long value){
+        appendName(name, labels);
+        out.append(value).append('\n');
+        return this;
+    }
+
+    public PrometheusWriter sample(String name, String labels, double value){
+        appendName(name, labels);
+        out.append(format(value)).append('\n');
+        return this;
+    }
+
+    public PrometheusWriter counter(String name, String help, long value){
+        return header(name, "counter", help).sample(name, null, value);
+    }
+
+    public PrometheusWriter gauge(String name, String help, long value){
+        return header(name, "gauge", help).sample(name, null, value);
+    }
+
+    public PrometheusWriter histogram(String name, String help, LogHistogram histogram, double scale){
+        header(name, "histogram", help);
+        histogram.writeTo(this, name, null, scale);
+        return this;
+    }
+
+    private void appendName(String name, String labels){
+        out.append(name);
+        if(labels != null && !labels.isEmpty()){
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+    }
+
+    static String format(double value){
+        if(value == Math.rint(value) && Math.abs(value) < 1e15){
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    @Override
+    public String toString(){
+        return out.toString();
+    }
+}
@@ -0,0 +1,132 @@
+package p2p.utils;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * 충돌 없고 추측할 수 없는 공유 코드 발급기.
+ *
+ * 단조 증가 카운터를 비밀 키로 만든 40비트 Feistel 순열(라운드 함수 HMAC-SHA256)에 통과시킨 뒤
+ * 8자리 Crockford base32로 인코딩한다. 순열이므로 같은 키로는 절대 같은 코드가 두 번 나오지 않고,
+ * 공간이 거의 찬 상태에서도 재시도 없이 O(1)로 발급된다. 키를 모르면 다음 코드를 예측할 수 없다.
+ */
+public class ShareCodeAllocator {
+    public static final int CODE_LENGTH = 8;
+    private static final int HALF_BITS = 20;
+    private static final long HALF_MASK = (1L << HALF_BITS) - 1;
+    private static final long DOMAIN = 1L << (HALF_BITS * 2);
+    private static final int ROUNDS = 4;
+    private static final char[] ALPHABET = "0123456789ABCDEFGHJKMNPQRSTVWXYZ".toCharArray();
+
+    private final byte[] key;
+    private final AtomicLong counter;
+    private final ThreadLocal<Mac> mac;
+
+    public ShareCodeAllocator(){
+        this(randomKey(), 0);
+    }
+
+    /**
+     * @param key     Feistel 라운드 키 (재시작 후에도 같은 코드 공간을 이어 쓰려면 저장해 둔 값)
+     * @param counter 다음에 순열에 넣을 카운터 값
+     */
+    public ShareCodeAllocator(byte[] key, long counter){
+        this.key = key.clone();
+        this.counter = new AtomicLong(counter);
+        this.mac = ThreadLocal.withInitial(() -> {
+            try{
+                Mac m = Mac.getInstance("HmacSHA256");
+                m.init(new SecretKeySpec(this.key, "HmacSHA256"));
+                return m;
+            }
+            catch(GeneralSecurityException e){
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    public String next(){
+        long index = counter.getAndIncrement();
+        if(index >= DOMAIN){
+            throw new IllegalStateException("Share code space exhausted");
+        }
+        return encode(permute(index));
+    }
+
+    public byte[] getKey(){
+        return key.clone();
+    }
+
+    public long getCounter(){
+        return counter.get();
+    }
+
+    private long permute(long value){
+        long left = value >>> HALF_BITS;
+        long right = value & HALF_MASK;
+        for(int round = 0; round < ROUNDS; round++){
+            long next = left ^ roundFunction(round, right);
+            left = right;
+            right = next;
+        }
+        return (left << HALF_BITS) | right;
+    }
+
+    private long roundFunction(int round, long half){
+        Mac m = mac.get();
+        m.update((byte) round);
+        m.update((byte) (half >>> 16));
+        m.update((byte) (half >>> 8));
+        m.update((byte) half);
+        byte[] out = m.doFinal();
+        return (((out[0] & 0xffL) << 16) | ((out[1] & 0xffL) << 8) | (out[2] & 0xffL)) & HALF_MASK;
+    }
+
+    static String encode(long value){
+        char[] chars = new char[CODE_LENGTH];
+        for(int i = CODE_LENGTH - 1; i >= 0; i--){
+            chars[i] = ALPHABET[(int) (value & 31)];
+            value >>>= 5;
+        }
+        return new String(chars);
+    }
+
+    /**
+     * 사용자가 입력한 코드를 표준 형태로 바꾼다 (대소문자, 혼동 문자 O/I/L 허용).
+     * 형식이 맞지 않으면 null.
+     */
+    public static String normalize(String code){
+        if(code == null){
+            return null;
+        }
+        String trimmed = code.trim().replace("-", "");
+        if(trimmed.length() != CODE_LENGTH){
+            return null;
+        }
+        char[] chars = new char[CODE_LENGTH];
+        for(int i = 0; i < CODE_LENGTH; i++){
+            char c = Character.toUpperCase(trimmed.charAt(i));
+            if(c == 'O'){
+                c = '0';
+            }
+            else if(c == 'I' || c == 'L'){
+                c = '1';
+            }
+            if(c == 'U' || (c < '0' || c > '9') && (c < 'A' || c > 'Z')){
+                return null;
+            }
+            chars[i] = c;
+        }
+        return new String(chars);
+    }
+
+    private static byte[] randomKey(){
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        return key;
+    }
+}
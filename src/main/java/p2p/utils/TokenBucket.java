@@ -0,0 +1,73 @@
+package p2p.utils;
+
+/**
+ * 초당 rate 바이트씩 채워지는 토큰 버킷 (최대 burst 바이트).
+ *
+ * take()는 기다리지 않고 토큰을 바로 가져가며 부족하면 빚(음수)으로 남긴다.
+ * 대신 빚을 갚을 때까지 기다려야 할 시간을 돌려주므로 블로킹 writer는 그만큼 쉬고,
+ * selector 기반 writer는 그 시간 뒤에 다시 쓰도록 예약할 수 있다.
+ * 같은 버킷을 나눠 쓰는 전송들은 빚을 같이 지므로 차례로 같은 몫을 받는다.
+ */
+public class TokenBucket {
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final long rate;
+    private final long burst;
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(long rate, long burst){
+        if(rate <= 0 || burst <= 0){
+            throw new IllegalArgumentException("rate and burst must be positive");
+        }
+        this.rate = rate;
+        this.burst = burst;
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * bytes만큼 토큰을 가져가고, 버킷이 다시 0 이상이 될 때까지 남은 시간(ns)을 돌려준다.
+     */
+    public synchronized long take(long bytes){
+        return take(bytes, 0);
+    }
+
+    /**
+     * take와 같지만 빚이 overdraft 바이트를 넘는 부분만 기다린다.
+     * 기다리지 않아도 되는 전송도 토큰은 가져가므로, 다른 전송들이 그만큼 늦게 쓰게 된다.
+     */
+    public synchronized long take(long bytes, long overdraft){
+        refill(System.nanoTime());
+        tokens -= bytes;
+        return tokens >= -overdraft ? 0 : (long) Math.ceil((-tokens - overdraft) * NANOS_PER_SECOND / rate);
+    }
+
+    /**
+     * 가져가지 않고 지금 빚만 확인.
+     */
+    public synchronized long delayNanos(){
+        refill(System.nanoTime());
+        return delay();
+    }
+
+    private long delay(){
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * NANOS_PER_SECOND / rate);
+    }
+
+    private void refill(long now){
+        long elapsed = now - lastRefill;
+        if(elapsed > 0){
+            tokens = Math.min(burst, tokens + (double) elapsed * rate / NANOS_PER_SECOND);
+            lastRefill = now;
+        }
+    }
+
+    public long getRate(){
+        return rate;
+    }
+
+    public long getBurst(){
+        return burst;
+    }
+}
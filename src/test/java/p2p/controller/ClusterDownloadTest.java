@@ -0,0 +1,277 @@
+package p2p.controller;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import p2p.service.ShareCluster;
+
+/**
+ * loopback 포트에 노드 3개를 띄워 ring 배치, 중계, 복제를 확인한다.
+ */
+public class ClusterDownloadTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final List<FileController> nodes = new ArrayList<>();
+    private final HttpClient client = HttpClient.newHttpClient();
+
+    @AfterEach
+    public void stopNodes(){
+        nodes.forEach(FileController::stop);
+    }
+
+    private void startCluster(int replicas, int replicateAfter) throws IOException{
+        String[] ids = {"a", "b", "c"};
+        for(String id : ids){
+            ShareCluster cluster = new ShareCluster(id, List.of(new ShareCluster.Node(id, "localhost", 0, 0)),
+                    ShareCluster.DEFAULT_VIRTUAL_NODES, replicas, replicateAfter, "s3cret");
+            FileController node = new FileController(0, 0, tempDir.resolve(id).toString(), cluster);
+            node.start();
+            nodes.add(node);
+        }
+        // 포트가 정해진 뒤 모든 노드에 같은 멤버 목록을 알려 줌
+        List<ShareCluster.Node> members = new ArrayList<>();
+        for(int i = 0; i < ids.length; i++){
+            members.add(new ShareCluster.Node(ids[i], "localhost", nodes.get(i).getPort(), nodes.get(i).getSharePort()));
+        }
+        nodes.forEach(node -> node.getCluster().setMembers(members));
+    }
+
+    private String upload(FileController node, byte[] content) throws Exception{
+        return upload(node, new String[]{"data.bin"}, new byte[][]{content});
+    }
+
+    private String upload(FileController node, String[] filenames, byte[][] contents) throws Exception{
+        return upload(node, "", filenames, contents);
+    }
+
+    private String upload(FileController node, String query, String[] filenames, byte[][] contents) throws Exception{
+        String boundary = "----cluster-test";
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for(int i = 0; i < filenames.length; i++){
+            body.write(("--" + boundary + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"" + filenames[i] + "\"\r\n"
+                    + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+            body.write(contents[i]);
+            body.write("\r\n".getBytes(StandardCharsets.UTF_8));
+        }
+        body.write(("--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + node.getPort() + "/upload" + query))
+                .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body.toByteArray())).build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, response.statusCode(), response.body());
+        Matcher matcher = Pattern.compile("\"code\":\"(\\w+)\"").matcher(response.body());
+        assertTrue(matcher.find());
+        return matcher.group(1);
+    }
+
+    private HttpResponse<byte[]> download(FileController node, String code) throws Exception{
+        return client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + node.getPort() + "/download/" + code)).build(),
+                HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    // 중계하지 않고 자기가 가진 것만 답하게 해서 이 노드에 공유가 있는지 확인
+    private boolean servesLocally(FileController node, String code) throws Exception{
+        return client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + node.getPort() + "/download/" + code))
+                .header("X-Cluster-Forwarded", "test").build(), HttpResponse.BodyHandlers.discarding()).statusCode() == 200;
+    }
+
+    // 공유를 갖고 있지 않아 중계해야 하는 노드
+    private FileController notHolding(String code) throws Exception{
+        for(FileController node : nodes){
+            if(!servesLocally(node, code)){
+                return node;
+            }
+        }
+        throw new AssertionError("Every node holds " + code);
+    }
+
+    private static Map<String, byte[]> unzip(byte[] archive) throws IOException{
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        try(ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(archive))){
+            ZipEntry entry;
+            while((entry = zip.getNextEntry()) != null){
+                entries.put(entry.getName(), zip.readAllBytes());
+            }
+        }
+        return entries;
+    }
+
+    private static byte[] randomBytes(int size){
+        byte[] content = new byte[size];
+        new Random(42).nextBytes(content);
+        return content;
+    }
+
+    @Test
+    public void startingTwiceKeepsServing() throws Exception{
+        startCluster(1, 0);
+        nodes.get(0).start();
+        String code = upload(nodes.get(0), randomBytes(100));
+        assertEquals(200, download(nodes.get(0), code).statusCode());
+    }
+
+    @Test
+    public void anyNodeServesSharesOwnedByAnother() throws Exception{
+        startCluster(0, 0);
+        byte[] content = randomBytes(3 * 1024 * 1024 + 17);
+        String code = upload(nodes.get(0), content);
+        assertEquals("a", nodes.get(1).getCluster().owner(code).id);
+
+        for(FileController node : nodes){
+            HttpResponse<byte[]> response = download(node, code);
+            assertEquals(200, response.statusCode());
+            assertArrayEquals(content, response.body());
+            assertTrue(response.headers().firstValue("Repr-Digest").isPresent());
+        }
+        assertEquals(404, download(nodes.get(2), "7K3QX9MA").statusCode());
+
+        // 중계하는 노드도 Range와 원래 Content-Type을 그대로 전달
+        HttpResponse<byte[]> partial = client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + nodes.get(2).getPort() + "/download/" + code))
+                .header("Range", "bytes=1000-1999").build(), HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(206, partial.statusCode());
+        assertEquals("bytes 1000-1999/" + content.length, partial.headers().firstValue("Content-Range").orElse(null));
+        assertArrayEquals(Arrays.copyOfRange(content, 1000, 2000), partial.body());
+        assertEquals("application/octet-stream", partial.headers().firstValue("Content-Type").orElse(null));
+
+        // 복제 요청은 비밀이 맞아야 함
+        HttpResponse<Void> forbidden = client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + nodes.get(1).getPort()
+                + "/cluster/replicas/" + code + "?from=a")).POST(HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.discarding());
+        assertEquals(403, forbidden.statusCode());
+    }
+
+    @Test
+    public void hotSharesSurviveTheOwnerGoingAway() throws Exception{
+        startCluster(1, 2);
+        byte[] content = randomBytes(200_000);
+        String code = upload(nodes.get(0), content);
+        assertEquals(200, download(nodes.get(0), code).statusCode());
+        assertEquals(200, download(nodes.get(1), code).statusCode());
+
+        // 복제는 비동기이므로 다른 노드에 복제본이 생길 때까지 기다린 뒤 주인을 내림
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while(!servesLocally(nodes.get(1), code) && !servesLocally(nodes.get(2), code)){
+            assertTrue(System.nanoTime() < deadline, "replica never appeared");
+            Thread.onSpinWait();
+        }
+        nodes.remove(0).stop();
+        HttpResponse<byte[]> response = download(nodes.get(1), code);
+        assertEquals(200, response.statusCode());
+        assertArrayEquals(content, response.body());
+    }
+
+    @Test
+    public void multiFileUploadsDownloadAsOneArchive() throws Exception{
+        startCluster(0, 0);
+        byte[] first = randomBytes(300_000);
+        byte[] second = "hello".getBytes(StandardCharsets.UTF_8);
+        String code = upload(nodes.get(0), new String[]{"photos/a.bin", "photos/sub/b.txt"}, new byte[][]{first, second});
+
+        // 주인 노드는 직접, 다른 노드는 주인의 응답을 중계해 같은 zip을 보냄
+        for(FileController node : nodes){
+            HttpResponse<byte[]> response = download(node, code);
+            assertEquals(200, response.statusCode());
+            Map<String, byte[]> entries = unzip(response.body());
+            assertEquals(List.of("photos/a.bin", "photos/sub/b.txt"), new ArrayList<>(entries.keySet()));
+            assertArrayEquals(first, entries.get("photos/a.bin"));
+            assertArrayEquals(second, entries.get("photos/sub/b.txt"));
+        }
+
+        String base = "http://localhost:" + nodes.get(0).getPort() + "/download/" + code;
+        HttpResponse<byte[]> tar = client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + nodes.get(2).getPort()
+                + "/download/" + code + "?format=tar")).build(), HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(200, tar.statusCode());
+        assertEquals("application/x-tar", tar.headers().firstValue("Content-Type").orElse(null));
+        assertEquals(0, tar.body().length % 512);
+
+        HttpResponse<String> list = client.send(HttpRequest.newBuilder(URI.create(base + "/files")).build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals("{\"name\":\"photos\",\"files\":[{\"path\":\"photos/a.bin\",\"size\":300000},"
+                + "{\"path\":\"photos/sub/b.txt\",\"size\":5}]}", list.body());
+
+        HttpResponse<byte[]> member = client.send(HttpRequest.newBuilder(URI.create(base + "/files/photos/a.bin"))
+                .header("Range", "bytes=100-199").build(), HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(206, member.statusCode());
+        assertArrayEquals(Arrays.copyOfRange(first, 100, 200), member.body());
+        assertEquals(404, client.send(HttpRequest.newBuilder(URI.create(base + "/files/photos/missing")).build(),
+                HttpResponse.BodyHandlers.discarding()).statusCode());
+    }
+
+    @Test
+    public void bundleMembersFetchedInOneSessionCountAsOneDownload() throws Exception{
+        startCluster(0, 0);
+        String code = upload(nodes.get(0), "?maxDownloads=1", new String[]{"set/a.txt", "set/b.txt"},
+                new byte[][]{"first".getBytes(StandardCharsets.UTF_8), "second".getBytes(StandardCharsets.UTF_8)});
+        String base = "http://localhost:" + nodes.get(0).getPort() + "/download/" + code + "/files/set/";
+
+        HttpResponse<String> first = client.send(HttpRequest.newBuilder(URI.create(base + "a.txt")).build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, first.statusCode());
+        String session = first.headers().firstValue("X-Bundle-Session").orElse(null);
+        assertTrue(session != null);
+
+        // 같은 세션의 나머지 파일은 횟수를 다 쓴 뒤에도 받을 수 있음
+        HttpResponse<String> second = client.send(HttpRequest.newBuilder(URI.create(base + "b.txt"))
+                .header("X-Bundle-Session", session).build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, second.statusCode());
+        assertEquals("second", second.body());
+        assertEquals(200, client.send(HttpRequest.newBuilder(URI.create(base + "a.txt?session=" + session)).build(),
+                HttpResponse.BodyHandlers.discarding()).statusCode());
+
+        // 세션 없이 새로 받으면 두 번째 다운로드로 세어 거절
+        assertEquals(410, client.send(HttpRequest.newBuilder(URI.create(base + "b.txt")).build(),
+                HttpResponse.BodyHandlers.discarding()).statusCode());
+    }
+
+    @Test
+    public void membersAndManifestAreRelayedFromTheOwner() throws Exception{
+        startCluster(0, 0);
+        byte[] first = randomBytes(1000);
+        String code = upload(nodes.get(0), new String[]{"set/a.bin", "set/b.txt"}, new byte[][]{first, "b".getBytes(StandardCharsets.UTF_8)});
+        String base = "http://localhost:" + notHolding(code).getPort() + "/download/" + code;
+
+        HttpResponse<byte[]> member = client.send(HttpRequest.newBuilder(URI.create(base + "/files/set/a.bin"))
+                .header("Range", "bytes=10-19").build(), HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(206, member.statusCode());
+        assertArrayEquals(Arrays.copyOfRange(first, 10, 20), member.body());
+
+        HttpResponse<String> whole = client.send(HttpRequest.newBuilder(URI.create(base + "/files/set/b.txt")).build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, whole.statusCode());
+        assertEquals("b", whole.body());
+        assertTrue(whole.headers().firstValue("X-Bundle-Session").isPresent());
+
+        HttpResponse<String> list = client.send(HttpRequest.newBuilder(URI.create(base + "/files")).build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, list.statusCode());
+        assertTrue(list.body().contains("\"set/b.txt\""));
+
+        // manifest는 단일 파일 공유에만 있음
+        String single = upload(nodes.get(0), first);
+        HttpResponse<String> manifest = client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + notHolding(single).getPort()
+                + "/download/" + single + "/manifest")).build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, manifest.statusCode());
+        assertTrue(manifest.body().startsWith("{\"algorithm\":\"sha256-merkle\""));
+    }
+}
@@ -0,0 +1,107 @@
+package p2p.controller;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+public class ConcurrencyLimitHandlerTest {
+
+    private final CountDownLatch entered = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final HttpClient client = HttpClient.newHttpClient();
+    private HttpServer server;
+
+    @AfterEach
+    public void stop(){
+        release.countDown();
+        server.stop(0);
+    }
+
+    // permit 1개, 대기열 1개, 300ms까지만 기다림. 제한이 걸린 첫 요청은 release까지 붙잡고 있음
+    private ConcurrencyLimitHandler start(Predicate<HttpExchange> applies) throws IOException{
+        ConcurrencyLimitHandler limiter = new ConcurrencyLimitHandler(exchange -> {
+            if(applies.test(exchange)){
+                entered.countDown();
+                try{
+                    release.await();
+                }
+                catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                }
+            }
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        }, applies, 1, 1, 300, 7);
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", limiter);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.start();
+        return limiter;
+    }
+
+    private CompletableFuture<HttpResponse<String>> get(){
+        return send("GET");
+    }
+
+    private CompletableFuture<HttpResponse<String>> send(String method){
+        return client.sendAsync(HttpRequest.newBuilder(URI.create("http://localhost:" + server.getAddress().getPort() + "/"))
+                .method(method, HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    @Test
+    public void shedsWithRetryAfterWhenTheQueueIsFullOrTheWaitTimesOut() throws Exception{
+        ConcurrencyLimitHandler limiter = start(exchange -> true);
+        CompletableFuture<HttpResponse<String>> holder = get();
+        entered.await(5, TimeUnit.SECONDS);
+
+        CompletableFuture<HttpResponse<String>> waiting = get();
+        while(limiter.getQueued() == 0){
+            Thread.sleep(5);
+        }
+        // 대기열이 차 있으므로 바로 거절
+        HttpResponse<String> rejected = get().get(5, TimeUnit.SECONDS);
+        assertEquals(429, rejected.statusCode());
+        assertEquals("7", rejected.headers().firstValue("Retry-After").orElse(null));
+
+        // 기다리던 요청은 300ms 뒤 거절
+        assertEquals(429, waiting.get(5, TimeUnit.SECONDS).statusCode());
+        assertEquals(2, limiter.getShed());
+        assertEquals(0, limiter.getQueued());
+
+        release.countDown();
+        assertEquals(204, holder.get(5, TimeUnit.SECONDS).statusCode());
+        assertEquals(204, get().get(5, TimeUnit.SECONDS).statusCode());
+    }
+
+    @Test
+    public void requestsOutsideTheLimitedClassSkipTheLimit() throws Exception{
+        ConcurrencyLimitHandler limiter = start(exchange -> exchange.getRequestMethod().equals("PUT"));
+        CompletableFuture<HttpResponse<String>> holder = send("PUT");
+        entered.await(5, TimeUnit.SECONDS);
+        assertEquals(1, limiter.getActive());
+
+        // permit이 모두 쓰이고 있어도 GET, DELETE는 기다리지 않음
+        assertEquals(204, get().get(5, TimeUnit.SECONDS).statusCode());
+        assertEquals(204, send("DELETE").get(5, TimeUnit.SECONDS).statusCode());
+        assertEquals(0, limiter.getShed());
+
+        release.countDown();
+        assertEquals(204, holder.get(5, TimeUnit.SECONDS).statusCode());
+    }
+}
@@ -0,0 +1,116 @@
+package p2p.controller;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class MultiparserTest {
+
+    private static final String BOUNDARY = "----WebKitFormBoundaryABC123";
+
+    private static byte[] body(byte[] content) throws IOException{
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"note\"\r\n\r\n"
+                + "hello\r\n"
+                + "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"data.bin\"\r\n"
+                + "Content-Type: application/x-test\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(content);
+        out.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        return out.toByteArray();
+    }
+
+    @Test
+    public void streamsFilePartAcrossBufferBoundaries() throws IOException{
+        byte[] content = new byte[200_000];
+        new Random(42).nextBytes(content);
+        // 구분자와 비슷한 바이트열을 본문에 섞어 넣기
+        byte[] decoy = ("\r\n--" + BOUNDARY.substring(0, 10)).getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(decoy, 0, content, 8190, decoy.length);
+
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        Multiparser parser = new Multiparser(new ByteArrayInputStream(body(content)), BOUNDARY, 8 * 1024);
+        Multiparser.ParseResult result = parser.parse(part -> Channels.newChannel(sink));
+
+        assertEquals("data.bin", result.filename);
+        assertEquals("application/x-test", result.contentType);
+        assertEquals(content.length, result.size);
+        assertArrayEquals(content, sink.toByteArray());
+        assertNull(parser.nextPart());
+    }
+
+    @Test
+    public void returnsNullWithoutFilePart() throws IOException{
+        String data = "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"note\"\r\n\r\n"
+                + "hello\r\n--" + BOUNDARY + "--\r\n";
+        Multiparser parser = new Multiparser(new ByteArrayInputStream(data.getBytes(StandardCharsets.US_ASCII)), BOUNDARY);
+        assertNull(parser.parse(part -> Channels.newChannel(new ByteArrayOutputStream())));
+    }
+
+    @Test
+    public void failsOnTruncatedBody() throws IOException{
+        byte[] full = body(new byte[1000]);
+        byte[] truncated = java.util.Arrays.copyOf(full, full.length - 20);
+        Multiparser parser = new Multiparser(new ByteArrayInputStream(truncated), BOUNDARY);
+        assertThrows(IOException.class, () -> parser.parse(part -> Channels.newChannel(new ByteArrayOutputStream())));
+    }
+
+    @Test
+    public void parsesEveryFilePartAndSkipsEmptyUnnamedOnes() throws IOException{
+        String data = "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"dir/a.txt\"\r\n\r\n"
+                + "first\r\n--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"\"\r\n\r\n"
+                + "\r\n--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"dir/b.txt\"\r\n\r\n"
+                + "second\r\n--" + BOUNDARY + "--\r\n";
+        List<ByteArrayOutputStream> sinks = new ArrayList<>();
+        int[] discarded = {0};
+        Multiparser.PartTarget target = new Multiparser.PartTarget(){
+            @Override
+            public WritableByteChannel open(Multiparser.Part part){
+                ByteArrayOutputStream sink = new ByteArrayOutputStream();
+                sinks.add(sink);
+                return Channels.newChannel(sink);
+            }
+
+            @Override
+            public void discard(Multiparser.Part part, WritableByteChannel channel){
+                discarded[0]++;
+            }
+        };
+        List<Multiparser.ParseResult> results = new Multiparser(new ByteArrayInputStream(data.getBytes(StandardCharsets.US_ASCII)), BOUNDARY)
+                .parseAll(target, 10);
+
+        assertEquals(2, results.size());
+        assertEquals("dir/a.txt", results.get(0).filename);
+        assertEquals("dir/b.txt", results.get(1).filename);
+        assertEquals(1, discarded[0]);
+        assertEquals("first", sinks.get(0).toString(StandardCharsets.US_ASCII));
+        assertEquals("second", sinks.get(2).toString(StandardCharsets.US_ASCII));
+
+        Multiparser limited = new Multiparser(new ByteArrayInputStream(data.getBytes(StandardCharsets.US_ASCII)), BOUNDARY);
+        assertThrows(IllegalArgumentException.class, () -> limited.parseAll(part -> Channels.newChannel(new ByteArrayOutputStream()), 1));
+    }
+
+    @Test
+    public void extractsQuotedBoundary(){
+        assertEquals("abc", Multiparser.extractBoundary("multipart/form-data; boundary=\"abc\""));
+        assertNull(Multiparser.extractBoundary("multipart/form-data"));
+    }
+}
@@ -0,0 +1,83 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class BandwidthSchedulerTest {
+    private static final int QUANTUM = 64 * 1024;
+
+    @Test
+    public void disabledWithoutLimits(){
+        assertFalse(new BandwidthScheduler(0, 0, 0, 0, QUANTUM).isEnabled());
+    }
+
+    @Test
+    public void bulkFlowsShareTheGlobalDebt(){
+        BandwidthScheduler scheduler = new BandwidthScheduler(1024 * 1024, 0, 0, 0, QUANTUM);
+        try(BandwidthScheduler.Flow first = scheduler.open("10.0.0.1", "AAAAAAAA", -1);
+            BandwidthScheduler.Flow second = scheduler.open("10.0.0.2", "BBBBBBBB", -1)){
+            // burst (256 KiB)를 다 쓰고 나면 두 전송 모두 늘어난 빚만큼 기다린다
+            long delay = 0;
+            for(int i = 0; i < 8; i++){
+                delay = first.take(QUANTUM);
+            }
+            long secondDelay = second.take(QUANTUM);
+            assertTrue(delay > 0, "bulk flow should be throttled");
+            assertTrue(secondDelay > delay, "second flow queues behind the first");
+            // 빚 320 KiB + 64 KiB at 1 MiB/s ≒ 375ms
+            assertTrue(secondDelay > 300_000_000L && secondDelay < 400_000_000L, "delay " + secondDelay);
+        }
+    }
+
+    @Test
+    public void interactiveFlowsSkipGlobalButNotClientLimits(){
+        BandwidthScheduler scheduler = new BandwidthScheduler(1024 * 1024, 512 * 1024, 0, 100_000, QUANTUM);
+        try(BandwidthScheduler.Flow bulk = scheduler.open("10.0.0.1", "AAAAAAAA", 10_000_000)){
+            // 전체 빚 128 KiB: burst(256 KiB) 안이므로 작은 전송은 기다리지 않음
+            for(int i = 0; i < 6; i++){
+                bulk.take(QUANTUM);
+            }
+            try(BandwidthScheduler.Flow small = scheduler.open("10.0.0.2", "BBBBBBBB", 50_000)){
+                assertEquals(0, small.take(50_000));
+            }
+            try(BandwidthScheduler.Flow sameClient = scheduler.open("10.0.0.1", "BBBBBBBB", 50_000)){
+                assertTrue(sameClient.take(50_000) > 0, "client bucket is still in debt");
+            }
+        }
+        assertEquals(0, scheduler.getClientCount());
+    }
+
+    @Test
+    public void interactiveFlowsWaitOnceGlobalDebtExceedsOneBurst(){
+        BandwidthScheduler scheduler = new BandwidthScheduler(1024 * 1024, 0, 0, 100_000, QUANTUM);
+        try(BandwidthScheduler.Flow small = scheduler.open("10.0.0.2", "BBBBBBBB", 90_000)){
+            long delay = 0;
+            // burst 256 KiB + 빚 256 KiB까지는 그냥, 그 뒤로는 넘은 만큼 기다림
+            for(int i = 0; i < 8; i++){
+                delay = small.take(QUANTUM);
+                assertEquals(0, delay);
+            }
+            delay = small.take(QUANTUM);
+            // 넘은 64 KiB at 1 MiB/s ≒ 62ms
+            assertTrue(delay > 50_000_000L && delay < 70_000_000L, "delay " + delay);
+        }
+    }
+
+    @Test
+    public void weightedFlowsWriteProportionallyLargerQuanta(){
+        BandwidthScheduler scheduler = new BandwidthScheduler(1024 * 1024, 0, 0, 0, QUANTUM,
+                BandwidthScheduler.parseWeights("http=3, share=1"));
+        assertEquals(3, scheduler.weight("http"));
+        assertEquals(1, scheduler.weight("piece"));
+        try(BandwidthScheduler.Flow heavy = scheduler.open("10.0.0.1", "AAAAAAAA", -1, scheduler.weight("http"));
+            BandwidthScheduler.Flow light = scheduler.open("10.0.0.2", "BBBBBBBB", -1, scheduler.weight("share"));
+            BandwidthScheduler.Flow capped = scheduler.open("10.0.0.3", "CCCCCCCC", -1, 1000)){
+            assertEquals(3 * QUANTUM, heavy.quantum());
+            assertEquals(QUANTUM, light.quantum());
+            assertEquals(BandwidthScheduler.MAX_WEIGHT * QUANTUM, capped.quantum());
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import p2p.utils.MerkleTree;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class BlobStoreTest {
+
+    @TempDir
+    Path tempDir;
+
+    private BlobStore.Blob upload(BlobStore store, String expected, byte[] content) throws IOException{
+        BlobStore.Writer writer = store.newWriter(expected);
+        writer.write(ByteBuffer.wrap(content));
+        return store.commit(writer);
+    }
+
+    @Test
+    public void deduplicatesIdenticalUploadsAndCountsReferences() throws IOException{
+        BlobStore store = new BlobStore(tempDir.toString());
+        byte[] content = "same bytes".getBytes();
+        BlobStore.Blob first = upload(store, null, content);
+        BlobStore.Writer duplicate = store.newWriter(first.id);
+        assertTrue(duplicate.isDuplicate());
+        duplicate.write(ByteBuffer.wrap(content));
+        BlobStore.Blob second = store.commit(duplicate);
+
+        assertSame(first, second);
+        assertEquals(2, first.getRefs());
+        assertEquals(1, store.getBlobCount());
+        try(var tmp = Files.list(tempDir.resolve("blobs").resolve("tmp"))){
+            assertEquals(0, tmp.count());
+        }
+
+        store.release(first.id);
+        assertTrue(Files.exists(first.getPath()));
+        store.release(first.id);
+        assertFalse(Files.exists(first.getPath()));
+        assertFalse(store.contains(first.id));
+    }
+
+    @Test
+    public void rejectsContentThatDoesNotMatchDeclaredHash() throws IOException{
+        BlobStore store = new BlobStore(tempDir.toString());
+        BlobStore.Blob blob = upload(store, null, "original".getBytes());
+        assertThrows(IllegalArgumentException.class, () -> upload(store, blob.id, "tampered".getBytes()));
+        assertEquals(1, blob.getRefs());
+    }
+
+    @Test
+    public void buildsTheSameMerkleTreeForStreamedAndAdoptedFiles() throws IOException{
+        byte[] content = new byte[10_000];
+        new Random(3).nextBytes(content);
+        BlobStore streamed = new BlobStore(tempDir.resolve("a").toString(), 4096);
+        BlobStore.Writer writer = streamed.newWriter();
+        // chunk 경계와 어긋나게 나눠 쓰기
+        writer.write(ByteBuffer.wrap(content, 0, 1000));
+        writer.write(ByteBuffer.wrap(content, 1000, content.length - 1000));
+        BlobStore.Blob blob = streamed.commit(writer);
+
+        Path file = tempDir.resolve("assembled.part");
+        Files.write(file, content);
+        BlobStore.Blob adopted = new BlobStore(tempDir.resolve("b").toString(), 4096).adopt(file);
+
+        assertEquals(3, blob.getMerkle().getChunkCount());
+        assertEquals(blob.id, adopted.id);
+        assertEquals(blob.getMerkle().rootHex(), adopted.getMerkle().rootHex());
+        assertEquals(blob.getMerkle().leafHex(2), adopted.getMerkle().leafHex(2));
+        assertTrue(Files.exists(blob.getPath().resolveSibling(blob.id + ".merkle")));
+        assertEquals(blob.getMerkle().rootHex(), MerkleTree.readFrom(blob.getPath().resolveSibling(blob.id + ".merkle")).rootHex());
+    }
+
+    @Test
+    public void concurrentIdenticalUploadsShareOneBlob() throws Exception{
+        BlobStore store = new BlobStore(tempDir.toString());
+        byte[] content = new byte[200_000];
+        new Random(5).nextBytes(content);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<BlobStore.Blob>> results = new ArrayList<>();
+        try{
+            for(int i = 0; i < 16; i++){
+                results.add(pool.submit(() -> upload(store, null, content)));
+            }
+            BlobStore.Blob first = results.get(0).get();
+            for(Future<BlobStore.Blob> result : results){
+                assertSame(first, result.get());
+            }
+            assertEquals(16, first.getRefs());
+            assertEquals(1, store.getBlobCount());
+            // 대문자 hex로 물어도 같은 blob
+            assertSame(first, store.get(first.id.toUpperCase()));
+            assertTrue(store.contains(first.id.toUpperCase()));
+            try(var tmp = Files.list(tempDir.resolve("blobs").resolve("tmp"))){
+                assertEquals(0, tmp.count());
+            }
+        }
+        finally{
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ChunkedUploadManagerTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void assemblesChunksUploadedInParallelAndOutOfOrder() throws IOException{
+        int chunkSize = ChunkedUploadManager.MIN_CHUNK_SIZE;
+        byte[] content = new byte[chunkSize * 5 + 123];
+        new Random(3).nextBytes(content);
+        BlobStore blobStore = new BlobStore(tempDir.toString());
+        FileSharer fileSharer = new FileSharer(0, 1, 0, blobStore);
+        ChunkedUploadManager manager = new ChunkedUploadManager(fileSharer, blobStore, tempDir.toString());
+        ChunkedUploadManager.UploadSession session = manager.initiate("a.bin", "application/octet-stream", content.length, chunkSize, 0, 0);
+        assertEquals(6, session.chunks);
+
+        IntStream.of(5, 3, 1, 0, 4, 2).parallel().forEach(index -> {
+            int from = index * chunkSize;
+            byte[] chunk = Arrays.copyOfRange(content, from, Math.min(content.length, from + chunkSize));
+            try{
+                manager.writeChunk(session.uploadId, index, new ByteArrayInputStream(chunk), null);
+            }
+            catch(IOException e){
+                throw new RuntimeException(e);
+            }
+        });
+
+        String code = manager.commit(session.uploadId);
+        SharedFile sharedFile = fileSharer.getSharedFile(code);
+        assertEquals("a.bin", sharedFile.filename);
+        assertArrayEquals(content, Files.readAllBytes(Paths.get(sharedFile.filePath)));
+    }
+
+    @Test
+    public void rejectsBadChecksumAndIncompleteCommit() throws IOException{
+        int chunkSize = ChunkedUploadManager.MIN_CHUNK_SIZE;
+        BlobStore blobStore = new BlobStore(tempDir.toString());
+        ChunkedUploadManager manager = new ChunkedUploadManager(new FileSharer(0, 1, 0, blobStore), blobStore, tempDir.toString());
+        ChunkedUploadManager.UploadSession session = manager.initiate("b.bin", "application/octet-stream", chunkSize * 2, chunkSize, 0, 0);
+
+        assertThrows(IllegalArgumentException.class,
+                () -> manager.writeChunk(session.uploadId, 0, new ByteArrayInputStream(new byte[chunkSize]), "00"));
+        assertThrows(IllegalArgumentException.class,
+                () -> manager.writeChunk(session.uploadId, 1, new ByteArrayInputStream(new byte[10]), null));
+        assertThrows(IllegalStateException.class, () -> manager.commit(session.uploadId));
+        assertArrayEquals(new int[]{0, 1}, session.missingChunks());
+    }
+
+    @Test
+    public void failedRewriteOfReceivedChunkMustBeResent() throws IOException{
+        int chunkSize = ChunkedUploadManager.MIN_CHUNK_SIZE;
+        byte[] content = new byte[chunkSize * 2];
+        new Random(5).nextBytes(content);
+        BlobStore blobStore = new BlobStore(tempDir.toString());
+        FileSharer fileSharer = new FileSharer(0, 1, 0, blobStore);
+        ChunkedUploadManager manager = new ChunkedUploadManager(fileSharer, blobStore, tempDir.toString());
+        ChunkedUploadManager.UploadSession session = manager.initiate("c.bin", "application/octet-stream", content.length, chunkSize, 0, 0);
+        byte[] first = Arrays.copyOfRange(content, 0, chunkSize);
+        manager.writeChunk(session.uploadId, 0, new ByteArrayInputStream(first), null);
+        manager.writeChunk(session.uploadId, 1, new ByteArrayInputStream(Arrays.copyOfRange(content, chunkSize, content.length)), null);
+
+        // 이미 받은 chunk를 짧게 다시 보내면 덮어쓴 내용이 남으므로 다시 받아야 한다
+        assertThrows(IllegalArgumentException.class,
+                () -> manager.writeChunk(session.uploadId, 0, new ByteArrayInputStream(new byte[100]), null));
+        assertArrayEquals(new int[]{0}, session.missingChunks());
+        assertThrows(IllegalStateException.class, () -> manager.commit(session.uploadId));
+
+        manager.writeChunk(session.uploadId, 0, new ByteArrayInputStream(first), null);
+        SharedFile sharedFile = fileSharer.getSharedFile(manager.commit(session.uploadId));
+        assertArrayEquals(content, Files.readAllBytes(Paths.get(sharedFile.filePath)));
+    }
+
+    @Test
+    public void sweeperExpiresIdleSessionsWithoutNewUploads() throws Exception{
+        BlobStore blobStore = new BlobStore(tempDir.resolve("blobs").toString());
+        FileSharer fileSharer = new FileSharer(0, 1, 0, blobStore);
+        ChunkedUploadManager manager = new ChunkedUploadManager(fileSharer, blobStore, tempDir.toString(), 0);
+        fileSharer.addSweepTask(manager::expireIdle);
+        ChunkedUploadManager.UploadSession session = manager.initiate("idle.bin", "application/octet-stream",
+                ChunkedUploadManager.MIN_CHUNK_SIZE, ChunkedUploadManager.MIN_CHUNK_SIZE, 0, 0);
+        assertTrue(Files.exists(tempDir.resolve(session.uploadId + "_idle.bin.part")));
+
+        // 제한 시간 0: 마지막 활동보다 시계가 한 번만 넘어가면 방치된 세션
+        Thread.sleep(5);
+        fileSharer.sweep();
+        assertNull(manager.getSession(session.uploadId));
+        assertFalse(Files.exists(tempDir.resolve(session.uploadId + "_idle.bin.part")));
+        assertThrows(IllegalStateException.class, () -> manager.writeChunk(session.uploadId, 0, new ByteArrayInputStream(new byte[1]), null));
+    }
+}
@@ -0,0 +1,90 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ContentCacheTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Path createFile(String name, int size) throws IOException{
+        Path file = tempDir.resolve(name);
+        byte[] content = new byte[size];
+        content[0] = (byte) name.charAt(0);
+        Files.write(file, content);
+        return file;
+    }
+
+    @Test
+    public void admitsRepeatedlyRequestedFilesAndSharesBuffers() throws IOException{
+        ContentCache cache = new ContentCache(4096, 4096, 2);
+        Path file = createFile("a", 1000);
+
+        assertNull(cache.get("a", file, 1000));
+        ByteBuffer first = cache.get("a", file, 1000);
+        ByteBuffer second = cache.get("a", file, 1000);
+        assertNotNull(first);
+        assertNotNull(second);
+        assertEquals(1000, second.remaining());
+        assertEquals('a', second.get(0));
+
+        // reader마다 position이 독립적
+        first.position(500);
+        assertEquals(0, second.position());
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(1, cache.getLoads());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedEntriesOverBudget() throws IOException{
+        ContentCache cache = new ContentCache(2500, 2500, 1);
+        Path a = createFile("a", 1000);
+        Path b = createFile("b", 1000);
+        Path c = createFile("c", 1000);
+
+        cache.get("a", a, 1000);
+        cache.get("b", b, 1000);
+        cache.get("a", a, 1000);
+        cache.get("c", c, 1000);
+
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2000, cache.getUsedBytes());
+        assertEquals(2, cache.getEntryCount());
+        // 최근에 읽은 a는 남고 b가 밀려남
+        long loads = cache.getLoads();
+        assertNotNull(cache.get("a", a, 1000));
+        assertEquals(loads, cache.getLoads());
+        assertNotNull(cache.get("b", b, 1000));
+        assertEquals(loads + 1, cache.getLoads());
+    }
+
+    @Test
+    public void nonBlockingLookupLoadsInTheBackground() throws Exception{
+        ContentCache cache = new ContentCache(4096, 4096, 2);
+        Path file = createFile("b", 1000);
+
+        assertNull(cache.getIfLoaded("b", file, 1000));
+        // 두 번째 요청에서 올릴 대상이 되지만 호출자는 기다리지 않음
+        assertNull(cache.getIfLoaded("b", file, 1000));
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        ByteBuffer loaded = null;
+        while(loaded == null && System.nanoTime() < deadline){
+            Thread.sleep(5);
+            loaded = cache.getIfLoaded("b", file, 1000);
+        }
+        assertNotNull(loaded);
+        assertEquals('b', loaded.get(0));
+        assertEquals(1, cache.getLoads());
+    }
+}
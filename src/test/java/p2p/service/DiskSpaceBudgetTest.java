@@ -0,0 +1,66 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+public class DiskSpaceBudgetTest {
+
+    private static final long MB = 1024 * 1024;
+
+    // 실제 디스크 대신 정해 둔 usable space
+    private final AtomicLong usable = new AtomicLong(100 * MB);
+    private final DiskSpaceBudget budget = new DiskSpaceBudget(usable::get, 10 * MB);
+
+    @Test
+    public void concurrentReservationsDoNotShareTheSameFreeSpace(){
+        DiskSpaceBudget.Reservation first = budget.reserve(60 * MB);
+        assertNotNull(first);
+        // 90MB 중 60MB는 이미 잡혀 있음
+        assertNull(budget.reserve(40 * MB));
+        assertEquals(1, budget.getRejected());
+        DiskSpaceBudget.Reservation second = budget.reserve(30 * MB);
+        assertNotNull(second);
+
+        first.close();
+        first.close();
+        assertEquals(30 * MB, budget.getReservedBytes());
+        second.close();
+        assertEquals(0, budget.getReservedBytes());
+        assertTrue(budget.hasRoom(90 * MB));
+    }
+
+    @Test
+    public void readingConsumesTheReservationAndExtendsItWhenTheBodyIsLonger() throws IOException{
+        DiskSpaceBudget.Reservation reservation = budget.reserve(MB);
+        InputStream in = reservation.meter(new ByteArrayInputStream(new byte[3 * (int) MB]));
+        in.readNBytes((int) MB / 2);
+        // 읽은 바이트는 디스크에 쓰였다고 보고 예약에서 뺀다
+        assertEquals(MB / 2, budget.getReservedBytes());
+        usable.addAndGet(-MB / 2);
+
+        in.readAllBytes();
+        assertEquals(DiskSpaceBudget.EXTEND_BYTES - 2 * MB, reservation.getRemaining());
+        reservation.close();
+        assertEquals(0, budget.getReservedBytes());
+    }
+
+    @Test
+    public void readFailsOnceTheDiskCannotHoldMore() throws IOException{
+        DiskSpaceBudget.Reservation reservation = budget.reserve(0);
+        usable.set(12 * MB);
+        InputStream in = reservation.meter(new ByteArrayInputStream(new byte[4 * (int) MB]));
+        assertThrows(DiskSpaceBudget.InsufficientSpaceException.class, in::readAllBytes);
+        reservation.close();
+        assertEquals(0, budget.getReservedBytes());
+    }
+}
@@ -0,0 +1,134 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class FileSharerTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Path createFile(String name) throws IOException{
+        Path file = tempDir.resolve(name);
+        Files.write(file, new byte[]{1, 2, 3});
+        return file;
+    }
+
+    @Test
+    public void allowsConcurrentReadersUntilDownloadLimit() throws IOException{
+        FileSharer fileSharer = new FileSharer(0, 1, 0);
+        Path file = createFile("a.bin");
+        String code = fileSharer.offerFile(new SharedFile(file.toString(), "a.bin", "application/octet-stream", 3, 0, 2));
+
+        SharedFile first = fileSharer.acquire(code);
+        SharedFile second = fileSharer.acquire(code);
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNull(fileSharer.acquire(code));
+
+        // 읽는 중에는 코드만 반납하고 파일은 남겨 둔다
+        assertEquals(1, fileSharer.sweepExpired());
+        assertFalse(fileSharer.hasShare(code));
+        assertTrue(Files.exists(file));
+
+        fileSharer.release(first);
+        assertTrue(Files.exists(file));
+        fileSharer.release(second);
+        assertFalse(Files.exists(file));
+    }
+
+    @Test
+    public void bundleSessionsArePerShareAndCapped() throws IOException{
+        FileSharer fileSharer = new FileSharer(0, 1, 0);
+        String code = fileSharer.offerFile(new SharedFile(createFile("a.bin").toString(), "a.bin", "application/octet-stream", 3, 0, 0));
+        String other = fileSharer.offerFile(new SharedFile(createFile("b.bin").toString(), "b.bin", "application/octet-stream", 3, 0, 0));
+
+        String first = fileSharer.openBundleSession(code);
+        assertNull(fileSharer.acquireInSession(other, first));
+        String last = null;
+        for(int i = 0; i < FileSharer.MAX_BUNDLE_SESSIONS; i++){
+            last = fileSharer.openBundleSession(code);
+        }
+        // 가장 오래된 세션이 밀려남
+        assertNull(fileSharer.acquireInSession(code, first));
+        SharedFile sharedFile = fileSharer.acquireInSession(code, last);
+        assertNotNull(sharedFile);
+        fileSharer.release(sharedFile);
+    }
+
+    @Test
+    public void refusedAndRefundedDownloadsDoNotUseTheLimit() throws IOException{
+        FileSharer fileSharer = new FileSharer(0, 1, 0);
+        SharedFile expired = new SharedFile(createFile("old.bin").toString(), "old.bin", "application/octet-stream", 3,
+                System.currentTimeMillis() - 1000, 1);
+        String expiredCode = fileSharer.offerFile(expired);
+        assertNull(fileSharer.acquire(expiredCode));
+        assertEquals(0, expired.getDownloads());
+
+        String code = fileSharer.offerFile(new SharedFile(createFile("a.bin").toString(), "a.bin", "application/octet-stream", 3, 0, 1));
+        SharedFile first = fileSharer.acquire(code);
+        assertNotNull(first);
+        // 파일을 열지 못해 아무것도 못 보낸 다운로드는 돌려받음
+        fileSharer.refundDownload(code, first);
+        fileSharer.release(first);
+        assertEquals(0, first.getDownloads());
+        SharedFile second = fileSharer.acquire(code);
+        assertNotNull(second);
+        fileSharer.release(second);
+        assertNull(fileSharer.acquire(code));
+    }
+
+    @Test
+    public void replicasReserveDiskSpace() throws IOException{
+        BlobStore originBlobs = new BlobStore(tempDir.resolve("origin").toString());
+        FileSharer origin = new FileSharer(0, 1, 0, originBlobs);
+        origin.startFileServer();
+        try{
+            BlobStore.Writer writer = originBlobs.newWriter();
+            writer.write(ByteBuffer.wrap(new byte[100_000]));
+            String code = origin.offerFile(SharedFile.fromBlob(originBlobs.commit(writer), "r.bin", "application/octet-stream", 0, 0));
+            ShareCluster.Node source = new ShareCluster.Node("a", "localhost", 0, origin.getSharePort());
+
+            FileSharer replica = new FileSharer(0, 1, 0, new BlobStore(tempDir.resolve("replica").toString()));
+            replica.setDiskBudget(new DiskSpaceBudget(() -> 50_000, 0));
+            assertThrows(DiskSpaceBudget.InsufficientSpaceException.class, () -> replica.fetchReplica(source, code));
+            assertFalse(replica.hasShare(code));
+
+            DiskSpaceBudget budget = new DiskSpaceBudget(() -> 1_000_000, 0);
+            replica.setDiskBudget(budget);
+            assertTrue(replica.fetchReplica(source, code));
+            assertEquals(0, budget.getReservedBytes());
+        }
+        finally{
+            origin.stopFileServer();
+        }
+    }
+
+    @Test
+    public void sweepsExpiredSharesAndDeletesFiles() throws IOException{
+        FileSharer fileSharer = new FileSharer(0, 1, 0);
+        Path expired = createFile("old.bin");
+        Path live = createFile("new.bin");
+        long now = System.currentTimeMillis();
+        String expiredCode = fileSharer.offerFile(new SharedFile(expired.toString(), "old.bin", "application/octet-stream", 3, now - 1, 0));
+        String liveCode = fileSharer.offerFile(new SharedFile(live.toString(), "new.bin", "application/octet-stream", 3, now + 60_000, 0));
+
+        assertNull(fileSharer.acquire(expiredCode));
+        assertEquals(1, fileSharer.sweepExpired());
+        assertFalse(Files.exists(expired));
+        assertTrue(fileSharer.hasShare(liveCode));
+        assertTrue(Files.exists(live));
+    }
+}
@@ -0,0 +1,104 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import p2p.utils.ShareCodeAllocator;
+
+public class ShareClusterTest {
+
+    private static final List<ShareCluster.Node> NODES = ShareCluster.parseNodes("a@h1:8080:9090, b@h2:8080:9090,c@h3:8081:9091");
+
+    private static ShareCluster cluster(String self, int replicas, int replicateAfter){
+        return new ShareCluster(self, NODES, ShareCluster.DEFAULT_VIRTUAL_NODES, replicas, replicateAfter, null);
+    }
+
+    @Test
+    public void parsesNodeList(){
+        assertEquals(3, NODES.size());
+        assertEquals("c", NODES.get(2).id);
+        assertEquals("h3", NODES.get(2).host);
+        assertEquals(8081, NODES.get(2).httpPort);
+        assertEquals(9091, NODES.get(2).sharePort);
+        assertThrows(IllegalArgumentException.class, () -> ShareCluster.parseNodes("a@h1:8080"));
+    }
+
+    @Test
+    public void everyNodeAgreesOnOwnerAndEachCodeHasExactlyOneOwner(){
+        ShareCluster a = cluster("a", 0, 0);
+        ShareCluster b = cluster("b", 0, 0);
+        ShareCluster c = cluster("c", 0, 0);
+        ShareCodeAllocator allocator = new ShareCodeAllocator();
+        Map<String, Integer> owned = new HashMap<>();
+        for(int i = 0; i < 30_000; i++){
+            String code = allocator.next();
+            String owner = a.owner(code).id;
+            assertEquals(owner, b.owner(code).id);
+            assertEquals(owner, c.owner(code).id);
+            int local = (a.ownsLocally(code) ? 1 : 0) + (b.ownsLocally(code) ? 1 : 0) + (c.ownsLocally(code) ? 1 : 0);
+            assertEquals(1, local);
+            owned.merge(owner, 1, Integer::sum);
+        }
+        // 가상 노드 덕분에 한 노드가 지나치게 많이 맡지 않음
+        for(int count : owned.values()){
+            assertTrue(count > 7_000 && count < 13_000, "unbalanced ring: " + owned);
+        }
+    }
+
+    @Test
+    public void preferenceListStartsAtOwnerAndListsEachNodeOnce(){
+        ShareCluster cluster = cluster("a", 0, 0);
+        List<ShareCluster.Node> list = cluster.preferenceList("7K3QX9MA");
+        assertEquals(3, list.size());
+        assertEquals(cluster.owner("7K3QX9MA").id, list.get(0).id);
+        Set<String> ids = new HashSet<>();
+        list.forEach(node -> ids.add(node.id));
+        assertEquals(Set.of("a", "b", "c"), ids);
+    }
+
+    @Test
+    public void onlyOwnerStartsReplicationOncePastThreshold(){
+        ShareCodeAllocator allocator = new ShareCodeAllocator();
+        String code;
+        do{
+            code = allocator.next();
+        } while(!cluster("a", 0, 0).ownsLocally(code));
+
+        ShareCluster owner = cluster("a", 1, 3);
+        assertTrue(owner.replicaTargets(code, 2).isEmpty());
+        List<ShareCluster.Node> targets = owner.replicaTargets(code, 3);
+        assertEquals(1, targets.size());
+        assertEquals(owner.preferenceList(code).get(1).id, targets.get(0).id);
+        assertTrue(owner.replicaTargets(code, 4).isEmpty());
+        owner.forgetReplication(code);
+        assertEquals(1, owner.replicaTargets(code, 5).size());
+
+        assertTrue(cluster("b", 1, 3).replicaTargets(code, 10).isEmpty());
+    }
+
+    @Test
+    public void standaloneOwnsEveryCode(){
+        ShareCluster cluster = ShareCluster.standalone();
+        assertFalse(cluster.isClustered());
+        assertTrue(cluster.ownsLocally(new ShareCodeAllocator().next()));
+    }
+
+    @Test
+    public void clusteredNodesRequireTheSecret(){
+        assertFalse(cluster("a", 0, 0).acceptsSecret(null), "peers without a secret must not accept node requests");
+        ShareCluster withSecret = new ShareCluster("a", NODES, ShareCluster.DEFAULT_VIRTUAL_NODES, 0, 0, "s3cret");
+        assertTrue(withSecret.acceptsSecret("s3cret"));
+        assertFalse(withSecret.acceptsSecret("wrong"));
+        assertFalse(withSecret.acceptsSecret(null));
+        assertTrue(ShareCluster.standalone().acceptsSecret(null));
+    }
+}
@@ -0,0 +1,208 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * 색인을 닫고 같은 디렉터리로 다시 열어 재시작을 흉내 낸다.
+ */
+public class ShareIndexTest {
+
+    @TempDir
+    Path tempDir;
+
+    private BlobStore blobStore;
+
+    private FileSharer open() throws IOException{
+        blobStore = new BlobStore(tempDir.toString(), 64 * 1024);
+        ShareIndex index = ShareIndex.open(tempDir.resolve("index"), blobStore);
+        return new FileSharer(0, 1, 0, blobStore, new ContentCache(0, 0, 1), ShareCluster.standalone(), index);
+    }
+
+    private BlobStore.Blob store(byte[] content) throws IOException{
+        BlobStore.Writer writer = blobStore.newWriter();
+        writer.write(ByteBuffer.wrap(content));
+        return blobStore.commit(writer);
+    }
+
+    private static byte[] randomBytes(int size){
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+
+    @Test
+    public void restoresSharesBlobsAndDownloadCountsAfterRestart() throws IOException{
+        FileSharer before = open();
+        long expiresAt = System.currentTimeMillis() + 60_000;
+        BlobStore.Blob blob = store(randomBytes(200_000));
+        String single = before.offerFile(SharedFile.fromBlob(blob, "a.bin", "text/plain", expiresAt, 2));
+        BlobStore.Blob member = store(randomBytes(10));
+        String bundle = before.offerFile(SharedFile.bundle("dir", List.of(
+                new SharedFile.Member("dir/x", member, "application/octet-stream", 42, 1000)), 0, 0));
+        BlobStore.Blob expiredBlob = store(randomBytes(5));
+        String expired = before.offerFile(SharedFile.fromBlob(expiredBlob, "old", "text/plain", System.currentTimeMillis() - 1, 0));
+        BlobStore.Blob removedBlob = store(randomBytes(7));
+        String removed = before.offerFile(SharedFile.fromBlob(removedBlob, "gone", "text/plain", 0, 0));
+        before.withdraw(removed, before.getSharedFile(removed));
+        before.release(before.acquire(single));
+        before.stopFileServer();
+
+        FileSharer after = open();
+        SharedFile restored = after.getSharedFile(single);
+        assertNotNull(restored);
+        assertEquals("a.bin", restored.filename);
+        assertEquals("text/plain", restored.contentType);
+        assertEquals(expiresAt, restored.expiresAt);
+        assertEquals(blob.getPath().toString(), restored.filePath);
+        assertEquals(1, restored.getDownloads());
+        assertEquals(1, blobStore.get(blob.id).getRefs());
+        // 트리는 sidecar에서 필요할 때 읽음
+        assertEquals(blob.getMerkle().rootHex(), after.merkleTree(restored).rootHex());
+
+        SharedFile restoredBundle = after.getSharedFile(bundle);
+        assertEquals(42, restoredBundle.members.get("dir/x").crc32);
+        assertEquals(member.getPath().toString(), restoredBundle.members.get("dir/x").filePath);
+        assertFalse(after.hasShare(expired));
+        assertFalse(after.hasShare(removed));
+
+        // 남은 다운로드는 한 번
+        assertNotNull(after.acquire(single));
+        assertNull(after.acquire(single));
+
+        // 같은 키, 이어지는 카운터: 예전 코드가 다시 나오지 않음
+        Set<String> codes = new HashSet<>(List.of(single, bundle, expired, removed));
+        for(int i = 0; i < 100; i++){
+            assertTrue(codes.add(after.offerFile(SharedFile.fromBlob(blobStore.retain(blob.id), "again", "text/plain", 0, 0))));
+        }
+
+        // 어떤 공유도 참조하지 않는 blob만 지움 (blob + .merkle sidecar)
+        assertEquals(4, blobStore.collectOrphans(System.currentTimeMillis() + 1000));
+        assertTrue(Files.exists(blob.getPath()));
+        assertFalse(Files.exists(removedBlob.getPath()));
+        assertFalse(Files.exists(expiredBlob.getPath()));
+        after.stopFileServer();
+    }
+
+    @Test
+    public void compactsAndIgnoresATornTail() throws IOException{
+        FileSharer before = open();
+        Set<String> codes = new HashSet<>();
+        for(int i = 0; i < 50; i++){
+            codes.add(before.offerFile(SharedFile.fromBlob(store(randomBytes(100 + i)), "f" + i, "text/plain", 0, 0)));
+        }
+        assertTrue(before.compactIndex(true));
+        String late = before.offerFile(SharedFile.fromBlob(store(randomBytes(99)), "late", "text/plain", 0, 0));
+        before.stopFileServer();
+
+        Path log = tempDir.resolve("index").resolve("log.1");
+        assertTrue(Files.exists(tempDir.resolve("index").resolve("snapshot")));
+        assertFalse(Files.exists(tempDir.resolve("index").resolve("log.0")));
+        long intact = Files.size(log);
+        // 쓰다가 죽은 record
+        Files.write(log, new byte[]{0, 0, 0, 40, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        FileSharer after = open();
+        for(String code : codes){
+            assertNotNull(after.getSharedFile(code));
+        }
+        assertEquals("late", after.getSharedFile(late).filename);
+        assertEquals(intact, Files.size(log));
+        String next = after.offerFile(SharedFile.fromBlob(store(randomBytes(1)), "next", "text/plain", 0, 0));
+        after.stopFileServer();
+
+        assertNotNull(open().getSharedFile(next));
+    }
+
+    @Test
+    public void decodesSnapshotSharesOnFirstLookup() throws IOException{
+        FileSharer before = open();
+        BlobStore.Blob blob = store(randomBytes(300));
+        List<String> codes = new ArrayList<>();
+        for(int i = 0; i < 20; i++){
+            codes.add(before.offerFile(SharedFile.fromBlob(i == 0 ? blob : blobStore.retain(blob.id), "f" + i, "text/plain", 0, 0)));
+        }
+        String expiring = before.offerFile(SharedFile.fromBlob(store(randomBytes(301)), "soon", "text/plain",
+                System.currentTimeMillis() + 300, 0));
+        assertTrue(before.compactIndex(true));
+        before.stopFileServer();
+
+        FileSharer after = open();
+        // snapshot의 공유는 위치만: Blob 객체도 아직 없음
+        assertEquals(21, after.getShareCount());
+        assertEquals(0, blobStore.getBlobCount());
+        // 디코딩하지 않은 공유가 참조하는 blob은 고아가 아님
+        assertEquals(0, blobStore.collectOrphans(System.currentTimeMillis() + 1000));
+        assertTrue(Files.exists(blob.getPath()));
+
+        assertEquals("f3", after.getSharedFile(codes.get(3)).filename);
+        assertEquals(1, blobStore.get(blob.id).getRefs());
+        // 디코딩한 공유 하나를 지워도 나머지가 참조하는 blob은 남음
+        after.withdraw(codes.get(3), after.getSharedFile(codes.get(3)));
+        after.release(after.acquire(codes.get(4)));
+        assertFalse(after.hasShare(codes.get(3)));
+        assertTrue(Files.exists(blob.getPath()));
+        assertEquals(20, after.getShareCount());
+
+        // 디코딩하지 않은 공유도 만료되면 sweeper가 정리
+        try{
+            Thread.sleep(400);
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        assertEquals(1, after.sweepExpired());
+        assertFalse(after.hasShare(expiring));
+
+        // 디코딩 안 한 공유는 이전 snapshot record 그대로 새 snapshot에
+        assertTrue(after.compactIndex(true));
+        after.stopFileServer();
+        FileSharer again = open();
+        assertEquals(19, again.getShareCount());
+        for(int i = 0; i < codes.size(); i++){
+            assertEquals(i != 3, again.hasShare(codes.get(i)));
+        }
+        again.stopFileServer();
+    }
+
+    @Test
+    public void dropsRestoredSharesWhoseFilesAreGone() throws IOException{
+        FileSharer before = open();
+        Path file = tempDir.resolve("plain.bin");
+        Files.write(file, new byte[]{1, 2, 3});
+        String code = before.offerFile(new SharedFile(file.toString(), "plain.bin", "application/octet-stream", 3));
+        before.stopFileServer();
+        Files.delete(file);
+
+        FileSharer after = open();
+        assertTrue(after.hasShare(code));
+        assertEquals(1, after.dropMissingFiles());
+        assertFalse(after.hasShare(code));
+        after.stopFileServer();
+        assertFalse(open().hasShare(code));
+    }
+
+    @Test
+    public void keyIsCreatedOnceAndReused() throws IOException{
+        byte[] key = ShareIndex.open(tempDir.resolve("index"), null).getKey();
+        assertArrayEquals(key, ShareIndex.open(tempDir.resolve("index"), null).getKey());
+    }
+}
@@ -0,0 +1,130 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ShareServerTest {
+
+    @TempDir
+    Path tempDir;
+
+    private byte[] content;
+    private FileSharer fileSharer;
+    private String code;
+
+    @BeforeEach
+    public void setUp() throws IOException{
+        content = new byte[1_000_000];
+        new Random(7).nextBytes(content);
+        Path file = tempDir.resolve("data.bin");
+        Files.write(file, content);
+        SharedFile sharedFile = new SharedFile(file.toString(), "data.bin", "application/octet-stream", content.length);
+        fileSharer = new FileSharer(0, 2, 0);
+        fileSharer.startFileServer();
+        code = fileSharer.offerFile(sharedFile);
+    }
+
+    @AfterEach
+    public void tearDown(){
+        fileSharer.stopFileServer();
+    }
+
+    private byte[] fetch(String code) throws IOException{
+        try(Socket socket = new Socket("localhost", fileSharer.getSharePort())){
+            socket.getOutputStream().write((code + "\n").getBytes(StandardCharsets.US_ASCII));
+            socket.getOutputStream().flush();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try(InputStream in = socket.getInputStream()){
+                in.transferTo(out);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    @Test
+    public void servesConcurrentClientsOnOnePort() throws Exception{
+        byte[] header = ("Filename: data.bin\nLength: " + content.length
+                + "\nContent-Type: application/octet-stream\nExpires-At: 0\n\n").getBytes(StandardCharsets.UTF_8);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try{
+            List<Future<byte[]>> results = new ArrayList<>();
+            for(int i = 0; i < 16; i++){
+                results.add(pool.submit(() -> fetch(code)));
+            }
+            for(Future<byte[]> result : results){
+                byte[] bytes = result.get();
+                assertEquals(header.length + content.length, bytes.length);
+                byte[] body = java.util.Arrays.copyOfRange(bytes, header.length, bytes.length);
+                assertArrayEquals(content, body);
+            }
+        }
+        finally{
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void reportsUnknownCode() throws IOException{
+        String response = new String(fetch("not-a-code"), StandardCharsets.UTF_8);
+        assertTrue(response.startsWith("Error: "));
+    }
+
+    @Test
+    public void errorResponsesCountAsFailedDownloads() throws IOException{
+        Files.delete(tempDir.resolve("data.bin"));
+        String response = new String(fetch(code), StandardCharsets.UTF_8);
+        assertTrue(response.startsWith("Error: "));
+        assertEquals(0, fileSharer.getMetrics().shareDownloadsCompleted.sum());
+        assertEquals(1, fileSharer.getMetrics().shareDownloadsFailed.sum());
+        assertEquals(0, fileSharer.getSharedFile(code).getDownloads());
+    }
+
+    @Test
+    public void closesTransferWhenFileIsTruncated() throws Exception{
+        Path file = tempDir.resolve("big.bin");
+        Files.write(file, new byte[16_000_000]);
+        String big = fileSharer.offerFile(new SharedFile(file.toString(), "big.bin", "application/octet-stream", 16_000_000));
+        try(Socket socket = new Socket()){
+            // 받는 쪽 버퍼를 작게 해서 서버가 전송 도중에 멈춰 있게 함
+            socket.setReceiveBufferSize(8192);
+            socket.setSoTimeout(10_000);
+            socket.connect(new InetSocketAddress("localhost", fileSharer.getSharePort()));
+            socket.getOutputStream().write((big + "\n").getBytes(StandardCharsets.US_ASCII));
+            InputStream in = socket.getInputStream();
+            assertTrue(in.read() >= 0);
+            Thread.sleep(200);
+            Files.write(file, new byte[0]);
+            // 헛돌지 않고 연결을 끊으므로 EOF가 옴 (끊기지 않으면 SocketTimeoutException)
+            long received = 1 + in.transferTo(OutputStream.nullOutputStream());
+            assertTrue(received < 16_000_000);
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while(fileSharer.getMetrics().shareDownloadsFailed.sum() == 0 && System.currentTimeMillis() < deadline){
+            Thread.sleep(10);
+        }
+        assertEquals(1, fileSharer.getMetrics().shareDownloadsFailed.sum());
+        assertEquals(0, fileSharer.getMetrics().shareDownloadsCompleted.sum());
+    }
+}
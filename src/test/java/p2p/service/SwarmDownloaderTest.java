@@ -0,0 +1,189 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import p2p.utils.MerkleTree;
+
+/**
+ * loopback에 피어 여러 개를 띄워 piece 교환을 확인한다.
+ */
+public class SwarmDownloaderTest {
+    private static final int CHUNK = 16 * 1024;
+
+    @TempDir
+    Path tempDir;
+
+    private final List<FileSharer> peers = new ArrayList<>();
+    private byte[] content;
+    private String code;
+
+    @AfterEach
+    public void stopPeers(){
+        peers.forEach(FileSharer::stopFileServer);
+    }
+
+    private FileSharer startPeer() throws IOException{
+        FileSharer peer = new FileSharer(0, 1, 0);
+        peer.startFileServer();
+        peers.add(peer);
+        return peer;
+    }
+
+    private FileSharer startOrigin(int size) throws IOException{
+        content = new byte[size];
+        new Random(17).nextBytes(content);
+        Path file = tempDir.resolve("origin.bin");
+        Files.write(file, content);
+        FileSharer origin = startPeer();
+        code = origin.offerFile(SharedFile.hashed(file.toString(), CHUNK));
+        return origin;
+    }
+
+    private SharedFile download(FileSharer peer, FileSharer from, String name) throws Exception{
+        return new SwarmDownloader(peer, code, "localhost:" + from.getSharePort(), tempDir.resolve(name)).download();
+    }
+
+    @Test
+    public void downloadedPeerSeedsOthersAfterOriginLeaves() throws Exception{
+        FileSharer origin = startOrigin(40 * CHUNK + 123);
+        FileSharer a = startPeer();
+        FileSharer b = startPeer();
+        // 예전에 받다 만 더 긴 파일이 있어도 원본 크기로 끝나야 함
+        Files.write(tempDir.resolve("a.bin"), new byte[content.length + 5000]);
+
+        SharedFile fromOrigin = download(a, origin, "a.bin");
+        assertTrue(fromOrigin.isComplete());
+        assertArrayEquals(content, Files.readAllBytes(tempDir.resolve("a.bin")));
+        assertNotNull(a.getSharedFile(code));
+
+        origin.stopFileServer();
+        download(b, a, "b.bin");
+        assertArrayEquals(content, Files.readAllBytes(tempDir.resolve("b.bin")));
+        assertEquals(41, a.getMetrics().swarmPiecesServed.sum());
+    }
+
+    @Test
+    public void reservesDiskSpaceForTheWholeFile() throws Exception{
+        FileSharer origin = startOrigin(10 * CHUNK);
+        FileSharer full = startPeer();
+        full.setDiskBudget(new DiskSpaceBudget(() -> 5L * CHUNK, 0));
+        assertThrows(DiskSpaceBudget.InsufficientSpaceException.class, () -> download(full, origin, "full.bin"));
+        assertFalse(full.hasShare(code));
+        assertFalse(Files.exists(tempDir.resolve("full.bin")));
+
+        FileSharer roomy = startPeer();
+        DiskSpaceBudget budget = new DiskSpaceBudget(() -> 100L * CHUNK, 0);
+        roomy.setDiskBudget(budget);
+        download(roomy, origin, "roomy.bin");
+        assertArrayEquals(content, Files.readAllBytes(tempDir.resolve("roomy.bin")));
+        assertEquals(0, budget.getReservedBytes());
+    }
+
+    @Test
+    public void concurrentDownloadersExchangePieces() throws Exception{
+        FileSharer origin = startOrigin(256 * CHUNK);
+        List<FileSharer> downloaders = new ArrayList<>();
+        for(int i = 0; i < 4; i++){
+            downloaders.add(startPeer());
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(downloaders.size());
+        try{
+            List<Future<SharedFile>> results = new ArrayList<>();
+            for(int i = 0; i < downloaders.size(); i++){
+                FileSharer peer = downloaders.get(i);
+                String name = "peer" + i + ".bin";
+                results.add(pool.submit(() -> download(peer, origin, name)));
+            }
+            for(Future<SharedFile> result : results){
+                assertTrue(result.get().isComplete());
+            }
+        }
+        finally{
+            pool.shutdownNow();
+        }
+        long servedByPeers = 0;
+        for(int i = 0; i < downloaders.size(); i++){
+            assertArrayEquals(content, Files.readAllBytes(tempDir.resolve("peer" + i + ".bin")));
+            servedByPeers += downloaders.get(i).getMetrics().swarmPiecesServed.sum();
+        }
+        // 원본이 모든 piece를 4번씩 보낸 게 아니라 피어들이 나눠 보냈음
+        assertEquals(4 * 256, servedByPeers + origin.getMetrics().swarmPiecesServed.sum());
+        assertTrue(servedByPeers > 0, "peers served no pieces");
+    }
+
+    @Test
+    public void dropsPeersThatServeCorruptPieces() throws Exception{
+        FileSharer origin = startOrigin(64 * CHUNK);
+        FileSharer bad = startPeer();
+        download(bad, origin, "bad.bin");
+        // 받은 뒤 디스크 내용이 깨진 피어
+        try(RandomAccessFile file = new RandomAccessFile(tempDir.resolve("bad.bin").toFile(), "rw")){
+            for(int i = 0; i < 64; i++){
+                file.seek((long) i * CHUNK + 7);
+                file.write(0x5a ^ content[i * CHUNK + 7]);
+            }
+        }
+
+        FileSharer good = startPeer();
+        download(good, origin, "good.bin");
+        assertArrayEquals(content, Files.readAllBytes(tempDir.resolve("good.bin")));
+        // 검증에 실패한 순간 이미 요청해 둔 것 말고는 더 받지 않음
+        assertTrue(bad.getMetrics().swarmPiecesServed.sum() <= SwarmDownloader.MAX_REQUESTS_PER_PEER);
+    }
+
+    @Test
+    public void partialSharesAreNotOfferedAsWholeFiles(){
+        Path file = tempDir.resolve("part.bin");
+        SharedFile partial = SharedFile.partial(file.toString(), "part.bin", "application/octet-stream", 0,
+                MerkleTree.fromLeaves(CHUNK, 2L * CHUNK, new byte[2][32]));
+        FileSharer peer = new FileSharer(0, 1, 0);
+        peer.offerPartial("7K3QX9MA", partial);
+        assertNull(peer.acquire("7K3QX9MA"));
+        assertNotNull(peer.acquirePieces("7K3QX9MA", false));
+        partial.pieces.add(0);
+        partial.pieces.add(1);
+        assertNotNull(peer.acquire("7K3QX9MA"));
+    }
+
+    @Test
+    public void onlySwarmSeedsServePiecesAndEachSwarmDownloadCountsOnce() throws Exception{
+        FileSharer origin = startOrigin(4 * CHUNK);
+        Path file = tempDir.resolve("origin.bin");
+        String limited = origin.offerFile(new SharedFile(file.toString(), "origin.bin", "application/octet-stream", content.length, 0, 1));
+        assertNull(origin.acquirePieces(limited, true), "upload-style shares must not be served as pieces");
+
+        download(startPeer(), origin, "a.bin");
+        assertEquals(1, origin.getSharedFile(code).getDownloads());
+    }
+
+    @Test
+    public void rejectsMalformedPeerAddresses(){
+        assertTrue(SwarmDownloader.isValidPeerAddress("10.0.0.7:9091"));
+        assertTrue(SwarmDownloader.isValidPeerAddress("0:0:0:0:0:0:0:1:9091"));
+        assertFalse(SwarmDownloader.isValidPeerAddress("10.0.0.7"));
+        assertFalse(SwarmDownloader.isValidPeerAddress("10.0.0.7:0"));
+        assertFalse(SwarmDownloader.isValidPeerAddress("10.0.0.7:70000"));
+        assertFalse(SwarmDownloader.isValidPeerAddress("evil host:9091"));
+        assertFalse(SwarmDownloader.isValidPeerAddress(":9091"));
+    }
+}
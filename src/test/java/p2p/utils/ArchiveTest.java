@@ -0,0 +1,121 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ArchiveTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final List<byte[]> contents = new ArrayList<>();
+
+    private Archive.Entry entry(String path, int size) throws IOException{
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        contents.add(content);
+        Path source = tempDir.resolve("blob" + contents.size());
+        Files.write(source, content);
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        return new Archive.Entry(path, source, size, crc.getValue());
+    }
+
+    private static byte[] write(Archive archive) throws IOException{
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        archive.writeTo(Channels.newChannel(out));
+        return out.toByteArray();
+    }
+
+    @Test
+    public void zipIsReadableAndLengthIsExact() throws IOException{
+        List<Archive.Entry> entries = List.of(entry("docs/a.txt", 10_000), entry("docs/empty", 0), entry("docs/한글.bin", 513));
+        Archive archive = Archive.of(Archive.ZIP, entries, System.currentTimeMillis());
+        byte[] bytes = write(archive);
+        assertEquals(archive.length(), bytes.length);
+
+        try(ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(bytes), StandardCharsets.UTF_8)){
+            for(int i = 0; i < entries.size(); i++){
+                ZipEntry zipEntry = zip.getNextEntry();
+                assertEquals(entries.get(i).path, zipEntry.getName());
+                assertEquals(ZipEntry.STORED, zipEntry.getMethod());
+                // ZipInputStream이 stored 항목의 CRC를 검사한다
+                assertArrayEquals(contents.get(i), zip.readAllBytes());
+            }
+            assertNull(zip.getNextEntry());
+        }
+    }
+
+    @Test
+    public void tarHasValidHeadersAndPaxForLongPaths() throws IOException{
+        String longPath = "x".repeat(120) + "/" + "y".repeat(110);
+        List<Archive.Entry> entries = List.of(entry("a.txt", 700), entry(longPath, 5));
+        Archive archive = Archive.of(Archive.TAR, entries, 1_700_000_000_000L);
+        byte[] bytes = write(archive);
+        assertEquals(archive.length(), bytes.length);
+        assertEquals(0, bytes.length % 512);
+
+        // a.txt: 헤더 1블록 + 데이터 2블록
+        assertChecksum(bytes, 0);
+        assertEquals("a.txt", cString(bytes, 0, 100));
+        assertEquals(700, Long.parseLong(cString(bytes, 124, 12), 8));
+        assertArrayEquals(contents.get(0), Arrays.copyOfRange(bytes, 512, 512 + 700));
+
+        // 긴 경로: PAX 헤더 + 레코드 블록 + 실제 헤더
+        int pax = 512 * 3;
+        assertChecksum(bytes, pax);
+        assertEquals('x', bytes[pax + 156]);
+        String record = cString(bytes, pax + 512, 512);
+        assertTrue(record.endsWith(" path=" + longPath + "\n"));
+        assertEquals(record.length(), Integer.parseInt(record.substring(0, record.indexOf(' '))));
+        int header = pax + 1024;
+        assertChecksum(bytes, header);
+        assertEquals('0', bytes[header + 156]);
+        assertArrayEquals(contents.get(1), Arrays.copyOfRange(bytes, header + 512, header + 517));
+    }
+
+    @Test
+    public void normalizesUploadedPaths(){
+        assertEquals("dir/sub/file.txt", Archive.normalizePath("dir\\sub/./file.txt"));
+        assertEquals("file.txt", Archive.normalizePath("/file.txt"));
+        assertThrows(IllegalArgumentException.class, () -> Archive.normalizePath("dir/../../etc/passwd"));
+        assertThrows(IllegalArgumentException.class, () -> Archive.normalizePath("./"));
+    }
+
+    private static void assertChecksum(byte[] bytes, int offset){
+        long sum = 0;
+        for(int i = 0; i < 512; i++){
+            sum += i >= 148 && i < 156 ? ' ' : bytes[offset + i] & 0xff;
+        }
+        assertEquals(sum, Long.parseLong(cString(bytes, offset + 148, 8).trim(), 8));
+    }
+
+    private static String cString(byte[] bytes, int offset, int max){
+        int end = offset;
+        while(end < offset + max && bytes[end] != 0){
+            end++;
+        }
+        return new String(bytes, offset, end - offset, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,51 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class ByteRangeTest {
+
+    @Test
+    public void parsesClosedOpenAndSuffixRanges(){
+        List<ByteRange> ranges = ByteRange.parse("bytes=0-99, 500-899, -10", 1000);
+        assertEquals(3, ranges.size());
+        assertEquals(100, ranges.get(0).length());
+        assertEquals(500, ranges.get(1).start);
+        assertEquals(899, ranges.get(1).end);
+        assertEquals(990, ranges.get(2).start);
+        assertEquals("bytes 990-999/1000", ranges.get(2).contentRange(1000));
+    }
+
+    @Test
+    public void mergesOverlappingAndAdjacentRanges(){
+        List<ByteRange> ranges = ByteRange.parse("bytes=500-, 0-0, -10, 1-99, 200-299", 1000);
+        assertEquals(3, ranges.size());
+        assertEquals(0, ranges.get(0).start);
+        assertEquals(99, ranges.get(0).end);
+        assertEquals(200, ranges.get(1).start);
+        assertEquals(500, ranges.get(2).start);
+        assertEquals(999, ranges.get(2).end);
+    }
+
+    @Test
+    public void clampsEndToFileSize(){
+        assertEquals(999, ByteRange.parse("bytes=900-5000", 1000).get(0).end);
+    }
+
+    @Test
+    public void ignoresMalformedHeader(){
+        assertNull(ByteRange.parse("items=0-1", 1000));
+        assertNull(ByteRange.parse("bytes=abc", 1000));
+        assertNull(ByteRange.parse("bytes=50-10", 1000));
+    }
+
+    @Test
+    public void rejectsUnsatisfiableRange(){
+        assertThrows(IllegalArgumentException.class, () -> ByteRange.parse("bytes=1000-", 1000));
+    }
+}
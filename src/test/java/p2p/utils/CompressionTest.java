@@ -0,0 +1,55 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.Test;
+
+public class CompressionTest {
+
+    @Test
+    public void detectsCompressibleContent(){
+        assertTrue(Compression.isCompressible("text/plain; charset=utf-8", "a.txt"));
+        assertTrue(Compression.isCompressible("application/json", "a.bin"));
+        assertTrue(Compression.isCompressible("application/octet-stream", "server.log"));
+        assertFalse(Compression.isCompressible("application/zip", "a.zip"));
+        assertFalse(Compression.isCompressible("image/jpeg", "a.log"));
+        assertFalse(Compression.isCompressible("application/octet-stream", "a.iso"));
+    }
+
+    @Test
+    public void negotiatesGzip(){
+        assertTrue(Compression.acceptsGzip("gzip, deflate, br"));
+        assertTrue(Compression.acceptsGzip("br;q=1.0, gzip;q=0.5"));
+        assertFalse(Compression.acceptsGzip("gzip;q=0, br"));
+        assertFalse(Compression.acceptsGzip("identity"));
+        assertFalse(Compression.acceptsGzip(null));
+    }
+
+    @Test
+    public void gzipStreamWithCallerOwnedDeflaterIsReadableByGzipInputStream() throws Exception{
+        byte[] data = "line of text\n".repeat(10_000).getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try{
+            Compression.GzipOutputStream gzip = new Compression.GzipOutputStream(compressed, deflater, 512);
+            gzip.write(data, 0, 7);
+            gzip.write(data, 7, data.length - 7);
+            gzip.close();
+        }
+        finally{
+            deflater.end();
+        }
+        assertTrue(compressed.size() < data.length / 10);
+        try(GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()))){
+            assertArrayEquals(data, in.readAllBytes());
+        }
+    }
+}
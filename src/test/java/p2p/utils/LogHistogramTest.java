@@ -0,0 +1,52 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class LogHistogramTest {
+
+    @Test
+    public void bucketsCoverEveryValueWithBoundedError(){
+        long[] samples = {0, 1, 3, 4, 7, 8, 9, 1000, 1_000_000, 123_456_789L, Long.MAX_VALUE};
+        for(long value : samples){
+            int index = LogHistogram.index(value);
+            long upper = LogHistogram.upperBound(index);
+            assertTrue(upper >= value, "upper bound below value " + value);
+            assertTrue(index == 0 || LogHistogram.upperBound(index - 1) < value, "value " + value + " fits an earlier bucket");
+            assertTrue(upper - value <= value / 4 + 1, "error too large for " + value);
+        }
+    }
+
+    @Test
+    public void reportsPercentilesAndCount(){
+        LogHistogram histogram = new LogHistogram(10, 30);
+        for(int i = 1; i <= 1000; i++){
+            histogram.record(i * 1000L);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500_500_000L, histogram.getSum());
+        long p50 = histogram.percentile(0.5);
+        long p99 = histogram.percentile(0.99);
+        assertTrue(p50 >= 500_000 && p50 <= 625_000, "p50 " + p50);
+        assertTrue(p99 >= 990_000 && p99 <= 1_250_000, "p99 " + p99);
+    }
+
+    @Test
+    public void writesCumulativePrometheusBuckets(){
+        LogHistogram histogram = new LogHistogram(10, 12);
+        histogram.record(100);
+        histogram.record(2000);
+        histogram.record(1_000_000);
+        PrometheusWriter writer = new PrometheusWriter();
+        writer.histogram("p2p_test_seconds", "test", histogram, 1);
+        String text = writer.toString();
+        assertTrue(text.contains("# TYPE p2p_test_seconds histogram\n"));
+        assertTrue(text.contains("p2p_test_seconds_bucket{le=\"1024\"} 1\n"));
+        assertTrue(text.contains("p2p_test_seconds_bucket{le=\"4096\"} 2\n"));
+        assertTrue(text.contains("p2p_test_seconds_bucket{le=\"+Inf\"} 3\n"));
+        assertTrue(text.contains("p2p_test_seconds_count 3\n"));
+        assertTrue(text.contains("p2p_test_seconds_sum 1002100\n"));
+    }
+}
@@ -0,0 +1,40 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class LongIntTableTest {
+
+    @Test
+    public void growsPastTheExpectedSizeAndKeepsValues(){
+        LongIntTable table = new LongIntTable(4);
+        for(long key = 1; key <= 10_000; key++){
+            table.put(key * 31, (int) key);
+        }
+        assertEquals(10_000, table.size());
+        for(long key = 1; key <= 10_000; key++){
+            assertEquals((int) key, table.get(key * 31));
+        }
+        assertEquals(LongIntTable.MISSING, table.get(7));
+        table.put(31, 5);
+        assertEquals(5, table.get(31));
+        assertEquals(10_000, table.size());
+    }
+
+    @Test
+    public void countsAndSwapsValuesOfExistingKeys(){
+        LongIntTable table = new LongIntTable(16);
+        table.add(-1L, 1);
+        table.add(-1L, 1);
+        assertEquals(1, table.addIfPresent(-1L, -1));
+        assertEquals(LongIntTable.MISSING, table.addIfPresent(2, 1));
+        assertTrue(table.compareAndSet(-1L, 1, -1));
+        assertFalse(table.compareAndSet(-1L, 1, 0));
+        assertFalse(table.compareAndSet(2, 0, 1));
+        assertThrows(IllegalArgumentException.class, () -> table.put(0, 1));
+    }
+}
@@ -0,0 +1,76 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class MerkleTreeTest {
+
+    private static byte[] node(byte[] left, byte[] right) throws Exception{
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update((byte) 0x01);
+        digest.update(left);
+        digest.update(right);
+        return digest.digest();
+    }
+
+    @Test
+    public void hashesChunksAndPromotesTheOddNode() throws Exception{
+        byte[] data = new byte[250];
+        new Random(5).nextBytes(data);
+        MerkleTree.Builder builder = MerkleTree.builder(100);
+        // 아무렇게나 나눠 넣어도 chunk 경계는 100바이트마다
+        for(int offset = 0; offset < data.length; offset += 37){
+            builder.update(ByteBuffer.wrap(data, offset, Math.min(37, data.length - offset)));
+        }
+        MerkleTree tree = builder.build();
+
+        byte[] a = MerkleTree.hashLeaf(data, 0, 100);
+        byte[] b = MerkleTree.hashLeaf(data, 100, 100);
+        byte[] c = MerkleTree.hashLeaf(data, 200, 50);
+        assertEquals(3, tree.getChunkCount());
+        assertEquals(250, tree.getSize());
+        assertArrayEquals(c, tree.leaf(2));
+        assertEquals(HexFormat.of().formatHex(node(node(a, b), c)), tree.rootHex());
+    }
+
+    @Test
+    public void exactMultipleHasNoEmptyTrailingChunk(){
+        MerkleTree.Builder builder = MerkleTree.builder(64);
+        builder.update(ByteBuffer.wrap(new byte[128]));
+        MerkleTree tree = builder.build();
+        assertEquals(2, tree.getChunkCount());
+        assertArrayEquals(MerkleTree.hashLeaf(new byte[64], 0, 64), tree.leaf(1));
+    }
+
+    @Test
+    public void rebuildsFromLeavesAndVerifiesChunks(){
+        byte[] data = new byte[200];
+        new Random(9).nextBytes(data);
+        MerkleTree.Builder builder = MerkleTree.builder(64);
+        builder.update(ByteBuffer.wrap(data));
+        MerkleTree tree = builder.build();
+
+        byte[][] leaves = new byte[tree.getChunkCount()][];
+        for(int i = 0; i < leaves.length; i++){
+            leaves[i] = tree.leaf(i);
+        }
+        MerkleTree copy = MerkleTree.fromLeaves(64, 200, leaves);
+        assertEquals(tree.rootHex(), copy.rootHex());
+        assertEquals(8, copy.chunkLength(3));
+        assertTrue(copy.verifyChunk(3, data, 192, 8));
+        data[195] ^= 1;
+        assertFalse(copy.verifyChunk(3, data, 192, 8));
+        assertFalse(copy.verifyChunk(0, data, 0, 63));
+        assertThrows(IllegalArgumentException.class, () -> MerkleTree.fromLeaves(64, 300, leaves));
+    }
+}
@@ -0,0 +1,40 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+public class ShareCodeAllocatorTest {
+
+    @Test
+    public void issuesUniqueCodesConcurrently(){
+        ShareCodeAllocator allocator = new ShareCodeAllocator();
+        Set<String> codes = ConcurrentHashMap.newKeySet();
+        IntStream.range(0, 200_000).parallel().forEach(i -> codes.add(allocator.next()));
+        assertEquals(200_000, codes.size());
+        assertTrue(codes.stream().allMatch(code -> code.equals(ShareCodeAllocator.normalize(code))));
+    }
+
+    @Test
+    public void sameKeyAndCounterResumeTheSameSequence(){
+        ShareCodeAllocator first = new ShareCodeAllocator();
+        first.next();
+        ShareCodeAllocator resumed = new ShareCodeAllocator(first.getKey(), first.getCounter());
+        assertEquals(first.next(), resumed.next());
+        assertNotEquals(new ShareCodeAllocator().next(), new ShareCodeAllocator().next());
+    }
+
+    @Test
+    public void normalizesUserInput(){
+        assertEquals("0A1B1C2D", ShareCodeAllocator.normalize(" oa1b-lc2d "));
+        assertNull(ShareCodeAllocator.normalize("12345"));
+        assertNull(ShareCodeAllocator.normalize("ABCDEFGU"));
+    }
+}
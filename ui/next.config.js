@@ -9,8 +9,8 @@ const nextConfig = {
         destination: 'http://localhost:8080/upload',
       },
       {
-        source: '/api/download/:port',
-        destination: 'http://localhost:8080/download/:port',
+        source: '/api/download/:code',
+        destination: 'http://localhost:8080/download/:code',
       },
     ];
   },
@@ -12,7 +12,7 @@ import { useFileDownload } from "@/hooks/useFileDownload";
 
 export default function Home() {
   const [activeTab, setActiveTab] = useState<"upload" | "download">("upload");
-  const { uploadFile, uploadedFile, isUploading, port } = useFileUpload();
+  const { uploadFile, uploadedFile, isUploading, code } = useFileUpload();
   const { downloadFile, isDownloading } = useFileDownload();
 
   return (
@@ -33,7 +33,7 @@ export default function Home() {
 
             {isUploading && <LoadingSpinner message="Uploading file..." />}
 
-            <InviteCode port={port} />
+            <InviteCode code={code} />
           </div>
         ) : (
           <div>
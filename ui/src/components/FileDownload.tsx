@@ -4,7 +4,7 @@ import { useState } from 'react';
 import { FiDownload } from 'react-icons/fi';
 
 interface FileDownloadProps {
-  onDownload: (port: number) => Promise<void>;
+  onDownload: (code: string) => Promise<void>;
   isDownloading: boolean;
 }
 
@@ -16,14 +16,14 @@ export default function FileDownload({ onDownload, isDownloading }: FileDownload
     e.preventDefault();
     setError('');
     
-    const port = parseInt(inviteCode.trim(), 10);
-    if (isNaN(port) || port <= 0 || port > 65535) {
-      setError('Please enter a valid port number (1-65535)');
+    const code = inviteCode.trim().replace(/-/g, '').toUpperCase();
+    if (!/^[0-9A-Z]{8}$/.test(code)) {
+      setError('Please enter a valid 8-character invite code');
       return;
     }
     
     try {
-      await onDownload(port);
+      await onDownload(code);
     } catch (err) {
       setError('Failed to download the file. Please check the invite code and try again.');
     }
@@ -48,7 +48,7 @@ export default function FileDownload({ onDownload, isDownloading }: FileDownload
             id="inviteCode"
             value={inviteCode}
             onChange={(e) => setInviteCode(e.target.value)}
-            placeholder="Enter the invite code (port number)"
+            placeholder="Enter the 8-character invite code"
             className="input-field"
             disabled={isDownloading}
             required
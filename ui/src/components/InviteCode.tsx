@@ -4,16 +4,16 @@ import { useState } from 'react';
 import { FiCopy, FiCheck } from 'react-icons/fi';
 
 interface InviteCodeProps {
-  port: number | null;
+  code: string | null;
 }
 
-export default function InviteCode({ port }: InviteCodeProps) {
+export default function InviteCode({ code }: InviteCodeProps) {
   const [copied, setCopied] = useState(false);
   
-  if (!port) return null;
+  if (!code) return null;
   
   const copyToClipboard = () => {
-    navigator.clipboard.writeText(port.toString());
+    navigator.clipboard.writeText(code);
     setCopied(true);
     setTimeout(() => setCopied(false), 2000);
   };
@@ -27,7 +27,7 @@ export default function InviteCode({ port }: InviteCodeProps) {
       
       <div className="flex items-center">
         <div className="flex-1 bg-white p-3 rounded-l-md border border-r-0 border-gray-300 font-mono text-lg">
-          {port}
+          {code}
         </div>
         <button
           onClick={copyToClipboard}
@@ -39,7 +39,7 @@ export default function InviteCode({ port }: InviteCodeProps) {
       </div>
       
       <p className="mt-3 text-xs text-gray-500">
-        This code will be valid as long as your file sharing session is active.
+        This code stays valid for multiple downloads until the share expires.
       </p>
     </div>
   );
@@ -4,12 +4,12 @@ import axios from 'axios';
 export function useFileDownload() {
   const [isDownloading, setIsDownloading] = useState(false);
 
-  const downloadFile = async (port: number) => {
+  const downloadFile = async (code: string) => {
     setIsDownloading(true);
     
     try {
       // Request download from Java backend
-      const response = await axios.get(`/api/download/${port}`, {
+      const response = await axios.get(`/api/download/${encodeURIComponent(code)}`, {
         responseType: 'blob',
       });
       
@@ -4,7 +4,7 @@ import axios from 'axios';
 export function useFileUpload() {
   const [uploadedFile, setUploadedFile] = useState<File | null>(null);
   const [isUploading, setIsUploading] = useState(false);
-  const [port, setPort] = useState<number | null>(null);
+  const [code, setCode] = useState<string | null>(null);
 
   const uploadFile = async (file: File) => {
     setUploadedFile(file);
@@ -20,7 +20,7 @@ export function useFileUpload() {
         },
       });
       
-      setPort(response.data.port);
+      setCode(response.data.code);
     } catch (error) {
       console.error('Error uploading file:', error);
       alert('Failed to upload file. Please try again.');
@@ -30,7 +30,7 @@ export function useFileUpload() {
     }
   };
 
-  return { uploadFile, uploadedFile, isUploading, port };
+  return { uploadFile, uploadedFile, isUploading, code };
 }
 
 
@@ -15,7 +15,7 @@ sudo apt-get upgrade -y
 
 # install java
 echo "Installing Java..."
-sudo apt-get install -y openjdk-17-jdk
+sudo apt-get install -y openjdk-21-jdk
 
 # install node.js
 echo "Installing Node.js..."